@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+import org.apache.aries.jpa.template.EmConsumer;
+import org.apache.aries.jpa.template.EmFunction;
+import org.apache.aries.jpa.template.JpaTemplate;
+import org.apache.aries.jpa.template.TransactionType;
+import org.apache.karaf.vineyard.registry.RegistryServiceImpl;
+import org.apache.karaf.vineyard.registry.definition.FileDefinitionStore;
+import org.apache.karaf.vineyard.registry.metrics.RegistryMetrics;
+
+/**
+ * {@link RegistryServiceImpl} on an in memory embedded Derby database, outside of any container.
+ * The database is dropped on close.
+ */
+public final class EmbeddedRegistry implements Closeable {
+
+    private final String url;
+
+    private final EntityManagerFactory entityManagerFactory;
+
+    private final RegistryServiceImpl registryService;
+
+    public EmbeddedRegistry(String name) throws IOException {
+        url = "jdbc:derby:memory:" + name;
+        Map<String, String> properties = new HashMap<>();
+        properties.put("javax.persistence.jdbc.url", url + ";create=true");
+        entityManagerFactory =
+                Persistence.createEntityManagerFactory("vineyard-registry", properties);
+        registryService =
+                new RegistryServiceImpl(
+                        new LocalJpaTemplate(entityManagerFactory),
+                        new FileDefinitionStore(Files.createTempDirectory("vineyard-definitions")),
+                        new RegistryMetrics());
+    }
+
+    public RegistryServiceImpl getRegistryService() {
+        return registryService;
+    }
+
+    @Override
+    public void close() {
+        entityManagerFactory.close();
+        try {
+            DriverManager.getConnection(url + ";drop=true").close();
+        } catch (SQLException e) {
+            // Derby reports a successful drop with an exception
+        }
+    }
+
+    /** Resource local transactions, each with its own persistence context as in the container. */
+    private static final class LocalJpaTemplate implements JpaTemplate {
+
+        private final EntityManagerFactory entityManagerFactory;
+
+        LocalJpaTemplate(EntityManagerFactory entityManagerFactory) {
+            this.entityManagerFactory = entityManagerFactory;
+        }
+
+        @Override
+        public <R> R txExpr(TransactionType type, EmFunction<R> code) {
+            EntityManager entityManager = entityManagerFactory.createEntityManager();
+            EntityTransaction transaction = entityManager.getTransaction();
+            try {
+                transaction.begin();
+                R result = code.apply(entityManager);
+                transaction.commit();
+                return result;
+            } finally {
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+                entityManager.close();
+            }
+        }
+
+        @Override
+        public void tx(TransactionType type, EmConsumer code) {
+            txExpr(
+                    type,
+                    entityManager -> {
+                        code.accept(entityManager);
+                        return null;
+                    });
+        }
+
+        @Override
+        public <R> R txExpr(EmFunction<R> code) {
+            return txExpr(TransactionType.Required, code);
+        }
+
+        @Override
+        public void tx(EmConsumer code) {
+            tx(TransactionType.Required, code);
+        }
+    }
+}
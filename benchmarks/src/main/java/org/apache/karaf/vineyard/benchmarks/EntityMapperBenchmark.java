@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.karaf.vineyard.common.API;
+import org.apache.karaf.vineyard.common.ChangeSet;
+import org.apache.karaf.vineyard.common.Policy;
+import org.apache.karaf.vineyard.common.RestResource;
+import org.apache.karaf.vineyard.registry.entity.ApiEntity;
+import org.apache.karaf.vineyard.registry.entity.PolicyEntity;
+import org.apache.karaf.vineyard.registry.entity.RestResourceEntity;
+import org.apache.karaf.vineyard.registry.entity.mapper.EntityMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Mapping between the POJOs and the entities, and from the projection rows. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EntityMapperBenchmark {
+
+    private API api;
+    private RestResource restResource;
+    private Policy policy;
+
+    private ApiEntity apiEntity;
+    private RestResourceEntity restResourceEntity;
+    private PolicyEntity policyEntity;
+
+    private Object[] apiRow;
+    private Object[] restResourceRow;
+
+    @Setup
+    public void setup() {
+        ChangeSet changeSet = new RegistryGenerator(42).generate(1, 1, 1);
+        api = changeSet.getApis().iterator().next();
+        restResource = api.getRestResources().iterator().next();
+        policy = changeSet.getPolicies().iterator().next();
+
+        apiEntity = EntityMapper.mapTo(api);
+        apiEntity.setRevision(1L);
+        restResourceEntity = EntityMapper.mapTo(restResource, apiEntity);
+        restResourceEntity.setRevision(1L);
+        policyEntity = EntityMapper.mapTo(policy);
+        policyEntity.setRevision(1L);
+
+        apiRow =
+                new Object[] {
+                    api.getId(), 1L, api.getName(), api.getContext(), api.getDescription()
+                };
+        restResourceRow =
+                new Object[] {
+                    restResource.getId(),
+                    1L,
+                    restResource.getDescription(),
+                    restResource.getPath(),
+                    restResource.getMethod(),
+                    restResource.getVersion(),
+                    restResource.getAccept(),
+                    restResource.getMediaType(),
+                    restResource.getResponse(),
+                    restResource.getEndpoint()
+                };
+    }
+
+    @Benchmark
+    public ApiEntity apiToEntity() {
+        return EntityMapper.mapTo(api);
+    }
+
+    @Benchmark
+    public API apiFromEntity() {
+        return EntityMapper.mapTo(apiEntity);
+    }
+
+    @Benchmark
+    public API apiFromRow() {
+        return EntityMapper.mapApi(apiRow, 0);
+    }
+
+    @Benchmark
+    public RestResourceEntity restResourceToEntity() {
+        return EntityMapper.mapTo(restResource, apiEntity);
+    }
+
+    @Benchmark
+    public RestResource restResourceFromEntity() {
+        return EntityMapper.mapTo(restResourceEntity);
+    }
+
+    @Benchmark
+    public RestResource restResourceFromRow() {
+        return EntityMapper.mapRestResource(restResourceRow, 0);
+    }
+
+    @Benchmark
+    public PolicyEntity policyToEntity() {
+        return EntityMapper.mapTo(policy);
+    }
+
+    @Benchmark
+    public Policy policyFromEntity() {
+        return EntityMapper.mapTo(policyEntity);
+    }
+}
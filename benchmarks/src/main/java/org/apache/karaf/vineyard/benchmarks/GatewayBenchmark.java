@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.component.jetty9.JettyHttpComponent9;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.karaf.vineyard.common.API;
+import org.apache.karaf.vineyard.common.Policy;
+import org.apache.karaf.vineyard.common.RestResource;
+import org.apache.karaf.vineyard.gateway.GatewayServiceImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Creation of the Camel route of a resource by the gateway and its removal, with a Jetty consumer
+ * per route or a single dispatching one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GatewayBenchmark {
+
+    /** Number of policies applied to the published resource. */
+    @Param({"0", "3"})
+    public int policies;
+
+    /** Single dispatching Jetty consumer, or a consumer per route. */
+    @Param({"false", "true"})
+    public boolean dispatcher;
+
+    private DefaultCamelContext camelContext;
+
+    private GatewayServiceImpl gatewayService;
+
+    private API api;
+
+    private RestResource restResource;
+
+    @Setup
+    public void setup() throws Exception {
+        camelContext = new DefaultCamelContext();
+        camelContext.setName("vineyard-gateway-benchmark");
+        camelContext.addComponent("jetty", new JettyHttpComponent9());
+        camelContext.start();
+        gatewayService = new GatewayServiceImpl(camelContext, dispatcher);
+
+        api = new API();
+        api.setId("api-1");
+        api.setContext("/benchmark");
+        restResource = new RestResource();
+        restResource.setId("resource-1");
+        restResource.setPath("/items");
+        restResource.setMethod("GET");
+        restResource.setResponse("{}");
+        Map<Integer, Policy> applied = new HashMap<>();
+        for (int order = 1; order <= policies; order++) {
+            Policy policy = new Policy();
+            policy.setId("policy-" + order);
+            policy.setClassName(NoopPolicy.class.getName());
+            applied.put(order, policy);
+        }
+        restResource.setPolicies(applied);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        camelContext.stop();
+    }
+
+    @Benchmark
+    public void publishAndRemove() throws Exception {
+        gatewayService.publish(api, restResource);
+        gatewayService.remove(api.getId(), restResource.getId());
+    }
+
+    /** Policy processor doing nothing, only its instantiation is measured. */
+    public static class NoopPolicy implements Processor {
+
+        @Override
+        public void process(Exchange exchange) {}
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.apache.karaf.vineyard.importer.json.JsonImporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Import of a JSON registry into an empty embedded registry, for several registry sizes. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class JsonImporterBenchmark {
+
+    /** Number of APIs of the imported registry, each with 5 resources. */
+    @Param({"10", "100", "1000"})
+    public int apis;
+
+    private byte[] json;
+
+    private EmbeddedRegistry registry;
+
+    private JsonImporter importer;
+
+    private int counter;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        RegistryGenerator generator = new RegistryGenerator(42);
+        json = generator.toJson(generator.generate(apis, 5, 10)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        registry = new EmbeddedRegistry("importer-benchmark-" + counter++);
+        importer = new JsonImporter(registry.getRegistryService());
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        registry.close();
+    }
+
+    @Benchmark
+    public void load() throws Exception {
+        importer.load(new ByteArrayInputStream(json));
+    }
+}
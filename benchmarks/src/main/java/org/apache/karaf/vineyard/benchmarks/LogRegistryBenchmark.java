@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.apache.karaf.vineyard.common.API;
+import org.apache.karaf.vineyard.common.ChangeSet;
+import org.apache.karaf.vineyard.common.ChangeSetResult;
+import org.apache.karaf.vineyard.registry.definition.FileDefinitionStore;
+import org.apache.karaf.vineyard.registry.log.LogRegistryService;
+import org.apache.karaf.vineyard.registry.metrics.RegistryMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Operations of the log registry, in a temporary directory. Same operations as {@link
+ * RegistryBenchmark}: the reads are served by the snapshot, the writes are appended to the log and
+ * patch the snapshot.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LogRegistryBenchmark {
+
+    /** Log registry generated with {@link RegistryGenerator}. */
+    public abstract static class Registry {
+
+        /** Number of APIs of the registry, each with 5 resources. */
+        @Param({"100", "1000"})
+        public int apis;
+
+        Path directory;
+
+        LogRegistryService registryService;
+
+        String apiId;
+
+        void open(boolean sync) throws IOException {
+            directory = Files.createTempDirectory("vineyard-log");
+            registryService =
+                    new LogRegistryService(
+                            new FileDefinitionStore(directory.resolve("definitions")),
+                            new RegistryMetrics());
+            registryService.open(directory, sync);
+            ChangeSetResult result =
+                    registryService.commit(new RegistryGenerator(42).generate(apis, 5, 10));
+            apiId = result.getApis().get("api-" + (apis / 2));
+            registryService.list();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            registryService.close();
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /** Registry only read. */
+    @State(Scope.Benchmark)
+    public static class Reads extends Registry {
+
+        @Setup
+        public void setup() throws IOException {
+            open(true);
+        }
+    }
+
+    /** Registry written by the benchmarks, with or without a sync of the log on each write. */
+    @State(Scope.Benchmark)
+    public static class Writes extends Registry {
+
+        @Param({"true", "false"})
+        public boolean sync;
+
+        int counter;
+
+        /** API committed by the previous {@link #commitChangeSet} call, deleted by the next one. */
+        String committed;
+
+        @Setup
+        public void setup() throws IOException {
+            open(sync);
+        }
+    }
+
+    @Benchmark
+    public API get(Reads state) {
+        return state.registryService.get(state.apiId);
+    }
+
+    @Benchmark
+    public API getFull(Reads state) {
+        return state.registryService.getFull(state.apiId);
+    }
+
+    @Benchmark
+    public Collection<API> listPage(Reads state) {
+        return state.registryService.list(null, 50);
+    }
+
+    @Benchmark
+    public void update(Writes state) {
+        API updated = state.registryService.get(state.apiId);
+        updated.setDescription("Updated " + state.counter++);
+        state.registryService.update(updated);
+    }
+
+    @Benchmark
+    public void addAndDelete(Writes state) {
+        API added = new API();
+        added.setName("Added " + state.counter);
+        added.setContext("/added-" + state.counter++);
+        state.registryService.delete(state.registryService.add(added).getId());
+    }
+
+    @Benchmark
+    public ChangeSetResult commitChangeSet(Writes state) {
+        ChangeSet changeSet = new RegistryGenerator(state.counter).generate(1, 5, 0);
+        API added = changeSet.getApis().iterator().next();
+        added.setContext("/commit-" + state.counter++);
+        if (state.committed != null) {
+            changeSet.getDeletedApis().add(state.committed);
+        }
+        ChangeSetResult result = state.registryService.commit(changeSet);
+        state.committed = result.getApis().get(added.getId());
+        return result;
+    }
+}
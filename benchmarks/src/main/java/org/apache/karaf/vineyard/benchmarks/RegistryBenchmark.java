@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.benchmarks;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import org.apache.karaf.vineyard.common.API;
+import org.apache.karaf.vineyard.common.ChangeSet;
+import org.apache.karaf.vineyard.common.ChangeSetResult;
+import org.apache.karaf.vineyard.common.RegistryService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Operations of the JPA registry, on an embedded Derby database. The reads and the writes use their
+ * own registry: the reads are served by the loaded snapshot, the writes go to the database and
+ * patch the snapshot.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RegistryBenchmark {
+
+    /** Embedded registry generated with {@link RegistryGenerator}. */
+    public abstract static class Registry {
+
+        /** Number of APIs of the registry, each with 5 resources. */
+        @Param({"100", "1000"})
+        public int apis;
+
+        EmbeddedRegistry registry;
+
+        RegistryService registryService;
+
+        String apiId;
+
+        void open(String name) throws IOException {
+            registry = new EmbeddedRegistry(name);
+            registryService = registry.getRegistryService();
+            ChangeSetResult result =
+                    registryService.commit(new RegistryGenerator(42).generate(apis, 5, 10));
+            apiId = result.getApis().get("api-" + (apis / 2));
+        }
+
+        @TearDown
+        public void tearDown() {
+            registry.close();
+        }
+    }
+
+    /** Registry with its snapshot loaded, only read. */
+    @State(Scope.Benchmark)
+    public static class Reads extends Registry {
+
+        @Setup
+        public void setup() throws IOException {
+            open("registry-benchmark-reads");
+            registryService.list();
+        }
+    }
+
+    /** Registry never loaded in memory, the pages are read from the database. */
+    @State(Scope.Benchmark)
+    public static class Pages extends Registry {
+
+        @Setup
+        public void setup() throws IOException {
+            open("registry-benchmark-pages");
+        }
+    }
+
+    /** Registry with its snapshot loaded, written by the benchmarks. */
+    @State(Scope.Benchmark)
+    public static class Writes extends Registry {
+
+        int counter;
+
+        /** API committed by the previous {@link #commitChangeSet} call, deleted by the next one. */
+        String committed;
+
+        @Setup
+        public void setup() throws IOException {
+            open("registry-benchmark-writes");
+            registryService.list();
+        }
+    }
+
+    @Benchmark
+    public API get(Reads state) {
+        return state.registryService.get(state.apiId);
+    }
+
+    @Benchmark
+    public API getFull(Reads state) {
+        return state.registryService.getFull(state.apiId);
+    }
+
+    @Benchmark
+    public Collection<API> listPage(Reads state) {
+        return state.registryService.list(null, 50);
+    }
+
+    @Benchmark
+    public Collection<API> listPageFromDatabase(Pages state) {
+        return state.registryService.list(state.apiId, 50);
+    }
+
+    @Benchmark
+    public void update(Writes state) {
+        API updated = state.registryService.get(state.apiId);
+        updated.setDescription("Updated " + state.counter++);
+        state.registryService.update(updated);
+    }
+
+    @Benchmark
+    public void addAndDelete(Writes state) throws Exception {
+        API added = new API();
+        added.setName("Added " + state.counter);
+        added.setContext("/added-" + state.counter++);
+        state.registryService.delete(state.registryService.add(added).getId());
+    }
+
+    @Benchmark
+    public ChangeSetResult commitChangeSet(Writes state) {
+        ChangeSet changeSet = new RegistryGenerator(state.counter).generate(1, 5, 0);
+        API added = changeSet.getApis().iterator().next();
+        added.setContext("/commit-" + state.counter++);
+        if (state.committed != null) {
+            changeSet.getDeletedApis().add(state.committed);
+        }
+        ChangeSetResult result = state.registryService.commit(changeSet);
+        state.committed = result.getApis().get(added.getId());
+        return result;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.johnzon.mapper.MapperBuilder;
+import org.apache.karaf.vineyard.common.API;
+import org.apache.karaf.vineyard.common.ChangeSet;
+import org.apache.karaf.vineyard.common.Policy;
+import org.apache.karaf.vineyard.common.RestResource;
+import org.apache.karaf.vineyard.importer.json.JsonRegistry;
+
+/**
+ * Generator of synthetic registries, the same seed always giving the same registry so the results
+ * can be compared across releases.
+ *
+ * <p>The APIs, resources and policies carry client IDs ({@code api-1}, {@code api-1-resource-1},
+ * {@code policy-1}), and each resource applies one to three distinct policies.
+ */
+public final class RegistryGenerator {
+
+    private static final String[] METHODS = {"GET", "POST", "PUT", "DELETE"};
+
+    private static final String[] WORDS = {
+        "payments", "orders", "customers", "invoices", "shipping", "catalog", "inventory",
+        "accounts", "refunds", "reports", "search", "profiles", "notifications", "pricing"
+    };
+
+    private final Random random;
+
+    public RegistryGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Generate a registry.
+     *
+     * @param apis The number of APIs.
+     * @param restResourcesPerApi The number of resources of each API.
+     * @param policies The number of policies, applied to the resources.
+     */
+    public ChangeSet generate(int apis, int restResourcesPerApi, int policies) {
+        ChangeSet changeSet = new ChangeSet();
+        for (int i = 1; i <= policies; i++) {
+            Policy policy = new Policy();
+            policy.setId("policy-" + i);
+            policy.setClassName("org.example.policy.Policy" + i);
+            policy.setDescription(sentence());
+            policy.setMeta(Collections.singletonMap("kind", word()));
+            changeSet.getPolicies().add(policy);
+        }
+        for (int i = 1; i <= apis; i++) {
+            API api = new API();
+            api.setId("api-" + i);
+            api.setName(capitalize(word()) + " " + i);
+            api.setContext("/api-" + i);
+            api.setDescription(sentence());
+            api.getMeta().put("owner", word());
+            api.getMeta().put("tier", random.nextBoolean() ? "gold" : "silver");
+            for (int j = 1; j <= restResourcesPerApi; j++) {
+                api.getRestResources().add(restResource(api.getId() + "-resource-" + j, policies));
+            }
+            changeSet.getApis().add(api);
+        }
+        return changeSet;
+    }
+
+    /** Write a generated registry in the format of the JSON importer. */
+    public String toJson(ChangeSet changeSet) {
+        JsonRegistry registry = new JsonRegistry();
+        registry.setApis(new ArrayList<>(changeSet.getApis()));
+        registry.setPolicies(new ArrayList<>(changeSet.getPolicies()));
+        return new MapperBuilder().build().writeObjectAsString(registry);
+    }
+
+    private RestResource restResource(String id, int policies) {
+        RestResource restResource = new RestResource();
+        restResource.setId(id);
+        restResource.setPath("/" + word() + "/" + id);
+        restResource.setMethod(METHODS[random.nextInt(METHODS.length)]);
+        restResource.setDescription(sentence());
+        restResource.setMediaType("application/json");
+        restResource.setEndpoint("http://backend:8080/" + id);
+        if (policies > 0) {
+            Map<Integer, Policy> applied = new HashMap<>();
+            // a policy is applied once to a resource, consecutive ones are picked
+            int first = random.nextInt(policies);
+            int count = 1 + random.nextInt(Math.min(3, policies));
+            for (int order = 1; order <= count; order++) {
+                Policy policy = new Policy();
+                policy.setId("policy-" + (1 + (first + order) % policies));
+                policy.setParam(
+                        Collections.singletonMap("rate", String.valueOf(random.nextInt(1000))));
+                applied.put(order, policy);
+            }
+            restResource.setPolicies(applied);
+        }
+        return restResource;
+    }
+
+    private String sentence() {
+        List<String> words = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            words.add(word());
+        }
+        return capitalize(String.join(" ", words));
+    }
+
+    private String word() {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+
+    private static String capitalize(String text) {
+        return Character.toUpperCase(text.charAt(0)) + text.substring(1);
+    }
+}
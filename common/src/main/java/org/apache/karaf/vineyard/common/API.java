@@ -27,6 +27,12 @@ public class API {
     /** Unique API ID */
     private String id;
 
+    /**
+     * Revision of the API, increased by each update. An update carrying a revision is only applied
+     * if it's still the current one.
+     */
+    private Long revision;
+
     /** Name of the API */
     private String name;
 
@@ -50,6 +56,14 @@ public class API {
         this.id = id;
     }
 
+    public Long getRevision() {
+        return revision;
+    }
+
+    public void setRevision(Long revision) {
+        this.revision = revision;
+    }
+
     public String getName() {
         return name;
     }
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.common;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Asynchronous facade of the {@link RegistryService}, so a slow storage doesn't hold the caller
+ * threads. The calls run on a bounded executor: when its queue is full, the returned future fails
+ * right away with a {@link RejectedExecutionException} instead of piling the calls up.
+ */
+public interface AsyncRegistryService {
+
+    /** A call of the {@link RegistryService}. */
+    @FunctionalInterface
+    interface Call<T> {
+        T apply(RegistryService registry) throws Exception;
+    }
+
+    /**
+     * Run any call of the {@link RegistryService} on the executor.
+     *
+     * @param call The call, given the {@link RegistryService}.
+     * @return The result of the call, failing with the exception thrown by the call if any.
+     */
+    <T> CompletableFuture<T> call(Call<T> call);
+
+    /** @see RegistryService#add(API) */
+    CompletableFuture<API> add(API api);
+
+    /** @see RegistryService#update(API) */
+    CompletableFuture<Void> update(API api);
+
+    /** @see RegistryService#delete(String) */
+    CompletableFuture<Void> delete(String id);
+
+    /** @see RegistryService#delete(Collection) */
+    CompletableFuture<Void> delete(Collection<String> ids);
+
+    /** @see RegistryService#addRestResource(API, RestResource) */
+    CompletableFuture<RestResource> addRestResource(API api, RestResource restResource);
+
+    /** @see RegistryService#addPolicy(Policy) */
+    CompletableFuture<Policy> addPolicy(Policy policy);
+
+    /** @see RegistryService#deletePolicy(String) */
+    CompletableFuture<Void> deletePolicy(String id);
+
+    /** @see RegistryService#commit(ChangeSet) */
+    CompletableFuture<ChangeSetResult> commit(ChangeSet changeSet);
+
+    /**
+     * Retrieve the number of calls waiting for a thread of the executor.
+     *
+     * @return The queue size.
+     */
+    int getQueueSize();
+
+    /**
+     * Retrieve the number of calls rejected because the executor was saturated, since the start.
+     *
+     * @return The rejected calls count.
+     */
+    long getRejectedCount();
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A set of creates, updates and deletes applied to the registry at once.
+ *
+ * <p>The IDs of the created {@link API}, {@link RestResource} and {@link Policy} are references
+ * local to the change set: the registry generates the real IDs and returns them in a {@link
+ * ChangeSetResult}. The policies applied to a created {@link RestResource} (its {@code policies}
+ * map, with the {@code param} of each {@link Policy}) may reference either a policy created in the
+ * same change set or an existing one.
+ */
+public class ChangeSet {
+
+    /** Policies to create */
+    private Collection<Policy> policies = new ArrayList<>();
+
+    /** APIs to create, including their meta and resources */
+    private Collection<API> apis = new ArrayList<>();
+
+    /** Resources to create in existing APIs, by API ID */
+    private Map<String, Collection<RestResource>> restResources = new HashMap<>();
+
+    /** Existing APIs to update */
+    private Collection<API> updatedApis = new ArrayList<>();
+
+    /** IDs of the resources to delete */
+    private Collection<String> deletedRestResources = new ArrayList<>();
+
+    /** IDs of the APIs to delete */
+    private Collection<String> deletedApis = new ArrayList<>();
+
+    /** IDs of the policies to delete */
+    private Collection<String> deletedPolicies = new ArrayList<>();
+
+    public Collection<Policy> getPolicies() {
+        return policies;
+    }
+
+    public void setPolicies(Collection<Policy> policies) {
+        this.policies = policies;
+    }
+
+    public Collection<API> getApis() {
+        return apis;
+    }
+
+    public void setApis(Collection<API> apis) {
+        this.apis = apis;
+    }
+
+    public Map<String, Collection<RestResource>> getRestResources() {
+        return restResources;
+    }
+
+    public void setRestResources(Map<String, Collection<RestResource>> restResources) {
+        this.restResources = restResources;
+    }
+
+    public Collection<API> getUpdatedApis() {
+        return updatedApis;
+    }
+
+    public void setUpdatedApis(Collection<API> updatedApis) {
+        this.updatedApis = updatedApis;
+    }
+
+    public Collection<String> getDeletedRestResources() {
+        return deletedRestResources;
+    }
+
+    public void setDeletedRestResources(Collection<String> deletedRestResources) {
+        this.deletedRestResources = deletedRestResources;
+    }
+
+    public Collection<String> getDeletedApis() {
+        return deletedApis;
+    }
+
+    public void setDeletedApis(Collection<String> deletedApis) {
+        this.deletedApis = deletedApis;
+    }
+
+    public Collection<String> getDeletedPolicies() {
+        return deletedPolicies;
+    }
+
+    public void setDeletedPolicies(Collection<String> deletedPolicies) {
+        this.deletedPolicies = deletedPolicies;
+    }
+}
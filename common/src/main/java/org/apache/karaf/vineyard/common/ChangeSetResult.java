@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.common;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** IDs generated by the registry for a {@link ChangeSet}, keyed by the change set references. */
+public class ChangeSetResult {
+
+    /** Generated {@link API} IDs */
+    private Map<String, String> apis = new HashMap<>();
+
+    /** Generated {@link RestResource} IDs */
+    private Map<String, String> restResources = new HashMap<>();
+
+    /** Generated {@link Policy} IDs */
+    private Map<String, String> policies = new HashMap<>();
+
+    public Map<String, String> getApis() {
+        return apis;
+    }
+
+    public void setApis(Map<String, String> apis) {
+        this.apis = apis;
+    }
+
+    public Map<String, String> getRestResources() {
+        return restResources;
+    }
+
+    public void setRestResources(Map<String, String> restResources) {
+        this.restResources = restResources;
+    }
+
+    public Map<String, String> getPolicies() {
+        return policies;
+    }
+
+    public void setPolicies(Map<String, String> policies) {
+        this.policies = policies;
+    }
+}
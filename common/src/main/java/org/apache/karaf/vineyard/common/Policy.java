@@ -24,6 +24,12 @@ public class Policy {
     /** Unique Policy ID */
     private String id;
 
+    /**
+     * Revision of the Policy, increased by each update. An update carrying a revision is only
+     * applied if it's still the current one.
+     */
+    private Long revision;
+
     /** Open text describing the Policy */
     private String description;
 
@@ -47,6 +53,14 @@ public class Policy {
         this.id = id;
     }
 
+    public Long getRevision() {
+        return revision;
+    }
+
+    public void setRevision(Long revision) {
+        this.revision = revision;
+    }
+
     public String getDescription() {
         return description;
     }
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.common;
+
+import java.util.Map;
+
+/**
+ * Factory of the processors of a kind of policy, registered as a service with a {@value #NAME}
+ * property. The {@link Policy#getClassName()} of the policies refer to this name.
+ *
+ * <p>The gateway creates the processors of a resource when it's published, and releases them when
+ * it's unpublished. A processor only serves its resource, so it can keep state (limits, caches),
+ * unless the factory declares its processors {@link #isShared() shared}. A processor is called
+ * concurrently and must be thread safe.
+ *
+ * @param <P> Type of the processors, Camel processors for the gateway.
+ */
+public interface PolicyFactory<P> {
+
+    /** Service property holding the name of the policy. */
+    String NAME = "name";
+
+    /**
+     * Create a processor.
+     *
+     * @param param The parameters of the policy for a resource, unmodifiable and never null.
+     */
+    P create(Map<String, String> param) throws Exception;
+
+    /**
+     * Create the processor of a resource, by default with {@link #create(Map)}.
+     *
+     * @param resource The unique ID of the published resource.
+     * @param param The parameters of the policy for the resource, unmodifiable and never null.
+     */
+    default P create(String resource, Map<String, String> param) throws Exception {
+        return create(param);
+    }
+
+    /**
+     * Whether the processors are stateless, so a processor is created with {@link #create(Map)} and
+     * shared by all the resources applying the policy with the same parameters. A shared processor
+     * is released once its factory is replaced and no resource uses it, or when the gateway stops.
+     */
+    default boolean isShared() {
+        return false;
+    }
+
+    /** Release a processor created by this factory, once its resource is unpublished. */
+    default void release(P processor) {}
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** A batch of {@link RegistryEvent} read from the registry change stream. */
+public class RegistryChanges {
+
+    /** The events, in sequence order */
+    private List<RegistryEvent> events = new ArrayList<>();
+
+    /** Sequence of the last event published by the registry */
+    private long sequence;
+
+    /**
+     * False when some events following the requested sequence are no longer available: the consumer
+     * missed changes and has to reload the registry before resuming from {@link #getSequence()}.
+     */
+    private boolean complete = true;
+
+    public List<RegistryEvent> getEvents() {
+        return events;
+    }
+
+    public void setEvents(List<RegistryEvent> events) {
+        this.events = events;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public void setComplete(boolean complete) {
+        this.complete = complete;
+    }
+}
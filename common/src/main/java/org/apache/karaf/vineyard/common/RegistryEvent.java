@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.common;
+
+/** A change of an entity of the registry. */
+public class RegistryEvent {
+
+    /** Kind of entity changed. */
+    public enum Type {
+        API,
+        REST_RESOURCE,
+        POLICY
+    }
+
+    /** What happened to the entity. */
+    public enum Operation {
+        CREATED,
+        UPDATED,
+        DELETED
+    }
+
+    /** Position of the event in the stream, increasing by one for each event */
+    private long sequence;
+
+    private Type type;
+
+    /** ID of the entity changed */
+    private String id;
+
+    private Operation operation;
+
+    /** Version of the registry once the change is applied */
+    private long version;
+
+    public RegistryEvent() {}
+
+    public RegistryEvent(Type type, String id, Operation operation) {
+        this.type = type;
+        this.id = id;
+        this.operation = operation;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public void setOperation(Operation operation) {
+        this.operation = operation;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+}
@@ -18,7 +18,9 @@ package org.apache.karaf.vineyard.common;
 
 import java.io.InputStream;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 /** Service managing Karaf Vineyard registry. */
 public interface RegistryService {
@@ -39,6 +41,14 @@ public interface RegistryService {
      */
     void definition(API api, InputStream inputStream) throws Exception;
 
+    /**
+     * Retrieve the SHA-256 digest identifying the content of an {@link API} definition.
+     *
+     * @param api The {@link API}.
+     * @return The digest as a lower case hex string, or null if the {@link API} has no definition.
+     */
+    String getDefinitionDigest(API api);
+
     /**
      * Delete an existing {@link API} from the registry, identified by ID.
      *
@@ -47,9 +57,20 @@ public interface RegistryService {
     void delete(String id);
 
     /**
-     * Update an existing {@link API}.
+     * Delete several {@link API}, with their resources, in a single transaction.
+     *
+     * @param ids The {@link API} IDs.
+     */
+    void delete(Collection<String> ids);
+
+    /**
+     * Update an existing {@link API}. When the {@link API} carries a revision, it's applied with a
+     * single conditional update, only if the revision is still the current one.
      *
      * @param api The {@link API} details.
+     * @throws VersionConflictException If the {@link API} has been changed since this revision.
+     * @throws RouteConflictException If another API already serves a route of the resources in the
+     *     new context.
      */
     void update(API api);
 
@@ -61,6 +82,15 @@ public interface RegistryService {
      */
     API get(String id);
 
+    /**
+     * Retrieve {@link API} details with the whole tree below it: its {@link RestResource} and the
+     * {@link Policy} applied to each of them, with their parameters.
+     *
+     * @param id The {@link API} ID.
+     * @return The {@link API} with its resources, or null if it doesn't exist.
+     */
+    API getFull(String id);
+
     /**
      * Retrieve all the {@link API} in the registry.
      *
@@ -69,26 +99,71 @@ public interface RegistryService {
     Collection<API> list();
 
     /**
-     * Add a new meta for an existing {@link API}.
+     * Retrieve a page of {@link API}, ordered by ID.
+     *
+     * @param after The ID of the last {@link API} of the previous page, or null for the first page.
+     * @param limit The maximum number of {@link API} to return.
+     * @return The page of {@link API}.
+     */
+    Collection<API> list(String after, int limit);
+
+    /**
+     * Search the {@link API} by meta, ordered by ID. An {@link API} matches when, for each key of
+     * the criteria, it has one of the values given for this key.
+     *
+     * @param meta The accepted values for each meta key.
+     * @param after The ID of the last {@link API} of the previous page, or null for the first page.
+     * @param limit The maximum number of {@link API} to return.
+     * @return The page of matching {@link API}.
+     */
+    Collection<API> search(Map<String, Collection<String>> meta, String after, int limit);
+
+    /**
+     * Search the {@link API} by text. The query is matched against the name and description of the
+     * {@link API} and the paths and descriptions of its {@link RestResource}, each word of the
+     * query matching the words starting with it.
+     *
+     * @param query The words to search.
+     * @param limit The maximum number of {@link API} to return.
+     * @return The matching {@link API}, best match first.
+     */
+    List<API> searchText(String query, int limit);
+
+    /**
+     * Pass all the {@link API} in the registry, ordered by ID, to a consumer as they are read from
+     * the storage, without loading the whole list in memory.
+     *
+     * @param consumer The consumer of the {@link API}.
+     */
+    void scan(Consumer<API> consumer);
+
+    /**
+     * Add a new meta for an existing {@link API}. When the {@link API} carries a revision, the
+     * change is only applied if it's still the current one.
      *
      * @param api The {@link API} for the metadata to add.
      * @param meta The list of meta to add.
+     * @throws VersionConflictException If the {@link API} has been changed since this revision.
      */
     void addMeta(API api, Map<String, String> meta);
 
     /**
-     * Delete a meta from a given {@link API}.
+     * Delete a meta from a given {@link API}. When the {@link API} carries a revision, the change
+     * is only applied if it's still the current one.
      *
      * @param api The {@link API} for the metadata to remove.
      * @param key The key of the metadata to remove.
+     * @throws VersionConflictException If the {@link API} has been changed since this revision.
      */
     void deleteMeta(API api, String key);
 
     /**
-     * Update meta in an existing {@link API}.
+     * Update meta in an existing {@link API}. When the {@link API} carries a revision, the change
+     * is only applied if it's still the current one.
      *
      * @param api The {@link API} for the metadata to update.
      * @param meta The updated meta.
+     * @throws VersionConflictException If the {@link API} has been changed since this revision.
      */
     void updateMeta(API api, Map<String, String> meta);
 
@@ -106,6 +181,7 @@ public interface RegistryService {
      * @param api The {@link API}.
      * @param restResource The {@link RestResource} to add.
      * @return The {@link RestResource} created for the {@link API}.
+     * @throws RouteConflictException If another resource already serves the same route.
      */
     RestResource addRestResource(API api, RestResource restResource);
 
@@ -125,6 +201,17 @@ public interface RegistryService {
      */
     Collection<RestResource> listRestResources(API api);
 
+    /**
+     * Retrieve a page of {@link RestResource} for an existing {@link API}, ordered by ID.
+     *
+     * @param api The {@link API}.
+     * @param after The ID of the last {@link RestResource} of the previous page, or null for the
+     *     first page.
+     * @param limit The maximum number of {@link RestResource} to return.
+     * @return The page of resources.
+     */
+    Collection<RestResource> listRestResources(API api, String after, int limit);
+
     /**
      * Retrieve {@link RestResource} details.
      *
@@ -133,6 +220,17 @@ public interface RegistryService {
      */
     RestResource getRestResource(String id);
 
+    /**
+     * Resolve a request to the {@link RestResource} serving it. A route (context, path, method) is
+     * unique in the registry.
+     *
+     * @param context The context of the {@link API}.
+     * @param path The path of the {@link RestResource}.
+     * @param method The HTTP method of the {@link RestResource}.
+     * @return The {@link RestResource}, or null if no resource serves this route.
+     */
+    RestResource resolve(String context, String path, String method);
+
     /**
      * Retrieve all the {@link RestResource} for an existing {@link Policy}.
      *
@@ -167,6 +265,37 @@ public interface RegistryService {
     /** List all the policies in the registry. */
     Collection<Policy> listPolicies();
 
+    /**
+     * Retrieve a page of {@link Policy}, ordered by ID.
+     *
+     * @param after The ID of the last {@link Policy} of the previous page, or null for the first
+     *     page.
+     * @param limit The maximum number of {@link Policy} to return.
+     * @return The page of {@link Policy}.
+     */
+    Collection<Policy> listPolicies(String after, int limit);
+
+    /**
+     * Search the {@link Policy} by meta, ordered by ID. A {@link Policy} matches when, for each key
+     * of the criteria, it has one of the values given for this key.
+     *
+     * @param meta The accepted values for each meta key.
+     * @param after The ID of the last {@link Policy} of the previous page, or null for the first
+     *     page.
+     * @param limit The maximum number of {@link Policy} to return.
+     * @return The page of matching {@link Policy}.
+     */
+    Collection<Policy> searchPolicies(
+            Map<String, Collection<String>> meta, String after, int limit);
+
+    /**
+     * Pass all the {@link Policy} in the registry, ordered by ID, to a consumer as they are read
+     * from the storage, without loading the whole list in memory.
+     *
+     * @param consumer The consumer of the {@link Policy}.
+     */
+    void scanPolicies(Consumer<Policy> consumer);
+
     /**
      * Apply a {@link Policy} to a {@link RestResource}.
      *
@@ -178,6 +307,27 @@ public interface RegistryService {
      */
     void applyPolicy(String restResourceId, String policyId, int order, Map<String, String> params);
 
+    /**
+     * Apply a {@link Policy} to a {@link RestResource}, only if the {@link RestResource} is still
+     * at the given revision.
+     *
+     * @param restResourceId The id of the {@link RestResource}
+     * @param revision The expected revision of the {@link RestResource}, or null to apply the
+     *     policy whatever the revision
+     * @param policyId The id of the {@link Policy} to apply
+     * @param order The order of the policy
+     * @param params List of the parameters for the applied {@link Policy} to the {@link
+     *     RestResource}
+     * @throws VersionConflictException If the {@link RestResource} has been changed since this
+     *     revision.
+     */
+    void applyPolicy(
+            String restResourceId,
+            Long revision,
+            String policyId,
+            int order,
+            Map<String, String> params);
+
     /**
      * Unapply a {@link Policy} to a {@link RestResource}.
      *
@@ -186,6 +336,13 @@ public interface RegistryService {
      */
     void unapplyPolicy(String restResourceId, String policyId);
 
+    /**
+     * Unapply a {@link Policy} from all the {@link RestResource} it's applied to.
+     *
+     * @param policyId The id of the {@link Policy} to unapply
+     */
+    void unapplyPolicyFromAll(String policyId);
+
     /**
      * List the policies for a given {@link RestResource}.
      *
@@ -195,26 +352,32 @@ public interface RegistryService {
     Map<Integer, Policy> listAppliedPolicies(RestResource restResource);
 
     /**
-     * Add a new meta for an existing {@link Policy}.
+     * Add a new meta for an existing {@link Policy}. When the {@link Policy} carries a revision,
+     * the change is only applied if it's still the current one.
      *
      * @param policy The {@link Policy} for the metadata to add.
      * @param meta The list of meta to add.
+     * @throws VersionConflictException If the {@link Policy} has been changed since this revision.
      */
     void addPolicyMeta(Policy policy, Map<String, String> meta);
 
     /**
-     * Delete a meta from a given {@link Policy}.
+     * Delete a meta from a given {@link Policy}. When the {@link Policy} carries a revision, the
+     * change is only applied if it's still the current one.
      *
      * @param policy The {@link Policy} for the metadata to remove.
      * @param key The key of the metadata to remove.
+     * @throws VersionConflictException If the {@link Policy} has been changed since this revision.
      */
     void deletePolicyMeta(Policy policy, String key);
 
     /**
-     * Update meta in an existing {@link Policy}.
+     * Update meta in an existing {@link Policy}. When the {@link Policy} carries a revision, the
+     * change is only applied if it's still the current one.
      *
      * @param policy The {@link Policy} for the metadata to update.
      * @param meta The updated meta.
+     * @throws VersionConflictException If the {@link Policy} has been changed since this revision.
      */
     void updatePolicyMeta(Policy policy, Map<String, String> meta);
 
@@ -225,4 +388,29 @@ public interface RegistryService {
      * @return The meta represented by "key,value".
      */
     Map<String, String> getPolicyMeta(Policy policy);
+
+    /**
+     * Apply a whole {@link ChangeSet} in a single transaction: either all the changes are applied
+     * or none.
+     *
+     * @param changeSet The {@link ChangeSet} to apply.
+     * @return The IDs generated for the created entities, keyed by their change set reference.
+     * @throws RouteConflictException If a created resource serves a route already served.
+     * @throws IllegalArgumentException If the change set references a missing entity.
+     */
+    ChangeSetResult commit(ChangeSet changeSet);
+
+    /**
+     * Read the changes made to the registry after a given point of the change stream. Each write
+     * publishes one {@link RegistryEvent} per entity it changes, the sequence increasing by one for
+     * each event. Only the most recent events are kept.
+     *
+     * @param after The sequence of the last event already read, 0 to read from the oldest event
+     *     kept.
+     * @param limit The maximum number of events to return.
+     * @param timeout How long to wait for an event when there's none after the sequence, in
+     *     milliseconds, 0 to return immediately.
+     * @return The events following the sequence, possibly none if the timeout expired.
+     */
+    RegistryChanges changes(long after, int limit, long timeout) throws InterruptedException;
 }
@@ -24,6 +24,12 @@ public class RestResource {
     /** Unique RestResource ID */
     private String id;
 
+    /**
+     * Revision of the RestResource, increased by each update. An update carrying a revision is only
+     * applied if it's still the current one.
+     */
+    private Long revision;
+
     /** Open text description */
     private String description;
 
@@ -61,6 +67,14 @@ public class RestResource {
         this.id = id;
     }
 
+    public Long getRevision() {
+        return revision;
+    }
+
+    public void setRevision(Long revision) {
+        this.revision = revision;
+    }
+
     public String getDescription() {
         return description;
     }
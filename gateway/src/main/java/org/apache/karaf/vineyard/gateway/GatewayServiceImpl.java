@@ -16,6 +16,11 @@
  */
 package org.apache.karaf.vineyard.gateway;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.TreeMap;
 import org.apache.camel.CamelContext;
 import org.apache.camel.Processor;
@@ -25,16 +30,76 @@ import org.apache.camel.model.RouteDefinition;
 import org.apache.karaf.vineyard.common.API;
 import org.apache.karaf.vineyard.common.GatewayService;
 import org.apache.karaf.vineyard.common.Policy;
+import org.apache.karaf.vineyard.common.PolicyFactory;
 import org.apache.karaf.vineyard.common.RestResource;
+import org.apache.karaf.vineyard.gateway.dispatch.GatewayDispatcher;
+import org.apache.karaf.vineyard.gateway.policy.PolicyProcessors;
+import org.apache.karaf.vineyard.gateway.policy.ResponsePolicy;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 
-@Component(service = GatewayService.class, immediate = true)
+/**
+ * Gateway publishing each resource as a Camel route, the requests being handed off to the routes by
+ * {@link GatewayDispatcher}s checking their method and media types.
+ *
+ * <p>By default the resources of a same path share a Jetty consumer. With the {@code dispatcher}
+ * property of the {@code org.apache.karaf.vineyard.gateway} configuration, a single Jetty consumer
+ * receives all the requests, the paths being resolved from the path templates.
+ *
+ * <p>The processors of the policies are created by the {@link PolicyFactory} services for each
+ * resource, and released when the resource is removed. The {@link ResponsePolicy}s process the
+ * response too, in the reverse order.
+ */
+@Component(
+        service = GatewayService.class,
+        immediate = true,
+        configurationPid = "org.apache.karaf.vineyard.gateway")
 public class GatewayServiceImpl implements GatewayService {
 
-    private CamelContext camelContext = new DefaultCamelContext();
+    private static final String PATH = "/vineyard";
+
+    private static final String BASE_URI = "jetty:http://0.0.0.0:9090" + PATH;
+
+    private static final String DISPATCHER_ROUTE_ID = "vineyard-dispatcher";
+
+    private CamelContext camelContext;
+
+    /** Dispatcher of the single consumer, null when each path has its own consumer. */
+    private GatewayDispatcher dispatcher;
+
+    /** Dispatchers of the consumers of the paths, by path. */
+    private final Map<String, GatewayDispatcher> pathDispatchers = new HashMap<>();
+
+    /** Paths of the published resources, by route ID. */
+    private final Map<String, String> paths = new HashMap<>();
+
+    private final PolicyProcessors policyProcessors = new PolicyProcessors();
+
+    public GatewayServiceImpl() {
+        this(new DefaultCamelContext());
+    }
+
+    /** Gateway publishing the routes to a given, already started, Camel context. */
+    public GatewayServiceImpl(CamelContext camelContext) {
+        this.camelContext = camelContext;
+    }
+
+    /**
+     * Gateway publishing the routes to a given, already started, Camel context, with a single
+     * dispatching consumer or not.
+     */
+    public GatewayServiceImpl(CamelContext camelContext, boolean dispatcher) throws Exception {
+        this.camelContext = camelContext;
+        if (dispatcher) {
+            this.dispatcher =
+                    addDispatcher(DISPATCHER_ROUTE_ID, BASE_URI + "?matchOnUriPrefix=true");
+        }
+    }
 
     @Activate
     public void activate(ComponentContext context) throws Exception {
@@ -42,11 +107,41 @@ public class GatewayServiceImpl implements GatewayService {
         camelContext.start();
         context.getBundleContext().registerService(CamelContext.class, camelContext, null);
         camelContext.addComponent("jetty", new JettyHttpComponent9());
+        Dictionary<String, Object> properties = context.getProperties();
+        if (properties != null
+                && Boolean.parseBoolean(String.valueOf(properties.get("dispatcher")))) {
+            dispatcher = addDispatcher(DISPATCHER_ROUTE_ID, BASE_URI + "?matchOnUriPrefix=true");
+        }
     }
 
     @Deactivate
     public void deactivate() throws Exception {
         camelContext.stop();
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+        for (GatewayDispatcher pathDispatcher : pathDispatchers.values()) {
+            pathDispatcher.close();
+        }
+        policyProcessors.close();
+    }
+
+    @Reference(
+            cardinality = ReferenceCardinality.MULTIPLE,
+            policy = ReferencePolicy.DYNAMIC,
+            unbind = "removePolicyFactory")
+    public void addPolicyFactory(PolicyFactory<?> factory, Map<String, Object> properties) {
+        Object name = properties.get(PolicyFactory.NAME);
+        if (name != null) {
+            policyProcessors.addFactory(name.toString(), factory);
+        }
+    }
+
+    public void removePolicyFactory(PolicyFactory<?> factory, Map<String, Object> properties) {
+        Object name = properties.get(PolicyFactory.NAME);
+        if (name != null) {
+            policyProcessors.removeFactory(name.toString(), factory);
+        }
     }
 
     @Override
@@ -64,26 +159,33 @@ public class GatewayServiceImpl implements GatewayService {
     }
 
     @Override
-    public void publish(API api, RestResource restResource) throws Exception {
+    public synchronized void publish(API api, RestResource restResource) throws Exception {
         String routeId = getRouteId(api, restResource);
         if (camelContext.getRoute(routeId) != null) {
             throw new IllegalArgumentException("API resource already published");
         }
 
+        String path = api.getContext() + restResource.getPath();
         final RouteDefinition definition = new RouteDefinition();
-        definition.from(
-                "jetty:http://0.0.0.0:9090/vineyard" + api.getContext() + restResource.getPath());
-        definition.log("Processing " + api.getContext() + restResource.getPath());
+        definition.from("direct:" + routeId);
+        definition.log("Processing " + path);
         definition.routeId(routeId);
 
+        Deque<ResponsePolicy> responsePolicies = new ArrayDeque<>();
         if (restResource.getPolicies() != null) {
             TreeMap<Integer, Policy> sortedPolicies = new TreeMap<>(restResource.getPolicies());
-            for (Policy policy : sortedPolicies.values()) {
-                Processor processor =
-                        (Processor)
-                                Class.forName(policy.getClassName()).getConstructor().newInstance();
-                definition.log("Adding policy " + policy.getClassName());
-                definition.process(processor);
+            try {
+                for (Policy policy : sortedPolicies.values()) {
+                    definition.log("Adding policy " + policy.getClassName());
+                    Processor processor = policyProcessors.get(routeId, policy);
+                    definition.process(processor);
+                    if (processor instanceof ResponsePolicy) {
+                        responsePolicies.push((ResponsePolicy) processor);
+                    }
+                }
+            } catch (Exception e) {
+                policyProcessors.release(routeId);
+                throw e;
             }
         }
 
@@ -94,18 +196,43 @@ public class GatewayServiceImpl implements GatewayService {
             definition.log("proxying to endpoint " + restResource.getEndpoint());
             definition.to(restResource.getEndpoint());
         }
+        for (ResponsePolicy responsePolicy : responsePolicies) {
+            definition.process(responsePolicy::processResponse);
+        }
 
-        DefaultCamelContext.class.cast(camelContext).addRouteDefinition(definition);
+        // the method and media types are checked by the dispatcher, before the policies
+        GatewayDispatcher routeDispatcher = getDispatcher(path);
+        try {
+            routeDispatcher.add(
+                    routeId,
+                    path,
+                    restResource.getMethod(),
+                    restResource.getAccept(),
+                    restResource.getMediaType());
+            DefaultCamelContext.class.cast(camelContext).addRouteDefinition(definition);
+        } catch (Exception e) {
+            routeDispatcher.remove(routeId);
+            releaseDispatcher(path);
+            policyProcessors.release(routeId);
+            throw e;
+        }
+        paths.put(routeId, path);
     }
 
     @Override
-    public void remove(String apiId, String resourceId) throws Exception {
+    public synchronized void remove(String apiId, String resourceId) throws Exception {
         String routeId = getRouteId(apiId, resourceId);
         if (camelContext.getRoute(routeId) == null) {
             throw new IllegalArgumentException("API resource not published");
         }
+        String path = paths.remove(routeId);
+        if (path != null) {
+            getDispatcher(path).remove(routeId);
+            releaseDispatcher(path);
+        }
         DefaultCamelContext.class.cast(camelContext).stopRoute(routeId);
         DefaultCamelContext.class.cast(camelContext).removeRoute(routeId);
+        policyProcessors.release(routeId);
     }
 
     @Override
@@ -128,6 +255,40 @@ public class GatewayServiceImpl implements GatewayService {
         }
     }
 
+    /** Get the dispatcher of a path, adding the consumer of the path if needed. */
+    private GatewayDispatcher getDispatcher(String path) throws Exception {
+        if (dispatcher != null) {
+            return dispatcher;
+        }
+        GatewayDispatcher pathDispatcher = pathDispatchers.get(path);
+        if (pathDispatcher == null) {
+            pathDispatcher = addDispatcher(DISPATCHER_ROUTE_ID + path, BASE_URI + path);
+            pathDispatchers.put(path, pathDispatcher);
+        }
+        return pathDispatcher;
+    }
+
+    /** Remove the consumer of a path once it has no more resources. */
+    private void releaseDispatcher(String path) throws Exception {
+        GatewayDispatcher pathDispatcher = pathDispatchers.get(path);
+        if (pathDispatcher != null && pathDispatcher.isEmpty()) {
+            pathDispatchers.remove(path);
+            DefaultCamelContext.class.cast(camelContext).stopRoute(DISPATCHER_ROUTE_ID + path);
+            DefaultCamelContext.class.cast(camelContext).removeRoute(DISPATCHER_ROUTE_ID + path);
+            pathDispatcher.close();
+        }
+    }
+
+    private GatewayDispatcher addDispatcher(String routeId, String uri) throws Exception {
+        GatewayDispatcher routeDispatcher = new GatewayDispatcher(camelContext, PATH);
+        RouteDefinition definition = new RouteDefinition();
+        definition.from(uri);
+        definition.routeId(routeId);
+        definition.process(routeDispatcher);
+        DefaultCamelContext.class.cast(camelContext).addRouteDefinition(definition);
+        return routeDispatcher;
+    }
+
     private String getRouteId(API api, RestResource resource) {
         return getRouteId(api.getId(), resource.getId());
     }
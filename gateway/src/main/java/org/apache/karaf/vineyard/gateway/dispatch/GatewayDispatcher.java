@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.gateway.dispatch;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.apache.camel.Producer;
+import org.apache.camel.ServiceStatus;
+import org.apache.camel.util.ServiceHelper;
+
+/**
+ * Processor of an HTTP consumer of the gateway, handing the requests off to the routes of the
+ * resources.
+ *
+ * <p>The resources are looked up in a {@link RouteTrie} by path, then by method and media types,
+ * the parameters of the path template being set as headers. The trie is replaced on each change,
+ * the requests reading the current one without locking. A request is rejected before reaching the
+ * route of a resource with:
+ *
+ * <ul>
+ *   <li>404 when no resource matches the path,
+ *   <li>405 when none matches the method, a {@code HEAD} request matching the {@code GET} ones,
+ *   <li>415 when none accepts the {@code Content-Type} of the request,
+ *   <li>406 when none produces a media type of the {@code Accept} header,
+ *   <li>503 when the route of the resource isn't started.
+ * </ul>
+ */
+public class GatewayDispatcher implements Processor {
+
+    private final CamelContext camelContext;
+
+    private final String prefix;
+
+    /** Published resources by route ID, guarded by this. */
+    private final Map<String, Target> targets = new HashMap<>();
+
+    private volatile RouteTrie<Target> trie = RouteTrie.empty();
+
+    /**
+     * @param camelContext The context of the routes of the resources.
+     * @param prefix The path of the HTTP consumer, removed from the request paths.
+     */
+    public GatewayDispatcher(CamelContext camelContext, String prefix) {
+        this.camelContext = camelContext;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Dispatch the requests matching a path template, method and media types to a route.
+     *
+     * @param routeId The route, consuming from {@code direct:<routeId>}.
+     * @param template The path template, the <code>{name}</code> segments being parameters.
+     * @param method The HTTP method, null for any method.
+     * @param accept The media types accepted by the resource, null for any.
+     * @param mediaType The media types produced by the resource, null for any.
+     * @throws IllegalArgumentException If a resource is already dispatched with the same template,
+     *     method and media types.
+     */
+    public synchronized void add(
+            String routeId, String template, String method, String accept, String mediaType)
+            throws Exception {
+        if (targets.containsKey(routeId)) {
+            throw new IllegalArgumentException("Route " + routeId + " already dispatched");
+        }
+        for (Target other : trie.get(template, method)) {
+            if (Objects.equals(accept, other.accept)
+                    && Objects.equals(mediaType, other.mediaType)) {
+                throw new IllegalArgumentException(
+                        method + " " + template + " already dispatched to " + other.routeId);
+            }
+        }
+        Producer producer = camelContext.getEndpoint("direct:" + routeId).createProducer();
+        ServiceHelper.startService(producer);
+        Target target = new Target(routeId, template, method, accept, mediaType, producer);
+        trie = trie.with(template, method, target);
+        targets.put(routeId, target);
+    }
+
+    /** Stop dispatching the requests to a route. */
+    public synchronized void remove(String routeId) throws Exception {
+        Target target = targets.remove(routeId);
+        if (target != null) {
+            trie = trie.without(target.template, target.method, target);
+            ServiceHelper.stopService(target.producer);
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return targets.isEmpty();
+    }
+
+    /** Stop dispatching the requests to all the routes. */
+    public synchronized void close() throws Exception {
+        trie = RouteTrie.empty();
+        for (Target target : targets.values()) {
+            ServiceHelper.stopService(target.producer);
+        }
+        targets.clear();
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        Message in = exchange.getIn();
+        String path = in.getHeader(Exchange.HTTP_URI, String.class);
+        if (path != null && path.startsWith(prefix)) {
+            path = path.substring(prefix.length());
+        }
+        RouteTrie.Match<Target> match = path != null ? trie.find(path) : null;
+        if (match == null) {
+            reply(in, 404);
+            return;
+        }
+        List<Target> candidates =
+                match.getTargets(in.getHeader(Exchange.HTTP_METHOD, String.class));
+        if (candidates.isEmpty()) {
+            in.setHeader("Allow", match.getAllow());
+            reply(in, 405);
+            return;
+        }
+        Target target = negotiate(candidates, in);
+        if (target == null) {
+            return;
+        }
+        ServiceStatus status = camelContext.getRouteStatus(target.routeId);
+        if (status == null || !status.isStarted()) {
+            reply(in, 503);
+            return;
+        }
+        match.getParams(target).forEach(in::setHeader);
+        target.producer.process(exchange);
+    }
+
+    /**
+     * Select the first resource accepting the content type of the request and producing one of the
+     * types it accepts, or reply 415 or 406 if there's none.
+     */
+    private static Target negotiate(List<Target> candidates, Message in) {
+        MediaTypes contentType =
+                MediaTypes.parse(in.getHeader(Exchange.CONTENT_TYPE, String.class));
+        MediaTypes accept = MediaTypes.parse(in.getHeader("Accept", String.class));
+        boolean supported = false;
+        for (Target candidate : candidates) {
+            if (candidate.accepted.isCompatible(contentType)) {
+                supported = true;
+                if (candidate.produced.isCompatible(accept)) {
+                    return candidate;
+                }
+            }
+        }
+        reply(in, supported ? 406 : 415);
+        return null;
+    }
+
+    private static void reply(Message message, int code) {
+        message.setHeader(Exchange.HTTP_RESPONSE_CODE, code);
+        message.setBody(null);
+    }
+
+    private static final class Target {
+
+        private final String routeId;
+        private final String template;
+        private final String method;
+        private final String accept;
+        private final String mediaType;
+        private final MediaTypes accepted;
+        private final MediaTypes produced;
+        private final Producer producer;
+
+        private Target(
+                String routeId,
+                String template,
+                String method,
+                String accept,
+                String mediaType,
+                Producer producer) {
+            this.routeId = routeId;
+            this.template = template;
+            this.method = method;
+            this.accept = accept;
+            this.mediaType = mediaType;
+            this.accepted = MediaTypes.parse(accept);
+            this.produced = MediaTypes.parse(mediaType);
+            this.producer = producer;
+        }
+    }
+}
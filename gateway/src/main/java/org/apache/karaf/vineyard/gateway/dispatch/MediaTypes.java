@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.gateway.dispatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/** Parsed list of media types, as found in the {@code Accept} and {@code Content-Type} headers. */
+final class MediaTypes {
+
+    /** Media types matching anything, as an absent header. */
+    static final MediaTypes ANY = new MediaTypes(Collections.emptyList());
+
+    /** The types, as {type, subtype} pairs. */
+    private final List<String[]> types;
+
+    private MediaTypes(List<String[]> types) {
+        this.types = types;
+    }
+
+    /** Parse a comma separated list of media types, the parameters being ignored. */
+    static MediaTypes parse(String value) {
+        if (value == null) {
+            return ANY;
+        }
+        List<String[]> types = new ArrayList<>();
+        for (String item : value.split(",")) {
+            int end = item.indexOf(';');
+            String type = (end < 0 ? item : item.substring(0, end)).trim();
+            if (type.isEmpty()) {
+                continue;
+            }
+            int slash = type.indexOf('/');
+            String main = slash < 0 ? type : type.substring(0, slash);
+            String sub = slash < 0 ? "*" : type.substring(slash + 1);
+            types.add(new String[] {main.toLowerCase(Locale.ROOT), sub.toLowerCase(Locale.ROOT)});
+        }
+        return types.isEmpty() ? ANY : new MediaTypes(types);
+    }
+
+    /** Whether one of these types is compatible with one of the other types. */
+    boolean isCompatible(MediaTypes other) {
+        if (types.isEmpty() || other.types.isEmpty()) {
+            return true;
+        }
+        for (String[] type : types) {
+            for (String[] otherType : other.types) {
+                if (matches(type[0], otherType[0]) && matches(type[1], otherType[1])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(String part, String otherPart) {
+        return part.equals("*") || otherPart.equals("*") || part.equals(otherPart);
+    }
+}
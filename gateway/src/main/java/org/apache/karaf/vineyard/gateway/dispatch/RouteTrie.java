@@ -0,0 +1,356 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.gateway.dispatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Immutable trie of path templates, the segments of the paths being the keys of the nodes.
+ *
+ * <p>A <code>{name}</code> segment matches any segment, a literal segment being preferred. Each
+ * node ending a template has a table of the targets by HTTP method. Adding or removing a target
+ * copies the nodes on its path only, the other ones being shared with the previous trie, so that a
+ * trie can be swapped while being read. The cost of a lookup depends on the depth of the path, not
+ * on the number of templates.
+ *
+ * @param <T> Type of the targets bound to the templates.
+ */
+public final class RouteTrie<T> {
+
+    /** Method key of the targets bound to any method. */
+    private static final String ANY_METHOD = "*";
+
+    private static final String GET = "GET";
+
+    private static final String HEAD = "HEAD";
+
+    @SuppressWarnings("rawtypes")
+    private static final RouteTrie EMPTY = new RouteTrie<>(Node.EMPTY);
+
+    private final Node<T> root;
+
+    private RouteTrie(Node<T> root) {
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> RouteTrie<T> empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Bind a target to a path template, after the targets already bound to the same template
+     * (whatever the names of its parameters) and method.
+     *
+     * @param template The path template, the <code>{name}</code> segments being parameters.
+     * @param method The HTTP method, null for any method.
+     * @return The new trie.
+     */
+    public RouteTrie<T> with(String template, String method, T target) {
+        List<String> segments = split(template);
+        List<String> names = new ArrayList<>();
+        for (String segment : segments) {
+            if (isParam(segment)) {
+                names.add(segment.substring(1, segment.length() - 1));
+            }
+        }
+        return new RouteTrie<>(
+                root.with(segments, 0, methodKey(method), new Leaf<>(target, names)));
+    }
+
+    /**
+     * Unbind a target from a path template.
+     *
+     * @return The new trie, this one if the target isn't bound to the template and method.
+     */
+    public RouteTrie<T> without(String template, String method, T target) {
+        Node<T> node = root.without(split(template), 0, methodKey(method), target);
+        if (node == root) {
+            return this;
+        }
+        return node != null ? new RouteTrie<>(node) : empty();
+    }
+
+    /**
+     * Get the targets bound to a path template, the template segments matching the parameters only.
+     *
+     * @param method The HTTP method, null for any method.
+     */
+    public List<T> get(String template, String method) {
+        Node<T> node = root;
+        for (String segment : split(template)) {
+            node = isParam(segment) ? node.param : node.children.get(segment);
+            if (node == null) {
+                return Collections.emptyList();
+            }
+        }
+        List<T> targets = new ArrayList<>();
+        for (Leaf<T> leaf : node.leaves.getOrDefault(methodKey(method), Collections.emptyList())) {
+            targets.add(leaf.target);
+        }
+        return targets;
+    }
+
+    /**
+     * Find the template matching a request path, whatever the method.
+     *
+     * @param path The request path.
+     * @return The match, or null if no template matches.
+     */
+    public Match<T> find(String path) {
+        List<String> segments = split(path);
+        return root.find(segments, 0, new String[segments.size()], 0);
+    }
+
+    public boolean isEmpty() {
+        return root.isEmpty();
+    }
+
+    private static List<String> split(String path) {
+        List<String> segments = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= path.length(); i++) {
+            if (i == path.length() || path.charAt(i) == '/') {
+                if (i > start) {
+                    segments.add(path.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+        return segments;
+    }
+
+    private static boolean isParam(String segment) {
+        return segment.length() > 2 && segment.startsWith("{") && segment.endsWith("}");
+    }
+
+    private static String methodKey(String method) {
+        return method == null || method.equals(ANY_METHOD)
+                ? ANY_METHOD
+                : method.toUpperCase(Locale.ROOT);
+    }
+
+    /** Template matching a request path, with the values of its parameters. */
+    public static final class Match<T> {
+
+        private final Node<T> node;
+        private final String[] values;
+
+        private Match(Node<T> node, String[] values) {
+            this.node = node;
+            this.values = values;
+        }
+
+        /**
+         * Get the targets bound to a method, or to any method when none is. A {@code HEAD} request
+         * falls back to the {@code GET} targets.
+         *
+         * @return The targets, in the order they were bound.
+         */
+        public List<T> getTargets(String method) {
+            String key = methodKey(method);
+            List<Leaf<T>> leaves = node.leaves.get(key);
+            if (leaves == null && key.equals(HEAD)) {
+                leaves = node.leaves.get(GET);
+            }
+            if (leaves == null) {
+                leaves = node.leaves.getOrDefault(ANY_METHOD, Collections.emptyList());
+            }
+            List<T> targets = new ArrayList<>(leaves.size());
+            for (Leaf<T> leaf : leaves) {
+                targets.add(leaf.target);
+            }
+            return targets;
+        }
+
+        /** The methods having targets, as an {@code Allow} header value. */
+        public String getAllow() {
+            return node.allow;
+        }
+
+        /** The values of the parameters of the template of a target. */
+        public Map<String, String> getParams(T target) {
+            for (List<Leaf<T>> leaves : node.leaves.values()) {
+                for (Leaf<T> leaf : leaves) {
+                    if (leaf.target.equals(target)) {
+                        return leaf.params(values);
+                    }
+                }
+            }
+            return Collections.emptyMap();
+        }
+    }
+
+    private static final class Leaf<T> {
+
+        private final T target;
+        private final List<String> names;
+
+        private Leaf(T target, List<String> names) {
+            this.target = target;
+            this.names = names;
+        }
+
+        private Map<String, String> params(String[] values) {
+            if (names.isEmpty()) {
+                return Collections.emptyMap();
+            }
+            Map<String, String> params = new HashMap<>();
+            for (int i = 0; i < names.size(); i++) {
+                params.put(names.get(i), values[i]);
+            }
+            return params;
+        }
+    }
+
+    private static final class Node<T> {
+
+        @SuppressWarnings("rawtypes")
+        private static final Node EMPTY =
+                new Node<>(Collections.emptyMap(), null, Collections.emptyMap());
+
+        /** Children of the literal segments. */
+        private final Map<String, Node<T>> children;
+
+        /** Child of the parameter segments. */
+        private final Node<T> param;
+
+        /** Targets of the templates ending at this node, by method. */
+        private final Map<String, List<Leaf<T>>> leaves;
+
+        /** Methods of the targets, precomputed for the 405 responses. */
+        private final String allow;
+
+        private Node(
+                Map<String, Node<T>> children, Node<T> param, Map<String, List<Leaf<T>>> leaves) {
+            this.children = children;
+            this.param = param;
+            this.leaves = leaves;
+            Set<String> methods = new TreeSet<>(leaves.keySet());
+            if (methods.contains(GET)) {
+                methods.add(HEAD);
+            }
+            this.allow = String.join(", ", methods);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> Node<T> empty() {
+            return EMPTY;
+        }
+
+        private boolean isEmpty() {
+            return children.isEmpty() && param == null && leaves.isEmpty();
+        }
+
+        private Node<T> with(List<String> segments, int index, String method, Leaf<T> leaf) {
+            if (index == segments.size()) {
+                Map<String, List<Leaf<T>>> updated = new HashMap<>(leaves);
+                List<Leaf<T>> methodLeaves =
+                        new ArrayList<>(leaves.getOrDefault(method, Collections.emptyList()));
+                methodLeaves.add(leaf);
+                updated.put(method, methodLeaves);
+                return new Node<>(children, param, updated);
+            }
+            String segment = segments.get(index);
+            if (isParam(segment)) {
+                Node<T> child = param != null ? param : empty();
+                return new Node<>(children, child.with(segments, index + 1, method, leaf), leaves);
+            }
+            Node<T> child = children.getOrDefault(segment, empty());
+            Map<String, Node<T>> updated = new HashMap<>(children);
+            updated.put(segment, child.with(segments, index + 1, method, leaf));
+            return new Node<>(updated, param, leaves);
+        }
+
+        /** @return This node if unchanged, or null if left empty. */
+        private Node<T> without(List<String> segments, int index, String method, T target) {
+            Node<T> node;
+            if (index == segments.size()) {
+                List<Leaf<T>> methodLeaves = new ArrayList<>();
+                for (Leaf<T> leaf : leaves.getOrDefault(method, Collections.emptyList())) {
+                    if (!leaf.target.equals(target)) {
+                        methodLeaves.add(leaf);
+                    }
+                }
+                if (methodLeaves.size() == leaves.getOrDefault(method, methodLeaves).size()) {
+                    return this;
+                }
+                Map<String, List<Leaf<T>>> updated = new HashMap<>(leaves);
+                if (methodLeaves.isEmpty()) {
+                    updated.remove(method);
+                } else {
+                    updated.put(method, methodLeaves);
+                }
+                node = new Node<>(children, param, updated);
+            } else if (isParam(segments.get(index))) {
+                if (param == null) {
+                    return this;
+                }
+                Node<T> child = param.without(segments, index + 1, method, target);
+                if (child == param) {
+                    return this;
+                }
+                node = new Node<>(children, child, leaves);
+            } else {
+                String segment = segments.get(index);
+                Node<T> child = children.get(segment);
+                if (child == null) {
+                    return this;
+                }
+                Node<T> updatedChild = child.without(segments, index + 1, method, target);
+                if (updatedChild == child) {
+                    return this;
+                }
+                Map<String, Node<T>> updated = new HashMap<>(children);
+                if (updatedChild != null) {
+                    updated.put(segment, updatedChild);
+                } else {
+                    updated.remove(segment);
+                }
+                node = new Node<>(updated, param, leaves);
+            }
+            return node.isEmpty() ? null : node;
+        }
+
+        private Match<T> find(List<String> segments, int index, String[] values, int count) {
+            if (index == segments.size()) {
+                return leaves.isEmpty() ? null : new Match<>(this, values);
+            }
+            String segment = segments.get(index);
+            Node<T> child = children.get(segment);
+            if (child != null) {
+                Match<T> match = child.find(segments, index + 1, values, count);
+                if (match != null) {
+                    return match;
+                }
+            }
+            if (param != null) {
+                // backtrack to the parameter when the literal segment leads nowhere
+                values[count] = segment;
+                return param.find(segments, index + 1, values, count + 1);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.gateway.policy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.camel.Processor;
+import org.apache.karaf.vineyard.common.Policy;
+import org.apache.karaf.vineyard.common.PolicyFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Processors of the policies, created by the {@link PolicyFactory} registered with the class name
+ * of the policy. The processors of a factory declaring them {@link PolicyFactory#isShared() shared}
+ * are cached by name and parameters for all the resources; the other ones are created for each
+ * published resource and released with it, so a stateful policy (rate limit, cache) isn't shared
+ * with the other resources.
+ *
+ * <p>Without a factory, the class name is loaded as a processor class as a fallback, the parameters
+ * being passed to its constructor taking a {@code Map} if it has one. These processors are shared
+ * too. Changing the factory of a name drops the shared processors of the name from the cache, the
+ * routes already published keeping theirs until they're released.
+ */
+public class PolicyProcessors {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PolicyProcessors.class);
+
+    private final Map<String, PolicyFactory<?>> factories = new ConcurrentHashMap<>();
+
+    /** Shared processors by name and parameters, guarded by this. */
+    private final Map<List<Object>, Created> shared = new HashMap<>();
+
+    /** Shared processors dropped from the cache, still used by some resources, guarded by this. */
+    private final List<Created> evicted = new ArrayList<>();
+
+    /** Processors created for each resource, with their factories, guarded by this. */
+    private final Map<String, List<Created>> created = new HashMap<>();
+
+    public void addFactory(String name, PolicyFactory<?> factory) {
+        factories.put(name, factory);
+        evict(name);
+    }
+
+    public void removeFactory(String name, PolicyFactory<?> factory) {
+        if (factories.remove(name, factory)) {
+            evict(name);
+        }
+    }
+
+    /**
+     * Get the processor of a policy applied to a resource, with the parameters of the resource.
+     *
+     * @param resource The published resource, releasing its processors with {@link #release}.
+     */
+    public synchronized Processor get(String resource, Policy policy) throws Exception {
+        String name = policy.getClassName();
+        Map<String, String> param =
+                policy.getParam() != null
+                        ? Collections.unmodifiableMap(new HashMap<>(policy.getParam()))
+                        : Collections.emptyMap();
+        PolicyFactory<?> factory = factories.get(name);
+        if (factory != null && !factory.isShared()) {
+            Processor processor = processor(name, factory.create(resource, param));
+            created.computeIfAbsent(resource, r -> new ArrayList<>())
+                    .add(new Created(factory, processor));
+            return processor;
+        }
+        List<Object> key = Arrays.asList(name, param);
+        Created processor = shared.get(key);
+        if (processor == null) {
+            processor =
+                    new Created(
+                            factory,
+                            factory != null
+                                    ? processor(name, factory.create(param))
+                                    : instantiate(name, param));
+            shared.put(key, processor);
+        }
+        processor.resources.add(resource);
+        return processor.processor;
+    }
+
+    /** Release the processors of a resource, once it's unpublished. */
+    public synchronized void release(String resource) {
+        List<Created> resourceProcessors = created.remove(resource);
+        if (resourceProcessors != null) {
+            resourceProcessors.forEach(Created::release);
+        }
+        // the cached shared processors are kept for the next resources
+        shared.values().forEach(processor -> processor.resources.remove(resource));
+        for (Iterator<Created> iterator = evicted.iterator(); iterator.hasNext(); ) {
+            Created processor = iterator.next();
+            processor.resources.remove(resource);
+            if (processor.resources.isEmpty()) {
+                iterator.remove();
+                processor.release();
+            }
+        }
+    }
+
+    /** Release the processors of all the resources, and the shared ones. */
+    public synchronized void close() {
+        for (String resource : new ArrayList<>(created.keySet())) {
+            release(resource);
+        }
+        shared.values().forEach(Created::release);
+        shared.clear();
+        evicted.forEach(Created::release);
+        evicted.clear();
+    }
+
+    private static Processor processor(String name, Object processor) {
+        if (!(processor instanceof Processor)) {
+            throw new IllegalArgumentException(
+                    "Policy factory " + name + " didn't create a Camel processor");
+        }
+        return (Processor) processor;
+    }
+
+    private static Processor instantiate(String className, Map<String, String> param)
+            throws Exception {
+        Class<?> type = Class.forName(className);
+        if (!Processor.class.isAssignableFrom(type)) {
+            throw new IllegalArgumentException(
+                    "No policy factory " + className + " and the class isn't a Camel processor");
+        }
+        try {
+            return (Processor) type.getConstructor(Map.class).newInstance(param);
+        } catch (NoSuchMethodException e) {
+            return (Processor) type.getConstructor().newInstance();
+        }
+    }
+
+    private synchronized void evict(String name) {
+        for (Iterator<Map.Entry<List<Object>, Created>> iterator = shared.entrySet().iterator();
+                iterator.hasNext(); ) {
+            Map.Entry<List<Object>, Created> entry = iterator.next();
+            if (entry.getKey().get(0).equals(name)) {
+                iterator.remove();
+                if (entry.getValue().resources.isEmpty()) {
+                    entry.getValue().release();
+                } else {
+                    evicted.add(entry.getValue());
+                }
+            }
+        }
+    }
+
+    /** Processor created by a factory or not, with the resources using it if it's shared. */
+    private static final class Created {
+
+        private final PolicyFactory<?> factory;
+        private final Processor processor;
+        private final Set<String> resources = new HashSet<>();
+
+        private Created(PolicyFactory<?> factory, Processor processor) {
+            this.factory = factory;
+            this.processor = processor;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void release() {
+            if (factory == null) {
+                return;
+            }
+            try {
+                ((PolicyFactory<Object>) factory).release(processor);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Can't release the policy processor {}", processor, e);
+            }
+        }
+    }
+}
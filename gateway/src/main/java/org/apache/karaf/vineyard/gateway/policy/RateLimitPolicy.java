@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.gateway.policy;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.apache.camel.http.common.HttpMessage;
+
+/**
+ * Policy limiting the rate of the requests by client, rejecting the requests over the limit with a
+ * 429 response and a {@code Retry-After} header, without reaching the endpoint of the resource.
+ *
+ * <p>The parameters are:
+ *
+ * <ul>
+ *   <li>{@code rate}: the sustained number of requests per second of a client, required.
+ *   <li>{@code burst}: the number of requests a client can send at once, by default the rate.
+ *   <li>{@code key}: what identifies a client, {@code ip} (default) for the remote address, {@code
+ *       header:<name>} for a request header, {@code apikey} for the {@code X-API-Key} header, or
+ *       {@code global} for a single limit shared by all the clients.
+ * </ul>
+ *
+ * <p>The buckets are lock free: each client has the time its bucket will be full again, the
+ * theoretical arrival time of the generic cell rate algorithm, updated with a single compare and
+ * set. A full bucket is the same as no bucket, so the full ones are evicted periodically.
+ *
+ * <p>Each resource applying the policy has its own processor, so its own limits, released with the
+ * resource.
+ */
+public class RateLimitPolicy implements Processor {
+
+    public static final String RETRY_AFTER = "Retry-After";
+
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    /** Nanoseconds between two requests at the sustained rate, the cost of a request. */
+    private final long interval;
+
+    /** Nanoseconds a client can get ahead of the sustained rate, the size of the bucket. */
+    private final long tolerance;
+
+    private final Function<Exchange, String> key;
+
+    /** Theoretical arrival time of the next request of the clients, in nanoseconds. */
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    private final AtomicLong nextSweep;
+
+    public RateLimitPolicy(Map<String, String> param) {
+        String rateParam = param.get("rate");
+        if (rateParam == null) {
+            throw new IllegalArgumentException("The rate parameter is required");
+        }
+        double rate = Double.parseDouble(rateParam);
+        if (rate <= 0) {
+            throw new IllegalArgumentException("The rate must be positive: " + rate);
+        }
+        String burstParam = param.get("burst");
+        int burst =
+                burstParam != null
+                        ? Integer.parseInt(burstParam)
+                        : (int) Math.max(1, Math.ceil(rate));
+        if (burst < 1) {
+            throw new IllegalArgumentException("The burst must be positive: " + burst);
+        }
+        interval = Math.max(1, Math.round(TimeUnit.SECONDS.toNanos(1) / rate));
+        tolerance = interval * burst;
+        key = keyOf(param.getOrDefault("key", "ip"));
+        nextSweep = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL);
+    }
+
+    @Override
+    public void process(Exchange exchange) {
+        long now = System.nanoTime();
+        long wait = acquire(key.apply(exchange), now);
+        if (now - nextSweep.get() >= 0) {
+            sweep(now);
+        }
+        if (wait > 0) {
+            Message in = exchange.getIn();
+            in.setHeader(Exchange.HTTP_RESPONSE_CODE, 429);
+            // in whole seconds, rounded up
+            in.setHeader(RETRY_AFTER, TimeUnit.NANOSECONDS.toSeconds(wait - 1) + 1);
+            in.setBody(null);
+            exchange.setProperty(Exchange.ROUTE_STOP, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Take a request from the bucket of a client.
+     *
+     * @return 0 if the request is allowed, else the nanoseconds to wait before it would be.
+     */
+    long acquire(String client, long now) {
+        AtomicLong bucket = buckets.get(client);
+        if (bucket == null) {
+            AtomicLong created = new AtomicLong(now);
+            bucket = buckets.putIfAbsent(client, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        while (true) {
+            long arrival = bucket.get();
+            long next = (arrival - now > 0 ? arrival : now) + interval;
+            if (next - now > tolerance) {
+                return next - now - tolerance;
+            }
+            if (bucket.compareAndSet(arrival, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Evict the full buckets, by a single caller at a time. A request racing with the eviction of
+     * its bucket is at worst not counted.
+     */
+    void sweep(long now) {
+        long sweep = nextSweep.get();
+        if (nextSweep.compareAndSet(sweep, now + SWEEP_INTERVAL)) {
+            buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+        }
+    }
+
+    int size() {
+        return buckets.size();
+    }
+
+    private static Function<Exchange, String> keyOf(String key) {
+        if (key.equals("ip")) {
+            return exchange -> {
+                HttpMessage message = exchange.getIn(HttpMessage.class);
+                return message != null ? message.getRequest().getRemoteAddr() : "";
+            };
+        } else if (key.equals("apikey")) {
+            return header("X-API-Key");
+        } else if (key.startsWith("header:")) {
+            return header(key.substring("header:".length()));
+        } else if (key.equals("global")) {
+            return exchange -> "";
+        }
+        throw new IllegalArgumentException("Unknown rate limit key " + key);
+    }
+
+    /** Client identified by a header, the requests without it sharing a bucket. */
+    private static Function<Exchange, String> header(String name) {
+        return exchange -> {
+            String value = exchange.getIn().getHeader(name, String.class);
+            return value != null ? value : "";
+        };
+    }
+}
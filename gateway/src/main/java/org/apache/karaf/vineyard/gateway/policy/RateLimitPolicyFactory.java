@@ -0,0 +1,36 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.gateway.policy;
+
+import java.util.Map;
+import org.apache.camel.Processor;
+import org.apache.karaf.vineyard.common.PolicyFactory;
+import org.osgi.service.component.annotations.Component;
+
+/** Factory of the {@link RateLimitPolicy}, named after its class. */
+@Component(
+        service = PolicyFactory.class,
+        property = PolicyFactory.NAME + "=" + RateLimitPolicyFactory.NAME)
+public class RateLimitPolicyFactory implements PolicyFactory<Processor> {
+
+    public static final String NAME = "org.apache.karaf.vineyard.gateway.policy.RateLimitPolicy";
+
+    @Override
+    public Processor create(Map<String, String> param) {
+        return new RateLimitPolicy(param);
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.gateway.policy;
+
+/** JMX view of the statistics of the {@link ResponseCachePolicy} caches. */
+public interface ResponseCacheMBean {
+
+    /** Names of the caches, {@code <resource>/<name>}. */
+    String[] getCaches();
+
+    /** Number of requests served fresh from a cache. */
+    long getHits(String cache);
+
+    /** Number of requests served stale from a cache, while revalidating. */
+    long getStaleHits(String cache);
+
+    /** Number of requests going through to the endpoint. */
+    long getMisses(String cache);
+
+    /** Number of background revalidations. */
+    long getRevalidations(String cache);
+
+    /** Number of responses evicted to make room. */
+    long getEvictions(String cache);
+
+    /** Number of responses in a cache. */
+    int getEntries(String cache);
+
+    /** Size of the bodies in a cache, in bytes. */
+    long getSize(String cache);
+}
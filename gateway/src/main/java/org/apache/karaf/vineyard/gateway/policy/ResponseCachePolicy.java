@@ -0,0 +1,433 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.gateway.policy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Endpoint;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.spi.RouteContext;
+import org.apache.camel.spi.UnitOfWork;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Policy caching the responses of the GET and HEAD requests, serving the cached ones without
+ * reaching the endpoint of the resource.
+ *
+ * <p>The parameters are:
+ *
+ * <ul>
+ *   <li>{@code ttl}: the seconds a response is fresh when it has no {@code max-age}, default 60.
+ *   <li>{@code stale}: the seconds an expired response is still served while it's revalidated, when
+ *       it has no {@code stale-while-revalidate}, default 30.
+ *   <li>{@code maxSize}: the maximum size of the cached bodies, in bytes, default 64 MB.
+ *   <li>{@code vary}: the comma separated request headers the responses depend on, part of the key
+ *       with the method, path and query, default {@code Accept,Accept-Encoding}.
+ *   <li>{@code name}: the name of the cache in the statistics, after the ID of its resource,
+ *       default {@code default}.
+ * </ul>
+ *
+ * <p>The {@code Cache-Control} headers are honoured: a request with {@code no-store} bypasses the
+ * cache, with {@code no-cache} or {@code max-age=0} it skips the lookup. The requests with an
+ * {@code Authorization} or a {@code Cookie} header bypass the cache too, their responses being
+ * likely specific to a user. Only the 200 responses are cached, not the {@code no-store}, {@code
+ * no-cache} or {@code private} ones, nor the ones setting cookies or varying on a header outside of
+ * the key. Their {@code s-maxage} or {@code max-age} and {@code stale-while-revalidate} directives
+ * override the parameters.
+ *
+ * <p>The bodies are stored off heap in a size bounded LRU. An expired response is served as is
+ * until it's stale, while a copy of the request goes through the route again in the background,
+ * conditionally if it has an {@code ETag}, to refresh it. A cached response has the {@code Age} and
+ * {@code X-Vineyard-Cache} ({@code HIT} or {@code STALE}) headers, and is a 304 without body when
+ * its {@code ETag} matches the {@code If-None-Match} header of the request.
+ *
+ * <p>The route runs the policies before the cache on a miss and on a revalidation, so it's usually
+ * the first policy, unless the other ones (authentication, rate limiting) have to apply to the hits
+ * too.
+ */
+public class ResponseCachePolicy implements ResponsePolicy {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResponseCachePolicy.class);
+
+    public static final String CACHE_CONTROL = "Cache-Control";
+
+    public static final String CACHE_STATUS = "X-Vineyard-Cache";
+
+    private static final String ETAG = "ETag";
+
+    private static final String IF_NONE_MATCH = "If-None-Match";
+
+    /** Headers of the requests for a user, bypassing the cache. */
+    private static final List<String> CREDENTIAL_HEADERS = Arrays.asList("Authorization", "Cookie");
+
+    private static final String KEY = ResponseCachePolicy.class.getName() + ".key";
+
+    private static final String REVALIDATED = ResponseCachePolicy.class.getName() + ".revalidated";
+
+    /** Headers of the responses stored with their bodies. */
+    private static final List<String> STORED_HEADERS =
+            Arrays.asList(
+                    Exchange.CONTENT_TYPE,
+                    Exchange.CONTENT_ENCODING,
+                    "Content-Language",
+                    "Content-Disposition",
+                    ETAG,
+                    "Last-Modified",
+                    CACHE_CONTROL);
+
+    private final String name;
+
+    private final long ttl;
+
+    private final long stale;
+
+    private final List<String> vary;
+
+    private final ResponseStore store;
+
+    /** Keys of the responses being revalidated, one revalidation at a time per key. */
+    private final Set<String> revalidating = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+
+    private volatile ProducerTemplate template;
+
+    public ResponseCachePolicy(Map<String, String> param) {
+        name = param.getOrDefault("name", "default");
+        ttl = TimeUnit.SECONDS.toNanos(Long.parseLong(param.getOrDefault("ttl", "60")));
+        stale = TimeUnit.SECONDS.toNanos(Long.parseLong(param.getOrDefault("stale", "30")));
+        long maxSize = Long.parseLong(param.getOrDefault("maxSize", String.valueOf(64 << 20)));
+        if (ttl < 0 || stale < 0 || maxSize <= 0) {
+            throw new IllegalArgumentException("Invalid cache parameters: " + param);
+        }
+        List<String> headers = new ArrayList<>();
+        for (String header : param.getOrDefault("vary", "Accept,Accept-Encoding").split(",")) {
+            if (!header.trim().isEmpty()) {
+                headers.add(header.trim());
+            }
+        }
+        vary = Collections.unmodifiableList(headers);
+        store = new ResponseStore(maxSize);
+    }
+
+    @Override
+    public void process(Exchange exchange) {
+        Message in = exchange.getIn();
+        if (exchange.getProperty(KEY) != null) {
+            // revalidation, going through to the endpoint
+            return;
+        }
+        String method = in.getHeader(Exchange.HTTP_METHOD, String.class);
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return;
+        }
+        Map<String, String> cacheControl = parseCacheControl(in.getHeader(CACHE_CONTROL));
+        if (cacheControl.containsKey("no-store")
+                || CREDENTIAL_HEADERS.stream().anyMatch(header -> in.getHeader(header) != null)) {
+            return;
+        }
+        String key = key(in, method);
+        exchange.setProperty(KEY, key);
+        if (cacheControl.containsKey("no-cache") || "0".equals(cacheControl.get("max-age"))) {
+            misses.incrementAndGet();
+            return;
+        }
+
+        long now = System.nanoTime();
+        ResponseStore.Response response = store.get(key, now);
+        if (response == null) {
+            misses.incrementAndGet();
+        } else if (!response.isExpired(now)) {
+            hits.incrementAndGet();
+            serve(exchange, response, "HIT", now);
+        } else {
+            staleHits.incrementAndGet();
+            revalidate(exchange, key, response);
+            serve(exchange, response, "STALE", now);
+        }
+    }
+
+    @Override
+    public void processResponse(Exchange exchange) {
+        String key = exchange.getProperty(KEY, String.class);
+        if (key == null) {
+            return;
+        }
+        Message out = exchange.hasOut() ? exchange.getOut() : exchange.getIn();
+        int code = out.getHeader(Exchange.HTTP_RESPONSE_CODE, 200, Integer.class);
+        ResponseStore.Response revalidated =
+                exchange.getProperty(REVALIDATED, ResponseStore.Response.class);
+        if (code != 200 && (code != 304 || revalidated == null)) {
+            return;
+        }
+        Map<String, String> cacheControl = parseCacheControl(out.getHeader(CACHE_CONTROL));
+        if (cacheControl.containsKey("no-store")
+                || cacheControl.containsKey("no-cache")
+                || cacheControl.containsKey("private")
+                || out.getHeader("Set-Cookie") != null
+                || !isVaryCovered(out.getHeader("Vary", String.class))) {
+            return;
+        }
+        String maxAge = cacheControl.getOrDefault("s-maxage", cacheControl.get("max-age"));
+        String swr = cacheControl.get("stale-while-revalidate");
+        long now = System.nanoTime();
+        long expires = now + (maxAge != null ? seconds(maxAge) : ttl);
+        long staleUntil = expires + (swr != null ? seconds(swr) : stale);
+        if (staleUntil - now <= 0) {
+            return;
+        }
+
+        if (code == 304) {
+            store.put(key, revalidated.renew(now, expires, staleUntil));
+            return;
+        }
+        Map<String, Object> headers = new HashMap<>();
+        for (String header : STORED_HEADERS) {
+            Object value = out.getHeader(header);
+            if (value != null) {
+                headers.put(header, value);
+            }
+        }
+        byte[] body = out.getBody(byte[].class);
+        out.setBody(body);
+        store.put(
+                key,
+                new ResponseStore.Response(
+                        Collections.unmodifiableMap(headers),
+                        body != null ? body : new byte[0],
+                        now,
+                        expires,
+                        staleUntil));
+    }
+
+    /** Stop the template sending the revalidations, once the resource is unpublished. */
+    public void stop() {
+        ProducerTemplate stopped;
+        synchronized (this) {
+            stopped = template;
+            template = null;
+        }
+        if (stopped != null) {
+            try {
+                stopped.stop();
+            } catch (Exception e) {
+                LOGGER.warn("Can't stop the revalidations of the cache {}", name, e);
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    public long getEvictions() {
+        return store.getEvictions();
+    }
+
+    public int getEntries() {
+        return store.getEntries();
+    }
+
+    public long getSize() {
+        return store.getSize();
+    }
+
+    String key(Message in, String method) {
+        StringBuilder key = new StringBuilder(method).append(' ');
+        key.append(in.getHeader(Exchange.HTTP_URI, "", String.class));
+        String query = in.getHeader(Exchange.HTTP_QUERY, String.class);
+        if (query != null && !query.isEmpty()) {
+            key.append('?').append(query);
+        }
+        for (String header : vary) {
+            key.append('\n').append(in.getHeader(header, "", String.class));
+        }
+        return key.toString();
+    }
+
+    private void serve(
+            Exchange exchange, ResponseStore.Response response, String status, long now) {
+        Message in = exchange.getIn();
+        in.removeHeader(CACHE_CONTROL);
+        boolean notModified =
+                isMatch(in.getHeader(IF_NONE_MATCH, String.class), response.getHeaders().get(ETAG));
+        in.removeHeader(IF_NONE_MATCH);
+        in.getHeaders().putAll(response.getHeaders());
+        in.setHeader(Exchange.HTTP_RESPONSE_CODE, notModified ? 304 : 200);
+        in.setHeader("Age", TimeUnit.NANOSECONDS.toSeconds(response.getAge(now)));
+        in.setHeader(CACHE_STATUS, status);
+        in.setBody(notModified ? null : response.getBody());
+        exchange.setProperty(Exchange.ROUTE_STOP, Boolean.TRUE);
+    }
+
+    /**
+     * Send a copy of the request through the route again, asynchronously, unless the response is
+     * already being revalidated.
+     */
+    private void revalidate(Exchange exchange, String key, ResponseStore.Response response) {
+        UnitOfWork unitOfWork = exchange.getUnitOfWork();
+        RouteContext routeContext = unitOfWork != null ? unitOfWork.getRouteContext() : null;
+        if (routeContext == null || !revalidating.add(key)) {
+            return;
+        }
+        revalidations.incrementAndGet();
+        Exchange copy = new DefaultExchange(exchange.getContext());
+        copy.getIn().setHeaders(new HashMap<>(exchange.getIn().getHeaders()));
+        copy.getIn().removeHeader(CACHE_CONTROL);
+        Object etag = response.getHeaders().get(ETAG);
+        if (etag != null) {
+            copy.getIn().setHeader(IF_NONE_MATCH, etag);
+        }
+        copy.setProperty(KEY, key);
+        copy.setProperty(REVALIDATED, response);
+        Endpoint endpoint = routeContext.getEndpoint();
+        try {
+            template(exchange.getContext())
+                    .asyncCallback(
+                            endpoint,
+                            copy,
+                            new SynchronizationAdapter() {
+                                @Override
+                                public void onDone(Exchange revalidation) {
+                                    revalidating.remove(key);
+                                    if (revalidation.getException() != null) {
+                                        LOGGER.debug(
+                                                "Revalidation of {} failed",
+                                                key,
+                                                revalidation.getException());
+                                    }
+                                }
+                            });
+        } catch (RuntimeException e) {
+            revalidating.remove(key);
+            LOGGER.debug("Can't revalidate {}", key, e);
+        }
+    }
+
+    ProducerTemplate template(CamelContext camelContext) {
+        ProducerTemplate result = template;
+        if (result == null) {
+            synchronized (this) {
+                result = template;
+                if (result == null) {
+                    result = camelContext.createProducerTemplate();
+                    template = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Whether an {@code If-None-Match} header matches an entity tag, by weak comparison. */
+    static boolean isMatch(String ifNoneMatch, Object etag) {
+        if (ifNoneMatch == null || etag == null) {
+            return false;
+        }
+        String tag = weak(etag.toString().trim());
+        for (String candidate : ifNoneMatch.split(",")) {
+            String trimmed = candidate.trim();
+            if (trimmed.equals("*") || weak(trimmed).equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String weak(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    private boolean isVaryCovered(String header) {
+        if (header == null) {
+            return true;
+        }
+        for (String name : header.split(",")) {
+            String trimmed = name.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            if (vary.stream().noneMatch(trimmed::equalsIgnoreCase)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Directives of a {@code Cache-Control} header, lower cased, to their unquoted values. */
+    static Map<String, String> parseCacheControl(Object header) {
+        if (header == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> directives = new TreeMap<>();
+        for (String directive : header.toString().split(",")) {
+            int equals = directive.indexOf('=');
+            String name = (equals < 0 ? directive : directive.substring(0, equals)).trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            String value = equals < 0 ? "" : directive.substring(equals + 1).trim();
+            if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            directives.put(name.toLowerCase(Locale.ROOT), value);
+        }
+        return directives;
+    }
+
+    private static long seconds(String value) {
+        try {
+            return TimeUnit.SECONDS.toNanos(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.gateway.policy;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+import org.apache.camel.Processor;
+import org.apache.karaf.vineyard.common.PolicyFactory;
+import org.osgi.service.component.annotations.Component;
+
+/**
+ * Factory of the {@link ResponseCachePolicy}, named after its class, exporting the statistics of
+ * the caches it created to JMX by the Karaf MBean whiteboard. The caches are named {@code
+ * <resource>/<name>}, a resource can't have two caches with the same name.
+ */
+@Component(
+        service = {PolicyFactory.class, ResponseCacheMBean.class},
+        property = {
+            PolicyFactory.NAME + "=" + ResponseCachePolicyFactory.NAME,
+            "jmx.objectname=org.apache.karaf.vineyard:type=gateway,name=cache"
+        })
+public class ResponseCachePolicyFactory implements PolicyFactory<Processor>, ResponseCacheMBean {
+
+    public static final String NAME =
+            "org.apache.karaf.vineyard.gateway.policy.ResponseCachePolicy";
+
+    private final Map<String, ResponseCachePolicy> caches = new ConcurrentHashMap<>();
+
+    @Override
+    public Processor create(Map<String, String> param) {
+        return create(null, param);
+    }
+
+    @Override
+    public Processor create(String resource, Map<String, String> param) {
+        ResponseCachePolicy cache = new ResponseCachePolicy(param);
+        String id = resource != null ? resource + "/" + cache.getName() : cache.getName();
+        if (caches.putIfAbsent(id, cache) != null) {
+            throw new IllegalArgumentException("Response cache " + id + " already exists");
+        }
+        return cache;
+    }
+
+    @Override
+    public void release(Processor processor) {
+        caches.values().remove(processor);
+        ((ResponseCachePolicy) processor).stop();
+    }
+
+    @Override
+    public String[] getCaches() {
+        return caches.keySet().stream().sorted().toArray(String[]::new);
+    }
+
+    @Override
+    public long getHits(String cache) {
+        return get(cache, ResponseCachePolicy::getHits);
+    }
+
+    @Override
+    public long getStaleHits(String cache) {
+        return get(cache, ResponseCachePolicy::getStaleHits);
+    }
+
+    @Override
+    public long getMisses(String cache) {
+        return get(cache, ResponseCachePolicy::getMisses);
+    }
+
+    @Override
+    public long getRevalidations(String cache) {
+        return get(cache, ResponseCachePolicy::getRevalidations);
+    }
+
+    @Override
+    public long getEvictions(String cache) {
+        return get(cache, ResponseCachePolicy::getEvictions);
+    }
+
+    @Override
+    public int getEntries(String cache) {
+        return (int) get(cache, ResponseCachePolicy::getEntries);
+    }
+
+    @Override
+    public long getSize(String cache) {
+        return get(cache, ResponseCachePolicy::getSize);
+    }
+
+    private long get(String name, ToLongFunction<ResponseCachePolicy> statistic) {
+        ResponseCachePolicy cache = caches.get(name);
+        return cache != null ? statistic.applyAsLong(cache) : 0;
+    }
+}
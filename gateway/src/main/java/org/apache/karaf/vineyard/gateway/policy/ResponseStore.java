@@ -0,0 +1,327 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.gateway.policy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU store of responses bounded by the size of their bodies, kept off heap.
+ *
+ * <p>The store is split in segments by key hash, each with its own lock and share of the size, so
+ * the requests of different keys rarely contend. Each segment writes the bodies to its {@link
+ * Arena}, a list of direct buffers split in fixed size blocks: the blocks of the dropped bodies are
+ * reused by the next ones, so the direct memory is allocated once, up to the size of the segment.
+ * An entry is dropped once past its stale time, or when the least recently used entries are evicted
+ * to make room.
+ */
+final class ResponseStore {
+
+    private static final int SEGMENTS = 16;
+
+    /** Blocks of the arenas, at least 256 blocks per segment. */
+    private static final int MAX_BLOCK_SIZE = 4096;
+
+    /** Blocks of a direct buffer, the unit the arenas grow by. */
+    private static final int SLAB_BLOCKS = 256;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    ResponseStore(long maxSize) {
+        long segmentSize = maxSize / SEGMENTS;
+        int blockSize = (int) Math.max(1, Math.min(MAX_BLOCK_SIZE, segmentSize / SLAB_BLOCKS));
+        int blocks = (int) Math.min(Integer.MAX_VALUE, segmentSize / blockSize);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(new Arena(blockSize, blocks));
+        }
+    }
+
+    /**
+     * Get a response, null if there's none or it's past its stale time.
+     *
+     * @return The response, with its body copied on heap.
+     */
+    Response get(String key, long now) {
+        return segment(key).get(key, now);
+    }
+
+    /** Store a response, unless its body is larger than a segment. */
+    void put(String key, Response response) {
+        segment(key).put(key, response);
+    }
+
+    long getSize() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.getSize();
+        }
+        return size;
+    }
+
+    int getEntries() {
+        int entries = 0;
+        for (Segment segment : segments) {
+            entries += segment.getEntries();
+        }
+        return entries;
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    private Segment segment(String key) {
+        int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Response with the times it expires and goes stale. The stored responses only have the blocks
+     * of their body in the arena, the other ones have their body on heap.
+     */
+    static final class Response {
+
+        private final Map<String, Object> headers;
+        private final byte[] body;
+        private final int[] blocks;
+        private final int length;
+        private final long created;
+        private final long expires;
+        private final long stale;
+
+        /**
+         * @param created The time the response was received, in nanoseconds.
+         * @param expires The time the response has to be revalidated, in nanoseconds.
+         * @param stale The time the response can't be served anymore, in nanoseconds.
+         */
+        Response(Map<String, Object> headers, byte[] body, long created, long expires, long stale) {
+            this(headers, body, null, body.length, created, expires, stale);
+        }
+
+        private Response(
+                Map<String, Object> headers,
+                byte[] body,
+                int[] blocks,
+                int length,
+                long created,
+                long expires,
+                long stale) {
+            this.headers = headers;
+            this.body = body;
+            this.blocks = blocks;
+            this.length = length;
+            this.created = created;
+            this.expires = expires;
+            this.stale = stale;
+        }
+
+        Map<String, Object> getHeaders() {
+            return headers;
+        }
+
+        byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * The same response, received again with new times. Stored while the response is still in
+         * the store, it keeps its blocks.
+         */
+        Response renew(long created, long expires, long stale) {
+            return new Response(headers, body, blocks, length, created, expires, stale);
+        }
+
+        /** Age of the response, in nanoseconds. */
+        long getAge(long now) {
+            return now - created;
+        }
+
+        int getSize() {
+            return length;
+        }
+
+        boolean isExpired(long now) {
+            return now - expires >= 0;
+        }
+
+        boolean isStale(long now) {
+            return now - stale >= 0;
+        }
+
+        private Response stored(int[] blocks) {
+            return new Response(headers, null, blocks, length, created, expires, stale);
+        }
+
+        private Response read(Arena arena) {
+            return new Response(
+                    headers, arena.read(blocks, length), blocks, length, created, expires, stale);
+        }
+    }
+
+    /** Direct buffers split in blocks, allocated on demand and reused once freed. */
+    private static final class Arena {
+
+        private final int blockSize;
+
+        /** Maximum number of blocks. */
+        private final int capacity;
+
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+
+        /** Blocks allocated in the slabs. */
+        private int allocated;
+
+        /** Freed blocks, a stack of the first {@code freeCount} elements. */
+        private int[] free = new int[SLAB_BLOCKS];
+
+        private int freeCount;
+
+        private Arena(int blockSize, int capacity) {
+            this.blockSize = blockSize;
+            this.capacity = capacity;
+        }
+
+        private int blocks(int length) {
+            return (int) ((length + (long) blockSize - 1) / blockSize);
+        }
+
+        private int available() {
+            return freeCount + capacity - allocated;
+        }
+
+        /** Write a body to free blocks, there has to be enough of them. */
+        private int[] write(byte[] body) {
+            int[] blocks = new int[blocks(body.length)];
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = allocate();
+                int offset = i * blockSize;
+                block(blocks[i]).put(body, offset, Math.min(blockSize, body.length - offset));
+            }
+            return blocks;
+        }
+
+        private byte[] read(int[] blocks, int length) {
+            byte[] body = new byte[length];
+            for (int i = 0; i < blocks.length; i++) {
+                int offset = i * blockSize;
+                block(blocks[i]).get(body, offset, Math.min(blockSize, length - offset));
+            }
+            return body;
+        }
+
+        private void free(int[] blocks) {
+            if (freeCount + blocks.length > free.length) {
+                free = Arrays.copyOf(free, Math.max(free.length * 2, freeCount + blocks.length));
+            }
+            System.arraycopy(blocks, 0, free, freeCount, blocks.length);
+            freeCount += blocks.length;
+        }
+
+        private int allocate() {
+            if (freeCount > 0) {
+                return free[--freeCount];
+            }
+            if (allocated % SLAB_BLOCKS == 0) {
+                int slabBlocks = Math.min(SLAB_BLOCKS, capacity - allocated);
+                slabs.add(ByteBuffer.allocateDirect(slabBlocks * blockSize));
+            }
+            return allocated++;
+        }
+
+        /** View of a block, positioned at its start. */
+        private ByteBuffer block(int block) {
+            ByteBuffer slab = slabs.get(block / SLAB_BLOCKS).duplicate();
+            slab.position((block % SLAB_BLOCKS) * blockSize);
+            return slab;
+        }
+    }
+
+    private final class Segment {
+
+        private final Arena arena;
+
+        /** Entries in access order, guarded by this. */
+        private final LinkedHashMap<String, Response> entries =
+                new LinkedHashMap<>(16, 0.75f, true);
+
+        private long size;
+
+        private Segment(Arena arena) {
+            this.arena = arena;
+        }
+
+        private synchronized Response get(String key, long now) {
+            Response response = entries.get(key);
+            if (response == null) {
+                return null;
+            }
+            if (response.isStale(now)) {
+                remove(key);
+                return null;
+            }
+            return response.read(arena);
+        }
+
+        private synchronized void put(String key, Response response) {
+            Response previous = entries.get(key);
+            if (previous != null && response.blocks != null && previous.blocks == response.blocks) {
+                // renewed, the body is still in its blocks
+                entries.put(key, response.stored(previous.blocks));
+                return;
+            }
+            int needed = arena.blocks(response.length);
+            if (needed > arena.capacity) {
+                return;
+            }
+            if (previous != null) {
+                remove(key);
+            }
+            Iterator<Map.Entry<String, Response>> eldest = entries.entrySet().iterator();
+            while (arena.available() < needed) {
+                Response evicted = eldest.next().getValue();
+                eldest.remove();
+                arena.free(evicted.blocks);
+                size -= evicted.length;
+                evictions.incrementAndGet();
+            }
+            entries.put(key, response.stored(arena.write(response.body)));
+            size += response.length;
+        }
+
+        private void remove(String key) {
+            Response removed = entries.remove(key);
+            arena.free(removed.blocks);
+            size -= removed.length;
+        }
+
+        private synchronized long getSize() {
+            return size;
+        }
+
+        private synchronized int getEntries() {
+            return entries.size();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.gateway.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GatewayDispatcherTest {
+
+    private DefaultCamelContext camelContext;
+
+    private GatewayDispatcher dispatcher;
+
+    @Before
+    public void setup() throws Exception {
+        camelContext = new DefaultCamelContext();
+        camelContext.addRoutes(
+                new RouteBuilder() {
+                    @Override
+                    public void configure() {
+                        from("direct:get").routeId("get").setBody(simple("get ${header.id}"));
+                        from("direct:json").routeId("json").setBody(constant("json"));
+                        from("direct:xml").routeId("xml").setBody(constant("xml"));
+                    }
+                });
+        camelContext.start();
+        dispatcher = new GatewayDispatcher(camelContext, "/vineyard");
+        dispatcher.add("get", "/shop/items/{id}", "GET", null, null);
+        dispatcher.add("json", "/shop/items", "POST", "application/json", "application/json");
+        dispatcher.add("xml", "/shop/items", "POST", "application/xml", "application/xml");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dispatcher.close();
+        camelContext.stop();
+    }
+
+    @Test
+    public void testDispatch() throws Exception {
+        Exchange exchange = dispatch("GET", "/vineyard/shop/items/42", null, null);
+        assertNull(exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+        assertEquals("get 42", exchange.getIn().getBody());
+        assertEquals(
+                "get 42",
+                dispatch("HEAD", "/vineyard/shop/items/42", null, null).getIn().getBody());
+
+        assertEquals(
+                "xml",
+                dispatch("POST", "/vineyard/shop/items", "application/xml", null)
+                        .getIn()
+                        .getBody());
+        assertEquals(
+                "json",
+                dispatch("POST", "/vineyard/shop/items", null, "application/*;q=0.8")
+                        .getIn()
+                        .getBody());
+    }
+
+    @Test
+    public void testReject() throws Exception {
+        assertStatus(404, dispatch("GET", "/vineyard/shop/orders", null, null));
+
+        Exchange exchange = dispatch("DELETE", "/vineyard/shop/items", null, null);
+        assertStatus(405, exchange);
+        assertEquals("POST", exchange.getIn().getHeader("Allow"));
+        exchange = dispatch("DELETE", "/vineyard/shop/items/42", null, null);
+        assertEquals("GET, HEAD", exchange.getIn().getHeader("Allow"));
+
+        assertStatus(415, dispatch("POST", "/vineyard/shop/items", "text/plain", null));
+        assertStatus(406, dispatch("POST", "/vineyard/shop/items", "application/json", "text/*"));
+
+        camelContext.suspendRoute("get");
+        assertStatus(503, dispatch("GET", "/vineyard/shop/items/42", null, null));
+
+        dispatcher.remove("get");
+        assertStatus(404, dispatch("GET", "/vineyard/shop/items/42", null, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConflict() throws Exception {
+        dispatcher.add("other", "/shop/items/{item}", "GET", null, null);
+    }
+
+    private Exchange dispatch(String method, String uri, String contentType, String accept)
+            throws Exception {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setHeader(Exchange.HTTP_METHOD, method);
+        exchange.getIn().setHeader(Exchange.HTTP_URI, uri);
+        exchange.getIn().setHeader(Exchange.CONTENT_TYPE, contentType);
+        exchange.getIn().setHeader("Accept", accept);
+        dispatcher.process(exchange);
+        return exchange;
+    }
+
+    private static void assertStatus(int code, Exchange exchange) {
+        assertEquals(code, exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.gateway.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+public class RouteTrieTest {
+
+    @Test
+    public void testFind() {
+        RouteTrie<String> trie =
+                RouteTrie.<String>empty()
+                        .with("/shop/items", "GET", "list")
+                        .with("/shop/items", "POST", "create")
+                        .with("/shop/items/{id}", "GET", "get")
+                        .with("/shop/items/latest", "GET", "latest")
+                        .with("/shop/items/{id}/reviews/{review}", null, "review");
+
+        assertEquals(Collections.singletonList("list"), trie.find("/shop/items").getTargets("GET"));
+        assertEquals(
+                Collections.singletonList("list"), trie.find("/shop/items/").getTargets("get"));
+        assertEquals(
+                Collections.singletonList("create"), trie.find("/shop/items").getTargets("POST"));
+        assertTrue(trie.find("/shop/items").getTargets("DELETE").isEmpty());
+        assertEquals(
+                Collections.singletonList("list"), trie.find("/shop/items").getTargets("HEAD"));
+        assertEquals("GET, HEAD, POST", trie.find("/shop/items").getAllow());
+        assertNull(trie.find("/shop"));
+        assertNull(trie.find("/other/items"));
+
+        // literal segments win over the parameters
+        assertEquals(
+                Collections.singletonList("latest"),
+                trie.find("/shop/items/latest").getTargets("GET"));
+        RouteTrie.Match<String> match = trie.find("/shop/items/42");
+        assertEquals(Collections.singletonList("get"), match.getTargets("GET"));
+        assertEquals(Collections.singletonMap("id", "42"), match.getParams("get"));
+
+        // backtrack from the literal segment to the parameter
+        match = trie.find("/shop/items/latest/reviews/7");
+        assertEquals(Collections.singletonList("review"), match.getTargets("PUT"));
+        assertEquals("latest", match.getParams("review").get("id"));
+        assertEquals("7", match.getParams("review").get("review"));
+    }
+
+    @Test
+    public void testWithout() {
+        RouteTrie<String> empty = RouteTrie.empty();
+        RouteTrie<String> trie =
+                empty.with("/shop/items/{id}", "GET", "get")
+                        .with("/shop/items/{item}", "GET", "other")
+                        .with("/shop/items", "GET", "list");
+        assertEquals(Arrays.asList("get", "other"), trie.get("/shop/items/{x}", "GET"));
+
+        RouteTrie<String> updated = trie.without("/shop/items/{item}", "GET", "get");
+        assertEquals(Collections.singletonList("other"), updated.get("/shop/items/{id}", "GET"));
+        assertEquals(
+                Collections.singletonMap("item", "42"),
+                updated.find("/shop/items/42").getParams("other"));
+        // the previous trie is unchanged
+        assertEquals(Arrays.asList("get", "other"), trie.find("/shop/items/42").getTargets("GET"));
+
+        assertSame(updated, updated.without("/shop/items/{id}", "GET", "get"));
+        updated = updated.without("/shop/items/{id}", "GET", "other");
+        assertNull(updated.find("/shop/items/42"));
+        assertTrue(updated.without("/shop/items", "GET", "list").isEmpty());
+    }
+}
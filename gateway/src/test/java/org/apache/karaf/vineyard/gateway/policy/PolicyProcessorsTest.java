@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.gateway.policy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.karaf.vineyard.common.Policy;
+import org.apache.karaf.vineyard.common.PolicyFactory;
+import org.junit.Test;
+
+public class PolicyProcessorsTest {
+
+    @Test
+    public void testFactory() throws Exception {
+        AtomicInteger created = new AtomicInteger();
+        List<Processor> released = new ArrayList<>();
+        PolicyProcessors processors = new PolicyProcessors();
+        processors.addFactory("header", factory(false, created, released));
+
+        Processor processor = processors.get("items", policy("header", "1"));
+        assertEquals("1", ((HeaderPolicy) processor).param.get("value"));
+        // each resource has its own instances
+        Processor other = processors.get("orders", policy("header", "1"));
+        assertNotSame(processor, other);
+        assertEquals(2, created.get());
+
+        // the instances of a resource are released with it
+        processors.release("items");
+        assertEquals(Collections.singletonList(processor), released);
+        assertNotSame(processor, processors.get("items", policy("header", "1")));
+        processors.close();
+        assertTrue(released.contains(other));
+        assertEquals(3, released.size());
+    }
+
+    @Test
+    public void testSharedFactory() throws Exception {
+        AtomicInteger created = new AtomicInteger();
+        List<Processor> released = new ArrayList<>();
+        PolicyFactory<Processor> factory = factory(true, created, released);
+        PolicyProcessors processors = new PolicyProcessors();
+        processors.addFactory("header", factory);
+
+        Processor processor = processors.get("items", policy("header", "1"));
+        assertSame(processor, processors.get("orders", policy("header", "1")));
+        assertNotSame(processor, processors.get("orders", policy("header", "2")));
+        assertEquals(2, created.get());
+
+        // kept for the resources published again
+        processors.release("items");
+        assertTrue(released.isEmpty());
+        assertSame(processor, processors.get("items", policy("header", "1")));
+        assertEquals(2, created.get());
+
+        // a new factory replaces the cached instances, released once unused
+        processors.addFactory("header", factory);
+        Processor replaced = processors.get("items", policy("header", "1"));
+        assertNotSame(processor, replaced);
+        assertEquals(3, created.get());
+        processors.release("items");
+        assertTrue(released.isEmpty());
+        processors.release("orders");
+        assertEquals(2, released.size());
+        assertTrue(released.contains(processor));
+
+        processors.close();
+        assertTrue(released.contains(replaced));
+        assertEquals(3, released.size());
+    }
+
+    @Test
+    public void testClassName() throws Exception {
+        PolicyProcessors processors = new PolicyProcessors();
+        Processor processor = processors.get("items", policy(HeaderPolicy.class.getName(), "1"));
+        assertEquals("1", ((HeaderPolicy) processor).param.get("value"));
+        assertSame(processor, processors.get("orders", policy(HeaderPolicy.class.getName(), "1")));
+        processors.release("items");
+        assertSame(processor, processors.get("items", policy(HeaderPolicy.class.getName(), "1")));
+        processors.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotProcessor() throws Exception {
+        new PolicyProcessors().get("items", policy(String.class.getName(), "1"));
+    }
+
+    private static PolicyFactory<Processor> factory(
+            boolean shared, AtomicInteger created, List<Processor> released) {
+        return new PolicyFactory<Processor>() {
+            @Override
+            public Processor create(Map<String, String> param) {
+                created.incrementAndGet();
+                return new HeaderPolicy(param);
+            }
+
+            @Override
+            public boolean isShared() {
+                return shared;
+            }
+
+            @Override
+            public void release(Processor processor) {
+                released.add(processor);
+            }
+        };
+    }
+
+    private static Policy policy(String name, String value) {
+        Policy policy = new Policy();
+        policy.setClassName(name);
+        policy.setParam(Collections.singletonMap("value", value));
+        return policy;
+    }
+
+    public static class HeaderPolicy implements Processor {
+
+        private final Map<String, String> param;
+
+        public HeaderPolicy(Map<String, String> param) {
+            this.param = param;
+        }
+
+        @Override
+        public void process(Exchange exchange) {
+            exchange.getIn().setHeader("policy", param.get("value"));
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.gateway.policy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Test;
+
+public class RateLimitPolicyTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testBucket() {
+        RateLimitPolicy policy = policy("10", "3", "global");
+        long now = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, policy.acquire("client", now));
+        }
+        // the burst is spent, a request every 100 ms
+        assertEquals(SECOND / 10, policy.acquire("client", now));
+        assertEquals(SECOND / 20, policy.acquire("client", now + SECOND / 20));
+        assertEquals(0, policy.acquire("client", now + SECOND / 10));
+        assertTrue(policy.acquire("client", now + SECOND / 10) > 0);
+        assertEquals(0, policy.acquire("other", now));
+
+        // the full buckets are evicted
+        policy.sweep(now + SECOND / 10);
+        assertEquals(1, policy.size());
+        policy.sweep(now + SECOND);
+        assertEquals(0, policy.size());
+    }
+
+    @Test
+    public void testProcess() {
+        RateLimitPolicy policy = policy("0.5", "1", "apikey");
+        Exchange first = exchange("key1");
+        policy.process(first);
+        assertNull(first.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+        assertNull(first.getProperty(Exchange.ROUTE_STOP));
+
+        Exchange second = exchange("key1");
+        policy.process(second);
+        assertEquals(429, second.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+        assertEquals(2L, second.getIn().getHeader(RateLimitPolicy.RETRY_AFTER));
+        assertEquals(Boolean.TRUE, second.getProperty(Exchange.ROUTE_STOP));
+
+        Exchange other = exchange("key2");
+        policy.process(other);
+        assertNull(other.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingRate() {
+        new RateLimitPolicy(new HashMap<>());
+    }
+
+    private static RateLimitPolicy policy(String rate, String burst, String key) {
+        Map<String, String> param = new HashMap<>();
+        param.put("rate", rate);
+        param.put("burst", burst);
+        param.put("key", key);
+        return new RateLimitPolicy(param);
+    }
+
+    private static Exchange exchange(String apiKey) {
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getIn().setHeader("X-API-Key", apiKey);
+        return exchange;
+    }
+}
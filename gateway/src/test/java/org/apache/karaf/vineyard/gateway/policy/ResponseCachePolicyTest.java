@@ -0,0 +1,269 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.gateway.policy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.support.ServiceSupport;
+import org.junit.Test;
+
+public class ResponseCachePolicyTest {
+
+    private final CamelContext camelContext = new DefaultCamelContext();
+
+    @Test
+    public void testHit() {
+        ResponseCachePolicy policy = policy("60", "0");
+        Exchange miss = call(policy, "/api/foo", null, "foo", null);
+        assertNull(miss.getProperty(Exchange.ROUTE_STOP));
+        assertEquals("foo", miss.getOut().getBody(String.class));
+
+        Exchange hit = request(policy, "/api/foo", null);
+        assertEquals(Boolean.TRUE, hit.getProperty(Exchange.ROUTE_STOP));
+        assertEquals("HIT", hit.getIn().getHeader(ResponseCachePolicy.CACHE_STATUS));
+        assertEquals("text/plain", hit.getIn().getHeader(Exchange.CONTENT_TYPE));
+        assertEquals("foo", hit.getIn().getBody(String.class));
+
+        // the path and the vary headers are part of the key
+        assertNull(request(policy, "/api/bar", null).getProperty(Exchange.ROUTE_STOP));
+        Exchange json = exchange("/api/foo", null);
+        json.getIn().setHeader("Accept", "application/json");
+        policy.process(json);
+        assertNull(json.getProperty(Exchange.ROUTE_STOP));
+
+        // the request skips the lookup
+        assertNull(request(policy, "/api/foo", "no-cache").getProperty(Exchange.ROUTE_STOP));
+
+        assertEquals(1, policy.getHits());
+        assertEquals(4, policy.getMisses());
+        assertEquals(1, policy.getEntries());
+        assertEquals(3, policy.getSize());
+    }
+
+    @Test
+    public void testCacheControl() {
+        ResponseCachePolicy policy = policy("60", "0");
+        call(policy, "/a", null, "a", "no-store");
+        call(policy, "/b", null, "b", "private, max-age=60");
+        call(policy, "/c", null, "c", "max-age=0");
+        call(policy, "/d", "no-store", "d", null);
+        assertEquals(0, policy.getEntries());
+
+        // the response stale-while-revalidate overrides the parameter
+        call(policy, "/e", null, "e", "max-age=0, stale-while-revalidate=60");
+        Exchange stale = request(policy, "/e", null);
+        assertEquals(Boolean.TRUE, stale.getProperty(Exchange.ROUTE_STOP));
+        assertEquals("STALE", stale.getIn().getHeader(ResponseCachePolicy.CACHE_STATUS));
+        assertEquals("e", stale.getIn().getBody(String.class));
+        assertEquals(1, policy.getStaleHits());
+
+        Map<String, String> directives =
+                ResponseCachePolicy.parseCacheControl("Max-Age=\"10\", no-cache");
+        assertEquals("10", directives.get("max-age"));
+        assertNotNull(directives.get("no-cache"));
+    }
+
+    @Test
+    public void testCredentials() {
+        ResponseCachePolicy policy = policy("60", "0");
+        call(policy, "/a", null, "a", null);
+        for (String header : new String[] {"Authorization", "Cookie"}) {
+            // neither served from the cache nor stored
+            Exchange exchange = exchange("/a", null);
+            exchange.getIn().setHeader(header, "user");
+            policy.process(exchange);
+            assertNull(exchange.getProperty(Exchange.ROUTE_STOP));
+            exchange.getOut().setHeader(Exchange.HTTP_RESPONSE_CODE, 200);
+            exchange.getOut().setBody("user");
+            policy.processResponse(exchange);
+
+            exchange = exchange("/b", null);
+            exchange.getIn().setHeader(header, "user");
+            policy.process(exchange);
+            exchange.getOut().setHeader(Exchange.HTTP_RESPONSE_CODE, 200);
+            exchange.getOut().setBody("user");
+            policy.processResponse(exchange);
+        }
+        assertEquals("a", request(policy, "/a", null).getIn().getBody(String.class));
+        assertEquals(1, policy.getEntries());
+    }
+
+    @Test
+    public void testNotModified() {
+        ResponseCachePolicy policy = policy("60", "0");
+        Exchange miss = request(policy, "/api/foo", null);
+        miss.getOut().setHeader(Exchange.HTTP_RESPONSE_CODE, 200);
+        miss.getOut().setHeader("ETag", "\"v1\"");
+        miss.getOut().setBody("foo");
+        policy.processResponse(miss);
+
+        Exchange hit = exchange("/api/foo", null);
+        hit.getIn().setHeader("If-None-Match", "\"v0\", W/\"v1\"");
+        policy.process(hit);
+        assertEquals(Boolean.TRUE, hit.getProperty(Exchange.ROUTE_STOP));
+        assertEquals(304, hit.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+        assertEquals("\"v1\"", hit.getIn().getHeader("ETag"));
+        assertNull(hit.getIn().getBody());
+
+        Exchange changed = exchange("/api/foo", null);
+        changed.getIn().setHeader("If-None-Match", "\"v0\"");
+        policy.process(changed);
+        assertEquals(200, changed.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+        assertEquals("foo", changed.getIn().getBody(String.class));
+    }
+
+    @Test
+    public void testFactory() {
+        ResponseCachePolicyFactory factory = new ResponseCachePolicyFactory();
+        Processor items = factory.create("items", Collections.emptyMap());
+        factory.create("orders", Collections.emptyMap());
+        assertArrayEquals(new String[] {"items/default", "orders/default"}, factory.getCaches());
+        try {
+            factory.create("items", Collections.emptyMap());
+            fail("Duplicate cache");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // the template of the revalidations is stopped with the cache
+        ServiceSupport template =
+                (ServiceSupport) ((ResponseCachePolicy) items).template(camelContext);
+        factory.release(items);
+        assertArrayEquals(new String[] {"orders/default"}, factory.getCaches());
+        assertTrue(template.isStopped());
+    }
+
+    @Test
+    public void testStore() {
+        ResponseStore store = new ResponseStore(16 * 100);
+        long now = System.nanoTime();
+        byte[] body = new byte[40];
+        body[0] = 42;
+        // all the keys in a segment of 100 bytes, for the test
+        for (int i = 0; i < 3; i++) {
+            store.put("key", response(body, now, 10));
+        }
+        assertEquals(40, store.getSize());
+        assertArrayEquals(body, store.get("key", now).getBody());
+
+        // a body larger than a segment isn't stored
+        store.put("large", response(new byte[101], now, 10));
+        assertNull(store.get("large", now));
+
+        // a stale response is dropped
+        assertNull(store.get("key", now + 10));
+        assertEquals(0, store.getEntries());
+        assertEquals(0, store.getSize());
+
+        // the least recently used responses are evicted
+        String[] keys = sameSegment(3);
+        store.put(keys[0], response(body, now, 10));
+        store.put(keys[1], response(body, now, 10));
+        store.get(keys[0], now);
+        store.put(keys[2], response(body, now, 10));
+        assertNotNull(store.get(keys[0], now));
+        assertNull(store.get(keys[1], now));
+        assertNotNull(store.get(keys[2], now));
+        assertEquals(1, store.getEvictions());
+        assertEquals(80, store.getSize());
+
+        // a renewed response keeps its body, the blocks of the dropped ones are reused
+        ResponseStore.Response renewed = store.get(keys[0], now).renew(now, now, now + 20);
+        store.put(keys[0], renewed);
+        assertArrayEquals(body, store.get(keys[0], now + 15).getBody());
+        assertNull(store.get(keys[2], now + 15));
+        body[0] = 43;
+        store.put(keys[1], response(body, now + 15, 10));
+        assertArrayEquals(body, store.get(keys[1], now + 15).getBody());
+        assertEquals(80, store.getSize());
+        assertEquals(1, store.getEvictions());
+    }
+
+    private ResponseCachePolicy policy(String ttl, String stale) {
+        Map<String, String> param = new HashMap<>();
+        param.put("ttl", ttl);
+        param.put("stale", stale);
+        return new ResponseCachePolicy(param);
+    }
+
+    /** Request through the policy and respond with the body when it's not cached. */
+    private Exchange call(
+            ResponseCachePolicy policy,
+            String uri,
+            String requestCacheControl,
+            String body,
+            String cacheControl) {
+        Exchange exchange = request(policy, uri, requestCacheControl);
+        if (exchange.getProperty(Exchange.ROUTE_STOP) == null) {
+            exchange.getIn().removeHeader(ResponseCachePolicy.CACHE_CONTROL);
+            exchange.getOut().setHeader(Exchange.HTTP_RESPONSE_CODE, 200);
+            exchange.getOut().setHeader(Exchange.CONTENT_TYPE, "text/plain");
+            exchange.getOut().setHeader(ResponseCachePolicy.CACHE_CONTROL, cacheControl);
+            exchange.getOut().setBody(body);
+            policy.processResponse(exchange);
+        }
+        return exchange;
+    }
+
+    private Exchange request(ResponseCachePolicy policy, String uri, String cacheControl) {
+        Exchange exchange = exchange(uri, cacheControl);
+        policy.process(exchange);
+        return exchange;
+    }
+
+    private Exchange exchange(String uri, String cacheControl) {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setHeader(Exchange.HTTP_METHOD, "GET");
+        exchange.getIn().setHeader(Exchange.HTTP_URI, uri);
+        exchange.getIn().setHeader(ResponseCachePolicy.CACHE_CONTROL, cacheControl);
+        return exchange;
+    }
+
+    private static ResponseStore.Response response(byte[] body, long now, long stale) {
+        return new ResponseStore.Response(Collections.emptyMap(), body, now, now, now + stale);
+    }
+
+    private static String[] sameSegment(int count) {
+        String[] keys = new String[count];
+        int segment = -1;
+        for (int i = 0, found = 0; found < count; i++) {
+            String key = "key" + i;
+            int hash = key.hashCode();
+            int keySegment = (hash ^ (hash >>> 16)) & 15;
+            if (segment < 0) {
+                segment = keySegment;
+            }
+            if (keySegment == segment) {
+                keys[found++] = key;
+            }
+        }
+        return keys;
+    }
+}
@@ -17,16 +17,10 @@
 package org.apache.karaf.vineyard.importer.json;
 
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import org.apache.johnzon.mapper.MapperBuilder;
-import org.apache.karaf.vineyard.common.API;
+import org.apache.karaf.vineyard.common.ChangeSet;
 import org.apache.karaf.vineyard.common.Importer;
-import org.apache.karaf.vineyard.common.Policy;
 import org.apache.karaf.vineyard.common.RegistryService;
-import org.apache.karaf.vineyard.common.RestResource;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
 
@@ -35,46 +29,27 @@ public class JsonImporter implements Importer {
 
     @Reference private RegistryService registryService;
 
+    public JsonImporter() {}
+
+    public JsonImporter(RegistryService registryService) {
+        this.registryService = registryService;
+    }
+
     @Override
     public void load(InputStream inputStream) throws Exception {
 
         JsonRegistry registry =
                 new MapperBuilder().build().readObject(inputStream, JsonRegistry.class);
 
-        Map<String, Policy> policies = new HashMap<>();
-        List<RestResource> restResources = new ArrayList<>();
-
-        for (Policy policy : registry.getPolicies()) {
-            String oldId = policy.getId();
-            Policy newPolicy = registryService.addPolicy(policy);
-            registryService.addPolicyMeta(newPolicy, policy.getMeta());
-            policies.put(oldId, newPolicy);
+        // the ids of the json registry are used as change set references, the whole
+        // registry is created in one transaction
+        ChangeSet changeSet = new ChangeSet();
+        if (registry.getPolicies() != null) {
+            changeSet.getPolicies().addAll(registry.getPolicies());
         }
-
-        for (API api : registry.getApis()) {
-
-            restResources.clear();
-            restResources.addAll(api.getRestResources());
-
-            api = registryService.add(api);
-            registryService.addMeta(api, api.getMeta());
-
-            for (RestResource resource : restResources) {
-
-                String newResourceId = registryService.addRestResource(api, resource).getId();
-
-                Map<Integer, Policy> resourcePolicy = new HashMap<>();
-                resourcePolicy.putAll(resource.getPolicies());
-                resource.getPolicies().clear();
-
-                for (Integer key : resourcePolicy.keySet()) {
-                    registryService.applyPolicy(
-                            newResourceId,
-                            policies.get(resourcePolicy.get(key).getId()).getId(),
-                            key,
-                            resourcePolicy.get(key).getParam());
-                }
-            }
+        if (registry.getApis() != null) {
+            changeSet.getApis().addAll(registry.getApis());
         }
+        registryService.commit(changeSet);
     }
 }
@@ -16,103 +16,478 @@
  */
 package org.apache.karaf.vineyard.registry;
 
+import static org.apache.karaf.vineyard.registry.RegistrySupport.checkRevision;
+import static org.apache.karaf.vineyard.registry.RegistrySupport.conflict;
+import static org.apache.karaf.vineyard.registry.RegistrySupport.longProperty;
+import static org.apache.karaf.vineyard.registry.entity.mapper.EntityMapper.API_COLUMNS;
+import static org.apache.karaf.vineyard.registry.entity.mapper.EntityMapper.POLICY_COLUMNS;
+import static org.apache.karaf.vineyard.registry.entity.mapper.EntityMapper.REST_RESOURCE_COLUMNS;
+import static org.apache.karaf.vineyard.registry.entity.mapper.EntityMapper.mapApi;
+import static org.apache.karaf.vineyard.registry.entity.mapper.EntityMapper.mapPolicy;
+import static org.apache.karaf.vineyard.registry.entity.mapper.EntityMapper.mapRestResource;
 import static org.apache.karaf.vineyard.registry.entity.mapper.EntityMapper.mapTo;
 
 import com.google.common.annotations.VisibleForTesting;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import javax.persistence.Cache;
+import javax.persistence.EntityManager;
+import javax.persistence.OptimisticLockException;
+import org.apache.aries.jpa.template.EmFunction;
 import org.apache.aries.jpa.template.JpaTemplate;
 import org.apache.aries.jpa.template.TransactionType;
 import org.apache.karaf.vineyard.common.API;
+import org.apache.karaf.vineyard.common.ChangeSet;
+import org.apache.karaf.vineyard.common.ChangeSetResult;
 import org.apache.karaf.vineyard.common.Policy;
+import org.apache.karaf.vineyard.common.RegistryChanges;
+import org.apache.karaf.vineyard.common.RegistryEvent;
 import org.apache.karaf.vineyard.common.RegistryService;
 import org.apache.karaf.vineyard.common.RestResource;
+import org.apache.karaf.vineyard.common.RouteConflictException;
+import org.apache.karaf.vineyard.common.VersionConflictException;
+import org.apache.karaf.vineyard.registry.cache.Invalidation;
+import org.apache.karaf.vineyard.registry.cache.InvalidationBus;
+import org.apache.karaf.vineyard.registry.cache.RegistryCache;
+import org.apache.karaf.vineyard.registry.cache.RegistrySnapshot;
+import org.apache.karaf.vineyard.registry.cache.RegistrySnapshotService;
+import org.apache.karaf.vineyard.registry.cache.SnapshotFile;
+import org.apache.karaf.vineyard.registry.definition.DefinitionStore;
 import org.apache.karaf.vineyard.registry.entity.ApiEntity;
 import org.apache.karaf.vineyard.registry.entity.PolicyEntity;
 import org.apache.karaf.vineyard.registry.entity.PolicyRestResourceJoinEntity;
 import org.apache.karaf.vineyard.registry.entity.RestResourceEntity;
+import org.apache.karaf.vineyard.registry.event.EventLog;
+import org.apache.karaf.vineyard.registry.id.IdGenerator;
+import org.apache.karaf.vineyard.registry.id.UlidGenerator;
+import org.apache.karaf.vineyard.registry.metrics.RegistryMetrics;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.osgi.service.event.EventAdmin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Implementation of the Registry service using the JPA entity manager service (provided by Karaf).
+ *
+ * <p>The shared cache entries of the APIs, REST resources and policies are evicted every {@code
+ * cache.api.ttl}, {@code cache.restResource.ttl} and {@code cache.policy.ttl} (in seconds, default
+ * 300, 0 to keep them) of the {@code org.apache.karaf.vineyard.registry} configuration. The expiry
+ * is coarse: all the entries of the entity are evicted at once, whatever their age, so an entry is
+ * kept at most the time to live and the cache is cold again after each expiry. The writes of the
+ * other nodes sharing the database are received through the {@link InvalidationBus}. In case an
+ * invalidation was lost, a node with a bus fully reloads the registry every {@code
+ * snapshot.reload.interval} seconds (default 3600, 0 to only reload on invalidations).
+ *
+ * <p>The registry is saved to the {@code snapshot.file} (default {@code
+ * ${karaf.data}/vineyard/registry.snapshot}) every {@code snapshot.interval} seconds (default 300,
+ * 0 to only save it on demand) when it changed, and when the registry stops. On start, the reads
+ * are served from this file until the database is reached. With {@code readonly=true} (set by the
+ * {@code vineyard-registry-readonly} feature), or without a database (no {@code vineyard-registry}
+ * persistence unit), the registry is read only and serves the snapshot file, reloading it when it
+ * changes.
  */
-@Component(service = RegistryService.class, immediate = true)
-public class RegistryServiceImpl implements RegistryService {
+@Component(
+        service = {RegistryService.class, RegistrySnapshotService.class},
+        immediate = true,
+        configurationPid = "org.apache.karaf.vineyard.registry")
+public class RegistryServiceImpl implements RegistryService, RegistrySnapshotService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RegistryServiceImpl.class);
 
-    @Reference(target = "(osgi.unit.name=vineyard-registry)")
+    /** Null on a read only node, serving a snapshot file. */
+    @Reference(
+            target = "(osgi.unit.name=vineyard-registry)",
+            cardinality = ReferenceCardinality.OPTIONAL,
+            policyOption = ReferencePolicyOption.GREEDY)
     private JpaTemplate jpaTemplate;
 
+    /** SQL state of a unique key violation. */
+    private static final String UNIQUE_VIOLATION = "23505";
+
+    /** Number of rows read per query by the scans. */
+    private static final int SCAN_CHUNK_SIZE = 500;
+
+    /** Number of recent events kept for the consumers of the change stream. */
+    private static final int EVENT_LOG_CAPACITY = 10000;
+
+    /** Default time to live of the shared cache entries, in seconds. */
+    private static final long DEFAULT_CACHE_TTL = 300;
+
+    /** Default period of the full reloads of the registry of a node with a bus, in seconds. */
+    private static final long DEFAULT_RELOAD_INTERVAL = 3600;
+
+    /** Default period of the snapshot file saves, in seconds. */
+    private static final long DEFAULT_SNAPSHOT_INTERVAL = 300;
+
+    /** Delay between two loads of the registry while the database can't be reached, in seconds. */
+    private static final long REFRESH_RETRY_DELAY = 10;
+
+    @Reference private DefinitionStore definitionStore;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile EventAdmin eventAdmin;
+
+    private final RegistryCache cache = new RegistryCache(this::loadSnapshot);
+
+    /** Sequence number of the last write transaction about to commit, see {@link #mutate}. */
+    private final AtomicLong commitSequence = new AtomicLong();
+
+    /** Committed writes waiting for the previous ones to patch the snapshot, by sequence number. */
+    private final Map<Long, Committed> committed = new HashMap<>();
+
+    /** Sequence number of the last write patched into the snapshot, guarded by committed. */
+    private long patchedSequence;
+
+    private final EventLog eventLog = new EventLog(EVENT_LOG_CAPACITY);
+
+    @Reference private RegistryMetrics metrics;
+
+    @Reference(
+            cardinality = ReferenceCardinality.OPTIONAL,
+            policy = ReferencePolicy.DYNAMIC,
+            policyOption = ReferencePolicyOption.GREEDY)
+    private volatile IdGenerator idGenerator;
+
+    private final IdGenerator defaultIdGenerator = new UlidGenerator();
+
+    /** ID of this node on the invalidation bus. */
+    private final String nodeId = defaultIdGenerator.next();
+
+    private final Consumer<Invalidation> invalidationListener = this::invalidated;
+
+    private volatile InvalidationBus invalidationBus;
+
+    private ScheduledExecutorService scheduler;
+
+    private Path snapshotFile;
+
+    /** Version of the registry last saved to the snapshot file. */
+    private volatile long savedVersion = -1;
+
+    /** Whether the tables have been upgraded, see {@link SchemaUpgrade}. */
+    private boolean schemaUpgraded;
+
+    /** Modification time of the snapshot file when it was last loaded. */
+    private volatile FileTime loadedFileTime;
+
+    public RegistryServiceImpl() {}
+
+    /**
+     * Registry used outside of a container (tools, benchmarks). It isn't activated: no snapshot
+     * file, no cache expiry.
+     */
+    public RegistryServiceImpl(
+            JpaTemplate jpaTemplate, DefinitionStore definitionStore, RegistryMetrics metrics) {
+        this.jpaTemplate = jpaTemplate;
+        this.definitionStore = definitionStore;
+        this.metrics = metrics;
+    }
+
+    @Activate
+    public void activate(ComponentContext context) {
+        Dictionary<String, Object> properties = context.getProperties();
+        scheduler =
+                Executors.newSingleThreadScheduledExecutor(
+                        runnable -> {
+                            Thread thread = new Thread(runnable, "vineyard-registry-scheduler");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        Object configuredFile = properties.get("snapshot.file");
+        if (configuredFile != null) {
+            snapshotFile = Paths.get(configuredFile.toString());
+        } else {
+            String data = context.getBundleContext().getProperty("karaf.data");
+            snapshotFile = Paths.get(data != null ? data : "data", "vineyard", "registry.snapshot");
+        }
+        long snapshotInterval =
+                longProperty(properties, "snapshot.interval", DEFAULT_SNAPSHOT_INTERVAL);
+
+        if (Boolean.parseBoolean(String.valueOf(properties.get("readonly")))) {
+            // the database isn't used, even if a node of the same container has one
+            jpaTemplate = null;
+        }
+        if (jpaTemplate == null) {
+            LOGGER.info("Read only registry, serving the snapshot {}", snapshotFile);
+            if (snapshotInterval > 0) {
+                scheduler.scheduleWithFixedDelay(
+                        this::reloadSnapshotFile,
+                        snapshotInterval,
+                        snapshotInterval,
+                        TimeUnit.SECONDS);
+            }
+            return;
+        }
+
+        if (Files.exists(snapshotFile)) {
+            try {
+                cache.warm(SnapshotFile.read(snapshotFile, cache.getVersion()));
+            } catch (IOException e) {
+                LOGGER.warn("Can't read the registry snapshot {}", snapshotFile, e);
+            }
+        }
+        scheduler.execute(this::refresh);
+        scheduleExpiry(
+                ApiEntity.class, longProperty(properties, "cache.api.ttl", DEFAULT_CACHE_TTL));
+        scheduleExpiry(
+                RestResourceEntity.class,
+                longProperty(properties, "cache.restResource.ttl", DEFAULT_CACHE_TTL));
+        scheduleExpiry(
+                PolicyEntity.class,
+                longProperty(properties, "cache.policy.ttl", DEFAULT_CACHE_TTL));
+        long reloadInterval =
+                longProperty(properties, "snapshot.reload.interval", DEFAULT_RELOAD_INTERVAL);
+        if (reloadInterval > 0) {
+            scheduler.scheduleAtFixedRate(
+                    this::reload, reloadInterval, reloadInterval, TimeUnit.SECONDS);
+        }
+        if (snapshotInterval > 0) {
+            scheduler.scheduleWithFixedDelay(
+                    this::saveSnapshot, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    @Deactivate
+    public void deactivate() {
+        scheduler.shutdownNow();
+        if (jpaTemplate != null) {
+            saveSnapshot();
+        }
+    }
+
+    @Override
+    public Path writeSnapshot() throws IOException {
+        RegistrySnapshot snapshot = cache.get();
+        SnapshotFile.write(snapshot, snapshotFile);
+        savedVersion = snapshot.getVersion();
+        return snapshotFile;
+    }
+
+    /** Save the registry to the snapshot file, if it changed since the last save. */
+    private void saveSnapshot() {
+        RegistrySnapshot snapshot = cache.peek();
+        if (snapshot == null || snapshot.getVersion() == savedVersion) {
+            // don't load the registry only to save it, it's saved once read
+            return;
+        }
+        try {
+            SnapshotFile.write(snapshot, snapshotFile);
+            savedVersion = snapshot.getVersion();
+        } catch (IOException e) {
+            LOGGER.warn("Can't save the registry snapshot {}", snapshotFile, e);
+        }
+    }
+
+    /**
+     * Replace the snapshot read from the file by the database content, once it can be reached. The
+     * tables of a previous version are upgraded first.
+     */
+    private void refresh() {
+        try {
+            if (!schemaUpgraded) {
+                SchemaUpgrade.run(jpaTemplate);
+                schemaUpgraded = true;
+            }
+            cache.refresh();
+        } catch (RuntimeException e) {
+            LOGGER.warn(
+                    "Can't load the registry, retrying in {} seconds: {}",
+                    REFRESH_RETRY_DELAY,
+                    e.getMessage());
+            scheduler.schedule(this::refresh, REFRESH_RETRY_DELAY, TimeUnit.SECONDS);
+        }
+    }
+
+    /** Reload the snapshot file of a read only registry when it's replaced. */
+    private void reloadSnapshotFile() {
+        try {
+            if (Files.exists(snapshotFile)
+                    && !Files.getLastModifiedTime(snapshotFile).equals(loadedFileTime)) {
+                cache.refresh();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Can't reload the registry snapshot {}", snapshotFile, e);
+        }
+    }
+
+    /** Load the snapshot file of a read only registry, an empty registry if there's none. */
+    private RegistrySnapshot readSnapshotFile(long version) {
+        try {
+            if (!Files.exists(snapshotFile)) {
+                return new RegistrySnapshot.Builder().build(version);
+            }
+            FileTime fileTime = Files.getLastModifiedTime(snapshotFile);
+            RegistrySnapshot snapshot = SnapshotFile.read(snapshotFile, version);
+            loadedFileTime = fileTime;
+            return snapshot;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Reference(
+            cardinality = ReferenceCardinality.OPTIONAL,
+            policy = ReferencePolicy.DYNAMIC,
+            unbind = "unbindInvalidationBus")
+    protected void bindInvalidationBus(InvalidationBus invalidationBus) {
+        invalidationBus.subscribe(invalidationListener);
+        this.invalidationBus = invalidationBus;
+    }
+
+    protected void unbindInvalidationBus(InvalidationBus invalidationBus) {
+        invalidationBus.unsubscribe(invalidationListener);
+        if (this.invalidationBus == invalidationBus) {
+            this.invalidationBus = null;
+        }
+    }
+
     @Override
     public API add(API api) {
-        api.setId(UUID.randomUUID().toString());
-        jpaTemplate.tx(
-                TransactionType.Required,
-                entityManager -> {
+        api.setId(nextId());
+        mutate(
+                "add",
+                (entityManager, changes) -> {
                     entityManager.persist(mapTo(api));
+                    changes.created(RegistryEvent.Type.API, api.getId());
                     entityManager.flush();
                 });
         return api;
     }
 
     @Override
-    public void definition(API api, InputStream inputStream) {
-        jpaTemplate.tx(
-                TransactionType.RequiresNew,
-                entityManager -> {
+    public void definition(API api, InputStream inputStream) throws IOException {
+        checkDatabase();
+        if (countApis("a.id = :value", api.getId()) == 0) {
+            // don't store a definition nothing would reference
+            return;
+        }
+        // stream the content to the store before starting the transaction, the database only
+        // keeps the digest
+        String digest = definitionStore.store(inputStream);
+        AtomicBoolean stored = new AtomicBoolean();
+        mutate(
+                "definition",
+                (entityManager, changes) -> {
                     ApiEntity apiEntity = entityManager.find(ApiEntity.class, api.getId());
 
                     if (apiEntity != null) {
-                        byte[] buffer = new byte[1024];
-                        try (ByteArrayOutputStream output = new ByteArrayOutputStream()) {
-                            int cpt = 0;
-                            while ((cpt = inputStream.read(buffer)) > -1) {
-                                output.write(buffer, 0, cpt);
-                            }
-                            apiEntity.setDefinition(output.toByteArray());
-                        } catch (IOException e) {
-                            // do nothing
-                        }
-                        entityManager.merge(apiEntity);
+                        apiEntity.setDefinitionDigest(digest);
+                        changes.updated(RegistryEvent.Type.API, api.getId());
                         entityManager.flush();
+                        stored.set(true);
                     }
                 });
+        if (!stored.get() && countApis("a.definitionDigest = :value", digest) == 0) {
+            // the API has been deleted meanwhile
+            definitionStore.delete(digest);
+        }
+    }
+
+    private long countApis(String condition, String value) {
+        return query(
+                "countApis",
+                entityManager ->
+                        entityManager
+                                .createQuery(
+                                        "SELECT COUNT(a) FROM ApiEntity a WHERE " + condition,
+                                        Long.class)
+                                .setParameter("value", value)
+                                .getSingleResult(),
+                count -> 1);
+    }
+
+    @Override
+    public String getDefinitionDigest(API api) {
+        return cache.get().getDefinitionDigest(api.getId());
     }
 
     @Override
     public void delete(String id) {
-        jpaTemplate.tx(
-                TransactionType.RequiresNew,
-                entityManager -> {
-                    ApiEntity apiEntity = entityManager.find(ApiEntity.class, id);
-                    if (apiEntity != null) {
-                        entityManager.remove(apiEntity);
-                        entityManager.flush();
+        delete(Collections.singletonList(id));
+    }
+
+    @Override
+    public void delete(Collection<String> ids) {
+        mutate(
+                "delete",
+                (entityManager, changes) -> {
+                    for (String id : ids) {
+                        deleteApi(entityManager, id, changes);
                     }
                 });
     }
 
     @Override
     public void update(API api) {
-        jpaTemplate.tx(
-                TransactionType.RequiresNew,
-                entityManager -> {
+        mutate(
+                "update",
+                (entityManager, changes) -> {
+                    if (api.getRevision() != null) {
+                        // compare and set in a single statement, without loading the API first
+                        int updated =
+                                entityManager
+                                        .createQuery(
+                                                "UPDATE ApiEntity a SET a.name = :name, a.context = :context, "
+                                                        + "a.description = :description, a.revision = a.revision + 1 "
+                                                        + "WHERE a.id = :id AND a.revision = :revision")
+                                        .setParameter("name", api.getName())
+                                        .setParameter("context", api.getContext())
+                                        .setParameter("description", api.getDescription())
+                                        .setParameter("id", api.getId())
+                                        .setParameter("revision", api.getRevision())
+                                        .executeUpdate();
+                        if (updated == 0) {
+                            if (entityManager.find(ApiEntity.class, api.getId()) != null) {
+                                throw conflict(api.getId(), api.getRevision());
+                            }
+                            return;
+                        }
+                        updateRestResourcesContext(entityManager, api.getId(), api.getContext());
+                        changes.updated(RegistryEvent.Type.API, api.getId());
+                        return;
+                    }
+
                     ApiEntity apiEntity = entityManager.find(ApiEntity.class, api.getId());
 
                     if (apiEntity != null) {
-                        // we don't update the PK or the Resources and Metadatas
-                        apiEntity.setName(api.getName());
-                        apiEntity.setContext(api.getContext());
-                        apiEntity.setDescription(api.getDescription());
-                        entityManager.merge(apiEntity);
+                        updateApi(entityManager, apiEntity, api);
+                        changes.updated(RegistryEvent.Type.API, api.getId());
                         entityManager.flush();
                     }
                 });
@@ -120,42 +495,76 @@ public class RegistryServiceImpl implements RegistryService {
 
     @Override
     public API get(String id) {
-        ApiEntity apiEntity =
-                jpaTemplate.txExpr(
-                        TransactionType.Supports,
-                        entityManager -> entityManager.find(ApiEntity.class, id));
-        return mapTo(apiEntity);
+        return cache.get().getApi(id);
+    }
+
+    @Override
+    public API getFull(String id) {
+        // without a database, there's nothing but the snapshot to read
+        RegistrySnapshot snapshot = jpaTemplate != null ? cache.peek() : cache.get();
+        if (snapshot != null) {
+            return snapshot.getApiTree(id);
+        }
+        // don't load the whole registry for a single API
+        return query(
+                "getFull",
+                entityManager -> loadApiTree(entityManager, id),
+                api -> api != null ? 1 + api.getRestResources().size() : 0);
     }
 
     @Override
     public Collection<API> list() {
-        List<ApiEntity> list =
-                jpaTemplate.txExpr(
-                        TransactionType.Supports,
-                        entityManager ->
-                                entityManager
-                                        .createQuery("SELECT a FROM ApiEntity a", ApiEntity.class)
-                                        .getResultList());
-        Collection<API> results = new ArrayList<>();
-        for (ApiEntity entity : list) {
-            results.add(mapTo(entity));
+        return cache.get().listApis();
+    }
+
+    @Override
+    public Collection<API> list(String after, int limit) {
+        RegistrySnapshot snapshot = cache.peek();
+        if (snapshot != null) {
+            return snapshot.listApis(after, limit);
         }
-        return results;
+        // a page is a keyset query, don't load the whole registry for it
+        return loadApiPage("list", after, limit);
+    }
+
+    @Override
+    public Collection<API> search(Map<String, Collection<String>> meta, String after, int limit) {
+        return cache.get().searchApis(meta, after, limit);
+    }
+
+    @Override
+    public List<API> searchText(String query, int limit) {
+        return cache.get().searchText(query, limit);
+    }
+
+    @Override
+    public void scan(Consumer<API> consumer) {
+        String after = "";
+        List<API> chunk;
+        do {
+            chunk = loadApiPage("scan", after, SCAN_CHUNK_SIZE);
+            chunk.forEach(consumer);
+            if (!chunk.isEmpty()) {
+                after = chunk.get(chunk.size() - 1).getId();
+            }
+        } while (chunk.size() == SCAN_CHUNK_SIZE);
     }
 
     @Override
     public void addMeta(API api, Map<String, String> meta) {
-        jpaTemplate.tx(
-                TransactionType.RequiresNew,
-                entityManager -> {
+        mutate(
+                "addMeta",
+                (entityManager, changes) -> {
                     ApiEntity apiEntity = entityManager.find(ApiEntity.class, api.getId());
 
                     if (apiEntity != null) {
+                        checkRevision(api.getId(), api.getRevision(), apiEntity.getRevision());
                         if (apiEntity.getMeta() == null) {
                             apiEntity.setMeta(new Hashtable<>());
                         }
                         apiEntity.getMeta().putAll(meta);
                         entityManager.merge(apiEntity);
+                        changes.updated(RegistryEvent.Type.API, api.getId());
                         entityManager.flush();
                     }
                 });
@@ -163,32 +572,31 @@ public class RegistryServiceImpl implements RegistryService {
 
     @Override
     public void deleteMeta(API api, String key) {
-        jpaTemplate.tx(
-                TransactionType.RequiresNew,
-                entityManager -> {
-                    ApiEntity apiEntity = entityManager.find(ApiEntity.class, api.getId());
-
-                    if (apiEntity != null && apiEntity.getMeta() != null) {
-                        apiEntity.getMeta().remove(key);
-                        entityManager.merge(apiEntity);
-                        entityManager.flush();
+        mutate(
+                "deleteMeta",
+                (entityManager, changes) -> {
+                    if (incrementRevision(
+                            entityManager, ApiEntity.class, api.getId(), api.getRevision())) {
+                        entityManager
+                                .createNativeQuery(
+                                        "DELETE FROM VINEYARD.API_META WHERE APIENTITY_ID = ?1 AND META_KEY = ?2")
+                                .setParameter(1, api.getId())
+                                .setParameter(2, key)
+                                .executeUpdate();
+                        changes.updated(RegistryEvent.Type.API, api.getId());
                     }
                 });
     }
 
     @Override
     public void updateMeta(API api, Map<String, String> meta) {
-        jpaTemplate.tx(
-                TransactionType.RequiresNew,
-                entityManager -> {
-                    ApiEntity apiEntity = entityManager.find(ApiEntity.class, api.getId());
-
-                    if (apiEntity != null && apiEntity.getMeta() != null) {
-
-                        apiEntity.getMeta().clear();
-                        apiEntity.getMeta().putAll(meta);
-                        entityManager.merge(apiEntity);
-                        entityManager.flush();
+        mutate(
+                "updateMeta",
+                (entityManager, changes) -> {
+                    if (incrementRevision(
+                            entityManager, ApiEntity.class, api.getId(), api.getRevision())) {
+                        replaceMeta(entityManager, "API_META", "APIENTITY_ID", api.getId(), meta);
+                        changes.updated(RegistryEvent.Type.API, api.getId());
                     }
                 });
     }
@@ -206,14 +614,28 @@ public class RegistryServiceImpl implements RegistryService {
 
     @Override
     public RestResource addRestResource(API api, RestResource restResource) {
-        restResource.setId(UUID.randomUUID().toString());
-        jpaTemplate.tx(
-                TransactionType.RequiresNew,
-                entityManager -> {
+        restResource.setId(nextId());
+        mutate(
+                "addRestResource",
+                (entityManager, changes) -> {
                     ApiEntity apiEntity = entityManager.find(ApiEntity.class, api.getId());
 
                     if (apiEntity != null) {
+                        if (findRestResource(
+                                        entityManager,
+                                        apiEntity.getContext(),
+                                        restResource.getPath(),
+                                        restResource.getMethod())
+                                != null) {
+                            throw new RouteConflictException(
+                                    "A resource already serves "
+                                            + restResource.getMethod()
+                                            + " "
+                                            + apiEntity.getContext()
+                                            + restResource.getPath());
+                        }
                         entityManager.persist(mapTo(restResource, apiEntity));
+                        changes.created(RegistryEvent.Type.REST_RESOURCE, restResource.getId());
                         entityManager.flush();
                     }
                 });
@@ -222,75 +644,87 @@ public class RegistryServiceImpl implements RegistryService {
 
     @Override
     public void deleteRestResource(API api, RestResource restResource) {
-        jpaTemplate.tx(
-                TransactionType.RequiresNew,
-                entityManager -> {
-                    ApiEntity apiEntity = entityManager.find(ApiEntity.class, api.getId());
-                    RestResourceEntity restResourceEntity =
-                            entityManager.find(RestResourceEntity.class, restResource.getId());
-                    if (apiEntity != null
-                            && restResourceEntity != null
-                            && restResourceEntity.getApi().getId().equals(apiEntity.getId())) {
-                        entityManager.remove(restResourceEntity);
-                        entityManager.flush();
+        mutate(
+                "deleteRestResource",
+                (entityManager, changes) -> {
+                    boolean owned =
+                            !entityManager
+                                    .createQuery(
+                                            "SELECT r.id FROM RestResourceEntity r WHERE r.id = :id AND r.api.id = :api",
+                                            String.class)
+                                    .setParameter("id", restResource.getId())
+                                    .setParameter("api", api.getId())
+                                    .getResultList()
+                                    .isEmpty();
+                    if (owned) {
+                        deleteRestResource(entityManager, restResource.getId(), changes);
                     }
                 });
     }
 
     @Override
     public Collection<RestResource> listRestResources(API api) {
-        List<RestResourceEntity> list =
-                jpaTemplate.txExpr(
-                        TransactionType.Supports,
-                        entityManager ->
-                                entityManager
-                                        .createQuery(
-                                                "SELECT r FROM RestResourceEntity r where r.api.id = :apiId",
-                                                RestResourceEntity.class)
-                                        .setParameter("apiId", api.getId())
-                                        .getResultList());
-        Collection<RestResource> results = new ArrayList<>();
-        for (RestResourceEntity entity : list) {
-            results.add(mapTo(entity));
+        return cache.get().listRestResources(api.getId());
+    }
+
+    @Override
+    public Collection<RestResource> listRestResources(API api, String after, int limit) {
+        RegistrySnapshot snapshot = jpaTemplate != null ? cache.peek() : cache.get();
+        if (snapshot != null) {
+            return snapshot.listRestResources(api.getId(), after, limit);
+        }
+        return query(
+                "listRestResources",
+                entityManager -> {
+                    List<RestResource> restResources = new ArrayList<>();
+                    entityManager
+                            .createQuery(
+                                    "SELECT "
+                                            + REST_RESOURCE_COLUMNS
+                                            + " FROM RestResourceEntity r "
+                                            + "WHERE r.api.id = :api AND r.id > :after ORDER BY r.id",
+                                    Object[].class)
+                            .setParameter("api", api.getId())
+                            .setParameter("after", after != null ? after : "")
+                            .setMaxResults(limit)
+                            .getResultList()
+                            .forEach(row -> restResources.add(mapRestResource(row, 0)));
+                    return restResources;
+                },
+                List::size);
+    }
+
+    @Override
+    public RestResource resolve(String context, String path, String method) {
+        // without a database, there's nothing but the snapshot to read
+        RegistrySnapshot snapshot = jpaTemplate != null ? cache.peek() : cache.get();
+        if (snapshot != null) {
+            return snapshot.resolve(context, path, method);
         }
-        return results;
+        return query(
+                "resolve",
+                entityManager -> findRestResource(entityManager, context, path, method),
+                restResource -> restResource != null ? 1 : 0);
     }
 
     @Override
     public RestResource getRestResource(String id) {
-        RestResourceEntity restResourceEntity =
-                jpaTemplate.txExpr(
-                        TransactionType.Supports,
-                        entityManager -> entityManager.find(RestResourceEntity.class, id));
-        return mapTo(restResourceEntity);
+        return cache.get().getRestResource(id);
     }
 
     @Override
     public Collection<RestResource> listRestResources(Policy policy) {
-        List<PolicyRestResourceJoinEntity> list =
-                jpaTemplate.txExpr(
-                        TransactionType.Supports,
-                        entityManager ->
-                                entityManager
-                                        .createQuery(
-                                                "SELECT p FROM PolicyRestResourceJoinEntity p where p.policy.id = :policyId",
-                                                PolicyRestResourceJoinEntity.class)
-                                        .setParameter("policyId", policy.getId())
-                                        .getResultList());
-        Collection<RestResource> results = new ArrayList<>();
-        for (PolicyRestResourceJoinEntity entity : list) {
-            results.add(mapTo(entity.getRestResource()));
-        }
-        return results;
+        return cache.get().listPolicyRestResources(policy.getId());
     }
 
     @Override
     public Policy addPolicy(Policy policy) {
-        policy.setId(UUID.randomUUID().toString());
-        jpaTemplate.tx(
-                TransactionType.RequiresNew,
-                entityManager -> {
+        policy.setId(nextId());
+        mutate(
+                "addPolicy",
+                (entityManager, changes) -> {
                     entityManager.persist(mapTo(policy));
+                    changes.created(RegistryEvent.Type.POLICY, policy.getId());
                     entityManager.flush();
                 });
         return policy;
@@ -298,49 +732,71 @@ public class RegistryServiceImpl implements RegistryService {
 
     @Override
     public void deletePolicy(String id) {
-        jpaTemplate.tx(
-                TransactionType.RequiresNew,
-                entityManager -> {
-                    PolicyEntity policyEntity = entityManager.find(PolicyEntity.class, id);
-                    if (policyEntity != null) {
-                        entityManager.remove(policyEntity);
-                        entityManager.flush();
-                    }
-                });
+        mutate(
+                "deletePolicy",
+                (entityManager, changes) -> deletePolicy(entityManager, id, changes));
     }
 
     @Override
     public Policy getPolicy(String id) {
-        PolicyEntity policyEntity =
-                jpaTemplate.txExpr(
-                        TransactionType.Supports,
-                        entityManager -> entityManager.find(PolicyEntity.class, id));
-        return mapTo(policyEntity);
+        return cache.get().getPolicy(id);
     }
 
     @Override
     public Collection<Policy> listPolicies() {
-        List<PolicyEntity> list =
-                jpaTemplate.txExpr(
-                        TransactionType.Supports,
-                        entityManager ->
-                                entityManager
-                                        .createQuery(
-                                                "SELECT p FROM PolicyEntity p", PolicyEntity.class)
-                                        .getResultList());
-        Collection<Policy> results = new ArrayList<>();
-        for (PolicyEntity entity : list) {
-            results.add(mapTo(entity));
+        return cache.get().listPolicies();
+    }
+
+    @Override
+    public Collection<Policy> listPolicies(String after, int limit) {
+        RegistrySnapshot snapshot = cache.peek();
+        if (snapshot != null) {
+            return snapshot.listPolicies(after, limit);
         }
-        return results;
+        return loadPolicyPage("listPolicies", after, limit);
+    }
+
+    @Override
+    public Collection<Policy> searchPolicies(
+            Map<String, Collection<String>> meta, String after, int limit) {
+        return cache.get().searchPolicies(meta, after, limit);
+    }
+
+    @Override
+    public void scanPolicies(Consumer<Policy> consumer) {
+        String after = "";
+        List<Policy> chunk;
+        do {
+            chunk = loadPolicyPage("scanPolicies", after, SCAN_CHUNK_SIZE);
+            chunk.forEach(consumer);
+            if (!chunk.isEmpty()) {
+                after = chunk.get(chunk.size() - 1).getId();
+            }
+        } while (chunk.size() == SCAN_CHUNK_SIZE);
     }
 
     @Override
     public void applyPolicy(
             String restResourceId, String policyId, int order, Map<String, String> params) {
-        jpaTemplate.tx(
-                TransactionType.RequiresNew,
-                entityManager -> {
+        applyPolicy(restResourceId, null, policyId, order, params);
+    }
+
+    @Override
+    public void applyPolicy(
+            String restResourceId,
+            Long revision,
+            String policyId,
+            int order,
+            Map<String, String> params) {
+        mutate(
+                "applyPolicy",
+                (entityManager, changes) -> {
+                    // the policies are on the inverse side of the resource, bump its revision
+                    // explicitly, checking the expected one in the same statement
+                    if (!incrementRevision(
+                            entityManager, RestResourceEntity.class, restResourceId, revision)) {
+                        return;
+                    }
                     RestResourceEntity restResourceEntity =
                             entityManager.find(RestResourceEntity.class, restResourceId);
                     PolicyEntity policyEntity = entityManager.find(PolicyEntity.class, policyId);
@@ -358,8 +814,8 @@ public class RegistryServiceImpl implements RegistryService {
                                         join.getParam().put(key, value);
                                     });
                         }
-                        restResourceEntity.getPolicyRestResourceJoins().add(join);
-                        entityManager.merge(restResourceEntity);
+                        entityManager.persist(join);
+                        changes.updated(RegistryEvent.Type.REST_RESOURCE, restResourceId);
                         entityManager.flush();
                     }
                 });
@@ -367,69 +823,62 @@ public class RegistryServiceImpl implements RegistryService {
 
     @Override
     public void unapplyPolicy(String restResourceId, String policyId) {
-        jpaTemplate.tx(
-                TransactionType.RequiresNew,
-                entityManager -> {
-                    RestResourceEntity restResourceEntity =
-                            entityManager.find(RestResourceEntity.class, restResourceId);
-                    PolicyEntity policyEntity = entityManager.find(PolicyEntity.class, policyId);
-                    if (restResourceEntity != null && policyEntity != null) {
-
-                        PolicyRestResourceJoinEntity result =
-                                restResourceEntity
-                                        .getPolicyRestResourceJoins()
-                                        .stream()
-                                        .filter(
-                                                policyRestResourceJoinEntity ->
-                                                        policyRestResourceJoinEntity
-                                                                .getPolicy()
-                                                                .getId()
-                                                                .equals(policyId))
-                                        .findFirst()
-                                        .get();
-                        entityManager.remove(result);
-                        entityManager.flush();
+        mutate(
+                "unapplyPolicy",
+                (entityManager, changes) -> {
+                    entityManager
+                            .createNativeQuery(
+                                    "DELETE FROM VINEYARD.POLICY_REST_RESOURCE_JOIN_PARAM "
+                                            + "WHERE POLICYRESTRESOURCEJOINENTITY_REST_RESOURCE_ID = ?1 "
+                                            + "AND POLICYRESTRESOURCEJOINENTITY_POLICY_ID = ?2")
+                            .setParameter(1, restResourceId)
+                            .setParameter(2, policyId)
+                            .executeUpdate();
+                    int deleted =
+                            entityManager
+                                    .createQuery(
+                                            "DELETE FROM PolicyRestResourceJoinEntity j "
+                                                    + "WHERE j.restResource.id = :restResource AND j.policy.id = :policy")
+                                    .setParameter("restResource", restResourceId)
+                                    .setParameter("policy", policyId)
+                                    .executeUpdate();
+                    if (deleted > 0) {
+                        incrementRevision(
+                                entityManager, RestResourceEntity.class, restResourceId, null);
+                        changes.updated(RegistryEvent.Type.REST_RESOURCE, restResourceId);
                     }
                 });
     }
 
+    @Override
+    public void unapplyPolicyFromAll(String policyId) {
+        mutate(
+                "unapplyPolicyFromAll",
+                (entityManager, changes) -> unapplyPolicyFromAll(entityManager, policyId, changes));
+    }
+
     @Override
     public Map<Integer, Policy> listAppliedPolicies(RestResource restResource) {
-        List<PolicyRestResourceJoinEntity> list =
-                jpaTemplate.txExpr(
-                        TransactionType.Supports,
-                        entityManager ->
-                                entityManager
-                                        .createQuery(
-                                                "SELECT p FROM PolicyRestResourceJoinEntity p WHERE p.restResource.id = :resourceId",
-                                                PolicyRestResourceJoinEntity.class)
-                                        .setParameter("resourceId", restResource.getId())
-                                        .getResultList());
-
-        Map<Integer, Policy> results = new HashMap<>();
-        list.forEach(
-                policyRestResourceJoinEntity -> {
-                    results.put(
-                            policyRestResourceJoinEntity.getPolicyOrder(),
-                            mapTo(policyRestResourceJoinEntity));
-                });
-        return results;
+        return cache.get().listAppliedPolicies(restResource.getId());
     }
 
     @Override
     public void addPolicyMeta(Policy policy, Map<String, String> meta) {
-        jpaTemplate.tx(
-                TransactionType.RequiresNew,
-                entityManager -> {
+        mutate(
+                "addPolicyMeta",
+                (entityManager, changes) -> {
                     PolicyEntity policyEntity =
                             entityManager.find(PolicyEntity.class, policy.getId());
 
                     if (policyEntity != null) {
+                        checkRevision(
+                                policy.getId(), policy.getRevision(), policyEntity.getRevision());
                         if (policyEntity.getMeta() == null) {
                             policyEntity.setMeta(new Hashtable<>());
                         }
                         policyEntity.getMeta().putAll(meta);
                         entityManager.merge(policyEntity);
+                        changes.updated(RegistryEvent.Type.POLICY, policy.getId());
                         entityManager.flush();
                     }
                 });
@@ -437,33 +886,42 @@ public class RegistryServiceImpl implements RegistryService {
 
     @Override
     public void deletePolicyMeta(Policy policy, String key) {
-        jpaTemplate.tx(
-                TransactionType.RequiresNew,
-                entityManager -> {
-                    PolicyEntity policyEntity =
-                            entityManager.find(PolicyEntity.class, policy.getId());
-
-                    if (policyEntity != null && policyEntity.getMeta() != null) {
-                        policyEntity.getMeta().remove(key);
-                        entityManager.merge(policyEntity);
-                        entityManager.flush();
+        mutate(
+                "deletePolicyMeta",
+                (entityManager, changes) -> {
+                    if (incrementRevision(
+                            entityManager,
+                            PolicyEntity.class,
+                            policy.getId(),
+                            policy.getRevision())) {
+                        entityManager
+                                .createNativeQuery(
+                                        "DELETE FROM VINEYARD.POLICY_META WHERE POLICYENTITY_ID = ?1 AND META_KEY = ?2")
+                                .setParameter(1, policy.getId())
+                                .setParameter(2, key)
+                                .executeUpdate();
+                        changes.updated(RegistryEvent.Type.POLICY, policy.getId());
                     }
                 });
     }
 
     @Override
     public void updatePolicyMeta(Policy policy, Map<String, String> meta) {
-        jpaTemplate.tx(
-                TransactionType.RequiresNew,
-                entityManager -> {
-                    PolicyEntity policyEntity =
-                            entityManager.find(PolicyEntity.class, policy.getId());
-
-                    if (policyEntity != null) {
-                        policyEntity.getMeta().clear();
-                        policyEntity.getMeta().putAll(meta);
-                        entityManager.merge(policyEntity);
-                        entityManager.flush();
+        mutate(
+                "updatePolicyMeta",
+                (entityManager, changes) -> {
+                    if (incrementRevision(
+                            entityManager,
+                            PolicyEntity.class,
+                            policy.getId(),
+                            policy.getRevision())) {
+                        replaceMeta(
+                                entityManager,
+                                "POLICY_META",
+                                "POLICYENTITY_ID",
+                                policy.getId(),
+                                meta);
+                        changes.updated(RegistryEvent.Type.POLICY, policy.getId());
                     }
                 });
     }
@@ -479,8 +937,1078 @@ public class RegistryServiceImpl implements RegistryService {
         }
     }
 
+    @Override
+    public ChangeSetResult commit(ChangeSet changeSet) {
+        ChangeSetResult result = new ChangeSetResult();
+        mutate(
+                "commit",
+                (entityManager, changes) -> {
+                    Map<String, PolicyEntity> policies = new HashMap<>();
+                    for (Policy policy : changeSet.getPolicies()) {
+                        PolicyEntity policyEntity = mapTo(policy);
+                        policyEntity.setId(nextId());
+                        entityManager.persist(policyEntity);
+                        changes.created(RegistryEvent.Type.POLICY, policyEntity.getId());
+                        if (policy.getId() != null) {
+                            policies.put(policy.getId(), policyEntity);
+                            result.getPolicies().put(policy.getId(), policyEntity.getId());
+                        }
+                    }
+
+                    for (API api : changeSet.getApis()) {
+                        ApiEntity apiEntity = mapTo(api);
+                        apiEntity.setId(nextId());
+                        apiEntity.setMeta(new HashMap<>());
+                        if (api.getMeta() != null) {
+                            apiEntity.getMeta().putAll(api.getMeta());
+                        }
+                        entityManager.persist(apiEntity);
+                        changes.created(RegistryEvent.Type.API, apiEntity.getId());
+                        if (api.getId() != null) {
+                            result.getApis().put(api.getId(), apiEntity.getId());
+                        }
+                        persistRestResources(
+                                entityManager,
+                                apiEntity,
+                                api.getRestResources(),
+                                policies,
+                                result,
+                                changes);
+                    }
+
+                    changeSet
+                            .getRestResources()
+                            .forEach(
+                                    (apiId, restResources) -> {
+                                        ApiEntity apiEntity =
+                                                entityManager.find(ApiEntity.class, apiId);
+                                        if (apiEntity == null) {
+                                            throw new IllegalArgumentException(
+                                                    "API " + apiId + " doesn't exist");
+                                        }
+                                        persistRestResources(
+                                                entityManager,
+                                                apiEntity,
+                                                restResources,
+                                                policies,
+                                                result,
+                                                changes);
+                                    });
+
+                    for (API api : changeSet.getUpdatedApis()) {
+                        ApiEntity apiEntity = entityManager.find(ApiEntity.class, api.getId());
+                        if (apiEntity != null) {
+                            updateApi(entityManager, apiEntity, api);
+                            changes.updated(RegistryEvent.Type.API, apiEntity.getId());
+                        }
+                    }
+
+                    // single flush, the inserts are sent in JDBC batches
+                    entityManager.flush();
+
+                    // the deletes are set-based statements, run once the entities are written
+                    for (String id : changeSet.getDeletedRestResources()) {
+                        deleteRestResource(entityManager, id, changes);
+                    }
+                    for (String id : changeSet.getDeletedApis()) {
+                        deleteApi(entityManager, id, changes);
+                    }
+                    for (String id : changeSet.getDeletedPolicies()) {
+                        deletePolicy(entityManager, id, changes);
+                    }
+                });
+        return result;
+    }
+
+    /** Update the API details, we don't update the PK or the Resources and Metadatas. */
+    private void updateApi(EntityManager entityManager, ApiEntity apiEntity, API api) {
+        checkRevision(api.getId(), api.getRevision(), apiEntity.getRevision());
+        if (!Objects.equals(apiEntity.getContext(), api.getContext())) {
+            updateRestResourcesContext(entityManager, api.getId(), api.getContext());
+        }
+        apiEntity.setName(api.getName());
+        apiEntity.setContext(api.getContext());
+        apiEntity.setDescription(api.getDescription());
+    }
+
+    /**
+     * Keep the copy of the context used by the route unique key in sync.
+     *
+     * @throws RouteConflictException If a resource of another API already serves one of the routes
+     *     of the API in the new context.
+     */
+    private static void updateRestResourcesContext(
+            EntityManager entityManager, String apiId, String context) {
+        if (context != null) {
+            List<Object[]> conflicts =
+                    entityManager
+                            .createQuery(
+                                    "SELECT o.method, o.path FROM RestResourceEntity o, RestResourceEntity r "
+                                            + "WHERE r.api.id = :api AND o.api.id <> :api AND o.context = :context "
+                                            + "AND o.path = r.path AND o.method = r.method",
+                                    Object[].class)
+                            .setParameter("api", apiId)
+                            .setParameter("context", context)
+                            .setMaxResults(1)
+                            .getResultList();
+            if (!conflicts.isEmpty()) {
+                throw new RouteConflictException(
+                        "A resource already serves "
+                                + conflicts.get(0)[0]
+                                + " "
+                                + context
+                                + conflicts.get(0)[1]);
+            }
+        }
+        entityManager
+                .createQuery(
+                        "UPDATE RestResourceEntity r SET r.context = :context WHERE r.api.id = :api")
+                .setParameter("context", context)
+                .setParameter("api", apiId)
+                .executeUpdate();
+    }
+
+    /**
+     * Increment the revision of an entity with a single conditional statement.
+     *
+     * @param revision The expected revision, or null to increment whatever the current one.
+     * @return false if the entity doesn't exist.
+     * @throws VersionConflictException If the entity isn't at the expected revision.
+     */
+    private static boolean incrementRevision(
+            EntityManager entityManager, Class<?> entityClass, String id, Long revision) {
+        String query =
+                "UPDATE "
+                        + entityClass.getSimpleName()
+                        + " e SET e.revision = e.revision + 1 WHERE e.id = :id";
+        int updated;
+        if (revision != null) {
+            updated =
+                    entityManager
+                            .createQuery(query + " AND e.revision = :revision")
+                            .setParameter("id", id)
+                            .setParameter("revision", revision)
+                            .executeUpdate();
+        } else {
+            updated = entityManager.createQuery(query).setParameter("id", id).executeUpdate();
+        }
+        if (updated == 0 && revision != null && entityManager.find(entityClass, id) != null) {
+            throw conflict(id, revision);
+        }
+        return updated > 0;
+    }
+
+    /** Replace all the meta of an entity, in its collection table. */
+    private static void replaceMeta(
+            EntityManager entityManager,
+            String table,
+            String idColumn,
+            String id,
+            Map<String, String> meta) {
+        entityManager
+                .createNativeQuery("DELETE FROM VINEYARD." + table + " WHERE " + idColumn + " = ?1")
+                .setParameter(1, id)
+                .executeUpdate();
+        for (Map.Entry<String, String> entry : meta.entrySet()) {
+            entityManager
+                    .createNativeQuery(
+                            "INSERT INTO VINEYARD."
+                                    + table
+                                    + " ("
+                                    + idColumn
+                                    + ", META_KEY, META) VALUES (?1, ?2, ?3)")
+                    .setParameter(1, id)
+                    .setParameter(2, entry.getKey())
+                    .setParameter(3, entry.getValue())
+                    .executeUpdate();
+        }
+    }
+
+    /**
+     * Delete an API, its meta and its resources with set-based statements, without loading the
+     * graph. The collection tables aren't reached by bulk JPQL, they're cleaned up in SQL.
+     */
+    private static void deleteApi(EntityManager entityManager, String id, Changes changes) {
+        List<String> restResourceIds =
+                entityManager
+                        .createQuery(
+                                "SELECT r.id FROM RestResourceEntity r WHERE r.api.id = :api",
+                                String.class)
+                        .setParameter("api", id)
+                        .getResultList();
+        entityManager
+                .createNativeQuery(
+                        "DELETE FROM VINEYARD.POLICY_REST_RESOURCE_JOIN_PARAM "
+                                + "WHERE POLICYRESTRESOURCEJOINENTITY_REST_RESOURCE_ID IN "
+                                + "(SELECT ID FROM VINEYARD.REST_RESOURCE WHERE API_ID = ?1)")
+                .setParameter(1, id)
+                .executeUpdate();
+        entityManager
+                .createQuery(
+                        "DELETE FROM PolicyRestResourceJoinEntity j WHERE j.restResource.id IN "
+                                + "(SELECT r.id FROM RestResourceEntity r WHERE r.api.id = :api)")
+                .setParameter("api", id)
+                .executeUpdate();
+        entityManager
+                .createQuery("DELETE FROM RestResourceEntity r WHERE r.api.id = :api")
+                .setParameter("api", id)
+                .executeUpdate();
+        entityManager
+                .createNativeQuery("DELETE FROM VINEYARD.API_META WHERE APIENTITY_ID = ?1")
+                .setParameter(1, id)
+                .executeUpdate();
+        int deleted =
+                entityManager
+                        .createQuery("DELETE FROM ApiEntity a WHERE a.id = :id")
+                        .setParameter("id", id)
+                        .executeUpdate();
+        if (deleted > 0) {
+            restResourceIds.forEach(
+                    restResourceId ->
+                            changes.deleted(RegistryEvent.Type.REST_RESOURCE, restResourceId));
+            changes.deleted(RegistryEvent.Type.API, id);
+        }
+    }
+
+    /** Delete a resource and the policies applied to it with set-based statements. */
+    private static void deleteRestResource(
+            EntityManager entityManager, String id, Changes changes) {
+        entityManager
+                .createNativeQuery(
+                        "DELETE FROM VINEYARD.POLICY_REST_RESOURCE_JOIN_PARAM "
+                                + "WHERE POLICYRESTRESOURCEJOINENTITY_REST_RESOURCE_ID = ?1")
+                .setParameter(1, id)
+                .executeUpdate();
+        entityManager
+                .createQuery(
+                        "DELETE FROM PolicyRestResourceJoinEntity j WHERE j.restResource.id = :id")
+                .setParameter("id", id)
+                .executeUpdate();
+        int deleted =
+                entityManager
+                        .createQuery("DELETE FROM RestResourceEntity r WHERE r.id = :id")
+                        .setParameter("id", id)
+                        .executeUpdate();
+        if (deleted > 0) {
+            changes.deleted(RegistryEvent.Type.REST_RESOURCE, id);
+        }
+    }
+
+    /** Unapply a policy from all its resources, which get a new revision. */
+    private static void unapplyPolicyFromAll(
+            EntityManager entityManager, String id, Changes changes) {
+        List<String> restResourceIds =
+                entityManager
+                        .createQuery(
+                                "SELECT j.restResource.id FROM PolicyRestResourceJoinEntity j WHERE j.policy.id = :policy",
+                                String.class)
+                        .setParameter("policy", id)
+                        .getResultList();
+        if (restResourceIds.isEmpty()) {
+            return;
+        }
+        entityManager
+                .createNativeQuery(
+                        "DELETE FROM VINEYARD.POLICY_REST_RESOURCE_JOIN_PARAM "
+                                + "WHERE POLICYRESTRESOURCEJOINENTITY_POLICY_ID = ?1")
+                .setParameter(1, id)
+                .executeUpdate();
+        entityManager
+                .createQuery(
+                        "DELETE FROM PolicyRestResourceJoinEntity j WHERE j.policy.id = :policy")
+                .setParameter("policy", id)
+                .executeUpdate();
+        entityManager
+                .createQuery(
+                        "UPDATE RestResourceEntity r SET r.revision = r.revision + 1 WHERE r.id IN :ids")
+                .setParameter("ids", restResourceIds)
+                .executeUpdate();
+        restResourceIds.forEach(
+                restResourceId ->
+                        changes.updated(RegistryEvent.Type.REST_RESOURCE, restResourceId));
+    }
+
+    /** Delete a policy and its meta, unapplying it from its resources first. */
+    private static void deletePolicy(EntityManager entityManager, String id, Changes changes) {
+        unapplyPolicyFromAll(entityManager, id, changes);
+        entityManager
+                .createNativeQuery("DELETE FROM VINEYARD.POLICY_META WHERE POLICYENTITY_ID = ?1")
+                .setParameter(1, id)
+                .executeUpdate();
+        int deleted =
+                entityManager
+                        .createQuery("DELETE FROM PolicyEntity p WHERE p.id = :id")
+                        .setParameter("id", id)
+                        .executeUpdate();
+        if (deleted > 0) {
+            changes.deleted(RegistryEvent.Type.POLICY, id);
+        }
+    }
+
+    /** Look a route up with the REST_RESOURCE_ROUTE_UK unique index. */
+    private RestResource findRestResource(
+            EntityManager entityManager, String context, String path, String method) {
+        if (context == null || path == null || method == null) {
+            return null;
+        }
+        List<Object[]> rows =
+                entityManager
+                        .createQuery(
+                                "SELECT "
+                                        + REST_RESOURCE_COLUMNS
+                                        + " FROM RestResourceEntity r WHERE r.context = :context "
+                                        + "AND r.path = :path AND r.method = :method",
+                                Object[].class)
+                        .setParameter("context", context)
+                        .setParameter("path", path)
+                        .setParameter("method", method)
+                        .getResultList();
+        return rows.isEmpty() ? null : mapRestResource(rows.get(0), 0);
+    }
+
+    private void persistRestResources(
+            EntityManager entityManager,
+            ApiEntity apiEntity,
+            Collection<RestResource> restResources,
+            Map<String, PolicyEntity> policies,
+            ChangeSetResult result,
+            Changes changes) {
+        if (restResources == null) {
+            return;
+        }
+        for (RestResource restResource : restResources) {
+            RestResourceEntity restResourceEntity = mapTo(restResource, apiEntity);
+            restResourceEntity.setId(nextId());
+            entityManager.persist(restResourceEntity);
+            changes.created(RegistryEvent.Type.REST_RESOURCE, restResourceEntity.getId());
+            if (restResource.getId() != null) {
+                result.getRestResources().put(restResource.getId(), restResourceEntity.getId());
+            }
+            if (restResource.getPolicies() == null) {
+                continue;
+            }
+            restResource
+                    .getPolicies()
+                    .forEach(
+                            (order, policy) -> {
+                                PolicyEntity policyEntity = policies.get(policy.getId());
+                                if (policyEntity == null) {
+                                    policyEntity =
+                                            entityManager.find(PolicyEntity.class, policy.getId());
+                                }
+                                if (policyEntity == null) {
+                                    throw new IllegalArgumentException(
+                                            "Policy " + policy.getId() + " doesn't exist");
+                                }
+                                PolicyRestResourceJoinEntity join =
+                                        new PolicyRestResourceJoinEntity();
+                                join.setPolicy(policyEntity);
+                                join.setRestResource(restResourceEntity);
+                                join.setPolicyOrder(order);
+                                join.setParam(new HashMap<>());
+                                if (policy.getParam() != null) {
+                                    join.getParam().putAll(policy.getParam());
+                                }
+                                entityManager.persist(join);
+                            });
+        }
+    }
+
+    @Override
+    public RegistryChanges changes(long after, int limit, long timeout)
+            throws InterruptedException {
+        return eventLog.read(after, limit, timeout);
+    }
+
+    /**
+     * Run a write transaction, in its own transaction. The entities it changed are read back in the
+     * same transaction and patched into the cached snapshot once it commits, then its changes are
+     * published. The transactions run concurrently, only the patches are applied in their commit
+     * order, see {@link #patch}.
+     */
+    private void mutate(String operation, Mutation code) {
+        checkDatabase();
+        Changes changes = new Changes();
+        long start = System.nanoTime();
+        AtomicLong sequence = new AtomicLong();
+        Patch patch;
+        try {
+            patch =
+                    jpaTemplate.txExpr(
+                            TransactionType.RequiresNew,
+                            entityManager -> {
+                                code.run(entityManager, changes);
+                                entityManager.flush();
+                                Patch read = loadPatch(entityManager, changes);
+                                if (!changes.events.isEmpty()) {
+                                    // taken while the written rows are locked, so a conflicting
+                                    // write commits with a later number
+                                    sequence.set(commitSequence.incrementAndGet());
+                                }
+                                return read;
+                            });
+        } catch (RuntimeException e) {
+            metrics.record(operation, System.nanoTime() - start, 0, e);
+            if (sequence.get() != 0) {
+                // failed to commit, the later writes mustn't wait for its patch
+                patch(sequence.get(), null, null);
+            }
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof OptimisticLockException) {
+                    throw new VersionConflictException(cause.getMessage(), e);
+                }
+                if (cause instanceof SQLException
+                        && UNIQUE_VIOLATION.equals(((SQLException) cause).getSQLState())) {
+                    // the route unique key, the other keys are generated IDs
+                    throw new RouteConflictException(cause.getMessage(), e);
+                }
+            }
+            if (!(e instanceof VersionConflictException)
+                    && !(e instanceof IllegalArgumentException)) {
+                // the outcome of the transaction is unknown
+                cache.invalidate();
+            }
+            throw e;
+        }
+        metrics.record(operation, System.nanoTime() - start, changes.events.size(), null);
+        if (changes.events.isEmpty()) {
+            return;
+        }
+        patch(sequence.get(), patch, changes.events);
+        share(changes.events);
+    }
+
+    /**
+     * Patch the snapshot with a committed write and publish its changes, once the writes with a
+     * lower sequence number are patched. Only the patches are serialized, and the writer waits for
+     * its own one so that it reads its write.
+     *
+     * @param patch The changes of the write, null if its commit failed.
+     */
+    private void patch(long sequence, Patch patch, List<RegistryEvent> events) {
+        synchronized (committed) {
+            committed.put(sequence, new Committed(patch, events));
+            Committed next;
+            while ((next = committed.remove(patchedSequence + 1)) != null) {
+                patchedSequence++;
+                if (next.patch == null) {
+                    cache.invalidate();
+                    continue;
+                }
+                try {
+                    publish(next.events, cache.update(next.patch));
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Can't patch the registry snapshot, reloading it", e);
+                    cache.invalidate();
+                }
+            }
+            committed.notifyAll();
+            while (patchedSequence < sequence) {
+                try {
+                    committed.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Run a read transaction, recording its latency and the number of rows it returns.
+     *
+     * @param operation The name of the operation in the metrics.
+     * @param code The read.
+     * @param rows Count the rows of the result.
+     */
+    private <T> T query(String operation, EmFunction<T> code, ToIntFunction<T> rows) {
+        checkDatabase();
+        long start = System.nanoTime();
+        T result;
+        try {
+            result = jpaTemplate.txExpr(TransactionType.Supports, code);
+        } catch (RuntimeException e) {
+            metrics.record(operation, System.nanoTime() - start, 0, e);
+            throw e;
+        }
+        metrics.record(operation, System.nanoTime() - start, rows.applyAsInt(result), null);
+        return result;
+    }
+
+    /**
+     * Evict the changed entities from the shared cache, as the set-based statements bypass it, and
+     * from the caches of the other nodes.
+     */
+    private void share(List<RegistryEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        Map<RegistryEvent.Type, Set<String>> ids = new EnumMap<>(RegistryEvent.Type.class);
+        for (RegistryEvent event : events) {
+            ids.computeIfAbsent(event.getType(), type -> new HashSet<>()).add(event.getId());
+        }
+        Invalidation invalidation = new Invalidation(nodeId, ids);
+        evict(invalidation);
+        InvalidationBus invalidationBus = this.invalidationBus;
+        if (invalidationBus != null) {
+            invalidationBus.publish(invalidation);
+        }
+    }
+
+    private void invalidated(Invalidation invalidation) {
+        if (nodeId.equals(invalidation.getOrigin())) {
+            return;
+        }
+        evict(invalidation);
+        cache.invalidate();
+    }
+
+    private void checkDatabase() {
+        if (jpaTemplate == null) {
+            throw new IllegalStateException("The registry is read only, it has no database");
+        }
+    }
+
+    private void evict(Invalidation invalidation) {
+        if (jpaTemplate == null) {
+            // a read only node has no shared cache
+            return;
+        }
+        jpaTemplate.tx(
+                TransactionType.Supports,
+                entityManager -> {
+                    Cache sharedCache = entityManager.getEntityManagerFactory().getCache();
+                    invalidation
+                            .getIds()
+                            .forEach(
+                                    (type, ids) ->
+                                            ids.forEach(
+                                                    id ->
+                                                            sharedCache.evict(
+                                                                    entityClass(type), id)));
+                });
+    }
+
+    /**
+     * Evict all the shared cache entries of an entity class every time to live. The registry isn't
+     * reloaded, the writes of the other nodes are evicted by id when their invalidation is
+     * received.
+     */
+    private void scheduleExpiry(Class<?> entityClass, long ttl) {
+        if (ttl <= 0) {
+            return;
+        }
+        scheduler.scheduleAtFixedRate(
+                () -> {
+                    try {
+                        jpaTemplate.tx(
+                                TransactionType.Supports,
+                                entityManager ->
+                                        entityManager
+                                                .getEntityManagerFactory()
+                                                .getCache()
+                                                .evict(entityClass));
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("Can't evict the expired {} cache entries", entityClass, e);
+                    }
+                },
+                ttl,
+                ttl,
+                TimeUnit.SECONDS);
+    }
+
+    /** Fully reload the registry of a node with a bus, in case an invalidation was lost. */
+    private void reload() {
+        if (invalidationBus == null) {
+            // the node sees all the writes
+            return;
+        }
+        try {
+            jpaTemplate.tx(
+                    TransactionType.Supports,
+                    entityManager -> entityManager.getEntityManagerFactory().getCache().evictAll());
+            cache.invalidate();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Can't reload the registry", e);
+        }
+    }
+
+    private static Class<?> entityClass(RegistryEvent.Type type) {
+        switch (type) {
+            case API:
+                return ApiEntity.class;
+            case REST_RESOURCE:
+                return RestResourceEntity.class;
+            default:
+                return PolicyEntity.class;
+        }
+    }
+
+    private void publish(List<RegistryEvent> events, long version) {
+        RegistrySupport.publish(events, version, eventLog, eventAdmin);
+    }
+
+    /** Code of a write transaction, recording the changes it makes. */
+    private interface Mutation {
+        void run(EntityManager entityManager, Changes changes);
+    }
+
+    /** Changes made by a write transaction. */
+    private static class Changes {
+
+        private final List<RegistryEvent> events = new ArrayList<>();
+
+        void created(RegistryEvent.Type type, String id) {
+            events.add(new RegistryEvent(type, id, RegistryEvent.Operation.CREATED));
+        }
+
+        void updated(RegistryEvent.Type type, String id) {
+            events.add(new RegistryEvent(type, id, RegistryEvent.Operation.UPDATED));
+        }
+
+        void deleted(RegistryEvent.Type type, String id) {
+            events.add(new RegistryEvent(type, id, RegistryEvent.Operation.DELETED));
+        }
+
+        Set<String> ids(RegistryEvent.Type type) {
+            Set<String> ids = new LinkedHashSet<>();
+            events.stream()
+                    .filter(event -> event.getType() == type)
+                    .forEach(event -> ids.add(event.getId()));
+            return ids;
+        }
+    }
+
+    /** Committed write, waiting to patch the snapshot. */
+    private static final class Committed {
+
+        private final Patch patch;
+        private final List<RegistryEvent> events;
+
+        private Committed(Patch patch, List<RegistryEvent> events) {
+            this.patch = patch;
+            this.events = events;
+        }
+    }
+
+    /** Changes to a snapshot, read in a transaction and applied once it's done. */
+    private static class Patch implements Consumer<RegistrySnapshot.Builder> {
+
+        private final List<Consumer<RegistrySnapshot.Builder>> steps = new ArrayList<>();
+
+        void add(Consumer<RegistrySnapshot.Builder> step) {
+            steps.add(step);
+        }
+
+        @Override
+        public void accept(RegistrySnapshot.Builder builder) {
+            steps.forEach(step -> step.accept(builder));
+        }
+    }
+
+    /**
+     * Read the next page of APIs after a given ID, with a keyset query. Each page uses its own
+     * persistence context, so a scan never holds more than one page in memory.
+     */
+    private List<API> loadApiPage(String operation, String after, int limit) {
+        if (jpaTemplate == null) {
+            return new ArrayList<>(cache.get().listApis(after, limit));
+        }
+        return query(
+                operation,
+                entityManager -> {
+                    Map<String, API> apis = new LinkedHashMap<>();
+                    entityManager
+                            .createQuery(
+                                    "SELECT "
+                                            + API_COLUMNS
+                                            + " FROM ApiEntity a WHERE a.id > :after ORDER BY a.id",
+                                    Object[].class)
+                            .setParameter("after", after != null ? after : "")
+                            .setMaxResults(limit)
+                            .getResultList()
+                            .forEach(row -> apis.put((String) row[0], mapApi(row, 0)));
+                    if (!apis.isEmpty()) {
+                        entityManager
+                                .createQuery(
+                                        "SELECT a.id, KEY(m), VALUE(m) FROM ApiEntity a JOIN a.meta m WHERE a.id IN :ids",
+                                        Object[].class)
+                                .setParameter("ids", apis.keySet())
+                                .getResultList()
+                                .forEach(
+                                        row ->
+                                                apis.get((String) row[0])
+                                                        .getMeta()
+                                                        .put((String) row[1], (String) row[2]));
+                    }
+                    return new ArrayList<>(apis.values());
+                },
+                List::size);
+    }
+
+    /** Same as {@link #loadApiPage(String, String, int)} for the policies. */
+    private List<Policy> loadPolicyPage(String operation, String after, int limit) {
+        if (jpaTemplate == null) {
+            return new ArrayList<>(cache.get().listPolicies(after, limit));
+        }
+        return query(
+                operation,
+                entityManager -> {
+                    Map<String, Policy> policies = new LinkedHashMap<>();
+                    entityManager
+                            .createQuery(
+                                    "SELECT "
+                                            + POLICY_COLUMNS
+                                            + " FROM PolicyEntity p WHERE p.id > :after ORDER BY p.id",
+                                    Object[].class)
+                            .setParameter("after", after != null ? after : "")
+                            .setMaxResults(limit)
+                            .getResultList()
+                            .forEach(row -> policies.put((String) row[0], mapPolicy(row, 0)));
+                    if (!policies.isEmpty()) {
+                        entityManager
+                                .createQuery(
+                                        "SELECT p.id, KEY(m), VALUE(m) FROM PolicyEntity p JOIN p.meta m WHERE p.id IN :ids",
+                                        Object[].class)
+                                .setParameter("ids", policies.keySet())
+                                .getResultList()
+                                .forEach(
+                                        row ->
+                                                policies.get((String) row[0])
+                                                        .getMeta()
+                                                        .put((String) row[1], (String) row[2]));
+                    }
+                    return new ArrayList<>(policies.values());
+                },
+                List::size);
+    }
+
+    /**
+     * Load an API tree with projections, in five queries whatever the number of resources and
+     * policies.
+     */
+    private API loadApiTree(EntityManager entityManager, String id) {
+        List<Object[]> apiRows =
+                entityManager
+                        .createQuery(
+                                "SELECT " + API_COLUMNS + " FROM ApiEntity a WHERE a.id = :id",
+                                Object[].class)
+                        .setParameter("id", id)
+                        .getResultList();
+        if (apiRows.isEmpty()) {
+            return null;
+        }
+        API api = mapApi(apiRows.get(0), 0);
+        entityManager
+                .createQuery(
+                        "SELECT KEY(m), VALUE(m) FROM ApiEntity a JOIN a.meta m WHERE a.id = :id",
+                        Object[].class)
+                .setParameter("id", id)
+                .getResultList()
+                .forEach(row -> api.getMeta().put((String) row[0], (String) row[1]));
+
+        Map<String, RestResource> restResources = new TreeMap<>();
+        entityManager
+                .createQuery(
+                        "SELECT "
+                                + REST_RESOURCE_COLUMNS
+                                + " FROM RestResourceEntity r WHERE r.api.id = :id",
+                        Object[].class)
+                .setParameter("id", id)
+                .getResultList()
+                .forEach(
+                        row -> {
+                            RestResource restResource = mapRestResource(row, 0);
+                            restResource.setPolicies(new HashMap<>());
+                            restResources.put(restResource.getId(), restResource);
+                        });
+
+        // each application gets its own copy of the policy, holding its parameters
+        Map<List<String>, Policy> applied = new HashMap<>();
+        entityManager
+                .createQuery(
+                        "SELECT j.restResource.id, j.policyOrder, "
+                                + POLICY_COLUMNS
+                                + " FROM PolicyRestResourceJoinEntity j JOIN j.policy p "
+                                + "WHERE j.restResource.api.id = :id",
+                        Object[].class)
+                .setParameter("id", id)
+                .getResultList()
+                .forEach(
+                        row -> {
+                            Policy policy = mapPolicy(row, 2);
+                            policy.setParam(new HashMap<>());
+                            applied.put(Arrays.asList((String) row[0], policy.getId()), policy);
+                            restResources
+                                    .get((String) row[0])
+                                    .getPolicies()
+                                    .put((Integer) row[1], policy);
+                        });
+        if (!applied.isEmpty()) {
+            Map<String, Map<String, String>> policyMeta = new HashMap<>();
+            entityManager
+                    .createQuery(
+                            "SELECT p.id, KEY(m), VALUE(m) FROM PolicyEntity p JOIN p.meta m "
+                                    + "WHERE p.id IN (SELECT j.policy.id FROM PolicyRestResourceJoinEntity j "
+                                    + "WHERE j.restResource.api.id = :id)",
+                            Object[].class)
+                    .setParameter("id", id)
+                    .getResultList()
+                    .forEach(
+                            row ->
+                                    policyMeta
+                                            .computeIfAbsent(
+                                                    (String) row[0], key -> new HashMap<>())
+                                            .put((String) row[1], (String) row[2]));
+            applied.values()
+                    .forEach(
+                            policy ->
+                                    policy.getMeta()
+                                            .putAll(
+                                                    policyMeta.getOrDefault(
+                                                            policy.getId(),
+                                                            Collections.emptyMap())));
+            entityManager
+                    .createQuery(
+                            "SELECT j.restResource.id, j.policy.id, KEY(m), VALUE(m) "
+                                    + "FROM PolicyRestResourceJoinEntity j JOIN j.param m "
+                                    + "WHERE j.restResource.api.id = :id",
+                            Object[].class)
+                    .setParameter("id", id)
+                    .getResultList()
+                    .forEach(
+                            row ->
+                                    applied.get(Arrays.asList((String) row[0], (String) row[1]))
+                                            .getParam()
+                                            .put((String) row[2], (String) row[3]));
+        }
+
+        api.getRestResources().addAll(restResources.values());
+        return api;
+    }
+
+    /** Load the whole registry graph in a constant number of queries. */
+    private RegistrySnapshot loadSnapshot(long version) {
+        if (jpaTemplate == null) {
+            return readSnapshotFile(version);
+        }
+        return query(
+                "loadSnapshot",
+                entityManager -> {
+                    Patch patch = new Patch();
+                    loadPolicies(entityManager, null, patch);
+                    loadApis(entityManager, null, patch);
+                    loadRestResources(entityManager, null, patch);
+                    loadAppliedPolicies(entityManager, null, patch);
+                    RegistrySnapshot.Builder builder = new RegistrySnapshot.Builder();
+                    patch.accept(builder);
+                    return builder.build(version);
+                },
+                RegistrySnapshot::size);
+    }
+
+    /**
+     * Read back the current state of the entities changed by a transaction, the ones which are gone
+     * are removed from the snapshot. A changed resource gets its policies again, a changed API
+     * keeps its resources, which have their own changes.
+     */
+    private Patch loadPatch(EntityManager entityManager, Changes changes) {
+        Patch patch = new Patch();
+        Set<String> policyIds = changes.ids(RegistryEvent.Type.POLICY);
+        Set<String> apiIds = changes.ids(RegistryEvent.Type.API);
+        Set<String> restResourceIds = changes.ids(RegistryEvent.Type.REST_RESOURCE);
+
+        Set<String> deletedPolicies = new HashSet<>(policyIds);
+        deletedPolicies.removeAll(loadPolicies(entityManager, policyIds, patch));
+        Set<String> deletedApis = new HashSet<>(apiIds);
+        deletedApis.removeAll(loadApis(entityManager, apiIds, patch));
+        patch.add(builder -> restResourceIds.forEach(builder::unapplyPolicies));
+        Set<String> deletedRestResources = new HashSet<>(restResourceIds);
+        deletedRestResources.removeAll(loadRestResources(entityManager, restResourceIds, patch));
+        loadAppliedPolicies(entityManager, restResourceIds, patch);
+
+        patch.add(
+                builder -> {
+                    deletedRestResources.forEach(builder::removeRestResource);
+                    deletedApis.forEach(builder::removeApi);
+                    deletedPolicies.forEach(builder::removePolicy);
+                });
+        return patch;
+    }
+
+    /**
+     * Run a query over all the rows, or over the rows of some IDs only, bound to {@code :ids} by
+     * the filter in chunks of {@link #SCAN_CHUNK_SIZE}.
+     *
+     * @param ids The IDs to read, null to read all the rows.
+     */
+    private static List<Object[]> select(
+            EntityManager entityManager, String query, String filter, Collection<String> ids) {
+        if (ids == null) {
+            return entityManager.createQuery(query, Object[].class).getResultList();
+        }
+        List<String> all = new ArrayList<>(ids);
+        List<Object[]> rows = new ArrayList<>();
+        for (int from = 0; from < all.size(); from += SCAN_CHUNK_SIZE) {
+            rows.addAll(
+                    entityManager
+                            .createQuery(query + " WHERE " + filter, Object[].class)
+                            .setParameter(
+                                    "ids",
+                                    new ArrayList<>(
+                                            all.subList(
+                                                    from,
+                                                    Math.min(from + SCAN_CHUNK_SIZE, all.size()))))
+                            .getResultList());
+        }
+        return rows;
+    }
+
+    /** @return The IDs of the APIs found. */
+    private Set<String> loadApis(EntityManager entityManager, Collection<String> ids, Patch patch) {
+        Map<String, API> apis = new HashMap<>();
+        Map<String, String> definitionDigests = new HashMap<>();
+        select(
+                        entityManager,
+                        "SELECT a.definitionDigest, " + API_COLUMNS + " FROM ApiEntity a",
+                        "a.id IN :ids",
+                        ids)
+                .forEach(
+                        row -> {
+                            API api = mapApi(row, 1);
+                            apis.put(api.getId(), api);
+                            definitionDigests.put(api.getId(), (String) row[0]);
+                        });
+        select(
+                        entityManager,
+                        "SELECT a.id, KEY(m), VALUE(m) FROM ApiEntity a JOIN a.meta m",
+                        "a.id IN :ids",
+                        ids)
+                .forEach(
+                        row ->
+                                apis.get((String) row[0])
+                                        .getMeta()
+                                        .put((String) row[1], (String) row[2]));
+        patch.add(
+                builder ->
+                        apis.values()
+                                .forEach(
+                                        api -> {
+                                            builder.api(api);
+                                            builder.definitionDigest(
+                                                    api.getId(),
+                                                    definitionDigests.get(api.getId()));
+                                        }));
+        return apis.keySet();
+    }
+
+    /** @return The IDs of the resources found. */
+    private Set<String> loadRestResources(
+            EntityManager entityManager, Collection<String> ids, Patch patch) {
+        Map<String, String> restResourceApis = new HashMap<>();
+        List<RestResource> restResources = new ArrayList<>();
+        select(
+                        entityManager,
+                        "SELECT r.api.id, " + REST_RESOURCE_COLUMNS + " FROM RestResourceEntity r",
+                        "r.id IN :ids",
+                        ids)
+                .forEach(
+                        row -> {
+                            RestResource restResource = mapRestResource(row, 1);
+                            restResources.add(restResource);
+                            restResourceApis.put(restResource.getId(), (String) row[0]);
+                        });
+        patch.add(
+                builder ->
+                        restResources.forEach(
+                                restResource ->
+                                        builder.restResource(
+                                                restResourceApis.get(restResource.getId()),
+                                                restResource)));
+        return restResourceApis.keySet();
+    }
+
+    /** @return The IDs of the policies found. */
+    private Set<String> loadPolicies(
+            EntityManager entityManager, Collection<String> ids, Patch patch) {
+        Map<String, Policy> policies = new HashMap<>();
+        select(
+                        entityManager,
+                        "SELECT " + POLICY_COLUMNS + " FROM PolicyEntity p",
+                        "p.id IN :ids",
+                        ids)
+                .forEach(row -> policies.put((String) row[0], mapPolicy(row, 0)));
+        select(
+                        entityManager,
+                        "SELECT p.id, KEY(m), VALUE(m) FROM PolicyEntity p JOIN p.meta m",
+                        "p.id IN :ids",
+                        ids)
+                .forEach(
+                        row ->
+                                policies.get((String) row[0])
+                                        .getMeta()
+                                        .put((String) row[1], (String) row[2]));
+        patch.add(builder -> policies.values().forEach(builder::policy));
+        return policies.keySet();
+    }
+
+    /** Load the policies applied to some resources, all of them if the IDs are null. */
+    private void loadAppliedPolicies(
+            EntityManager entityManager, Collection<String> restResourceIds, Patch patch) {
+        Map<List<String>, Integer> orders = new HashMap<>();
+        select(
+                        entityManager,
+                        "SELECT j.restResource.id, j.policy.id, j.policyOrder "
+                                + "FROM PolicyRestResourceJoinEntity j",
+                        "j.restResource.id IN :ids",
+                        restResourceIds)
+                .forEach(
+                        row ->
+                                orders.put(
+                                        Arrays.asList((String) row[0], (String) row[1]),
+                                        (Integer) row[2]));
+        Map<List<String>, Map<String, String>> params = new HashMap<>();
+        select(
+                        entityManager,
+                        "SELECT j.restResource.id, j.policy.id, KEY(m), VALUE(m) "
+                                + "FROM PolicyRestResourceJoinEntity j JOIN j.param m",
+                        "j.restResource.id IN :ids",
+                        restResourceIds)
+                .forEach(
+                        row ->
+                                params.computeIfAbsent(
+                                                Arrays.asList((String) row[0], (String) row[1]),
+                                                key -> new HashMap<>())
+                                        .put((String) row[2], (String) row[3]));
+        patch.add(
+                builder ->
+                        orders.forEach(
+                                (key, order) ->
+                                        builder.appliedPolicy(
+                                                key.get(0), key.get(1), order, params.get(key))));
+    }
+
+    private String nextId() {
+        return RegistrySupport.nextId(idGenerator, defaultIdGenerator);
+    }
+
     @VisibleForTesting
     protected void setJpaTemplate(JpaTemplate jpaTemplate) {
         this.jpaTemplate = jpaTemplate;
     }
+
+    @VisibleForTesting
+    protected void setDefinitionStore(DefinitionStore definitionStore) {
+        this.definitionStore = definitionStore;
+    }
+
+    @VisibleForTesting
+    protected void setSnapshotFile(Path snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    @VisibleForTesting
+    protected void setMetrics(RegistryMetrics metrics) {
+        this.metrics = metrics;
+    }
 }
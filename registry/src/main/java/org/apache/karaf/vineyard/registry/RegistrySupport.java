@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry;
+
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.karaf.vineyard.common.RegistryEvent;
+import org.apache.karaf.vineyard.common.VersionConflictException;
+import org.apache.karaf.vineyard.registry.event.EventLog;
+import org.apache.karaf.vineyard.registry.id.IdGenerator;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+
+/** Helpers shared by the registry implementations. */
+public final class RegistrySupport {
+
+    /** Topic of the registry events, followed by "{type}/{operation}". */
+    public static final String EVENT_TOPIC_PREFIX = "org/apache/karaf/vineyard/registry/";
+
+    private RegistrySupport() {}
+
+    /**
+     * Publish the events of a committed write: append them to the change stream and post them to
+     * the EventAdmin, if any.
+     *
+     * @param version The registry version the write produced.
+     */
+    public static void publish(
+            List<RegistryEvent> events, long version, EventLog eventLog, EventAdmin eventAdmin) {
+        events.forEach(event -> event.setVersion(version));
+        eventLog.append(events);
+        if (eventAdmin != null) {
+            for (RegistryEvent event : events) {
+                Map<String, Object> properties = new HashMap<>();
+                properties.put("type", event.getType().name());
+                properties.put("id", event.getId());
+                properties.put("operation", event.getOperation().name());
+                properties.put("sequence", event.getSequence());
+                properties.put("version", event.getVersion());
+                eventAdmin.postEvent(
+                        new Event(
+                                EVENT_TOPIC_PREFIX
+                                        + event.getType().name()
+                                        + "/"
+                                        + event.getOperation().name(),
+                                properties));
+            }
+        }
+    }
+
+    /** Check the revision expected by the caller, if any, against the current one. */
+    public static void checkRevision(String id, Long expected, Long current) {
+        if (expected != null && !expected.equals(current)) {
+            throw conflict(id, expected);
+        }
+    }
+
+    public static VersionConflictException conflict(String id, Long revision) {
+        return new VersionConflictException(
+                "Revision " + revision + " of " + id + " is not the current one");
+    }
+
+    public static long longProperty(
+            Dictionary<String, Object> properties, String name, long value) {
+        Object configured = properties.get(name);
+        return configured != null ? Long.parseLong(configured.toString()) : value;
+    }
+
+    /** Generate an ID with the configured generator if any, else with the default one. */
+    public static String nextId(IdGenerator generator, IdGenerator defaultGenerator) {
+        return (generator != null ? generator : defaultGenerator).next();
+    }
+}
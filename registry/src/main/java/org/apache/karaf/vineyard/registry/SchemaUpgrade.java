@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.aries.jpa.template.JpaTemplate;
+import org.apache.aries.jpa.template.TransactionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Upgrade of the tables of a previous version. The {@code create-or-extend-tables} generation adds
+ * the new columns to the existing tables, but neither fills them nor adds the new indexes and
+ * constraints: the registry does it when it first reaches the database.
+ *
+ * <p>The data upgrades only change the rows not upgraded yet and the indexes and constraints are
+ * only added when the catalog doesn't have them, so the upgrade runs on each start.
+ */
+final class SchemaUpgrade {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SchemaUpgrade.class);
+
+    private static final String SCHEMA_NAME = "VINEYARD";
+
+    /** Data upgrades, required before the registry is loaded. */
+    private static final List<String> DATA =
+            Arrays.asList(
+                    // copy of the API context used by the route unique key
+                    "UPDATE VINEYARD.REST_RESOURCE r SET CONTEXT = "
+                            + "(SELECT a.CONTEXT FROM VINEYARD.API a WHERE a.ID = r.API_ID) "
+                            + "WHERE r.CONTEXT IS NULL",
+                    // revisions of the rows written before the optimistic locking
+                    "UPDATE VINEYARD.API SET REVISION = 0 WHERE REVISION IS NULL",
+                    "UPDATE VINEYARD.REST_RESOURCE SET REVISION = 0 WHERE REVISION IS NULL",
+                    "UPDATE VINEYARD.POLICY SET REVISION = 0 WHERE REVISION IS NULL");
+
+    /** Indexes and constraints by name, added when the catalog doesn't have the name. */
+    private static final Map<String, String> SCHEMA = new LinkedHashMap<>();
+
+    static {
+        SCHEMA.put("API_CONTEXT_IDX", "CREATE INDEX API_CONTEXT_IDX ON VINEYARD.API (CONTEXT)");
+        // the foreign key of REST_RESOURCE.API_ID already indexes it, Derby doesn't duplicate it
+        SCHEMA.put(
+                "REST_RESOURCE_ROUTE_UK",
+                "ALTER TABLE VINEYARD.REST_RESOURCE ADD CONSTRAINT REST_RESOURCE_ROUTE_UK "
+                        + "UNIQUE (CONTEXT, PATH, METHOD)");
+    }
+
+    /** Indexes (or unique keys generated as indexes) and constraints of the schema by name. */
+    private static final List<String> CATALOG =
+            Arrays.asList(
+                    "SELECT COUNT(*) FROM SYS.SYSCONGLOMERATES c, SYS.SYSSCHEMAS s "
+                            + "WHERE c.SCHEMAID = s.SCHEMAID AND s.SCHEMANAME = ?1 "
+                            + "AND c.CONGLOMERATENAME = ?2",
+                    "SELECT COUNT(*) FROM SYS.SYSCONSTRAINTS c, SYS.SYSSCHEMAS s "
+                            + "WHERE c.SCHEMAID = s.SCHEMAID AND s.SCHEMANAME = ?1 "
+                            + "AND c.CONSTRAINTNAME = ?2");
+
+    private SchemaUpgrade() {}
+
+    /**
+     * Upgrade the tables.
+     *
+     * @throws javax.persistence.PersistenceException If the data can't be upgraded.
+     */
+    static void run(JpaTemplate jpaTemplate) {
+        for (String statement : DATA) {
+            int rows = execute(jpaTemplate, statement);
+            if (rows > 0) {
+                LOGGER.info("Upgraded {} rows of the registry: {}", rows, statement);
+            }
+        }
+        for (Map.Entry<String, String> entry : SCHEMA.entrySet()) {
+            if (exists(jpaTemplate, entry.getKey())) {
+                continue;
+            }
+            try {
+                execute(jpaTemplate, entry.getValue());
+                LOGGER.info("Upgraded the registry schema: {}", entry.getValue());
+            } catch (RuntimeException e) {
+                // duplicate routes to fix by hand, the next start adds the key
+                LOGGER.warn(
+                        "Can't upgrade the registry schema {}: {}",
+                        entry.getValue(),
+                        e.getMessage());
+            }
+        }
+    }
+
+    private static boolean exists(JpaTemplate jpaTemplate, String name) {
+        return jpaTemplate.txExpr(
+                TransactionType.RequiresNew,
+                entityManager -> {
+                    for (String query : CATALOG) {
+                        Number count =
+                                (Number)
+                                        entityManager
+                                                .createNativeQuery(query)
+                                                .setParameter(1, SCHEMA_NAME)
+                                                .setParameter(2, name)
+                                                .getSingleResult();
+                        if (count.intValue() > 0) {
+                            return true;
+                        }
+                    }
+                    return false;
+                });
+    }
+
+    private static int execute(JpaTemplate jpaTemplate, String statement) {
+        return jpaTemplate.txExpr(
+                TransactionType.RequiresNew,
+                entityManager -> entityManager.createNativeQuery(statement).executeUpdate());
+    }
+}
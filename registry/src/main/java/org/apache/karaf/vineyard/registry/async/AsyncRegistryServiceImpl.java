@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.async;
+
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.apache.karaf.vineyard.common.API;
+import org.apache.karaf.vineyard.common.AsyncRegistryService;
+import org.apache.karaf.vineyard.common.ChangeSet;
+import org.apache.karaf.vineyard.common.ChangeSetResult;
+import org.apache.karaf.vineyard.common.Policy;
+import org.apache.karaf.vineyard.common.RegistryService;
+import org.apache.karaf.vineyard.common.RestResource;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link AsyncRegistryService} running the calls on a fixed pool of threads with a bounded queue.
+ * The {@code threads} (default 8) and {@code queueSize} (default 100) properties of the {@code
+ * org.apache.karaf.vineyard.registry.async} configuration size the executor.
+ */
+@Component(
+        service = AsyncRegistryService.class,
+        configurationPid = "org.apache.karaf.vineyard.registry.async")
+public class AsyncRegistryServiceImpl implements AsyncRegistryService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncRegistryServiceImpl.class);
+
+    private static final int DEFAULT_THREADS = 8;
+
+    private static final int DEFAULT_QUEUE_SIZE = 100;
+
+    /** Greedy, so the calls follow the registry backend with the highest ranking. */
+    @Reference(policyOption = ReferencePolicyOption.GREEDY)
+    private RegistryService registry;
+
+    private ThreadPoolExecutor executor;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    public AsyncRegistryServiceImpl() {}
+
+    public AsyncRegistryServiceImpl(RegistryService registry, int threads, int queueSize) {
+        this.registry = registry;
+        this.executor = createExecutor(threads, queueSize);
+    }
+
+    @Activate
+    public void activate(ComponentContext context) {
+        Dictionary<String, Object> properties = context.getProperties();
+        executor =
+                createExecutor(
+                        intProperty(properties, "threads", DEFAULT_THREADS),
+                        intProperty(properties, "queueSize", DEFAULT_QUEUE_SIZE));
+    }
+
+    @Deactivate
+    public void deactivate() {
+        executor.shutdown();
+    }
+
+    @Override
+    public <T> CompletableFuture<T> call(Call<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(
+                    () -> {
+                        try {
+                            future.complete(call.apply(registry));
+                        } catch (Throwable t) {
+                            future.completeExceptionally(t);
+                        }
+                    });
+        } catch (RejectedExecutionException e) {
+            long count = rejected.incrementAndGet();
+            LOGGER.debug("Registry call rejected, {} rejected so far", count);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<API> add(API api) {
+        return call(registry -> registry.add(api));
+    }
+
+    @Override
+    public CompletableFuture<Void> update(API api) {
+        return run(registry -> registry.update(api));
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(String id) {
+        return run(registry -> registry.delete(id));
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(Collection<String> ids) {
+        return run(registry -> registry.delete(ids));
+    }
+
+    @Override
+    public CompletableFuture<RestResource> addRestResource(API api, RestResource restResource) {
+        return call(registry -> registry.addRestResource(api, restResource));
+    }
+
+    @Override
+    public CompletableFuture<Policy> addPolicy(Policy policy) {
+        return call(registry -> registry.addPolicy(policy));
+    }
+
+    @Override
+    public CompletableFuture<Void> deletePolicy(String id) {
+        return run(registry -> registry.deletePolicy(id));
+    }
+
+    @Override
+    public CompletableFuture<ChangeSetResult> commit(ChangeSet changeSet) {
+        return call(registry -> registry.commit(changeSet));
+    }
+
+    @Override
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    private CompletableFuture<Void> run(Consumer<RegistryService> code) {
+        return call(
+                registry -> {
+                    code.accept(registry);
+                    return null;
+                });
+    }
+
+    private static ThreadPoolExecutor createExecutor(int threads, int queueSize) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        threads,
+                        threads,
+                        60,
+                        TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<>(queueSize),
+                        runnable -> {
+                            Thread thread =
+                                    new Thread(
+                                            runnable,
+                                            "vineyard-registry-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        },
+                        new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static int intProperty(Dictionary<String, Object> properties, String name, int value) {
+        Object configured = properties.get(name);
+        return configured != null ? Integer.parseInt(configured.toString()) : value;
+    }
+}
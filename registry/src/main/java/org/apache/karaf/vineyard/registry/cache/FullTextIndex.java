@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable full-text index of documents made of weighted texts.
+ *
+ * <p>The texts are split on anything that isn't a letter or a digit and lower cased. Each query
+ * token matches the terms starting with it, an exact match scoring higher than a prefix one. A
+ * document matches when it matches all the query tokens, and is ranked by the sum of its token
+ * scores: the field weight, times the number of occurrences, times the rarity of the term.
+ *
+ * <p>An update returns a new index sharing the postings of the terms it didn't change.
+ */
+public final class FullTextIndex {
+
+    public static final FullTextIndex EMPTY =
+            new FullTextIndex(PersistentTreeMap.empty(), PersistentTreeMap.empty());
+
+    /** Term → document ID → weighted number of occurrences, sorted for the prefix lookups. */
+    private final PersistentTreeMap<String, PersistentTreeMap<String, Integer>> terms;
+
+    /** Document ID → term → weighted number of occurrences, to update the postings. */
+    private final PersistentTreeMap<String, Map<String, Integer>> documents;
+
+    private FullTextIndex(
+            PersistentTreeMap<String, PersistentTreeMap<String, Integer>> terms,
+            PersistentTreeMap<String, Map<String, Integer>> documents) {
+        this.terms = terms;
+        this.documents = documents;
+    }
+
+    /**
+     * Index a document in place of its previous version.
+     *
+     * @param id The document ID.
+     * @param document The document, null to remove it from the index.
+     * @return The updated index.
+     */
+    public FullTextIndex update(String id, Document document) {
+        Map<String, Integer> previous = documents.getOrDefault(id, Collections.emptyMap());
+        Map<String, Integer> current =
+                document != null ? document.terms : Collections.<String, Integer>emptyMap();
+        PersistentTreeMap<String, PersistentTreeMap<String, Integer>> updatedTerms = terms;
+        for (String term : previous.keySet()) {
+            if (!current.containsKey(term)) {
+                PersistentTreeMap<String, Integer> postings = updatedTerms.get(term).without(id);
+                updatedTerms =
+                        postings.isEmpty()
+                                ? updatedTerms.without(term)
+                                : updatedTerms.with(term, postings);
+            }
+        }
+        for (Map.Entry<String, Integer> entry : current.entrySet()) {
+            if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+                updatedTerms =
+                        updatedTerms.with(
+                                entry.getKey(),
+                                updatedTerms
+                                        .getOrDefault(entry.getKey(), PersistentTreeMap.empty())
+                                        .with(id, entry.getValue()));
+            }
+        }
+        return new FullTextIndex(
+                updatedTerms,
+                document != null
+                        ? documents.with(id, Collections.unmodifiableMap(current))
+                        : documents.without(id));
+    }
+
+    /**
+     * Search the documents matching a query.
+     *
+     * @param query The query text.
+     * @param limit The maximum number of document IDs to return.
+     * @return The IDs of the matching documents, best first.
+     */
+    public List<String> search(String query, int limit) {
+        List<String> tokens = tokenize(query);
+        if (tokens.isEmpty()) {
+            return Collections.emptyList();
+        }
+        int count = documents.size();
+        Map<String, Double> scores = null;
+        for (String token : tokens) {
+            Map<String, Double> tokenScores = new HashMap<>();
+            for (Map.Entry<String, PersistentTreeMap<String, Integer>> entry :
+                    terms.tail(token, true)) {
+                String term = entry.getKey();
+                if (!term.startsWith(token)) {
+                    break;
+                }
+                PersistentTreeMap<String, Integer> postings = entry.getValue();
+                double rarity = Math.log(1.0 + (double) count / postings.size());
+                double boost = term.equals(token) ? 1.0 : 0.5;
+                // a token matching several terms of a document counts once
+                postings.forEach(
+                        (id, weight) -> tokenScores.merge(id, weight * rarity * boost, Math::max));
+            }
+            if (scores == null) {
+                scores = tokenScores;
+            } else {
+                scores.keySet().retainAll(tokenScores.keySet());
+                scores.replaceAll((id, score) -> score + tokenScores.get(id));
+            }
+            if (scores.isEmpty()) {
+                return Collections.emptyList();
+            }
+        }
+
+        List<Map.Entry<String, Double>> ranked = new ArrayList<>(scores.entrySet());
+        ranked.sort(
+                Map.Entry.<String, Double>comparingByValue(Comparator.reverseOrder())
+                        .thenComparing(Map.Entry.comparingByKey()));
+        List<String> results = new ArrayList<>(Math.min(limit, ranked.size()));
+        for (Map.Entry<String, Double> entry : ranked) {
+            if (results.size() >= limit) {
+                break;
+            }
+            results.add(entry.getKey());
+        }
+        return results;
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean tokenChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (tokenChar && start < 0) {
+                start = i;
+            } else if (!tokenChar && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /** The weighted texts of a document. */
+    public static class Document {
+
+        private final Map<String, Integer> terms = new HashMap<>();
+
+        /** Add a text to the document, with the weight of the field it comes from. */
+        public Document add(String text, int weight) {
+            for (String token : tokenize(text)) {
+                terms.merge(token, weight, Integer::sum);
+            }
+            return this;
+        }
+    }
+}
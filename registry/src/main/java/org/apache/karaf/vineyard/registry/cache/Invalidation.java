@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.cache;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import org.apache.karaf.vineyard.common.RegistryEvent;
+
+/** The entities changed by a registry write, to evict from the caches of the other nodes. */
+public final class Invalidation {
+
+    private final String origin;
+    private final Map<RegistryEvent.Type, Set<String>> ids;
+
+    /**
+     * @param origin The ID of the registry node which made the change.
+     * @param ids The IDs of the changed entities, by type.
+     */
+    public Invalidation(String origin, Map<RegistryEvent.Type, Set<String>> ids) {
+        this.origin = origin;
+        this.ids = Collections.unmodifiableMap(ids);
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    public Map<RegistryEvent.Type, Set<String>> getIds() {
+        return ids;
+    }
+}
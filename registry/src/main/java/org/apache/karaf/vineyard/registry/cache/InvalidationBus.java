@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * Channel between the registry nodes sharing a database, so that a write on one node evicts the
+ * changed entities from the caches of the others.
+ *
+ * <p>The delivery is best effort: the cache entries expire anyway after their time to live. A bus
+ * may deliver an invalidation back to its sender, the listeners ignore their own invalidations.
+ */
+public interface InvalidationBus {
+
+    /** Send an invalidation to the registry nodes. */
+    void publish(Invalidation invalidation);
+
+    /** Register a listener of the invalidations. */
+    void subscribe(Consumer<Invalidation> listener);
+
+    /** Unregister a listener of the invalidations. */
+    void unsubscribe(Consumer<Invalidation> listener);
+}
@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.cache;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * {@link InvalidationBus} delivering the invalidations to the listeners of the same JVM, in the
+ * publishing thread. Used to run several registry nodes in a single JVM, typically in the tests.
+ */
+public class LocalInvalidationBus implements InvalidationBus {
+
+    private final List<Consumer<Invalidation>> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void publish(Invalidation invalidation) {
+        listeners.forEach(listener -> listener.accept(invalidation));
+    }
+
+    @Override
+    public void subscribe(Consumer<Invalidation> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void unsubscribe(Consumer<Invalidation> listener) {
+        listeners.remove(listener);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.TreeSet;
+
+/**
+ * Immutable inverted index of meta: for each key and value, the sorted IDs of the entities having
+ * this meta. An update returns a new index sharing the postings it didn't change.
+ */
+public final class MetaIndex {
+
+    public static final MetaIndex EMPTY = new MetaIndex(PersistentTreeMap.empty());
+
+    /** Key → value → IDs, the IDs are the keys of the last map. */
+    private final PersistentTreeMap<
+                    String, PersistentTreeMap<String, PersistentTreeMap<String, Boolean>>>
+            postings;
+
+    private MetaIndex(
+            PersistentTreeMap<String, PersistentTreeMap<String, PersistentTreeMap<String, Boolean>>>
+                    postings) {
+        this.postings = postings;
+    }
+
+    /**
+     * Replace the meta of an entity.
+     *
+     * @param id The entity ID.
+     * @param previous The meta indexed for the entity so far, null if it wasn't indexed.
+     * @param meta The new meta of the entity, null to remove it from the index.
+     * @return The updated index.
+     */
+    public MetaIndex update(String id, Map<String, String> previous, Map<String, String> meta) {
+        PersistentTreeMap<String, PersistentTreeMap<String, PersistentTreeMap<String, Boolean>>>
+                updated = postings;
+        if (previous != null) {
+            for (Map.Entry<String, String> entry : previous.entrySet()) {
+                if (meta == null || !Objects.equals(meta.get(entry.getKey()), entry.getValue())) {
+                    updated = remove(updated, entry.getKey(), entry.getValue(), id);
+                }
+            }
+        }
+        if (meta != null) {
+            for (Map.Entry<String, String> entry : meta.entrySet()) {
+                if (previous == null
+                        || !Objects.equals(previous.get(entry.getKey()), entry.getValue())) {
+                    updated = add(updated, entry.getKey(), entry.getValue(), id);
+                }
+            }
+        }
+        return updated == postings ? this : new MetaIndex(updated);
+    }
+
+    private static PersistentTreeMap<
+                    String, PersistentTreeMap<String, PersistentTreeMap<String, Boolean>>>
+            add(
+                    PersistentTreeMap<
+                                    String,
+                                    PersistentTreeMap<String, PersistentTreeMap<String, Boolean>>>
+                            postings,
+                    String key,
+                    String value,
+                    String id) {
+        PersistentTreeMap<String, PersistentTreeMap<String, Boolean>> values =
+                postings.getOrDefault(key, PersistentTreeMap.empty());
+        PersistentTreeMap<String, Boolean> ids =
+                values.getOrDefault(value, PersistentTreeMap.empty());
+        return postings.with(key, values.with(value, ids.with(id, Boolean.TRUE)));
+    }
+
+    private static PersistentTreeMap<
+                    String, PersistentTreeMap<String, PersistentTreeMap<String, Boolean>>>
+            remove(
+                    PersistentTreeMap<
+                                    String,
+                                    PersistentTreeMap<String, PersistentTreeMap<String, Boolean>>>
+                            postings,
+                    String key,
+                    String value,
+                    String id) {
+        PersistentTreeMap<String, PersistentTreeMap<String, Boolean>> values = postings.get(key);
+        PersistentTreeMap<String, Boolean> ids = values != null ? values.get(value) : null;
+        if (ids == null || !ids.containsKey(id)) {
+            return postings;
+        }
+        ids = ids.without(id);
+        values = ids.isEmpty() ? values.without(value) : values.with(value, ids);
+        return values.isEmpty() ? postings.without(key) : postings.with(key, values);
+    }
+
+    /**
+     * Search the entities matching all the keys of the criteria, and for each key any of its
+     * values.
+     *
+     * @param criteria The accepted values for each meta key.
+     * @param after The ID of the last entity of the previous page, or null for the first page.
+     * @param limit The maximum number of IDs to return.
+     * @return The matching IDs, in order.
+     */
+    public List<String> search(Map<String, Collection<String>> criteria, String after, int limit) {
+        List<List<PersistentTreeMap<String, Boolean>>> terms = new ArrayList<>();
+        for (Map.Entry<String, Collection<String>> criterion : criteria.entrySet()) {
+            PersistentTreeMap<String, PersistentTreeMap<String, Boolean>> values =
+                    postings.getOrDefault(criterion.getKey(), PersistentTreeMap.empty());
+            List<PersistentTreeMap<String, Boolean>> term = new ArrayList<>();
+            for (String value : criterion.getValue()) {
+                PersistentTreeMap<String, Boolean> ids = values.get(value);
+                if (ids != null) {
+                    term.add(ids);
+                }
+            }
+            if (term.isEmpty()) {
+                // nothing matches this key
+                return Collections.emptyList();
+            }
+            terms.add(term);
+        }
+        if (terms.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // walk the smallest term in order, and check the others by lookups
+        List<PersistentTreeMap<String, Boolean>> driver = terms.get(0);
+        for (List<PersistentTreeMap<String, Boolean>> term : terms) {
+            if (size(term) < size(driver)) {
+                driver = term;
+            }
+        }
+        Iterable<String> candidates;
+        if (driver.size() == 1) {
+            candidates = driver.get(0).tailKeys(after, false);
+        } else {
+            NavigableSet<String> union = new TreeSet<>();
+            driver.forEach(ids -> ids.tailKeys(after, false).forEach(union::add));
+            candidates = union;
+        }
+
+        List<String> results = new ArrayList<>();
+        for (String id : candidates) {
+            if (results.size() >= limit) {
+                break;
+            }
+            boolean matches = true;
+            for (List<PersistentTreeMap<String, Boolean>> term : terms) {
+                if (term != driver && !contains(term, id)) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) {
+                results.add(id);
+            }
+        }
+        return results;
+    }
+
+    private static int size(List<PersistentTreeMap<String, Boolean>> term) {
+        int size = 0;
+        for (PersistentTreeMap<String, Boolean> ids : term) {
+            size += ids.size();
+        }
+        return size;
+    }
+
+    private static boolean contains(List<PersistentTreeMap<String, Boolean>> term, String id) {
+        for (PersistentTreeMap<String, Boolean> ids : term) {
+            if (ids.containsKey(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
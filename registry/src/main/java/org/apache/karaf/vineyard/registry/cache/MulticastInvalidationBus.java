@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.cache;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Dictionary;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import org.apache.karaf.vineyard.common.RegistryEvent;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link InvalidationBus} between the registry nodes of a network, over UDP multicast. It's only
+ * started when the {@code org.apache.karaf.vineyard.registry.bus} configuration exists, with the
+ * properties:
+ *
+ * <ul>
+ *   <li>{@code group}: the multicast group (default 239.255.27.1), an administratively scoped
+ *       address keeps the datagrams in the site.
+ *   <li>{@code port}: the UDP port (default 45627).
+ *   <li>{@code ttl}: the hops of the datagrams (default 1, the local network).
+ *   <li>{@code interface}: the name of the network interface to send and receive on (default the
+ *       system one), the interface of the network dedicated to the registry nodes.
+ *   <li>{@code peers}: the comma separated addresses of the registry nodes (default any), the
+ *       datagrams from other addresses are ignored.
+ * </ul>
+ *
+ * <p>The datagrams are not authenticated: anyone reaching the group can make the nodes reload their
+ * registry. An invalidation carries no data, it can't change what a node serves, but the bus must
+ * only be enabled on a trusted network, restricted with {@code interface} and {@code peers}.
+ *
+ * <p>An invalidation is sent as text datagrams: the origin node on the first line, then a line per
+ * entity with its type and ID.
+ */
+@Component(
+        service = InvalidationBus.class,
+        configurationPid = "org.apache.karaf.vineyard.registry.bus",
+        configurationPolicy = ConfigurationPolicy.REQUIRE)
+public class MulticastInvalidationBus implements InvalidationBus {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MulticastInvalidationBus.class);
+
+    private static final String DEFAULT_GROUP = "239.255.27.1";
+
+    private static final int DEFAULT_PORT = 45627;
+
+    /** Maximum size of a datagram, larger invalidations are split. */
+    private static final int MAX_DATAGRAM = 8192;
+
+    private final List<Consumer<Invalidation>> listeners = new CopyOnWriteArrayList<>();
+
+    private InetAddress group;
+
+    /** The addresses the datagrams are accepted from, null to accept any. */
+    private Set<InetAddress> peers;
+
+    private int port;
+
+    private MulticastSocket socket;
+
+    private Thread receiver;
+
+    @Activate
+    public void activate(ComponentContext context) throws IOException {
+        Dictionary<String, Object> properties = context.getProperties();
+        Object configuredGroup = properties.get("group");
+        group =
+                InetAddress.getByName(
+                        configuredGroup != null ? configuredGroup.toString() : DEFAULT_GROUP);
+        if (!group.isMulticastAddress()) {
+            throw new IllegalArgumentException(group + " is not a multicast group");
+        }
+        port = intProperty(properties, "port", DEFAULT_PORT);
+        Object configuredPeers = properties.get("peers");
+        if (configuredPeers != null) {
+            peers = new HashSet<>();
+            for (String peer : configuredPeers.toString().split(",")) {
+                peers.add(InetAddress.getByName(peer.trim()));
+            }
+        }
+        NetworkInterface networkInterface = null;
+        Object configuredInterface = properties.get("interface");
+        if (configuredInterface != null) {
+            networkInterface = NetworkInterface.getByName(configuredInterface.toString());
+            if (networkInterface == null) {
+                throw new IllegalArgumentException(
+                        "Unknown network interface " + configuredInterface);
+            }
+        }
+        socket = new MulticastSocket(port);
+        socket.setTimeToLive(intProperty(properties, "ttl", 1));
+        if (networkInterface != null) {
+            socket.setNetworkInterface(networkInterface);
+            socket.joinGroup(new InetSocketAddress(group, port), networkInterface);
+        } else {
+            socket.joinGroup(group);
+        }
+        receiver = new Thread(this::receive, "vineyard-registry-invalidation");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    @Deactivate
+    public void deactivate() throws InterruptedException {
+        // closing the socket ends the receiver
+        socket.close();
+        receiver.join();
+    }
+
+    @Override
+    public void publish(Invalidation invalidation) {
+        String header = invalidation.getOrigin() + "\n";
+        StringBuilder datagram = new StringBuilder(header);
+        for (Map.Entry<RegistryEvent.Type, Set<String>> entry : invalidation.getIds().entrySet()) {
+            for (String id : entry.getValue()) {
+                String line = entry.getKey().name() + " " + id + "\n";
+                if (datagram.length() + line.length() > MAX_DATAGRAM) {
+                    send(datagram);
+                    datagram.setLength(0);
+                    datagram.append(header);
+                }
+                datagram.append(line);
+            }
+        }
+        if (datagram.length() > header.length()) {
+            send(datagram);
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<Invalidation> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void unsubscribe(Consumer<Invalidation> listener) {
+        listeners.remove(listener);
+    }
+
+    private void send(CharSequence text) {
+        byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            socket.send(new DatagramPacket(data, data.length, group, port));
+        } catch (IOException e) {
+            // the peers' entries will expire
+            LOGGER.warn("Can't send the registry invalidation", e);
+        }
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[MAX_DATAGRAM * 4];
+        while (true) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketException e) {
+                // closed
+                return;
+            } catch (IOException e) {
+                LOGGER.warn("Can't receive a registry invalidation", e);
+                continue;
+            }
+            if (peers != null && !peers.contains(packet.getAddress())) {
+                LOGGER.debug("Ignoring a registry invalidation from {}", packet.getAddress());
+                continue;
+            }
+            Invalidation invalidation;
+            try {
+                invalidation =
+                        parse(
+                                new String(
+                                        packet.getData(),
+                                        packet.getOffset(),
+                                        packet.getLength(),
+                                        StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn(
+                        "Ignoring an invalid registry invalidation from {}", packet.getAddress());
+                continue;
+            }
+            for (Consumer<Invalidation> listener : listeners) {
+                try {
+                    listener.accept(invalidation);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Registry invalidation listener failed", e);
+                }
+            }
+        }
+    }
+
+    private static Invalidation parse(String text) {
+        String[] lines = text.split("\n");
+        Map<RegistryEvent.Type, Set<String>> ids = new EnumMap<>(RegistryEvent.Type.class);
+        for (int i = 1; i < lines.length; i++) {
+            int separator = lines[i].indexOf(' ');
+            if (separator < 0) {
+                throw new IllegalArgumentException(lines[i]);
+            }
+            ids.computeIfAbsent(
+                            RegistryEvent.Type.valueOf(lines[i].substring(0, separator)),
+                            type -> new HashSet<>())
+                    .add(lines[i].substring(separator + 1));
+        }
+        return new Invalidation(lines[0], ids);
+    }
+
+    private static int intProperty(Dictionary<String, Object> properties, String name, int value) {
+        Object configured = properties.get(name);
+        return configured != null ? Integer.parseInt(configured.toString()) : value;
+    }
+}
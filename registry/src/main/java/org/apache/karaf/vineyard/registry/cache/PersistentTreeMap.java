@@ -0,0 +1,313 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.cache;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Immutable sorted map, a persistent AVL tree. A change copies the path to the changed entry and
+ * shares the rest of the tree with the previous map, so it costs O(log n) whatever the size of the
+ * map, and the previous map stays valid.
+ */
+public final class PersistentTreeMap<K extends Comparable<? super K>, V>
+        implements Iterable<Map.Entry<K, V>> {
+
+    private static final PersistentTreeMap<?, ?> EMPTY = new PersistentTreeMap<>(null, 0);
+
+    private final Node<K, V> root;
+    private final int size;
+
+    private PersistentTreeMap(Node<K, V> root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K extends Comparable<? super K>, V> PersistentTreeMap<K, V> empty() {
+        return (PersistentTreeMap<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public V get(K key) {
+        Node<K, V> node = find(key);
+        return node != null ? node.value : null;
+    }
+
+    public V getOrDefault(K key, V value) {
+        Node<K, V> node = find(key);
+        return node != null ? node.value : value;
+    }
+
+    public boolean containsKey(K key) {
+        return find(key) != null;
+    }
+
+    /** Return a map with a given entry, this map if it already has it. */
+    public PersistentTreeMap<K, V> with(K key, V value) {
+        Node<K, V> node = find(key);
+        if (node != null && node.value == value) {
+            return this;
+        }
+        return new PersistentTreeMap<>(put(root, key, value), node != null ? size : size + 1);
+    }
+
+    /** Return a map without a given key, this map if it doesn't have it. */
+    public PersistentTreeMap<K, V> without(K key) {
+        if (find(key) == null) {
+            return this;
+        }
+        return new PersistentTreeMap<>(remove(root, key), size - 1);
+    }
+
+    /** Iterate the entries in key order. */
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return new EntryIterator<>(root, null, true);
+    }
+
+    /**
+     * Iterate the entries in key order, starting from a given key.
+     *
+     * @param from The first key, or null to start from the first entry.
+     * @param inclusive Whether the entry of the first key, if any, is included.
+     */
+    public Iterable<Map.Entry<K, V>> tail(K from, boolean inclusive) {
+        return () -> new EntryIterator<>(root, from, inclusive);
+    }
+
+    public Iterable<K> keys() {
+        return () -> new MappedIterator<>(iterator(), Map.Entry::getKey);
+    }
+
+    /** Same as {@link #tail(Comparable, boolean)} for the keys. */
+    public Iterable<K> tailKeys(K from, boolean inclusive) {
+        return () -> new MappedIterator<>(tail(from, inclusive).iterator(), Map.Entry::getKey);
+    }
+
+    public Iterable<V> values() {
+        return () -> new MappedIterator<>(iterator(), Map.Entry::getValue);
+    }
+
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        forEach(root, action);
+    }
+
+    private Node<K, V> find(K key) {
+        Node<K, V> node = root;
+        while (node != null) {
+            int comparison = key.compareTo(node.key);
+            if (comparison == 0) {
+                return node;
+            }
+            node = comparison < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    private static <K extends Comparable<? super K>, V> void forEach(
+            Node<K, V> node, BiConsumer<? super K, ? super V> action) {
+        if (node != null) {
+            forEach(node.left, action);
+            action.accept(node.key, node.value);
+            forEach(node.right, action);
+        }
+    }
+
+    private static <K extends Comparable<? super K>, V> Node<K, V> put(
+            Node<K, V> node, K key, V value) {
+        if (node == null) {
+            return new Node<>(key, value, null, null);
+        }
+        int comparison = key.compareTo(node.key);
+        if (comparison < 0) {
+            return balance(node.key, node.value, put(node.left, key, value), node.right);
+        }
+        if (comparison > 0) {
+            return balance(node.key, node.value, node.left, put(node.right, key, value));
+        }
+        return new Node<>(key, value, node.left, node.right);
+    }
+
+    private static <K extends Comparable<? super K>, V> Node<K, V> remove(Node<K, V> node, K key) {
+        int comparison = key.compareTo(node.key);
+        if (comparison < 0) {
+            return balance(node.key, node.value, remove(node.left, key), node.right);
+        }
+        if (comparison > 0) {
+            return balance(node.key, node.value, node.left, remove(node.right, key));
+        }
+        if (node.left == null) {
+            return node.right;
+        }
+        if (node.right == null) {
+            return node.left;
+        }
+        Node<K, V> first = node.right;
+        while (first.left != null) {
+            first = first.left;
+        }
+        return balance(first.key, first.value, node.left, removeFirst(node.right));
+    }
+
+    private static <K, V> Node<K, V> removeFirst(Node<K, V> node) {
+        if (node.left == null) {
+            return node.right;
+        }
+        return balance(node.key, node.value, removeFirst(node.left), node.right);
+    }
+
+    /** Create a node, rotating it if its subtrees differ in height by more than one. */
+    private static <K, V> Node<K, V> balance(K key, V value, Node<K, V> left, Node<K, V> right) {
+        int leftHeight = height(left);
+        int rightHeight = height(right);
+        if (leftHeight > rightHeight + 1) {
+            if (height(left.left) >= height(left.right)) {
+                return new Node<>(
+                        left.key, left.value, left.left, new Node<>(key, value, left.right, right));
+            }
+            Node<K, V> pivot = left.right;
+            return new Node<>(
+                    pivot.key,
+                    pivot.value,
+                    new Node<>(left.key, left.value, left.left, pivot.left),
+                    new Node<>(key, value, pivot.right, right));
+        }
+        if (rightHeight > leftHeight + 1) {
+            if (height(right.right) >= height(right.left)) {
+                return new Node<>(
+                        right.key,
+                        right.value,
+                        new Node<>(key, value, left, right.left),
+                        right.right);
+            }
+            Node<K, V> pivot = right.left;
+            return new Node<>(
+                    pivot.key,
+                    pivot.value,
+                    new Node<>(key, value, left, pivot.left),
+                    new Node<>(right.key, right.value, pivot.right, right.right));
+        }
+        return new Node<>(key, value, left, right);
+    }
+
+    private static int height(Node<?, ?> node) {
+        return node != null ? node.height : 0;
+    }
+
+    private static final class Node<K, V> implements Map.Entry<K, V> {
+
+        private final K key;
+        private final V value;
+        private final Node<K, V> left;
+        private final Node<K, V> right;
+        private final int height;
+
+        private Node(K key, V value, Node<K, V> left, Node<K, V> right) {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /** In order walk, holding the path of the nodes still to visit. */
+    private static final class EntryIterator<K extends Comparable<? super K>, V>
+            implements Iterator<Map.Entry<K, V>> {
+
+        private final Deque<Node<K, V>> path = new ArrayDeque<>();
+
+        private EntryIterator(Node<K, V> root, K from, boolean inclusive) {
+            Node<K, V> node = root;
+            while (node != null) {
+                int comparison = from == null ? 1 : node.key.compareTo(from);
+                if (comparison > 0 || (comparison == 0 && inclusive)) {
+                    path.push(node);
+                    node = node.left;
+                } else {
+                    node = node.right;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !path.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (path.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Node<K, V> next = path.pop();
+            for (Node<K, V> node = next.right; node != null; node = node.left) {
+                path.push(node);
+            }
+            return next;
+        }
+    }
+
+    private static final class MappedIterator<E, T> implements Iterator<T> {
+
+        private final Iterator<E> iterator;
+        private final Function<E, T> mapper;
+
+        private MappedIterator(Iterator<E> iterator, Function<E, T> mapper) {
+            this.iterator = iterator;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public T next() {
+            return mapper.apply(iterator.next());
+        }
+    }
+}
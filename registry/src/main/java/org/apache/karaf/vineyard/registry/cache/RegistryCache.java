@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Read-through cache holding the current {@link RegistrySnapshot}.
+ *
+ * <p>Reads never lock: they either get the installed snapshot or load a new one. Each write bumps
+ * the registry version and patches the snapshot, or drops it when the whole registry may have
+ * changed. A snapshot loaded for an older version is never kept, so a read racing with a write
+ * can't install stale data.
+ */
+public class RegistryCache {
+
+    /** Load the registry graph for a given version. */
+    public interface Loader {
+        RegistrySnapshot load(long version);
+    }
+
+    private final Loader loader;
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicReference<RegistrySnapshot> snapshot = new AtomicReference<>();
+
+    public RegistryCache(Loader loader) {
+        this.loader = loader;
+    }
+
+    /** Return the current snapshot, loading it if needed. */
+    public RegistrySnapshot get() {
+        RegistrySnapshot current = snapshot.get();
+        if (current != null) {
+            return current;
+        }
+        long loadedVersion = version.get();
+        RegistrySnapshot loaded = loader.load(loadedVersion);
+        if (snapshot.compareAndSet(null, loaded) && version.get() != loadedVersion) {
+            // a write happened while we were loading
+            snapshot.compareAndSet(loaded, null);
+        }
+        return loaded;
+    }
+
+    /**
+     * Install a snapshot loaded from elsewhere (a snapshot file) if none is loaded yet, so the
+     * reads don't wait for the loader.
+     */
+    public void warm(RegistrySnapshot warmSnapshot) {
+        long warmVersion = version.get();
+        if (snapshot.compareAndSet(null, warmSnapshot) && version.get() != warmVersion) {
+            snapshot.compareAndSet(warmSnapshot, null);
+        }
+    }
+
+    /**
+     * Load a fresh snapshot and install it in place of the current one, which keeps serving the
+     * reads meanwhile.
+     */
+    public RegistrySnapshot refresh() {
+        long loadedVersion = version.get();
+        RegistrySnapshot loaded = loader.load(loadedVersion);
+        RegistrySnapshot current = snapshot.get();
+        if (version.get() == loadedVersion && snapshot.compareAndSet(current, loaded)) {
+            if (version.get() != loadedVersion) {
+                // a write happened while we were installing it
+                snapshot.compareAndSet(loaded, null);
+            }
+        }
+        return loaded;
+    }
+
+    /** Return the current snapshot if any, without loading it. */
+    public RegistrySnapshot peek() {
+        return snapshot.get();
+    }
+
+    /**
+     * Apply a committed write to the current snapshot, the new one shares all the entries the write
+     * didn't change. When no snapshot is loaded, the next read loads one. The writes must be
+     * applied in the order they were committed.
+     *
+     * @param change Replay the write on a builder of the current snapshot.
+     * @return The new version of the registry.
+     */
+    public long update(Consumer<RegistrySnapshot.Builder> change) {
+        long newVersion = version.incrementAndGet();
+        RegistrySnapshot current = snapshot.get();
+        if (current != null) {
+            RegistrySnapshot patched;
+            try {
+                RegistrySnapshot.Builder builder = current.toBuilder();
+                change.accept(builder);
+                patched = builder.build(newVersion);
+            } catch (RuntimeException e) {
+                snapshot.set(null);
+                throw e;
+            }
+            if (!snapshot.compareAndSet(current, patched)) {
+                // a concurrent load or invalidation, let the next read load it
+                snapshot.set(null);
+            }
+        }
+        return newVersion;
+    }
+
+    /**
+     * Drop the current snapshot, the next read loads a fresh one.
+     *
+     * @return The new version of the registry.
+     */
+    public long invalidate() {
+        long newVersion = version.incrementAndGet();
+        snapshot.set(null);
+        return newVersion;
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+}
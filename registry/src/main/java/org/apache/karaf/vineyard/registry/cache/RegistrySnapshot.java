@@ -0,0 +1,608 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import org.apache.karaf.vineyard.common.API;
+import org.apache.karaf.vineyard.common.Policy;
+import org.apache.karaf.vineyard.common.RestResource;
+
+/**
+ * Immutable, versioned view of the whole registry graph (API → RestResource → applied Policy).
+ *
+ * <p>The snapshot never hands out its own instances: every accessor returns fresh copies, so
+ * callers are free to modify what they get without corrupting the shared view.
+ *
+ * <p>The graph is held in {@link PersistentTreeMap}s, a write gets a new snapshot from {@link
+ * #toBuilder()} sharing everything but the entries it changed.
+ */
+public final class RegistrySnapshot {
+
+    private static final int NAME_WEIGHT = 4;
+    private static final int PATH_WEIGHT = 2;
+    private static final int DESCRIPTION_WEIGHT = 1;
+
+    private final long version;
+    private final PersistentTreeMap<String, API> apis;
+    private final PersistentTreeMap<String, Policy> policies;
+    private final PersistentTreeMap<String, String> definitionDigests;
+    private final PersistentTreeMap<String, RestResource> restResources;
+    private final PersistentTreeMap<String, String> restResourceApis;
+
+    /** Route key → resource ID, see {@link #route(String, RestResource)}. */
+    private final PersistentTreeMap<String, String> routes;
+
+    private final PersistentTreeMap<String, PersistentTreeMap<String, RestResource>>
+            apiRestResources;
+
+    /** Resource ID → order → applied policy. */
+    private final PersistentTreeMap<String, PersistentTreeMap<Integer, Applied>> appliedPolicies;
+
+    /** Policy ID → resource ID → order of the policy on the resource. */
+    private final PersistentTreeMap<String, PersistentTreeMap<String, Integer>> policyRestResources;
+
+    private final MetaIndex apiMeta;
+    private final MetaIndex policyMeta;
+
+    private final FullTextIndex fullText;
+
+    private RegistrySnapshot(Builder builder, long version) {
+        this.version = version;
+        this.apis = builder.apis;
+        this.policies = builder.policies;
+        this.definitionDigests = builder.definitionDigests;
+        this.restResources = builder.restResources;
+        this.restResourceApis = builder.restResourceApis;
+        this.routes = builder.routes;
+        this.apiRestResources = builder.apiRestResources;
+        this.appliedPolicies = builder.appliedPolicies;
+        this.policyRestResources = builder.policyRestResources;
+
+        this.apiMeta = builder.apiMeta;
+        this.policyMeta = builder.policyMeta;
+        this.fullText = builder.fullText;
+    }
+
+    /** Return a builder of a new snapshot, starting from the content of this one. */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /** Version of the registry this snapshot has been loaded for. */
+    public long getVersion() {
+        return version;
+    }
+
+    /** Number of entities in the snapshot: APIs, resources and policies. */
+    public int size() {
+        return apis.size() + restResources.size() + policies.size();
+    }
+
+    public API getApi(String id) {
+        return copyOf(apis.get(id));
+    }
+
+    /** Return the digest of the definition of an {@link API}, null if it has none. */
+    public String getDefinitionDigest(String apiId) {
+        return definitionDigests.get(apiId);
+    }
+
+    /** Return an {@link API} with its resources and the policies applied to them. */
+    public API getApiTree(String id) {
+        API api = copyOf(apis.get(id));
+        if (api != null) {
+            for (RestResource restResource :
+                    apiRestResources.getOrDefault(id, PersistentTreeMap.empty()).values()) {
+                RestResource copy = copyOf(restResource);
+                copy.setPolicies(listAppliedPolicies(restResource.getId()));
+                api.getRestResources().add(copy);
+            }
+        }
+        return api;
+    }
+
+    public Collection<API> listApis() {
+        Collection<API> results = new ArrayList<>(apis.size());
+        apis.values().forEach(api -> results.add(copyOf(api)));
+        return results;
+    }
+
+    /** Return at most {@code limit} {@link API} with an ID greater than {@code after}. */
+    public Collection<API> listApis(String after, int limit) {
+        Collection<API> results = new ArrayList<>();
+        page(apis, after, limit).forEach(api -> results.add(copyOf(api)));
+        return results;
+    }
+
+    /** Return a page of the {@link API} matching meta criteria, see {@link MetaIndex}. */
+    public Collection<API> searchApis(
+            Map<String, Collection<String>> criteria, String after, int limit) {
+        Collection<API> results = new ArrayList<>();
+        apiMeta.search(criteria, after, limit).forEach(id -> results.add(copyOf(apis.get(id))));
+        return results;
+    }
+
+    /**
+     * Return the {@link API} matching a text query, best first. The query is matched against the
+     * name and description of the {@link API} and the paths and descriptions of its resources.
+     */
+    public List<API> searchText(String query, int limit) {
+        List<API> results = new ArrayList<>();
+        fullText.search(query, limit).forEach(id -> results.add(copyOf(apis.get(id))));
+        return results;
+    }
+
+    public RestResource getRestResource(String id) {
+        return copyOf(restResources.get(id));
+    }
+
+    /** Return the ID of the {@link API} owning a given {@link RestResource}. */
+    public String getRestResourceApi(String restResourceId) {
+        return restResourceApis.get(restResourceId);
+    }
+
+    /** Return the {@link RestResource} serving a route, null if there's none. */
+    public RestResource resolve(String context, String path, String method) {
+        String key = route(context, path, method);
+        String restResourceId = key != null ? routes.get(key) : null;
+        return restResourceId != null ? copyOf(restResources.get(restResourceId)) : null;
+    }
+
+    public Collection<RestResource> listRestResources(String apiId) {
+        return copyOf(apiRestResources.getOrDefault(apiId, PersistentTreeMap.empty()).values());
+    }
+
+    /** Return at most {@code limit} resources of an API with an ID greater than {@code after}. */
+    public Collection<RestResource> listRestResources(String apiId, String after, int limit) {
+        return copyOf(
+                page(
+                        apiRestResources.getOrDefault(apiId, PersistentTreeMap.empty()),
+                        after,
+                        limit));
+    }
+
+    public Collection<RestResource> listPolicyRestResources(String policyId) {
+        Collection<RestResource> results = new ArrayList<>();
+        policyRestResources
+                .getOrDefault(policyId, PersistentTreeMap.empty())
+                .keys()
+                .forEach(restResourceId -> results.add(copyOf(restResources.get(restResourceId))));
+        return results;
+    }
+
+    public Policy getPolicy(String id) {
+        return copyOf(policies.get(id));
+    }
+
+    public Collection<Policy> listPolicies() {
+        Collection<Policy> results = new ArrayList<>(policies.size());
+        policies.values().forEach(policy -> results.add(copyOf(policy)));
+        return results;
+    }
+
+    /** Return at most {@code limit} {@link Policy} with an ID greater than {@code after}. */
+    public Collection<Policy> listPolicies(String after, int limit) {
+        Collection<Policy> results = new ArrayList<>();
+        page(policies, after, limit).forEach(policy -> results.add(copyOf(policy)));
+        return results;
+    }
+
+    /** Return a page of the {@link Policy} matching meta criteria, see {@link MetaIndex}. */
+    public Collection<Policy> searchPolicies(
+            Map<String, Collection<String>> criteria, String after, int limit) {
+        Collection<Policy> results = new ArrayList<>();
+        policyMeta
+                .search(criteria, after, limit)
+                .forEach(id -> results.add(copyOf(policies.get(id))));
+        return results;
+    }
+
+    public Map<Integer, Policy> listAppliedPolicies(String restResourceId) {
+        Map<Integer, Policy> results = new HashMap<>();
+        appliedPolicies
+                .getOrDefault(restResourceId, PersistentTreeMap.empty())
+                .forEach(
+                        (order, applied) -> {
+                            Policy policy = copyOf(policies.get(applied.policyId));
+                            policy.setParam(copyOf(applied.param));
+                            results.put(order, policy);
+                        });
+        return results;
+    }
+
+    /** Same as the database unique key, a route with a null part never conflicts. */
+    private static String route(String context, String path, String method) {
+        if (context == null || path == null || method == null) {
+            return null;
+        }
+        return context + '\0' + path + '\0' + method;
+    }
+
+    private static String route(String context, RestResource restResource) {
+        return route(context, restResource.getPath(), restResource.getMethod());
+    }
+
+    private static <T> Collection<T> page(
+            PersistentTreeMap<String, T> map, String after, int limit) {
+        Collection<T> results = new ArrayList<>(Math.min(limit, map.size()));
+        for (Map.Entry<String, T> entry : map.tail(after, false)) {
+            if (results.size() >= limit) {
+                break;
+            }
+            results.add(entry.getValue());
+        }
+        return results;
+    }
+
+    private static Collection<RestResource> copyOf(Iterable<RestResource> restResources) {
+        Collection<RestResource> results = new ArrayList<>();
+        restResources.forEach(restResource -> results.add(copyOf(restResource)));
+        return results;
+    }
+
+    private static API copyOf(API api) {
+        if (api == null) {
+            return null;
+        }
+        API copy = new API();
+        copy.setId(api.getId());
+        copy.setRevision(api.getRevision());
+        copy.setName(api.getName());
+        copy.setContext(api.getContext());
+        copy.setDescription(api.getDescription());
+        copy.setMeta(copyOf(api.getMeta()));
+        return copy;
+    }
+
+    private static RestResource copyOf(RestResource restResource) {
+        if (restResource == null) {
+            return null;
+        }
+        RestResource copy = new RestResource();
+        copy.setId(restResource.getId());
+        copy.setRevision(restResource.getRevision());
+        copy.setDescription(restResource.getDescription());
+        copy.setPath(restResource.getPath());
+        copy.setMethod(restResource.getMethod());
+        copy.setVersion(restResource.getVersion());
+        copy.setAccept(restResource.getAccept());
+        copy.setMediaType(restResource.getMediaType());
+        copy.setResponse(restResource.getResponse());
+        copy.setEndpoint(restResource.getEndpoint());
+        return copy;
+    }
+
+    private static Policy copyOf(Policy policy) {
+        if (policy == null) {
+            return null;
+        }
+        Policy copy = new Policy();
+        copy.setId(policy.getId());
+        copy.setRevision(policy.getRevision());
+        copy.setDescription(policy.getDescription());
+        copy.setClassName(policy.getClassName());
+        copy.setMeta(copyOf(policy.getMeta()));
+        if (policy.getParam() != null) {
+            copy.setParam(copyOf(policy.getParam()));
+        }
+        return copy;
+    }
+
+    private static Map<String, String> copyOf(Map<String, String> map) {
+        return map == null ? new HashMap<>() : new HashMap<>(map);
+    }
+
+    /** A policy applied to a resource, with its parameters. */
+    private static final class Applied {
+
+        private final String policyId;
+        private final Map<String, String> param;
+
+        private Applied(String policyId, Map<String, String> param) {
+            this.policyId = policyId;
+            this.param = Collections.unmodifiableMap(copyOf(param));
+        }
+    }
+
+    /**
+     * Collect the registry graph and freeze it in a {@link RegistrySnapshot}. The changes of an
+     * entity replace or remove it whole, with the entities depending on it.
+     */
+    public static class Builder {
+
+        private PersistentTreeMap<String, API> apis = PersistentTreeMap.empty();
+        private PersistentTreeMap<String, Policy> policies = PersistentTreeMap.empty();
+        private PersistentTreeMap<String, String> definitionDigests = PersistentTreeMap.empty();
+        private PersistentTreeMap<String, RestResource> restResources = PersistentTreeMap.empty();
+        private PersistentTreeMap<String, String> restResourceApis = PersistentTreeMap.empty();
+        private PersistentTreeMap<String, String> routes = PersistentTreeMap.empty();
+        private PersistentTreeMap<String, PersistentTreeMap<String, RestResource>>
+                apiRestResources = PersistentTreeMap.empty();
+        private PersistentTreeMap<String, PersistentTreeMap<Integer, Applied>> appliedPolicies =
+                PersistentTreeMap.empty();
+        private PersistentTreeMap<String, PersistentTreeMap<String, Integer>> policyRestResources =
+                PersistentTreeMap.empty();
+
+        private MetaIndex apiMeta = MetaIndex.EMPTY;
+        private MetaIndex policyMeta = MetaIndex.EMPTY;
+
+        private FullTextIndex fullText = FullTextIndex.EMPTY;
+
+        /** The APIs to index again when the snapshot is built. */
+        private final Set<String> changedTexts = new HashSet<>();
+
+        public Builder() {}
+
+        private Builder(RegistrySnapshot snapshot) {
+            apis = snapshot.apis;
+            policies = snapshot.policies;
+            definitionDigests = snapshot.definitionDigests;
+            restResources = snapshot.restResources;
+            restResourceApis = snapshot.restResourceApis;
+            routes = snapshot.routes;
+            apiRestResources = snapshot.apiRestResources;
+            appliedPolicies = snapshot.appliedPolicies;
+            policyRestResources = snapshot.policyRestResources;
+            apiMeta = snapshot.apiMeta;
+            policyMeta = snapshot.policyMeta;
+            fullText = snapshot.fullText;
+        }
+
+        /** Add or replace an {@link API}, its resources follow a change of its context. */
+        public Builder api(API api) {
+            API copy = copyOf(api);
+            API previous = apis.get(api.getId());
+            apis = apis.with(api.getId(), copy);
+            String previousContext = previous != null ? previous.getContext() : null;
+            if (!Objects.equals(previousContext, copy.getContext())) {
+                for (RestResource restResource :
+                        apiRestResources
+                                .getOrDefault(api.getId(), PersistentTreeMap.empty())
+                                .values()) {
+                    removeRoute(previousContext, restResource);
+                    addRoute(copy.getContext(), restResource);
+                }
+            }
+            apiMeta =
+                    apiMeta.update(
+                            api.getId(),
+                            previous != null ? previous.getMeta() : null,
+                            copy.getMeta());
+            if (previous == null
+                    || !Objects.equals(previous.getName(), copy.getName())
+                    || !Objects.equals(previous.getDescription(), copy.getDescription())) {
+                changedTexts.add(api.getId());
+            }
+            return this;
+        }
+
+        /** Remove an {@link API} with its resources. */
+        public Builder removeApi(String id) {
+            API previous = apis.get(id);
+            if (previous == null) {
+                return this;
+            }
+            for (String restResourceId :
+                    apiRestResources.getOrDefault(id, PersistentTreeMap.empty()).keys()) {
+                removeRestResource(restResourceId);
+            }
+            apis = apis.without(id);
+            definitionDigests = definitionDigests.without(id);
+            apiMeta = apiMeta.update(id, previous.getMeta(), null);
+            changedTexts.add(id);
+            return this;
+        }
+
+        /** Set the digest of the definition of an {@link API}, null if it has none. */
+        public Builder definitionDigest(String apiId, String digest) {
+            definitionDigests =
+                    digest != null
+                            ? definitionDigests.with(apiId, digest)
+                            : definitionDigests.without(apiId);
+            return this;
+        }
+
+        /** Add or replace a resource, keeping the policies applied to it. */
+        public Builder restResource(String apiId, RestResource restResource) {
+            String id = restResource.getId();
+            RestResource copy = copyOf(restResource);
+            RestResource previous = restResources.get(id);
+            if (previous != null) {
+                String previousApiId = restResourceApis.get(id);
+                removeRoute(context(previousApiId), previous);
+                removeApiRestResource(previousApiId, id);
+                changedTexts.add(previousApiId);
+            }
+            restResources = restResources.with(id, copy);
+            restResourceApis = restResourceApis.with(id, apiId);
+            apiRestResources =
+                    apiRestResources.with(
+                            apiId,
+                            apiRestResources
+                                    .getOrDefault(apiId, PersistentTreeMap.empty())
+                                    .with(id, copy));
+            addRoute(context(apiId), copy);
+            changedTexts.add(apiId);
+            return this;
+        }
+
+        /** Remove a resource and unapply its policies. */
+        public Builder removeRestResource(String id) {
+            RestResource previous = restResources.get(id);
+            if (previous == null) {
+                return this;
+            }
+            unapplyPolicies(id);
+            String apiId = restResourceApis.get(id);
+            removeRoute(context(apiId), previous);
+            removeApiRestResource(apiId, id);
+            restResources = restResources.without(id);
+            restResourceApis = restResourceApis.without(id);
+            changedTexts.add(apiId);
+            return this;
+        }
+
+        /** Add or replace a policy, the parameters belong to the applied policies. */
+        public Builder policy(Policy policy) {
+            Policy copy = copyOf(policy);
+            copy.setParam(null);
+            Policy previous = policies.get(policy.getId());
+            policies = policies.with(policy.getId(), copy);
+            policyMeta =
+                    policyMeta.update(
+                            policy.getId(),
+                            previous != null ? previous.getMeta() : null,
+                            copy.getMeta());
+            return this;
+        }
+
+        /** Remove a policy and unapply it from its resources. */
+        public Builder removePolicy(String id) {
+            Policy previous = policies.get(id);
+            if (previous == null) {
+                return this;
+            }
+            for (String restResourceId :
+                    policyRestResources.getOrDefault(id, PersistentTreeMap.empty()).keys()) {
+                unapplyPolicy(restResourceId, id);
+            }
+            policies = policies.without(id);
+            policyMeta = policyMeta.update(id, previous.getMeta(), null);
+            return this;
+        }
+
+        /**
+         * Apply an already known {@link Policy} to an already known {@link RestResource}, in place
+         * of its previous application. Unknown references are ignored.
+         */
+        public Builder appliedPolicy(
+                String restResourceId, String policyId, int order, Map<String, String> param) {
+            if (!policies.containsKey(policyId) || !restResources.containsKey(restResourceId)) {
+                return this;
+            }
+            unapplyPolicy(restResourceId, policyId);
+            PersistentTreeMap<Integer, Applied> applied =
+                    appliedPolicies.getOrDefault(restResourceId, PersistentTreeMap.empty());
+            Applied replaced = applied.get(order);
+            if (replaced != null) {
+                unapplyPolicy(restResourceId, replaced.policyId);
+                applied = appliedPolicies.getOrDefault(restResourceId, PersistentTreeMap.empty());
+            }
+            appliedPolicies =
+                    appliedPolicies.with(
+                            restResourceId, applied.with(order, new Applied(policyId, param)));
+            policyRestResources =
+                    policyRestResources.with(
+                            policyId,
+                            policyRestResources
+                                    .getOrDefault(policyId, PersistentTreeMap.empty())
+                                    .with(restResourceId, order));
+            return this;
+        }
+
+        public Builder unapplyPolicy(String restResourceId, String policyId) {
+            PersistentTreeMap<String, Integer> applications =
+                    policyRestResources.getOrDefault(policyId, PersistentTreeMap.empty());
+            Integer order = applications.get(restResourceId);
+            if (order == null) {
+                return this;
+            }
+            applications = applications.without(restResourceId);
+            policyRestResources =
+                    applications.isEmpty()
+                            ? policyRestResources.without(policyId)
+                            : policyRestResources.with(policyId, applications);
+            PersistentTreeMap<Integer, Applied> applied =
+                    appliedPolicies.get(restResourceId).without(order);
+            appliedPolicies =
+                    applied.isEmpty()
+                            ? appliedPolicies.without(restResourceId)
+                            : appliedPolicies.with(restResourceId, applied);
+            return this;
+        }
+
+        /** Unapply all the policies of a resource. */
+        public Builder unapplyPolicies(String restResourceId) {
+            for (Applied applied :
+                    appliedPolicies
+                            .getOrDefault(restResourceId, PersistentTreeMap.empty())
+                            .values()) {
+                unapplyPolicy(restResourceId, applied.policyId);
+            }
+            return this;
+        }
+
+        public RegistrySnapshot build(long version) {
+            for (String apiId : changedTexts) {
+                API api = apis.get(apiId);
+                fullText = fullText.update(apiId, api != null ? document(api) : null);
+            }
+            changedTexts.clear();
+            return new RegistrySnapshot(this, version);
+        }
+
+        private FullTextIndex.Document document(API api) {
+            FullTextIndex.Document document = new FullTextIndex.Document();
+            document.add(api.getName(), NAME_WEIGHT);
+            document.add(api.getDescription(), DESCRIPTION_WEIGHT);
+            for (RestResource restResource :
+                    apiRestResources
+                            .getOrDefault(api.getId(), PersistentTreeMap.empty())
+                            .values()) {
+                document.add(restResource.getPath(), PATH_WEIGHT);
+                document.add(restResource.getDescription(), DESCRIPTION_WEIGHT);
+            }
+            return document;
+        }
+
+        private String context(String apiId) {
+            API api = apiId != null ? apis.get(apiId) : null;
+            return api != null ? api.getContext() : null;
+        }
+
+        private void removeApiRestResource(String apiId, String id) {
+            PersistentTreeMap<String, RestResource> remaining =
+                    apiRestResources.getOrDefault(apiId, PersistentTreeMap.empty()).without(id);
+            apiRestResources =
+                    remaining.isEmpty()
+                            ? apiRestResources.without(apiId)
+                            : apiRestResources.with(apiId, remaining);
+        }
+
+        private void addRoute(String context, RestResource restResource) {
+            String key = route(context, restResource);
+            if (key != null) {
+                routes = routes.with(key, restResource.getId());
+            }
+        }
+
+        private void removeRoute(String context, RestResource restResource) {
+            String key = route(context, restResource);
+            if (key != null && restResource.getId().equals(routes.get(key))) {
+                routes = routes.without(key);
+            }
+        }
+    }
+}
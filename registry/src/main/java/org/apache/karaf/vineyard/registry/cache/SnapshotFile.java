@@ -0,0 +1,320 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.apache.karaf.vineyard.common.API;
+import org.apache.karaf.vineyard.common.Policy;
+import org.apache.karaf.vineyard.common.RestResource;
+
+/**
+ * Binary file holding a whole {@link RegistrySnapshot}, so a node can serve the reads before (or
+ * without) reaching the database.
+ *
+ * <p>The file starts with a magic number and the format version, followed by a table of the
+ * distinct strings, then the APIs, the resources, the policies and the applied policies, which
+ * refer to the strings by their index. It ends with the CRC32 of the preceding bytes. The numbers
+ * are big endian, a null string is the index -1 and a null revision is {@link Long#MIN_VALUE}.
+ */
+public final class SnapshotFile {
+
+    private static final int MAGIC = 0x56594e53;
+
+    private static final int FORMAT = 1;
+
+    private static final long NO_REVISION = Long.MIN_VALUE;
+
+    private SnapshotFile() {}
+
+    /**
+     * Write a snapshot to a file. The file is replaced atomically, a reader never sees a partially
+     * written snapshot.
+     */
+    public static void write(RegistrySnapshot snapshot, Path file) throws IOException {
+        Writer writer = new Writer();
+        writer.write(snapshot);
+
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, "snapshot", ".tmp");
+        try {
+            try (OutputStream output = Files.newOutputStream(temp)) {
+                ByteArrayOutputStream header = new ByteArrayOutputStream();
+                DataOutputStream data = new DataOutputStream(header);
+                data.writeInt(MAGIC);
+                data.writeInt(FORMAT);
+                data.writeInt(writer.strings.size());
+                for (String string : writer.strings.keySet()) {
+                    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                    data.writeInt(bytes.length);
+                    data.write(bytes);
+                }
+                CRC32 crc = new CRC32();
+                crc.update(header.toByteArray());
+                crc.update(writer.body.toByteArray());
+                header.writeTo(output);
+                writer.body.writeTo(output);
+                new DataOutputStream(output).writeInt((int) crc.getValue());
+            }
+            try {
+                Files.move(
+                        temp,
+                        file,
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Read a snapshot file, mapping it in memory.
+     *
+     * @param file The snapshot file.
+     * @param version The registry version to give to the snapshot.
+     * @throws IOException If the file can't be read or isn't a valid snapshot.
+     */
+    public static RegistrySnapshot read(Path file, long version) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                return new Reader(buffer).read(version);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new IOException("Truncated registry snapshot " + file, e);
+            }
+        }
+    }
+
+    private static final class Writer {
+
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final DataOutputStream data = new DataOutputStream(body);
+
+        void write(RegistrySnapshot snapshot) throws IOException {
+            data.writeInt(snapshot.listApis().size());
+            for (API api : snapshot.listApis()) {
+                string(api.getId());
+                revision(api.getRevision());
+                string(api.getName());
+                string(api.getContext());
+                string(api.getDescription());
+                string(snapshot.getDefinitionDigest(api.getId()));
+                map(api.getMeta());
+            }
+
+            Map<String, RestResource> restResources = new LinkedHashMap<>();
+            Map<String, String> restResourceApis = new HashMap<>();
+            for (API api : snapshot.listApis()) {
+                for (RestResource restResource : snapshot.listRestResources(api.getId())) {
+                    restResources.put(restResource.getId(), restResource);
+                    restResourceApis.put(restResource.getId(), api.getId());
+                }
+            }
+            data.writeInt(restResources.size());
+            for (RestResource restResource : restResources.values()) {
+                string(restResourceApis.get(restResource.getId()));
+                string(restResource.getId());
+                revision(restResource.getRevision());
+                string(restResource.getDescription());
+                string(restResource.getPath());
+                string(restResource.getMethod());
+                string(restResource.getVersion());
+                string(restResource.getAccept());
+                string(restResource.getMediaType());
+                string(restResource.getResponse());
+                string(restResource.getEndpoint());
+            }
+
+            data.writeInt(snapshot.listPolicies().size());
+            for (Policy policy : snapshot.listPolicies()) {
+                string(policy.getId());
+                revision(policy.getRevision());
+                string(policy.getDescription());
+                string(policy.getClassName());
+                map(policy.getMeta());
+            }
+
+            ByteArrayOutputStream appliedBody = new ByteArrayOutputStream();
+            DataOutputStream appliedData = new DataOutputStream(appliedBody);
+            int applied = 0;
+            for (String restResourceId : restResources.keySet()) {
+                for (Map.Entry<Integer, Policy> entry :
+                        snapshot.listAppliedPolicies(restResourceId).entrySet()) {
+                    appliedData.writeInt(index(restResourceId));
+                    appliedData.writeInt(index(entry.getValue().getId()));
+                    appliedData.writeInt(entry.getKey());
+                    Map<String, String> param = entry.getValue().getParam();
+                    appliedData.writeInt(param != null ? param.size() : 0);
+                    if (param != null) {
+                        for (Map.Entry<String, String> p : param.entrySet()) {
+                            appliedData.writeInt(index(p.getKey()));
+                            appliedData.writeInt(index(p.getValue()));
+                        }
+                    }
+                    applied++;
+                }
+            }
+            data.writeInt(applied);
+            appliedBody.writeTo(data);
+            data.flush();
+        }
+
+        private int index(String string) {
+            if (string == null) {
+                return -1;
+            }
+            return strings.computeIfAbsent(string, key -> strings.size());
+        }
+
+        private void string(String string) throws IOException {
+            data.writeInt(index(string));
+        }
+
+        private void revision(Long revision) throws IOException {
+            data.writeLong(revision != null ? revision : NO_REVISION);
+        }
+
+        private void map(Map<String, String> map) throws IOException {
+            data.writeInt(map != null ? map.size() : 0);
+            if (map != null) {
+                for (Map.Entry<String, String> entry : map.entrySet()) {
+                    string(entry.getKey());
+                    string(entry.getValue());
+                }
+            }
+        }
+    }
+
+    private static final class Reader {
+
+        private final ByteBuffer buffer;
+        private String[] strings;
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        RegistrySnapshot read(long version) throws IOException {
+            if (buffer.remaining() < 12 || buffer.getInt() != MAGIC) {
+                throw new IOException("Not a registry snapshot");
+            }
+            int format = buffer.getInt();
+            if (format != FORMAT) {
+                throw new IOException("Unsupported registry snapshot format " + format);
+            }
+            ByteBuffer content = buffer.duplicate();
+            content.position(0).limit(buffer.limit() - 4);
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            if ((int) crc.getValue() != buffer.getInt(buffer.limit() - 4)) {
+                throw new IOException("Corrupted registry snapshot");
+            }
+
+            strings = new String[buffer.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            RegistrySnapshot.Builder builder = new RegistrySnapshot.Builder();
+            for (int i = buffer.getInt(); i > 0; i--) {
+                API api = new API();
+                api.setId(string());
+                api.setRevision(revision());
+                api.setName(string());
+                api.setContext(string());
+                api.setDescription(string());
+                String digest = string();
+                api.setMeta(map());
+                builder.api(api);
+                builder.definitionDigest(api.getId(), digest);
+            }
+            for (int i = buffer.getInt(); i > 0; i--) {
+                String apiId = string();
+                RestResource restResource = new RestResource();
+                restResource.setId(string());
+                restResource.setRevision(revision());
+                restResource.setDescription(string());
+                restResource.setPath(string());
+                restResource.setMethod(string());
+                restResource.setVersion(string());
+                restResource.setAccept(string());
+                restResource.setMediaType(string());
+                restResource.setResponse(string());
+                restResource.setEndpoint(string());
+                builder.restResource(apiId, restResource);
+            }
+            for (int i = buffer.getInt(); i > 0; i--) {
+                Policy policy = new Policy();
+                policy.setId(string());
+                policy.setRevision(revision());
+                policy.setDescription(string());
+                policy.setClassName(string());
+                policy.setMeta(map());
+                builder.policy(policy);
+            }
+            for (int i = buffer.getInt(); i > 0; i--) {
+                String restResourceId = string();
+                String policyId = string();
+                int order = buffer.getInt();
+                builder.appliedPolicy(restResourceId, policyId, order, map());
+            }
+            return builder.build(version);
+        }
+
+        private String string() {
+            int index = buffer.getInt();
+            return index < 0 ? null : strings[index];
+        }
+
+        private Long revision() {
+            long revision = buffer.getLong();
+            return revision != NO_REVISION ? revision : null;
+        }
+
+        private Map<String, String> map() {
+            int size = buffer.getInt();
+            Map<String, String> map = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                map.put(string(), string());
+            }
+            return map;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.definition;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Content-addressed storage of the API definitions. A definition is identified by the SHA-256
+ * digest of its content, so storing the same definition twice keeps a single copy.
+ */
+public interface DefinitionStore {
+
+    /**
+     * Store a definition, reading the stream until its end without holding it in memory.
+     *
+     * @param inputStream The definition content.
+     * @return The SHA-256 digest of the content, as a lower case hex string.
+     */
+    String store(InputStream inputStream) throws IOException;
+
+    /**
+     * Open a stored definition.
+     *
+     * @param digest The definition digest.
+     * @return The definition content, or null if there's no definition for this digest.
+     */
+    InputStream open(String digest) throws IOException;
+
+    /**
+     * Open the gzip compressed content of a stored definition, as it's stored, so it can be sent
+     * without decompressing it.
+     *
+     * @param digest The definition digest.
+     * @return A channel on the compressed content, or null if there's no definition for this
+     *     digest.
+     */
+    FileChannel openCompressed(String digest) throws IOException;
+
+    /**
+     * Retrieve the uncompressed size of a stored definition.
+     *
+     * @param digest The definition digest.
+     * @return The size in bytes, or -1 if there's no definition for this digest.
+     */
+    long size(String digest) throws IOException;
+
+    /**
+     * Delete a stored definition, which must not be referenced anymore.
+     *
+     * @param digest The definition digest.
+     */
+    void delete(String digest) throws IOException;
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.definition;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+
+/**
+ * {@link DefinitionStore} keeping the definitions gzip compressed in a directory, by default {@code
+ * ${karaf.data}/vineyard/definitions}. The location can be changed with the {@code directory}
+ * property of the {@code org.apache.karaf.vineyard.registry.definition} configuration.
+ *
+ * <p>A definition is first written to a temporary file while its digest is computed, then moved to
+ * {@code <directory>/<first two digest chars>/<digest>.gz}, so a partially written definition is
+ * never visible.
+ */
+@Component(
+        service = DefinitionStore.class,
+        configurationPid = "org.apache.karaf.vineyard.registry.definition")
+public class FileDefinitionStore implements DefinitionStore {
+
+    private static final Pattern DIGEST = Pattern.compile("[0-9a-f]{64}");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int BUFFER_SIZE = 8192;
+
+    private Path directory;
+
+    public FileDefinitionStore() {}
+
+    public FileDefinitionStore(Path directory) {
+        this.directory = directory;
+    }
+
+    @Activate
+    public void activate(ComponentContext context) {
+        Object configured = context.getProperties().get("directory");
+        if (configured != null) {
+            directory = Paths.get(configured.toString());
+        } else {
+            String data = context.getBundleContext().getProperty("karaf.data");
+            directory = Paths.get(data != null ? data : "data", "vineyard", "definitions");
+        }
+    }
+
+    @Override
+    public String store(InputStream inputStream) throws IOException {
+        Files.createDirectories(directory);
+        MessageDigest messageDigest = newDigest();
+        Path temp = Files.createTempFile(directory, "upload", ".tmp");
+        try {
+            // the digest is computed on the uncompressed content
+            try (OutputStream output =
+                    new DigestOutputStream(
+                            new GZIPOutputStream(Files.newOutputStream(temp), BUFFER_SIZE),
+                            messageDigest)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = inputStream.read(buffer)) > -1) {
+                    output.write(buffer, 0, read);
+                }
+            }
+            String digest = toHex(messageDigest.digest());
+            Path target = path(digest);
+            if (Files.exists(target)) {
+                // same content already stored
+                return digest;
+            }
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                try {
+                    Files.move(temp, target);
+                } catch (FileAlreadyExistsException alreadyStored) {
+                    // stored concurrently
+                }
+            }
+            return digest;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Override
+    public InputStream open(String digest) throws IOException {
+        try {
+            return new GZIPInputStream(Files.newInputStream(path(digest)), BUFFER_SIZE);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public FileChannel openCompressed(String digest) throws IOException {
+        try {
+            return FileChannel.open(path(digest), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public long size(String digest) throws IOException {
+        try (FileChannel channel = openCompressed(digest)) {
+            if (channel == null) {
+                return -1;
+            }
+            // the gzip trailer ends with the uncompressed size (ISIZE), little endian. The store
+            // writes a single gzip member, so it's the size of the whole content modulo 2^32.
+            ByteBuffer trailer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            long position = channel.size() - 4;
+            while (trailer.hasRemaining()) {
+                if (channel.read(trailer, position + trailer.position()) < 0) {
+                    throw new EOFException("Truncated definition " + digest);
+                }
+            }
+            return trailer.getInt(0) & 0xffffffffL;
+        }
+    }
+
+    @Override
+    public void delete(String digest) throws IOException {
+        Files.deleteIfExists(path(digest));
+    }
+
+    private Path path(String digest) {
+        if (digest == null || !DIGEST.matcher(digest).matches()) {
+            throw new IllegalArgumentException("Invalid definition digest " + digest);
+        }
+        return directory.resolve(digest.substring(0, 2)).resolve(digest + ".gz");
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -19,35 +19,52 @@ package org.apache.karaf.vineyard.registry.entity;
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.Map;
-import javax.persistence.Basic;
 import javax.persistence.CascadeType;
 import javax.persistence.CollectionTable;
+import javax.persistence.Column;
 import javax.persistence.ElementCollection;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
 import javax.persistence.Id;
-import javax.persistence.Lob;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
+import javax.persistence.MapKeyColumn;
 import javax.persistence.OneToMany;
 import javax.persistence.Table;
+import javax.persistence.Version;
 
 @Entity
-@Table(name = "API", schema = "VINEYARD")
+@Table(
+        name = "API",
+        schema = "VINEYARD",
+        indexes = @Index(name = "API_CONTEXT_IDX", columnList = "CONTEXT"))
 public class ApiEntity implements Serializable {
 
     @Id private String id;
 
+    @Version
+    @Column(name = "REVISION", columnDefinition = "BIGINT DEFAULT 0")
+    private Long revision;
+
     private String name;
 
+    @Column(name = "CONTEXT")
     private String context;
 
     private String description;
 
-    @Lob
-    @Basic(fetch = FetchType.LAZY)
-    private byte[] definition;
+    /** SHA-256 digest of the definition in the {@code DefinitionStore}. */
+    @Column(name = "DEFINITION_DIGEST", length = 64)
+    private String definitionDigest;
 
-    @CollectionTable(name = "API_META", schema = "VINEYARD")
+    /** The columns are named explicitly, the bulk deletes use them in SQL. */
+    @CollectionTable(
+            name = "API_META",
+            schema = "VINEYARD",
+            joinColumns = @JoinColumn(name = "APIENTITY_ID"))
     @ElementCollection(fetch = FetchType.LAZY)
+    @MapKeyColumn(name = "META_KEY")
+    @Column(name = "META")
     private Map<String, String> meta;
 
     @OneToMany(mappedBy = "api", fetch = FetchType.LAZY, cascade = CascadeType.ALL)
@@ -61,6 +78,14 @@ public class ApiEntity implements Serializable {
         this.id = id;
     }
 
+    public Long getRevision() {
+        return revision;
+    }
+
+    public void setRevision(Long revision) {
+        this.revision = revision;
+    }
+
     public String getName() {
         return name;
     }
@@ -85,12 +110,12 @@ public class ApiEntity implements Serializable {
         this.description = description;
     }
 
-    public byte[] getDefinition() {
-        return definition;
+    public String getDefinitionDigest() {
+        return definitionDigest;
     }
 
-    public void setDefinition(byte[] definition) {
-        this.definition = definition;
+    public void setDefinitionDigest(String definitionDigest) {
+        this.definitionDigest = definitionDigest;
     }
 
     public Map<String, String> getMeta() {
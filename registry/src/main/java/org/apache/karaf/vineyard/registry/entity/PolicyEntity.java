@@ -21,12 +21,16 @@ import java.util.List;
 import java.util.Map;
 import javax.persistence.CascadeType;
 import javax.persistence.CollectionTable;
+import javax.persistence.Column;
 import javax.persistence.ElementCollection;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
 import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.MapKeyColumn;
 import javax.persistence.OneToMany;
 import javax.persistence.Table;
+import javax.persistence.Version;
 
 @Entity
 @Table(name = "POLICY", schema = "VINEYARD")
@@ -34,12 +38,22 @@ public class PolicyEntity implements Serializable {
 
     @Id private String id;
 
+    @Version
+    @Column(name = "REVISION", columnDefinition = "BIGINT DEFAULT 0")
+    private Long revision;
+
     private String description;
 
     private String className;
 
-    @CollectionTable(name = "POLICY_META", schema = "VINEYARD")
+    /** The columns are named explicitly, the bulk deletes use them in SQL. */
+    @CollectionTable(
+            name = "POLICY_META",
+            schema = "VINEYARD",
+            joinColumns = @JoinColumn(name = "POLICYENTITY_ID"))
     @ElementCollection(fetch = FetchType.LAZY)
+    @MapKeyColumn(name = "META_KEY")
+    @Column(name = "META")
     private Map<String, String> meta;
 
     @OneToMany(mappedBy = "policy", fetch = FetchType.LAZY, cascade = CascadeType.ALL)
@@ -53,6 +67,14 @@ public class PolicyEntity implements Serializable {
         this.id = id;
     }
 
+    public Long getRevision() {
+        return revision;
+    }
+
+    public void setRevision(Long revision) {
+        this.revision = revision;
+    }
+
     public String getDescription() {
         return description;
     }
@@ -24,12 +24,17 @@ import javax.persistence.ElementCollection;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
-import javax.persistence.PrimaryKeyJoinColumn;
+import javax.persistence.MapKeyColumn;
 import javax.persistence.Table;
 
 @Entity
-@Table(name = "POLICY_REST_RESOURCE_JOIN", schema = "VINEYARD")
+@Table(
+        name = "POLICY_REST_RESOURCE_JOIN",
+        schema = "VINEYARD",
+        indexes = @Index(name = "POLICY_REST_RESOURCE_JOIN_POLICY_IDX", columnList = "POLICY_ID"))
 public class PolicyRestResourceJoinEntity implements Serializable {
 
     @Column(name = "POLICY_ORDER")
@@ -37,16 +42,29 @@ public class PolicyRestResourceJoinEntity implements Serializable {
 
     @Id
     @ManyToOne
-    @PrimaryKeyJoinColumn(name = "REST_RESOURCE_ID", referencedColumnName = "ID")
+    @JoinColumn(name = "REST_RESOURCE_ID", referencedColumnName = "ID")
     private RestResourceEntity restResource;
 
     @Id
     @ManyToOne
-    @PrimaryKeyJoinColumn(name = "POLICY_ID", referencedColumnName = "ID")
+    @JoinColumn(name = "POLICY_ID", referencedColumnName = "ID")
     private PolicyEntity policy;
 
-    @CollectionTable(name = "POLICY_REST_RESOURCE_JOIN_PARAM", schema = "VINEYARD")
+    /** The columns are named explicitly, the bulk deletes use them in SQL. */
+    @CollectionTable(
+            name = "POLICY_REST_RESOURCE_JOIN_PARAM",
+            schema = "VINEYARD",
+            joinColumns = {
+                @JoinColumn(
+                        name = "POLICYRESTRESOURCEJOINENTITY_REST_RESOURCE_ID",
+                        referencedColumnName = "REST_RESOURCE_ID"),
+                @JoinColumn(
+                        name = "POLICYRESTRESOURCEJOINENTITY_POLICY_ID",
+                        referencedColumnName = "POLICY_ID")
+            })
     @ElementCollection(fetch = FetchType.LAZY)
+    @MapKeyColumn(name = "PARAM_KEY")
+    @Column(name = "PARAM")
     private Map<String, String> param;
 
     public int getPolicyOrder() {
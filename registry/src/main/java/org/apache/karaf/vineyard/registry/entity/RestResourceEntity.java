@@ -19,23 +19,45 @@ package org.apache.karaf.vineyard.registry.entity;
 import java.io.Serializable;
 import java.util.List;
 import javax.persistence.CascadeType;
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.OneToMany;
 import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import javax.persistence.Version;
 
 @Entity
-@Table(name = "REST_RESOURCE", schema = "VINEYARD")
+@Table(
+        name = "REST_RESOURCE",
+        schema = "VINEYARD",
+        indexes = @Index(name = "REST_RESOURCE_API_IDX", columnList = "API_ID"),
+        uniqueConstraints =
+                @UniqueConstraint(
+                        name = "REST_RESOURCE_ROUTE_UK",
+                        columnNames = {"CONTEXT", "PATH", "METHOD"}))
 public class RestResourceEntity implements Serializable {
 
     @Id private String id;
 
+    @Version
+    @Column(name = "REVISION", columnDefinition = "BIGINT DEFAULT 0")
+    private Long revision;
+
     private String description;
 
+    /** Copy of the context of the API, so the route of a resource is unique in the registry. */
+    @Column(name = "CONTEXT")
+    private String context;
+
+    @Column(name = "PATH")
     private String path;
 
+    @Column(name = "METHOD")
     private String method;
 
     private String version;
@@ -54,6 +76,7 @@ public class RestResourceEntity implements Serializable {
     private String endpoint;
 
     @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "API_ID")
     private ApiEntity api;
 
     public String getId() {
@@ -64,6 +87,14 @@ public class RestResourceEntity implements Serializable {
         this.id = id;
     }
 
+    public Long getRevision() {
+        return revision;
+    }
+
+    public void setRevision(Long revision) {
+        this.revision = revision;
+    }
+
     public ApiEntity getApi() {
         return api;
     }
@@ -72,6 +103,14 @@ public class RestResourceEntity implements Serializable {
         this.api = api;
     }
 
+    public String getContext() {
+        return context;
+    }
+
+    public void setContext(String context) {
+        this.context = context;
+    }
+
     public String getDescription() {
         return description;
     }
@@ -34,6 +34,7 @@ public class EntityMapper {
         if (entity != null) {
             API api = new API();
             api.setId(entity.getId());
+            api.setRevision(entity.getRevision());
             api.setContext(entity.getContext());
             api.setDescription(entity.getDescription());
             api.setName(entity.getName());
@@ -69,6 +70,9 @@ public class EntityMapper {
             entity.setResponse(restResource.getResponse());
             entity.setVersion(restResource.getVersion());
             entity.setApi(apiEntity);
+            if (apiEntity != null) {
+                entity.setContext(apiEntity.getContext());
+            }
             return entity;
         } else {
             return null;
@@ -79,6 +83,7 @@ public class EntityMapper {
         if (entity != null) {
             RestResource restResource = new RestResource();
             restResource.setId(entity.getId());
+            restResource.setRevision(entity.getRevision());
             restResource.setAccept(entity.getAccept());
             restResource.setDescription(entity.getDescription());
             restResource.setEndpoint(entity.getEndpoint());
@@ -97,6 +102,7 @@ public class EntityMapper {
         if (entity != null) {
             Policy policy = new Policy();
             policy.setId(entity.getId());
+            policy.setRevision(entity.getRevision());
             policy.setDescription(entity.getDescription());
             policy.setClassName(entity.getClassName());
             policy.setMeta(new HashMap<>());
@@ -114,7 +120,9 @@ public class EntityMapper {
             entity.setDescription(policy.getDescription());
             entity.setClassName(policy.getClassName());
             entity.setMeta(new HashMap<>());
-            policy.getMeta().forEach((key, value) -> entity.getMeta().put(key, value));
+            if (policy.getMeta() != null) {
+                policy.getMeta().forEach((key, value) -> entity.getMeta().put(key, value));
+            }
             return entity;
         } else {
             return null;
@@ -131,4 +139,59 @@ public class EntityMapper {
             return null;
         }
     }
+
+    /**
+     * Selected columns of an {@link ApiEntity} aliased {@code a}, read by {@link #mapApi}. The
+     * projections build the POJOs without instantiating (nor tracking) the entities.
+     */
+    public static final String API_COLUMNS = "a.id, a.revision, a.name, a.context, a.description";
+
+    /** Selected columns of a {@link RestResourceEntity} aliased {@code r}. */
+    public static final String REST_RESOURCE_COLUMNS =
+            "r.id, r.revision, r.description, r.path, r.method, r.version, r.accept, "
+                    + "r.mediaType, r.response, r.endpoint";
+
+    /** Selected columns of a {@link PolicyEntity} aliased {@code p}. */
+    public static final String POLICY_COLUMNS = "p.id, p.revision, p.description, p.className";
+
+    /** Map the {@link #API_COLUMNS} of a projection row, starting at a given column. */
+    public static API mapApi(Object[] row, int offset) {
+        API api = new API();
+        api.setId((String) row[offset]);
+        api.setRevision((Long) row[offset + 1]);
+        api.setName((String) row[offset + 2]);
+        api.setContext((String) row[offset + 3]);
+        api.setDescription((String) row[offset + 4]);
+        return api;
+    }
+
+    /** Map the {@link #REST_RESOURCE_COLUMNS} of a projection row, starting at a given column. */
+    public static RestResource mapRestResource(Object[] row, int offset) {
+        RestResource restResource = new RestResource();
+        restResource.setId((String) row[offset]);
+        restResource.setRevision((Long) row[offset + 1]);
+        restResource.setDescription((String) row[offset + 2]);
+        restResource.setPath((String) row[offset + 3]);
+        restResource.setMethod((String) row[offset + 4]);
+        restResource.setVersion((String) row[offset + 5]);
+        restResource.setAccept((String) row[offset + 6]);
+        restResource.setMediaType((String) row[offset + 7]);
+        restResource.setResponse((String) row[offset + 8]);
+        restResource.setEndpoint((String) row[offset + 9]);
+        return restResource;
+    }
+
+    /**
+     * Map the {@link #POLICY_COLUMNS} of a projection row, starting at a given column. The meta are
+     * empty, to be filled by a separate projection.
+     */
+    public static Policy mapPolicy(Object[] row, int offset) {
+        Policy policy = new Policy();
+        policy.setId((String) row[offset]);
+        policy.setRevision((Long) row[offset + 1]);
+        policy.setDescription((String) row[offset + 2]);
+        policy.setClassName((String) row[offset + 3]);
+        policy.setMeta(new HashMap<>());
+        return policy;
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.karaf.vineyard.common.RegistryChanges;
+import org.apache.karaf.vineyard.common.RegistryEvent;
+
+/**
+ * Bounded ring of the most recent {@link RegistryEvent}. Appending assigns the sequence numbers,
+ * readers resume from the last sequence they've seen and can wait for the next events.
+ */
+public class EventLog {
+
+    private final RegistryEvent[] ring;
+
+    /** Sequence of the last appended event, the first event gets 1. */
+    private long sequence;
+
+    public EventLog(int capacity) {
+        this.ring = new RegistryEvent[capacity];
+    }
+
+    /** Append events, in order, and wake up the waiting readers. */
+    public synchronized void append(List<RegistryEvent> events) {
+        for (RegistryEvent event : events) {
+            event.setSequence(++sequence);
+            ring[(int) (sequence % ring.length)] = event;
+        }
+        if (!events.isEmpty()) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Read the events following a sequence.
+     *
+     * @param after The last sequence seen by the reader.
+     * @param limit The maximum number of events to return.
+     * @param timeout How long to wait for an event when there's none yet, in milliseconds.
+     * @return The events, possibly none if the timeout expired.
+     */
+    public synchronized RegistryChanges read(long after, int limit, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (sequence == after && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+
+        RegistryChanges changes = new RegistryChanges();
+        changes.setSequence(sequence);
+        if (after > sequence) {
+            // unknown sequence, the registry has restarted since
+            changes.setComplete(false);
+            return changes;
+        }
+        long oldest = Math.max(1, sequence - ring.length + 1);
+        long from = after + 1;
+        if (from < oldest) {
+            changes.setComplete(false);
+            from = oldest;
+        }
+        List<RegistryEvent> events = new ArrayList<>();
+        for (long i = from; i <= sequence && events.size() < limit; i++) {
+            events.add(copyOf(ring[(int) (i % ring.length)]));
+        }
+        changes.setEvents(events);
+        return changes;
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    private static RegistryEvent copyOf(RegistryEvent event) {
+        RegistryEvent copy =
+                new RegistryEvent(event.getType(), event.getId(), event.getOperation());
+        copy.setSequence(event.getSequence());
+        copy.setVersion(event.getVersion());
+        return copy;
+    }
+}
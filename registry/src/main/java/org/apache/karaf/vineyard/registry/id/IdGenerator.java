@@ -0,0 +1,34 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.id;
+
+/**
+ * Generator of the IDs of the registry entities. The registry uses the highest ranked generator
+ * service, or a {@link UlidGenerator} when there's none.
+ *
+ * <p>The IDs are only compared as strings, so any format can be used, and the entities keep the IDs
+ * they were created with when the generator changes.
+ */
+public interface IdGenerator {
+
+    /**
+     * Generate a new ID.
+     *
+     * @return An ID never returned before.
+     */
+    String next();
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.id;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Generate <a href="https://github.com/ulid/spec">ULID</a>s: 26 characters encoding a 48 bits
+ * millisecond timestamp followed by 80 random bits, in Crockford's base 32.
+ *
+ * <p>The IDs sort as strings in creation order, so the new entities are appended at the end of the
+ * primary key indexes and the keyset pages follow the creation order. Within a millisecond, or if
+ * the clock goes back, the previous ID is incremented instead of drawing new random bits, so the
+ * IDs generated by an instance are strictly increasing. The generation is lock free.
+ */
+public class UlidGenerator implements IdGenerator {
+
+    private static final char[] ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+
+    private static final int LENGTH = 26;
+
+    private final AtomicReference<Ulid> last = new AtomicReference<>(new Ulid(0, 0));
+
+    @Override
+    public String next() {
+        while (true) {
+            Ulid previous = last.get();
+            long now = System.currentTimeMillis();
+            Ulid next;
+            if (now > previous.timestamp()) {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                next = new Ulid(now << 16 | random.nextInt(1 << 16), random.nextLong());
+            } else {
+                next = previous.increment();
+            }
+            if (last.compareAndSet(previous, next)) {
+                return next.toString();
+            }
+        }
+    }
+
+    /** A 128 bits ULID, as two longs. */
+    private static final class Ulid {
+
+        private final long high;
+        private final long low;
+
+        Ulid(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        long timestamp() {
+            return high >>> 16;
+        }
+
+        Ulid increment() {
+            // the carry of the random part overflows into the timestamp, which stays ordered
+            return low == -1L ? new Ulid(high + 1, 0) : new Ulid(high, low + 1);
+        }
+
+        @Override
+        public String toString() {
+            char[] chars = new char[LENGTH];
+            for (int i = 0; i < LENGTH; i++) {
+                // the first character holds the 3 highest bits, the others 5 bits each
+                int shift = 5 * (LENGTH - 1 - i);
+                long bits;
+                if (shift >= 64) {
+                    bits = high >>> (shift - 64);
+                } else if (shift > 59) {
+                    bits = low >>> shift | high << (64 - shift);
+                } else {
+                    bits = low >>> shift;
+                }
+                chars[i] = ALPHABET[(int) (bits & 31)];
+            }
+            return new String(chars);
+        }
+    }
+}
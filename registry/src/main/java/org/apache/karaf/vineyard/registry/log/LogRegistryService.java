@@ -0,0 +1,936 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.log;
+
+import static org.apache.karaf.vineyard.registry.RegistrySupport.checkRevision;
+import static org.apache.karaf.vineyard.registry.RegistrySupport.longProperty;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import org.apache.karaf.vineyard.common.API;
+import org.apache.karaf.vineyard.common.ChangeSet;
+import org.apache.karaf.vineyard.common.ChangeSetResult;
+import org.apache.karaf.vineyard.common.Policy;
+import org.apache.karaf.vineyard.common.RegistryChanges;
+import org.apache.karaf.vineyard.common.RegistryEvent;
+import org.apache.karaf.vineyard.common.RegistryService;
+import org.apache.karaf.vineyard.common.RestResource;
+import org.apache.karaf.vineyard.common.RouteConflictException;
+import org.apache.karaf.vineyard.registry.RegistrySupport;
+import org.apache.karaf.vineyard.registry.cache.RegistryCache;
+import org.apache.karaf.vineyard.registry.cache.RegistrySnapshot;
+import org.apache.karaf.vineyard.registry.cache.RegistrySnapshotService;
+import org.apache.karaf.vineyard.registry.cache.SnapshotFile;
+import org.apache.karaf.vineyard.registry.definition.DefinitionStore;
+import org.apache.karaf.vineyard.registry.event.EventLog;
+import org.apache.karaf.vineyard.registry.id.IdGenerator;
+import org.apache.karaf.vineyard.registry.id.UlidGenerator;
+import org.apache.karaf.vineyard.registry.metrics.RegistryMetrics;
+import org.osgi.framework.Constants;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.osgi.service.event.EventAdmin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implementation of the Registry service keeping the whole registry in memory, without database.
+ *
+ * <p>Each write is appended as a single checksummed record to a memory mapped {@link RegistryLog},
+ * and forced to the disk unless {@code sync} is false. Once the log is larger than {@code
+ * compaction.threshold} bytes (default 16 MB), checked every {@code compaction.interval} seconds
+ * (default 60), the registry is written to a base {@link SnapshotFile} and the log starts over. On
+ * start, the base is loaded and the log replayed.
+ *
+ * <p>The component starts with the {@code org.apache.karaf.vineyard.registry.log} configuration,
+ * which also sets the {@code directory} of the files (default {@code ${karaf.data}/vineyard/log}).
+ * Its {@code service.ranking} (default 10) puts it before the database registry. {@link
+ * #writeSnapshot()} compacts the log, the base is the registry snapshot.
+ */
+@Component(
+        service = {RegistryService.class, RegistrySnapshotService.class},
+        immediate = true,
+        configurationPid = "org.apache.karaf.vineyard.registry.log",
+        configurationPolicy = ConfigurationPolicy.REQUIRE,
+        property = Constants.SERVICE_RANKING + ":Integer=10")
+public class LogRegistryService implements RegistryService, RegistrySnapshotService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LogRegistryService.class);
+
+    private static final String LOG_FILE = "registry.log";
+
+    private static final String BASE_FILE = "registry.snapshot";
+
+    /** Number of recent events kept for the consumers of the change stream. */
+    private static final int EVENT_LOG_CAPACITY = 10000;
+
+    private static final long DEFAULT_COMPACTION_INTERVAL = 60;
+
+    private static final long DEFAULT_COMPACTION_THRESHOLD = 16 * 1024 * 1024;
+
+    @Reference private DefinitionStore definitionStore;
+
+    @Reference private RegistryMetrics metrics;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile EventAdmin eventAdmin;
+
+    @Reference(
+            cardinality = ReferenceCardinality.OPTIONAL,
+            policy = ReferencePolicy.DYNAMIC,
+            policyOption = ReferencePolicyOption.GREEDY)
+    private volatile IdGenerator idGenerator;
+
+    private final IdGenerator defaultIdGenerator = new UlidGenerator();
+
+    private final RegistryCache cache = new RegistryCache(this::loadSnapshot);
+
+    private final EventLog eventLog = new EventLog(EVENT_LOG_CAPACITY);
+
+    /** Guards the model and the log, the writes are serialized. */
+    private final Object lock = new Object();
+
+    /**
+     * Writes in the log, waiting to be applied to the snapshot in their order, see {@link #mutate}.
+     */
+    private final Queue<RegistryModel.Transaction> committed = new ArrayDeque<>();
+
+    /** Serializes the application of the committed writes to the snapshot. */
+    private final Object snapshotLock = new Object();
+
+    private RegistryModel model;
+
+    private RegistryLog log;
+
+    private Path directory;
+
+    private boolean sync;
+
+    private ScheduledExecutorService scheduler;
+
+    public LogRegistryService() {}
+
+    /**
+     * Registry used outside of a container (tools, benchmarks), {@link #open} it before use. It
+     * isn't activated: no compaction.
+     */
+    public LogRegistryService(DefinitionStore definitionStore, RegistryMetrics metrics) {
+        this.definitionStore = definitionStore;
+        this.metrics = metrics;
+    }
+
+    @Activate
+    public void activate(ComponentContext context) throws IOException {
+        Dictionary<String, Object> properties = context.getProperties();
+        Object configuredDirectory = properties.get("directory");
+        Path directory;
+        if (configuredDirectory != null) {
+            directory = Paths.get(configuredDirectory.toString());
+        } else {
+            String data = context.getBundleContext().getProperty("karaf.data");
+            directory = Paths.get(data != null ? data : "data", "vineyard", "log");
+        }
+        Object configuredSync = properties.get("sync");
+        open(directory, configuredSync == null || Boolean.parseBoolean(configuredSync.toString()));
+
+        long compactionInterval =
+                longProperty(properties, "compaction.interval", DEFAULT_COMPACTION_INTERVAL);
+        long compactionThreshold =
+                longProperty(properties, "compaction.threshold", DEFAULT_COMPACTION_THRESHOLD);
+        scheduler =
+                Executors.newSingleThreadScheduledExecutor(
+                        runnable -> {
+                            Thread thread = new Thread(runnable, "vineyard-registry-compaction");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        if (compactionInterval > 0) {
+            scheduler.scheduleWithFixedDelay(
+                    () -> compactIfLarger(compactionThreshold),
+                    compactionInterval,
+                    compactionInterval,
+                    TimeUnit.SECONDS);
+        }
+    }
+
+    @Deactivate
+    public void deactivate() throws IOException {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        close();
+    }
+
+    /**
+     * Load the base and replay the log of a directory.
+     *
+     * @param sync Force each write to the disk.
+     */
+    public void open(Path directory, boolean sync) throws IOException {
+        synchronized (lock) {
+            this.directory = directory;
+            this.sync = sync;
+            RegistryModel loaded = new RegistryModel();
+            Path base = directory.resolve(BASE_FILE);
+            if (Files.exists(base)) {
+                loaded.load(SnapshotFile.read(base, 0));
+            }
+            log = RegistryLog.open(directory.resolve(LOG_FILE), sync, loaded::replay);
+            model = loaded;
+            cache.invalidate();
+            LOGGER.info("Registry loaded from {}, log size {} bytes", directory, log.size());
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+        }
+    }
+
+    /**
+     * Write the registry to the base file and start a new log. A crash in between leaves the old
+     * log, replayed over the new base to the same registry.
+     */
+    @VisibleForTesting
+    protected void compact() throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            long size = log.size();
+            SnapshotFile.write(model.snapshot(cache.getVersion()), directory.resolve(BASE_FILE));
+            log.close();
+            log = null;
+            RegistryLog.reset(directory.resolve(LOG_FILE));
+            log = RegistryLog.open(directory.resolve(LOG_FILE), sync, payload -> {});
+            LOGGER.debug("Registry log of {} bytes compacted", size);
+        }
+    }
+
+    @Override
+    public Path writeSnapshot() throws IOException {
+        synchronized (lock) {
+            compact();
+            return directory.resolve(BASE_FILE);
+        }
+    }
+
+    private void compactIfLarger(long threshold) {
+        try {
+            synchronized (lock) {
+                if (log != null && log.size() > threshold) {
+                    compact();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Can't compact the registry log in {}", directory, e);
+        }
+    }
+
+    @Override
+    public API add(API api) {
+        api.setId(nextId());
+        mutate(
+                "add",
+                transaction -> {
+                    API added = RegistryModel.copyOf(api);
+                    // as the database registry, the meta are added separately
+                    added.setMeta(new HashMap<>());
+                    added.setRevision(0L);
+                    transaction.putApi(added, null);
+                    transaction.created(RegistryEvent.Type.API, api.getId());
+                });
+        return api;
+    }
+
+    @Override
+    public void definition(API api, InputStream inputStream) throws IOException {
+        synchronized (lock) {
+            if (model.getApi(api.getId()) == null) {
+                // don't store a definition nothing would reference
+                return;
+            }
+        }
+        String digest = definitionStore.store(inputStream);
+        AtomicBoolean stored = new AtomicBoolean();
+        mutate(
+                "definition",
+                transaction -> {
+                    API current = model.getApi(api.getId());
+                    if (current != null) {
+                        transaction.putApi(revised(current), digest);
+                        transaction.updated(RegistryEvent.Type.API, api.getId());
+                        stored.set(true);
+                    }
+                });
+        synchronized (lock) {
+            if (!stored.get() && !model.isDefinitionReferenced(digest)) {
+                // the API has been deleted meanwhile
+                definitionStore.delete(digest);
+            }
+        }
+    }
+
+    @Override
+    public String getDefinitionDigest(API api) {
+        return cache.get().getDefinitionDigest(api.getId());
+    }
+
+    @Override
+    public void delete(String id) {
+        delete(Collections.singletonList(id));
+    }
+
+    @Override
+    public void delete(Collection<String> ids) {
+        mutate(
+                "delete",
+                transaction -> {
+                    for (String id : ids) {
+                        deleteApi(transaction, id);
+                    }
+                });
+    }
+
+    @Override
+    public void update(API api) {
+        mutate("update", transaction -> updateApi(transaction, api));
+    }
+
+    @Override
+    public API get(String id) {
+        return cache.get().getApi(id);
+    }
+
+    @Override
+    public API getFull(String id) {
+        return cache.get().getApiTree(id);
+    }
+
+    @Override
+    public Collection<API> list() {
+        return cache.get().listApis();
+    }
+
+    @Override
+    public Collection<API> list(String after, int limit) {
+        return cache.get().listApis(after, limit);
+    }
+
+    @Override
+    public Collection<API> search(Map<String, Collection<String>> meta, String after, int limit) {
+        return cache.get().searchApis(meta, after, limit);
+    }
+
+    @Override
+    public List<API> searchText(String query, int limit) {
+        return cache.get().searchText(query, limit);
+    }
+
+    @Override
+    public void scan(Consumer<API> consumer) {
+        cache.get().listApis().forEach(consumer);
+    }
+
+    @Override
+    public void addMeta(API api, Map<String, String> meta) {
+        mutate(
+                "addMeta",
+                transaction -> {
+                    API current = model.getApi(api.getId());
+                    if (current != null) {
+                        checkRevision(api.getId(), api.getRevision(), current.getRevision());
+                        API updated = revised(current);
+                        updated.getMeta().putAll(meta);
+                        transaction.putApi(updated, model.getDefinitionDigest(api.getId()));
+                        transaction.updated(RegistryEvent.Type.API, api.getId());
+                    }
+                });
+    }
+
+    @Override
+    public void deleteMeta(API api, String key) {
+        mutate(
+                "deleteMeta",
+                transaction -> {
+                    API current = model.getApi(api.getId());
+                    if (current != null) {
+                        checkRevision(api.getId(), api.getRevision(), current.getRevision());
+                        API updated = revised(current);
+                        updated.getMeta().remove(key);
+                        transaction.putApi(updated, model.getDefinitionDigest(api.getId()));
+                        transaction.updated(RegistryEvent.Type.API, api.getId());
+                    }
+                });
+    }
+
+    @Override
+    public void updateMeta(API api, Map<String, String> meta) {
+        mutate(
+                "updateMeta",
+                transaction -> {
+                    API current = model.getApi(api.getId());
+                    if (current != null) {
+                        checkRevision(api.getId(), api.getRevision(), current.getRevision());
+                        API updated = revised(current);
+                        updated.setMeta(RegistryModel.copyOf(meta));
+                        transaction.putApi(updated, model.getDefinitionDigest(api.getId()));
+                        transaction.updated(RegistryEvent.Type.API, api.getId());
+                    }
+                });
+    }
+
+    @Override
+    public Map<String, String> getMeta(API api) {
+        API apiGet = get(api.getId());
+        if (apiGet != null) {
+            return apiGet.getMeta();
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public RestResource addRestResource(API api, RestResource restResource) {
+        restResource.setId(nextId());
+        mutate(
+                "addRestResource",
+                transaction -> {
+                    API current = model.getApi(api.getId());
+                    if (current != null) {
+                        addRestResource(transaction, current, restResource);
+                    }
+                });
+        return restResource;
+    }
+
+    @Override
+    public void deleteRestResource(API api, RestResource restResource) {
+        mutate(
+                "deleteRestResource",
+                transaction -> {
+                    if (Objects.equals(
+                            api.getId(), model.getRestResourceApi(restResource.getId()))) {
+                        deleteRestResource(transaction, restResource.getId());
+                    }
+                });
+    }
+
+    @Override
+    public Collection<RestResource> listRestResources(API api) {
+        return cache.get().listRestResources(api.getId());
+    }
+
+    @Override
+    public Collection<RestResource> listRestResources(API api, String after, int limit) {
+        return cache.get().listRestResources(api.getId(), after, limit);
+    }
+
+    @Override
+    public RestResource resolve(String context, String path, String method) {
+        return cache.get().resolve(context, path, method);
+    }
+
+    @Override
+    public RestResource getRestResource(String id) {
+        return cache.get().getRestResource(id);
+    }
+
+    @Override
+    public Collection<RestResource> listRestResources(Policy policy) {
+        return cache.get().listPolicyRestResources(policy.getId());
+    }
+
+    @Override
+    public Policy addPolicy(Policy policy) {
+        policy.setId(nextId());
+        mutate(
+                "addPolicy",
+                transaction -> {
+                    Policy added = RegistryModel.copyOf(policy);
+                    added.setRevision(0L);
+                    transaction.putPolicy(added);
+                    transaction.created(RegistryEvent.Type.POLICY, policy.getId());
+                });
+        return policy;
+    }
+
+    @Override
+    public void deletePolicy(String id) {
+        mutate("deletePolicy", transaction -> deletePolicy(transaction, id));
+    }
+
+    @Override
+    public Policy getPolicy(String id) {
+        return cache.get().getPolicy(id);
+    }
+
+    @Override
+    public Collection<Policy> listPolicies() {
+        return cache.get().listPolicies();
+    }
+
+    @Override
+    public Collection<Policy> listPolicies(String after, int limit) {
+        return cache.get().listPolicies(after, limit);
+    }
+
+    @Override
+    public Collection<Policy> searchPolicies(
+            Map<String, Collection<String>> meta, String after, int limit) {
+        return cache.get().searchPolicies(meta, after, limit);
+    }
+
+    @Override
+    public void scanPolicies(Consumer<Policy> consumer) {
+        cache.get().listPolicies().forEach(consumer);
+    }
+
+    @Override
+    public void applyPolicy(
+            String restResourceId, String policyId, int order, Map<String, String> params) {
+        applyPolicy(restResourceId, null, policyId, order, params);
+    }
+
+    @Override
+    public void applyPolicy(
+            String restResourceId,
+            Long revision,
+            String policyId,
+            int order,
+            Map<String, String> params) {
+        mutate(
+                "applyPolicy",
+                transaction -> {
+                    RestResource current = model.getRestResource(restResourceId);
+                    if (current == null) {
+                        return;
+                    }
+                    checkRevision(restResourceId, revision, current.getRevision());
+                    if (model.getPolicy(policyId) != null) {
+                        transaction.applyPolicy(
+                                restResourceId, policyId, new RegistryModel.Applied(order, params));
+                        touchRestResource(transaction, restResourceId);
+                    }
+                });
+    }
+
+    @Override
+    public void unapplyPolicy(String restResourceId, String policyId) {
+        mutate(
+                "unapplyPolicy",
+                transaction -> {
+                    if (model.getAppliedPolicy(restResourceId, policyId) != null) {
+                        transaction.unapplyPolicy(restResourceId, policyId);
+                        touchRestResource(transaction, restResourceId);
+                    }
+                });
+    }
+
+    @Override
+    public void unapplyPolicyFromAll(String policyId) {
+        mutate("unapplyPolicyFromAll", transaction -> unapplyPolicyFromAll(transaction, policyId));
+    }
+
+    @Override
+    public Map<Integer, Policy> listAppliedPolicies(RestResource restResource) {
+        return cache.get().listAppliedPolicies(restResource.getId());
+    }
+
+    @Override
+    public void addPolicyMeta(Policy policy, Map<String, String> meta) {
+        mutate(
+                "addPolicyMeta",
+                transaction -> {
+                    Policy current = model.getPolicy(policy.getId());
+                    if (current != null) {
+                        checkRevision(policy.getId(), policy.getRevision(), current.getRevision());
+                        Policy updated = revised(current);
+                        updated.getMeta().putAll(meta);
+                        transaction.putPolicy(updated);
+                        transaction.updated(RegistryEvent.Type.POLICY, policy.getId());
+                    }
+                });
+    }
+
+    @Override
+    public void deletePolicyMeta(Policy policy, String key) {
+        mutate(
+                "deletePolicyMeta",
+                transaction -> {
+                    Policy current = model.getPolicy(policy.getId());
+                    if (current != null) {
+                        checkRevision(policy.getId(), policy.getRevision(), current.getRevision());
+                        Policy updated = revised(current);
+                        updated.getMeta().remove(key);
+                        transaction.putPolicy(updated);
+                        transaction.updated(RegistryEvent.Type.POLICY, policy.getId());
+                    }
+                });
+    }
+
+    @Override
+    public void updatePolicyMeta(Policy policy, Map<String, String> meta) {
+        mutate(
+                "updatePolicyMeta",
+                transaction -> {
+                    Policy current = model.getPolicy(policy.getId());
+                    if (current != null) {
+                        checkRevision(policy.getId(), policy.getRevision(), current.getRevision());
+                        Policy updated = revised(current);
+                        updated.setMeta(RegistryModel.copyOf(meta));
+                        transaction.putPolicy(updated);
+                        transaction.updated(RegistryEvent.Type.POLICY, policy.getId());
+                    }
+                });
+    }
+
+    @Override
+    public Map<String, String> getPolicyMeta(Policy policy) {
+        Policy policyGet = getPolicy(policy.getId());
+        if (policyGet != null) {
+            return policyGet.getMeta();
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public ChangeSetResult commit(ChangeSet changeSet) {
+        ChangeSetResult result = new ChangeSetResult();
+        mutate(
+                "commit",
+                transaction -> {
+                    Map<String, String> policies = new HashMap<>();
+                    for (Policy policy : changeSet.getPolicies()) {
+                        Policy added = RegistryModel.copyOf(policy);
+                        added.setId(nextId());
+                        added.setRevision(0L);
+                        transaction.putPolicy(added);
+                        transaction.created(RegistryEvent.Type.POLICY, added.getId());
+                        if (policy.getId() != null) {
+                            policies.put(policy.getId(), added.getId());
+                            result.getPolicies().put(policy.getId(), added.getId());
+                        }
+                    }
+
+                    for (API api : changeSet.getApis()) {
+                        API added = RegistryModel.copyOf(api);
+                        added.setId(nextId());
+                        added.setRevision(0L);
+                        transaction.putApi(added, null);
+                        transaction.created(RegistryEvent.Type.API, added.getId());
+                        if (api.getId() != null) {
+                            result.getApis().put(api.getId(), added.getId());
+                        }
+                        addRestResources(
+                                transaction, added, api.getRestResources(), policies, result);
+                    }
+
+                    changeSet
+                            .getRestResources()
+                            .forEach(
+                                    (apiId, restResources) -> {
+                                        API current = model.getApi(apiId);
+                                        if (current == null) {
+                                            throw new IllegalArgumentException(
+                                                    "API " + apiId + " doesn't exist");
+                                        }
+                                        addRestResources(
+                                                transaction,
+                                                current,
+                                                restResources,
+                                                policies,
+                                                result);
+                                    });
+
+                    for (API api : changeSet.getUpdatedApis()) {
+                        updateApi(transaction, api);
+                    }
+
+                    for (String id : changeSet.getDeletedRestResources()) {
+                        deleteRestResource(transaction, id);
+                    }
+                    for (String id : changeSet.getDeletedApis()) {
+                        deleteApi(transaction, id);
+                    }
+                    for (String id : changeSet.getDeletedPolicies()) {
+                        deletePolicy(transaction, id);
+                    }
+                });
+        return result;
+    }
+
+    @Override
+    public RegistryChanges changes(long after, int limit, long timeout)
+            throws InterruptedException {
+        return eventLog.read(after, limit, timeout);
+    }
+
+    /** Update the API details, we don't update the ID or the resources and meta. */
+    private void updateApi(RegistryModel.Transaction transaction, API api) {
+        API current = model.getApi(api.getId());
+        if (current == null) {
+            return;
+        }
+        checkRevision(api.getId(), api.getRevision(), current.getRevision());
+        if (!Objects.equals(current.getContext(), api.getContext())) {
+            for (String restResourceId : model.listRestResources(api.getId())) {
+                RestResource restResource = model.getRestResource(restResourceId);
+                checkRoute(api.getContext(), restResource, api.getId());
+            }
+        }
+        API updated = revised(current);
+        updated.setName(api.getName());
+        updated.setContext(api.getContext());
+        updated.setDescription(api.getDescription());
+        transaction.putApi(updated, model.getDefinitionDigest(api.getId()));
+        transaction.updated(RegistryEvent.Type.API, api.getId());
+    }
+
+    private void deleteApi(RegistryModel.Transaction transaction, String id) {
+        if (model.getApi(id) == null) {
+            return;
+        }
+        for (String restResourceId : model.listRestResources(id)) {
+            deleteRestResource(transaction, restResourceId);
+        }
+        transaction.removeApi(id);
+        transaction.deleted(RegistryEvent.Type.API, id);
+    }
+
+    private void addRestResource(
+            RegistryModel.Transaction transaction, API api, RestResource restResource) {
+        checkRoute(api.getContext(), restResource, null);
+        RestResource added = RegistryModel.copyOf(restResource);
+        added.setRevision(0L);
+        transaction.putRestResource(api.getId(), added);
+        transaction.created(RegistryEvent.Type.REST_RESOURCE, added.getId());
+    }
+
+    private void addRestResources(
+            RegistryModel.Transaction transaction,
+            API api,
+            Collection<RestResource> restResources,
+            Map<String, String> policies,
+            ChangeSetResult result) {
+        if (restResources == null) {
+            return;
+        }
+        for (RestResource restResource : restResources) {
+            RestResource added = RegistryModel.copyOf(restResource);
+            added.setId(nextId());
+            addRestResource(transaction, api, added);
+            if (restResource.getId() != null) {
+                result.getRestResources().put(restResource.getId(), added.getId());
+            }
+            if (restResource.getPolicies() == null) {
+                continue;
+            }
+            restResource
+                    .getPolicies()
+                    .forEach(
+                            (order, policy) -> {
+                                String policyId = policies.get(policy.getId());
+                                if (policyId == null && model.getPolicy(policy.getId()) != null) {
+                                    policyId = policy.getId();
+                                }
+                                if (policyId == null) {
+                                    throw new IllegalArgumentException(
+                                            "Policy " + policy.getId() + " doesn't exist");
+                                }
+                                transaction.applyPolicy(
+                                        added.getId(),
+                                        policyId,
+                                        new RegistryModel.Applied(order, policy.getParam()));
+                            });
+        }
+    }
+
+    private void deleteRestResource(RegistryModel.Transaction transaction, String id) {
+        if (model.getRestResource(id) == null) {
+            return;
+        }
+        for (String policyId : model.listAppliedPolicies(id)) {
+            transaction.unapplyPolicy(id, policyId);
+        }
+        transaction.removeRestResource(id);
+        transaction.deleted(RegistryEvent.Type.REST_RESOURCE, id);
+    }
+
+    private void deletePolicy(RegistryModel.Transaction transaction, String id) {
+        if (model.getPolicy(id) == null) {
+            return;
+        }
+        unapplyPolicyFromAll(transaction, id);
+        transaction.removePolicy(id);
+        transaction.deleted(RegistryEvent.Type.POLICY, id);
+    }
+
+    private void unapplyPolicyFromAll(RegistryModel.Transaction transaction, String policyId) {
+        for (String restResourceId : model.listPolicyRestResources(policyId)) {
+            transaction.unapplyPolicy(restResourceId, policyId);
+            touchRestResource(transaction, restResourceId);
+        }
+    }
+
+    /** The policies are part of the resource, a change bumps its revision. */
+    private void touchRestResource(RegistryModel.Transaction transaction, String id) {
+        RestResource updated = RegistryModel.copyOf(model.getRestResource(id));
+        updated.setRevision(next(updated.getRevision()));
+        transaction.putRestResource(model.getRestResourceApi(id), updated);
+        transaction.updated(RegistryEvent.Type.REST_RESOURCE, id);
+    }
+
+    /** Same as the database unique key, a route with a null part never conflicts. */
+    private void checkRoute(String context, RestResource restResource, String apiId) {
+        String owner = model.getRoute(context, restResource.getPath(), restResource.getMethod());
+        if (owner != null && (apiId == null || !apiId.equals(model.getRestResourceApi(owner)))) {
+            throw new RouteConflictException(
+                    "A resource already serves "
+                            + restResource.getMethod()
+                            + " "
+                            + context
+                            + restResource.getPath());
+        }
+    }
+
+    /**
+     * Run a write holding the lock. Its operations are appended to the log once it succeeds, a
+     * failed write is undone.
+     *
+     * <p>The write is then applied to the cached snapshot and its changes are published, out of the
+     * lock. The writes are queued in the log order, and applied in that order by the writer taking
+     * the snapshot lock: when this returns, the write and the previous ones are visible to the
+     * reads.
+     */
+    private void mutate(String operation, Consumer<RegistryModel.Transaction> code) {
+        long start = System.nanoTime();
+        RegistryModel.Transaction transaction;
+        synchronized (lock) {
+            checkOpen();
+            transaction = model.new Transaction();
+            try {
+                code.accept(transaction);
+                if (!transaction.isEmpty()) {
+                    log.append(transaction.toRecord());
+                    committed.add(transaction);
+                }
+            } catch (IOException e) {
+                transaction.rollback();
+                metrics.record(operation, System.nanoTime() - start, 0, e);
+                throw new UncheckedIOException(e);
+            } catch (RuntimeException e) {
+                transaction.rollback();
+                metrics.record(operation, System.nanoTime() - start, 0, e);
+                throw e;
+            }
+        }
+        if (!transaction.isEmpty()) {
+            applyCommitted();
+        }
+        metrics.record(operation, System.nanoTime() - start, transaction.getEvents().size(), null);
+    }
+
+    private void applyCommitted() {
+        synchronized (snapshotLock) {
+            while (true) {
+                RegistryModel.Transaction transaction;
+                synchronized (lock) {
+                    transaction = committed.poll();
+                }
+                if (transaction == null) {
+                    return;
+                }
+                long version;
+                try {
+                    version = cache.update(transaction.getPatch());
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Can't patch the registry snapshot, it will be loaded again", e);
+                    version = cache.invalidate();
+                }
+                RegistrySupport.publish(transaction.getEvents(), version, eventLog, eventAdmin);
+            }
+        }
+    }
+
+    /** Build the snapshot from the whole model, when none is loaded. */
+    private RegistrySnapshot loadSnapshot(long version) {
+        long start = System.nanoTime();
+        RegistrySnapshot snapshot;
+        synchronized (lock) {
+            checkOpen();
+            snapshot = model.snapshot(version);
+        }
+        metrics.record("loadSnapshot", System.nanoTime() - start, snapshot.size(), null);
+        return snapshot;
+    }
+
+    private void checkOpen() {
+        if (log == null) {
+            throw new IllegalStateException("The registry log is closed");
+        }
+    }
+
+    private static API revised(API api) {
+        API copy = RegistryModel.copyOf(api);
+        copy.setRevision(next(api.getRevision()));
+        return copy;
+    }
+
+    private static Policy revised(Policy policy) {
+        Policy copy = RegistryModel.copyOf(policy);
+        copy.setRevision(next(policy.getRevision()));
+        return copy;
+    }
+
+    private static Long next(Long revision) {
+        return revision != null ? revision + 1 : 0L;
+    }
+
+    private String nextId() {
+        return RegistrySupport.nextId(idGenerator, defaultIdGenerator);
+    }
+}
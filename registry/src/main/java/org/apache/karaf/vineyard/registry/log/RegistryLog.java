@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append only file of the {@link LogRegistryService} writes, mapped in memory.
+ *
+ * <p>The file starts with a magic number and the format version, followed by the records: the
+ * length of the payload, its CRC32, then the payload. The mapping is doubled when it's full, the
+ * space after the last record being zeros. When opening the log, the records are read up to the
+ * first zero length or damaged record, which is where a crash interrupted a write, and the next
+ * records overwrite it.
+ */
+final class RegistryLog implements Closeable {
+
+    private static final int MAGIC = 0x56594c47;
+
+    private static final int FORMAT = 1;
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final int INITIAL_SIZE = 1 << 20;
+
+    /** Consumer of the records read when opening the log. */
+    interface Replay {
+        void record(byte[] payload) throws IOException;
+    }
+
+    private final Path file;
+
+    private final boolean sync;
+
+    private final FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    private RegistryLog(Path file, boolean sync, FileChannel channel) {
+        this.file = file;
+        this.sync = sync;
+        this.channel = channel;
+    }
+
+    /**
+     * Open a log, creating it if it doesn't exist, and read its records.
+     *
+     * @param file The log file.
+     * @param sync Force each record to the disk before {@link #append} returns.
+     * @param replay Consumer of the records, in the order they were written.
+     * @throws IOException If the file can't be read or isn't a registry log.
+     */
+    static RegistryLog open(Path file, boolean sync, Replay replay) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        FileChannel channel =
+                FileChannel.open(
+                        file,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+        RegistryLog log = new RegistryLog(file, sync, channel);
+        try {
+            log.map(Math.max(channel.size(), INITIAL_SIZE));
+            log.read(replay);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return log;
+    }
+
+    /**
+     * Replace a log by an empty one. The new file is written aside then moved, so a crash leaves
+     * either the old or the new log.
+     */
+    static void reset(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, "log", ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(FORMAT).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(
+                        temp,
+                        file,
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /** Append a record, forcing it to the disk if the log is synchronous. */
+    void append(byte[] payload) throws IOException {
+        int size = RECORD_HEADER_SIZE + payload.length;
+        if (buffer.remaining() < size + RECORD_HEADER_SIZE) {
+            // keep room for the zero length ending the records
+            long capacity = buffer.capacity();
+            while (capacity - buffer.position() < size + RECORD_HEADER_SIZE) {
+                capacity *= 2;
+            }
+            int position = buffer.position();
+            map(capacity);
+            buffer.position(position);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        int start = buffer.position();
+        // the length is written last, a record is never seen before it's complete
+        buffer.position(start + 4);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        buffer.putInt(start, payload.length);
+        if (sync) {
+            buffer.force();
+        }
+    }
+
+    /** @return The size of the records, from the start of the file. */
+    long size() {
+        return buffer.position();
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    private void map(long capacity) throws IOException {
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("Registry log " + file + " is full");
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void read(Replay replay) throws IOException {
+        if (buffer.getInt(0) == 0) {
+            buffer.putInt(MAGIC).putInt(FORMAT);
+        } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT) {
+            throw new IOException(file + " is not a registry log");
+        }
+        int position = HEADER_SIZE;
+        boolean damaged = false;
+        while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || length > buffer.capacity() - position - RECORD_HEADER_SIZE) {
+                damaged = true;
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.position(position + RECORD_HEADER_SIZE);
+            buffer.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                damaged = true;
+                break;
+            }
+            replay.record(payload);
+            position += RECORD_HEADER_SIZE + length;
+        }
+        if (damaged) {
+            // clear what an interrupted write left, so it's never taken for a record
+            for (int i = position; i < buffer.capacity(); i++) {
+                buffer.put(i, (byte) 0);
+            }
+            buffer.force();
+        }
+        buffer.position(position);
+    }
+}
@@ -0,0 +1,665 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+import org.apache.karaf.vineyard.common.API;
+import org.apache.karaf.vineyard.common.Policy;
+import org.apache.karaf.vineyard.common.RegistryEvent;
+import org.apache.karaf.vineyard.common.RestResource;
+import org.apache.karaf.vineyard.registry.cache.RegistrySnapshot;
+
+/**
+ * Registry held in memory by the {@link LogRegistryService}.
+ *
+ * <p>It's only changed by primitive operations setting or removing a whole API, resource, policy or
+ * applied policy. They don't depend on the previous state, so replaying the log over a base which
+ * already contains some of its records gives the same registry. The stored objects are never
+ * changed in place, a change puts a new copy.
+ */
+final class RegistryModel {
+
+    private static final byte PUT_API = 1;
+    private static final byte REMOVE_API = 2;
+    private static final byte PUT_REST_RESOURCE = 3;
+    private static final byte REMOVE_REST_RESOURCE = 4;
+    private static final byte PUT_POLICY = 5;
+    private static final byte REMOVE_POLICY = 6;
+    private static final byte APPLY_POLICY = 7;
+    private static final byte UNAPPLY_POLICY = 8;
+
+    private static final long NO_REVISION = Long.MIN_VALUE;
+
+    private final Map<String, API> apis = new HashMap<>();
+    private final Map<String, String> definitionDigests = new HashMap<>();
+    private final Map<String, RestResource> restResources = new HashMap<>();
+    private final Map<String, String> restResourceApis = new HashMap<>();
+    private final Map<String, Set<String>> apiRestResources = new HashMap<>();
+
+    /** (context, path, method) → resource ID, for the route conflicts. */
+    private final Map<List<String>, String> routes = new HashMap<>();
+
+    private final Map<String, Policy> policies = new HashMap<>();
+
+    /** Resource ID → policy ID → applied policy, holding only the order and the parameters. */
+    private final Map<String, Map<String, Applied>> appliedPolicies = new HashMap<>();
+
+    private final Map<String, Set<String>> policyRestResources = new HashMap<>();
+
+    API getApi(String id) {
+        return apis.get(id);
+    }
+
+    String getDefinitionDigest(String apiId) {
+        return definitionDigests.get(apiId);
+    }
+
+    boolean isDefinitionReferenced(String digest) {
+        return definitionDigests.containsValue(digest);
+    }
+
+    RestResource getRestResource(String id) {
+        return restResources.get(id);
+    }
+
+    String getRestResourceApi(String restResourceId) {
+        return restResourceApis.get(restResourceId);
+    }
+
+    List<String> listRestResources(String apiId) {
+        return new ArrayList<>(apiRestResources.getOrDefault(apiId, Collections.emptySet()));
+    }
+
+    /** @return The ID of the resource serving a route, null if it's free. */
+    String getRoute(String context, String path, String method) {
+        List<String> route = route(context, path, method);
+        return route != null ? routes.get(route) : null;
+    }
+
+    Policy getPolicy(String id) {
+        return policies.get(id);
+    }
+
+    Applied getAppliedPolicy(String restResourceId, String policyId) {
+        return appliedPolicies.getOrDefault(restResourceId, Collections.emptyMap()).get(policyId);
+    }
+
+    List<String> listAppliedPolicies(String restResourceId) {
+        return new ArrayList<>(
+                appliedPolicies.getOrDefault(restResourceId, Collections.emptyMap()).keySet());
+    }
+
+    List<String> listPolicyRestResources(String policyId) {
+        return new ArrayList<>(policyRestResources.getOrDefault(policyId, Collections.emptySet()));
+    }
+
+    /** Freeze the registry in a {@link RegistrySnapshot}. */
+    RegistrySnapshot snapshot(long version) {
+        RegistrySnapshot.Builder builder = new RegistrySnapshot.Builder();
+        apis.values().forEach(builder::api);
+        definitionDigests.forEach(builder::definitionDigest);
+        restResources.forEach(
+                (id, restResource) -> builder.restResource(restResourceApis.get(id), restResource));
+        policies.values().forEach(builder::policy);
+        appliedPolicies.forEach(
+                (restResourceId, applied) ->
+                        applied.forEach(
+                                (policyId, policy) ->
+                                        builder.appliedPolicy(
+                                                restResourceId,
+                                                policyId,
+                                                policy.order,
+                                                policy.param)));
+        return builder.build(version);
+    }
+
+    /** Load the content of a snapshot, usually the base the log was compacted to. */
+    void load(RegistrySnapshot snapshot) {
+        for (API api : snapshot.listApis()) {
+            putApi(api, snapshot.getDefinitionDigest(api.getId()));
+            for (RestResource restResource : snapshot.listRestResources(api.getId())) {
+                putRestResource(api.getId(), restResource);
+            }
+        }
+        snapshot.listPolicies().forEach(this::putPolicy);
+        for (String restResourceId : restResources.keySet()) {
+            snapshot.listAppliedPolicies(restResourceId)
+                    .forEach(
+                            (order, policy) ->
+                                    applyPolicy(
+                                            restResourceId,
+                                            policy.getId(),
+                                            new Applied(order, policy.getParam())));
+        }
+    }
+
+    /** Apply the operations of a log record. */
+    void replay(byte[] record) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+        while (input.available() > 0) {
+            byte operation = input.readByte();
+            switch (operation) {
+                case PUT_API:
+                    API api = readApi(input);
+                    putApi(api, readString(input));
+                    break;
+                case REMOVE_API:
+                    removeApi(readString(input));
+                    break;
+                case PUT_REST_RESOURCE:
+                    String apiId = readString(input);
+                    putRestResource(apiId, readRestResource(input));
+                    break;
+                case REMOVE_REST_RESOURCE:
+                    removeRestResource(readString(input));
+                    break;
+                case PUT_POLICY:
+                    putPolicy(readPolicy(input));
+                    break;
+                case REMOVE_POLICY:
+                    removePolicy(readString(input));
+                    break;
+                case APPLY_POLICY:
+                    String restResourceId = readString(input);
+                    String policyId = readString(input);
+                    int order = input.readInt();
+                    applyPolicy(restResourceId, policyId, new Applied(order, readMap(input)));
+                    break;
+                case UNAPPLY_POLICY:
+                    String appliedRestResourceId = readString(input);
+                    unapplyPolicy(appliedRestResourceId, readString(input));
+                    break;
+                default:
+                    throw new IOException("Unknown registry log operation " + operation);
+            }
+        }
+    }
+
+    private void putApi(API api, String digest) {
+        API previous = apis.put(api.getId(), api);
+        if (digest != null) {
+            definitionDigests.put(api.getId(), digest);
+        } else {
+            definitionDigests.remove(api.getId());
+        }
+        if (previous != null && !Objects.equals(previous.getContext(), api.getContext())) {
+            Set<String> ids = apiRestResources.getOrDefault(api.getId(), Collections.emptySet());
+            ids.forEach(id -> removeRoute(previous.getContext(), restResources.get(id)));
+            ids.forEach(id -> addRoute(api.getContext(), restResources.get(id)));
+        }
+    }
+
+    /** Remove an API, its resources are removed by the previous operations. */
+    private void removeApi(String id) {
+        apis.remove(id);
+        definitionDigests.remove(id);
+        apiRestResources.remove(id);
+    }
+
+    private void putRestResource(String apiId, RestResource restResource) {
+        RestResource previous = restResources.put(restResource.getId(), restResource);
+        if (previous != null) {
+            String previousApiId = restResourceApis.get(previous.getId());
+            removeRoute(getContext(previousApiId), previous);
+            apiRestResources
+                    .getOrDefault(previousApiId, Collections.emptySet())
+                    .remove(previous.getId());
+        }
+        restResourceApis.put(restResource.getId(), apiId);
+        apiRestResources
+                .computeIfAbsent(apiId, key -> new LinkedHashSet<>())
+                .add(restResource.getId());
+        addRoute(getContext(apiId), restResource);
+    }
+
+    /** Remove a resource, its applied policies are removed by the previous operations. */
+    private void removeRestResource(String id) {
+        RestResource previous = restResources.remove(id);
+        if (previous != null) {
+            String apiId = restResourceApis.remove(id);
+            removeRoute(getContext(apiId), previous);
+            apiRestResources.getOrDefault(apiId, Collections.emptySet()).remove(id);
+        }
+    }
+
+    private void putPolicy(Policy policy) {
+        policies.put(policy.getId(), policy);
+    }
+
+    /** Remove a policy, its applications are removed by the previous operations. */
+    private void removePolicy(String id) {
+        policies.remove(id);
+    }
+
+    private void applyPolicy(String restResourceId, String policyId, Applied applied) {
+        appliedPolicies
+                .computeIfAbsent(restResourceId, key -> new HashMap<>())
+                .put(policyId, applied);
+        policyRestResources
+                .computeIfAbsent(policyId, key -> new LinkedHashSet<>())
+                .add(restResourceId);
+    }
+
+    private void unapplyPolicy(String restResourceId, String policyId) {
+        Map<String, Applied> applied = appliedPolicies.get(restResourceId);
+        if (applied != null) {
+            applied.remove(policyId);
+            if (applied.isEmpty()) {
+                appliedPolicies.remove(restResourceId);
+            }
+        }
+        Set<String> ids = policyRestResources.get(policyId);
+        if (ids != null) {
+            ids.remove(restResourceId);
+            if (ids.isEmpty()) {
+                policyRestResources.remove(policyId);
+            }
+        }
+    }
+
+    private String getContext(String apiId) {
+        API api = apis.get(apiId);
+        return api != null ? api.getContext() : null;
+    }
+
+    private void addRoute(String context, RestResource restResource) {
+        List<String> route = route(context, restResource.getPath(), restResource.getMethod());
+        if (route != null) {
+            routes.put(route, restResource.getId());
+        }
+    }
+
+    private void removeRoute(String context, RestResource restResource) {
+        List<String> route = route(context, restResource.getPath(), restResource.getMethod());
+        if (route != null) {
+            routes.remove(route, restResource.getId());
+        }
+    }
+
+    /** Same as the database unique key, a route with a null part never conflicts. */
+    private static List<String> route(String context, String path, String method) {
+        if (context == null || path == null || method == null) {
+            return null;
+        }
+        return Arrays.asList(context, path, method);
+    }
+
+    static API copyOf(API api) {
+        API copy = new API();
+        copy.setId(api.getId());
+        copy.setRevision(api.getRevision());
+        copy.setName(api.getName());
+        copy.setContext(api.getContext());
+        copy.setDescription(api.getDescription());
+        copy.setMeta(copyOf(api.getMeta()));
+        return copy;
+    }
+
+    static RestResource copyOf(RestResource restResource) {
+        RestResource copy = new RestResource();
+        copy.setId(restResource.getId());
+        copy.setRevision(restResource.getRevision());
+        copy.setDescription(restResource.getDescription());
+        copy.setPath(restResource.getPath());
+        copy.setMethod(restResource.getMethod());
+        copy.setVersion(restResource.getVersion());
+        copy.setAccept(restResource.getAccept());
+        copy.setMediaType(restResource.getMediaType());
+        copy.setResponse(restResource.getResponse());
+        copy.setEndpoint(restResource.getEndpoint());
+        return copy;
+    }
+
+    static Policy copyOf(Policy policy) {
+        Policy copy = new Policy();
+        copy.setId(policy.getId());
+        copy.setRevision(policy.getRevision());
+        copy.setDescription(policy.getDescription());
+        copy.setClassName(policy.getClassName());
+        copy.setMeta(copyOf(policy.getMeta()));
+        return copy;
+    }
+
+    static Map<String, String> copyOf(Map<String, String> map) {
+        return map == null ? new HashMap<>() : new HashMap<>(map);
+    }
+
+    private static void writeApi(DataOutput output, API api) throws IOException {
+        writeString(output, api.getId());
+        writeRevision(output, api.getRevision());
+        writeString(output, api.getName());
+        writeString(output, api.getContext());
+        writeString(output, api.getDescription());
+        writeMap(output, api.getMeta());
+    }
+
+    private static API readApi(DataInput input) throws IOException {
+        API api = new API();
+        api.setId(readString(input));
+        api.setRevision(readRevision(input));
+        api.setName(readString(input));
+        api.setContext(readString(input));
+        api.setDescription(readString(input));
+        api.setMeta(readMap(input));
+        return api;
+    }
+
+    private static void writeRestResource(DataOutput output, RestResource restResource)
+            throws IOException {
+        writeString(output, restResource.getId());
+        writeRevision(output, restResource.getRevision());
+        writeString(output, restResource.getDescription());
+        writeString(output, restResource.getPath());
+        writeString(output, restResource.getMethod());
+        writeString(output, restResource.getVersion());
+        writeString(output, restResource.getAccept());
+        writeString(output, restResource.getMediaType());
+        writeString(output, restResource.getResponse());
+        writeString(output, restResource.getEndpoint());
+    }
+
+    private static RestResource readRestResource(DataInput input) throws IOException {
+        RestResource restResource = new RestResource();
+        restResource.setId(readString(input));
+        restResource.setRevision(readRevision(input));
+        restResource.setDescription(readString(input));
+        restResource.setPath(readString(input));
+        restResource.setMethod(readString(input));
+        restResource.setVersion(readString(input));
+        restResource.setAccept(readString(input));
+        restResource.setMediaType(readString(input));
+        restResource.setResponse(readString(input));
+        restResource.setEndpoint(readString(input));
+        return restResource;
+    }
+
+    private static void writePolicy(DataOutput output, Policy policy) throws IOException {
+        writeString(output, policy.getId());
+        writeRevision(output, policy.getRevision());
+        writeString(output, policy.getDescription());
+        writeString(output, policy.getClassName());
+        writeMap(output, policy.getMeta());
+    }
+
+    private static Policy readPolicy(DataInput input) throws IOException {
+        Policy policy = new Policy();
+        policy.setId(readString(input));
+        policy.setRevision(readRevision(input));
+        policy.setDescription(readString(input));
+        policy.setClassName(readString(input));
+        policy.setMeta(readMap(input));
+        return policy;
+    }
+
+    private static void writeString(DataOutput output, String string) throws IOException {
+        if (string == null) {
+            output.writeInt(-1);
+        } else {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    private static String readString(DataInput input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeRevision(DataOutput output, Long revision) throws IOException {
+        output.writeLong(revision != null ? revision : NO_REVISION);
+    }
+
+    private static Long readRevision(DataInput input) throws IOException {
+        long revision = input.readLong();
+        return revision != NO_REVISION ? revision : null;
+    }
+
+    private static void writeMap(DataOutput output, Map<String, String> map) throws IOException {
+        Map<String, String> entries = map != null ? map : Collections.emptyMap();
+        output.writeInt(entries.size());
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            writeString(output, entry.getKey());
+            writeString(output, entry.getValue());
+        }
+    }
+
+    private static Map<String, String> readMap(DataInput input) throws IOException {
+        int size = input.readInt();
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(readString(input), readString(input));
+        }
+        return map;
+    }
+
+    /** Order and parameters of a policy applied to a resource. */
+    static final class Applied {
+
+        final int order;
+
+        final Map<String, String> param;
+
+        Applied(int order, Map<String, String> param) {
+            this.order = order;
+            this.param = copyOf(param);
+        }
+    }
+
+    /**
+     * Operations of a write, collected in a log record and in a patch of the registry snapshot.
+     * They're applied to the model right away, so the write sees its own changes, and undone in
+     * reverse order if the write fails.
+     */
+    final class Transaction {
+
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        private final DataOutputStream output = new DataOutputStream(record);
+        private final Deque<Runnable> undo = new ArrayDeque<>();
+        private final List<RegistryEvent> events = new ArrayList<>();
+        private final List<Consumer<RegistrySnapshot.Builder>> patch = new ArrayList<>();
+
+        void putApi(API api, String digest) {
+            API previous = apis.get(api.getId());
+            String previousDigest = definitionDigests.get(api.getId());
+            undo.push(
+                    previous != null
+                            ? () -> RegistryModel.this.putApi(previous, previousDigest)
+                            : () -> RegistryModel.this.removeApi(api.getId()));
+            RegistryModel.this.putApi(api, digest);
+            patch.add(builder -> builder.api(api).definitionDigest(api.getId(), digest));
+            write(PUT_API);
+            write(() -> writeApi(output, api));
+            write(() -> writeString(output, digest));
+        }
+
+        void removeApi(String id) {
+            API previous = apis.get(id);
+            if (previous == null) {
+                return;
+            }
+            String previousDigest = definitionDigests.get(id);
+            undo.push(() -> RegistryModel.this.putApi(previous, previousDigest));
+            RegistryModel.this.removeApi(id);
+            patch.add(builder -> builder.removeApi(id));
+            write(REMOVE_API);
+            write(() -> writeString(output, id));
+        }
+
+        void putRestResource(String apiId, RestResource restResource) {
+            RestResource previous = restResources.get(restResource.getId());
+            String previousApiId = restResourceApis.get(restResource.getId());
+            undo.push(
+                    previous != null
+                            ? () -> RegistryModel.this.putRestResource(previousApiId, previous)
+                            : () -> RegistryModel.this.removeRestResource(restResource.getId()));
+            RegistryModel.this.putRestResource(apiId, restResource);
+            patch.add(builder -> builder.restResource(apiId, restResource));
+            write(PUT_REST_RESOURCE);
+            write(() -> writeString(output, apiId));
+            write(() -> writeRestResource(output, restResource));
+        }
+
+        void removeRestResource(String id) {
+            RestResource previous = restResources.get(id);
+            if (previous == null) {
+                return;
+            }
+            String previousApiId = restResourceApis.get(id);
+            undo.push(() -> RegistryModel.this.putRestResource(previousApiId, previous));
+            RegistryModel.this.removeRestResource(id);
+            patch.add(builder -> builder.removeRestResource(id));
+            write(REMOVE_REST_RESOURCE);
+            write(() -> writeString(output, id));
+        }
+
+        void putPolicy(Policy policy) {
+            Policy previous = policies.get(policy.getId());
+            undo.push(
+                    previous != null
+                            ? () -> RegistryModel.this.putPolicy(previous)
+                            : () -> RegistryModel.this.removePolicy(policy.getId()));
+            RegistryModel.this.putPolicy(policy);
+            patch.add(builder -> builder.policy(policy));
+            write(PUT_POLICY);
+            write(() -> writePolicy(output, policy));
+        }
+
+        void removePolicy(String id) {
+            Policy previous = policies.get(id);
+            if (previous == null) {
+                return;
+            }
+            undo.push(() -> RegistryModel.this.putPolicy(previous));
+            RegistryModel.this.removePolicy(id);
+            patch.add(builder -> builder.removePolicy(id));
+            write(REMOVE_POLICY);
+            write(() -> writeString(output, id));
+        }
+
+        void applyPolicy(String restResourceId, String policyId, Applied applied) {
+            Applied previous = getAppliedPolicy(restResourceId, policyId);
+            undo.push(
+                    previous != null
+                            ? () ->
+                                    RegistryModel.this.applyPolicy(
+                                            restResourceId, policyId, previous)
+                            : () -> RegistryModel.this.unapplyPolicy(restResourceId, policyId));
+            RegistryModel.this.applyPolicy(restResourceId, policyId, applied);
+            patch.add(
+                    builder ->
+                            builder.appliedPolicy(
+                                    restResourceId, policyId, applied.order, applied.param));
+            write(APPLY_POLICY);
+            write(() -> writeString(output, restResourceId));
+            write(() -> writeString(output, policyId));
+            write(() -> output.writeInt(applied.order));
+            write(() -> writeMap(output, applied.param));
+        }
+
+        void unapplyPolicy(String restResourceId, String policyId) {
+            Applied previous = getAppliedPolicy(restResourceId, policyId);
+            if (previous == null) {
+                return;
+            }
+            undo.push(() -> RegistryModel.this.applyPolicy(restResourceId, policyId, previous));
+            RegistryModel.this.unapplyPolicy(restResourceId, policyId);
+            patch.add(builder -> builder.unapplyPolicy(restResourceId, policyId));
+            write(UNAPPLY_POLICY);
+            write(() -> writeString(output, restResourceId));
+            write(() -> writeString(output, policyId));
+        }
+
+        void created(RegistryEvent.Type type, String id) {
+            events.add(new RegistryEvent(type, id, RegistryEvent.Operation.CREATED));
+        }
+
+        void updated(RegistryEvent.Type type, String id) {
+            events.add(new RegistryEvent(type, id, RegistryEvent.Operation.UPDATED));
+        }
+
+        void deleted(RegistryEvent.Type type, String id) {
+            events.add(new RegistryEvent(type, id, RegistryEvent.Operation.DELETED));
+        }
+
+        List<RegistryEvent> getEvents() {
+            return events;
+        }
+
+        /** Replay the operations on a builder of the registry snapshot. */
+        Consumer<RegistrySnapshot.Builder> getPatch() {
+            return builder -> patch.forEach(step -> step.accept(builder));
+        }
+
+        boolean isEmpty() {
+            return record.size() == 0;
+        }
+
+        byte[] toRecord() {
+            return record.toByteArray();
+        }
+
+        /** Undo the operations, leaving the model as it was before the write. */
+        void rollback() {
+            while (!undo.isEmpty()) {
+                undo.pop().run();
+            }
+        }
+
+        private void write(byte operation) {
+            write(() -> output.writeByte(operation));
+        }
+
+        private void write(Encoder encoder) {
+            try {
+                encoder.encode();
+            } catch (IOException e) {
+                // not expected from an in memory stream
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private interface Encoder {
+        void encode() throws IOException;
+    }
+}
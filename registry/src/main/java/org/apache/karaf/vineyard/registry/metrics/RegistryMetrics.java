@@ -0,0 +1,332 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.metrics;
+
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.sql.DataSource;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+
+/**
+ * Latency, rows and errors of the registry operations, with the statistics of the registry
+ * DataSource pool. It's exported to JMX by the Karaf MBean whiteboard, and in the Prometheus text
+ * format by the {@code /metrics} REST endpoint.
+ */
+@Component(
+        service = {RegistryMetrics.class, RegistryMetricsMBean.class},
+        property = "jmx.objectname=org.apache.karaf.vineyard:type=registry,name=metrics")
+public class RegistryMetrics implements RegistryMetricsMBean {
+
+    /** Upper bounds of the latency histogram buckets, in milliseconds. */
+    private static final long[] BUCKETS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 10000};
+
+    /** Derby lock timeout, and deadlock (also the standard serialization failure). */
+    private static final String[] LOCK_SQL_STATES = {"40XL1", "40001"};
+
+    private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+
+    private final AtomicLong lockTimeouts = new AtomicLong();
+
+    @Reference(
+            cardinality = ReferenceCardinality.OPTIONAL,
+            policy = ReferencePolicy.DYNAMIC,
+            target = "(osgi.jndi.service.name=jdbc/vineyard)")
+    private volatile DataSource dataSource;
+
+    /**
+     * Record a call of an operation.
+     *
+     * @param operation The operation name.
+     * @param nanos The duration of the call, in nanoseconds.
+     * @param rows The number of rows read or written.
+     * @param error The failure of the call, or null if it succeeded.
+     */
+    public void record(String operation, long nanos, int rows, Throwable error) {
+        operations.computeIfAbsent(operation, name -> new Operation()).record(nanos, rows, error);
+        if (error != null && isLockFailure(error)) {
+            lockTimeouts.incrementAndGet();
+        }
+    }
+
+    @Override
+    public String[] getOperations() {
+        return operations.keySet().stream().sorted().toArray(String[]::new);
+    }
+
+    @Override
+    public long getCount(String operation) {
+        Operation metrics = operations.get(operation);
+        return metrics != null ? metrics.count.get() : 0;
+    }
+
+    @Override
+    public long getErrors(String operation) {
+        Operation metrics = operations.get(operation);
+        return metrics != null ? metrics.errors.get() : 0;
+    }
+
+    @Override
+    public long getRows(String operation) {
+        Operation metrics = operations.get(operation);
+        return metrics != null ? metrics.rows.get() : 0;
+    }
+
+    @Override
+    public double getMeanLatencyMillis(String operation) {
+        Operation metrics = operations.get(operation);
+        if (metrics == null || metrics.count.get() == 0) {
+            return 0;
+        }
+        return toMillis(metrics.nanos.get()) / metrics.count.get();
+    }
+
+    @Override
+    public double getMaxLatencyMillis(String operation) {
+        Operation metrics = operations.get(operation);
+        return metrics != null ? toMillis(metrics.maxNanos.get()) : 0;
+    }
+
+    @Override
+    public long getLockTimeouts() {
+        return lockTimeouts.get();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        Number value = poolStatistic("getNumActive");
+        return value != null ? value.intValue() : -1;
+    }
+
+    @Override
+    public int getIdleConnections() {
+        Number value = poolStatistic("getNumIdle");
+        return value != null ? value.intValue() : -1;
+    }
+
+    @Override
+    public double getMeanConnectionWaitMillis() {
+        Number value = poolStatistic("getMeanBorrowWaitTimeMillis");
+        return value != null ? value.doubleValue() : -1;
+    }
+
+    @Override
+    public String scrape() {
+        StringBuilder text = new StringBuilder();
+        Map<String, Operation> sorted = new TreeMap<>(operations);
+
+        header(
+                text,
+                "vineyard_registry_operation_seconds",
+                "histogram",
+                "Latency of the registry operations.");
+        sorted.forEach(
+                (name, metrics) -> {
+                    long cumulated = 0;
+                    for (int i = 0; i < BUCKETS.length; i++) {
+                        cumulated += metrics.buckets.get(i);
+                        sample(
+                                text,
+                                "vineyard_registry_operation_seconds_bucket",
+                                name,
+                                ",le=\"" + seconds(BUCKETS[i]) + "\"",
+                                cumulated);
+                    }
+                    sample(
+                            text,
+                            "vineyard_registry_operation_seconds_bucket",
+                            name,
+                            ",le=\"+Inf\"",
+                            metrics.count.get());
+                    sample(
+                            text,
+                            "vineyard_registry_operation_seconds_sum",
+                            name,
+                            "",
+                            metrics.nanos.get() / 1e9);
+                    sample(
+                            text,
+                            "vineyard_registry_operation_seconds_count",
+                            name,
+                            "",
+                            metrics.count.get());
+                });
+
+        header(
+                text,
+                "vineyard_registry_operation_rows_total",
+                "counter",
+                "Rows read or written by the registry operations.");
+        sorted.forEach(
+                (name, metrics) ->
+                        sample(
+                                text,
+                                "vineyard_registry_operation_rows_total",
+                                name,
+                                "",
+                                metrics.rows.get()));
+
+        header(
+                text,
+                "vineyard_registry_operation_errors_total",
+                "counter",
+                "Failed calls of the registry operations.");
+        sorted.forEach(
+                (name, metrics) ->
+                        sample(
+                                text,
+                                "vineyard_registry_operation_errors_total",
+                                name,
+                                "",
+                                metrics.errors.get()));
+
+        header(
+                text,
+                "vineyard_registry_lock_timeouts_total",
+                "counter",
+                "Transactions failed on a database lock timeout or deadlock.");
+        text.append("vineyard_registry_lock_timeouts_total ")
+                .append(lockTimeouts.get())
+                .append('\n');
+
+        int active = getActiveConnections();
+        int idle = getIdleConnections();
+        if (active >= 0 || idle >= 0) {
+            header(
+                    text,
+                    "vineyard_registry_datasource_connections",
+                    "gauge",
+                    "Connections of the registry DataSource pool.");
+            if (active >= 0) {
+                text.append("vineyard_registry_datasource_connections{state=\"active\"} ")
+                        .append(active)
+                        .append('\n');
+            }
+            if (idle >= 0) {
+                text.append("vineyard_registry_datasource_connections{state=\"idle\"} ")
+                        .append(idle)
+                        .append('\n');
+            }
+        }
+        double wait = getMeanConnectionWaitMillis();
+        if (wait >= 0) {
+            header(
+                    text,
+                    "vineyard_registry_datasource_wait_seconds",
+                    "gauge",
+                    "Mean time waited for a connection of the registry DataSource.");
+            text.append("vineyard_registry_datasource_wait_seconds ")
+                    .append(wait / 1000)
+                    .append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(
+            StringBuilder text, String name, String operation, String labels, Object value) {
+        text.append(name)
+                .append("{operation=\"")
+                .append(operation)
+                .append('"')
+                .append(labels)
+                .append("} ")
+                .append(value)
+                .append('\n');
+    }
+
+    private static String seconds(long millis) {
+        return String.format(Locale.ROOT, "%.3f", millis / 1000.0);
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static boolean isLockFailure(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException) {
+                for (SQLException e = (SQLException) cause; e != null; e = e.getNextException()) {
+                    for (String state : LOCK_SQL_STATES) {
+                        if (state.equals(e.getSQLState())) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read a statistic of the DataSource pool. The pools don't share an interface for them, the
+     * getters are looked up by name (DBCP2 and Commons Pool naming).
+     */
+    private Number poolStatistic(String getter) {
+        DataSource dataSource = this.dataSource;
+        if (dataSource == null) {
+            return null;
+        }
+        try {
+            Method method = dataSource.getClass().getMethod(getter);
+            Object value = method.invoke(dataSource);
+            return value instanceof Number ? (Number) value : null;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Counters of a single operation. */
+    private static class Operation {
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length);
+
+        void record(long duration, int rowCount, Throwable error) {
+            count.incrementAndGet();
+            if (error != null) {
+                errors.incrementAndGet();
+            }
+            rows.addAndGet(rowCount);
+            nanos.addAndGet(duration);
+            maxNanos.accumulateAndGet(duration, Math::max);
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (duration <= TimeUnit.MILLISECONDS.toNanos(BUCKETS[i])) {
+                    buckets.incrementAndGet(i);
+                    break;
+                }
+            }
+        }
+    }
+}
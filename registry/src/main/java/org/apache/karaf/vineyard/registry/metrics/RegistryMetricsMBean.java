@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.metrics;
+
+/** JMX view of the {@link RegistryMetrics}. */
+public interface RegistryMetricsMBean {
+
+    /** Names of the registry operations recorded so far. */
+    String[] getOperations();
+
+    /** Number of calls of an operation. */
+    long getCount(String operation);
+
+    /** Number of failed calls of an operation. */
+    long getErrors(String operation);
+
+    /** Number of rows read or written by an operation. */
+    long getRows(String operation);
+
+    /** Mean latency of an operation, in milliseconds. */
+    double getMeanLatencyMillis(String operation);
+
+    /** Highest latency of an operation, in milliseconds. */
+    double getMaxLatencyMillis(String operation);
+
+    /** Number of transactions which failed on a database lock timeout or deadlock. */
+    long getLockTimeouts();
+
+    /** Connections of the registry DataSource in use, -1 if the pool doesn't tell. */
+    int getActiveConnections();
+
+    /** Idle connections of the registry DataSource, -1 if the pool doesn't tell. */
+    int getIdleConnections();
+
+    /**
+     * Mean time waited for a connection of the registry DataSource, -1 if the pool doesn't tell.
+     */
+    double getMeanConnectionWaitMillis();
+
+    /** All the metrics in the Prometheus text exposition format. */
+    String scrape();
+}
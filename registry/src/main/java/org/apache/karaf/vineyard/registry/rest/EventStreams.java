@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.rest;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+import org.apache.karaf.vineyard.common.RegistryChanges;
+import org.apache.karaf.vineyard.common.RegistryEvent;
+import org.apache.karaf.vineyard.common.RegistryService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server-sent events streams of the registry changes. A single thread waits for the changes and
+ * hands them to the event sinks, which write them asynchronously: an open stream holds no request
+ * thread. Each event has its sequence as ID, so a reconnecting client resumes with the
+ * Last-Event-ID header. When events have been missed, a "reset" event carrying the current sequence
+ * tells the client to reload the registry.
+ */
+class EventStreams {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventStreams.class);
+
+    /** Delay after which an idle event stream sends a comment, so proxies keep it open. */
+    private static final long HEARTBEAT_INTERVAL = 15000;
+
+    private static final int EVENTS_BATCH_SIZE = 100;
+
+    private final RegistryService registry;
+
+    private final Set<Stream> streams = ConcurrentHashMap.newKeySet();
+
+    private Thread thread;
+
+    private boolean closed;
+
+    EventStreams(RegistryService registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Stream the changes following a sequence to a sink, starting with the ones already in the
+     * event log.
+     */
+    void open(SseEventSink sink, Sse sse, long after) {
+        Stream stream = new Stream(sink, sse, after);
+        synchronized (this) {
+            if (closed) {
+                sink.close();
+                return;
+            }
+            if (thread == null) {
+                thread = new Thread(this::run, "vineyard-registry-events");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            streams.add(stream);
+        }
+        stream.catchUp();
+    }
+
+    /** Stop the thread and close the open streams. */
+    synchronized void close() {
+        closed = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        streams.forEach(stream -> stream.sink.close());
+        streams.clear();
+    }
+
+    private void run() {
+        try {
+            long sequence = registry.changes(0, 1, 0).getSequence();
+            while (!Thread.currentThread().isInterrupted()) {
+                RegistryChanges changes = registry.changes(sequence, 1, HEARTBEAT_INTERVAL);
+                boolean idle = changes.getSequence() == sequence;
+                sequence = changes.getSequence();
+                for (Stream stream : streams) {
+                    if (stream.sink.isClosed()) {
+                        streams.remove(stream);
+                    } else if (idle) {
+                        stream.send(stream.sse.newEventBuilder().comment("heartbeat").build());
+                    } else {
+                        stream.catchUp();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOGGER.warn("The registry events streams have stopped", e);
+            close();
+        }
+    }
+
+    /** A client stream, and the last sequence sent to it. */
+    private class Stream {
+
+        private final SseEventSink sink;
+        private final Sse sse;
+        private long sequence;
+
+        Stream(SseEventSink sink, Sse sse, long sequence) {
+            this.sink = sink;
+            this.sse = sse;
+            this.sequence = sequence;
+        }
+
+        /** Send the events the client hasn't seen yet, without waiting for new ones. */
+        synchronized void catchUp() {
+            try {
+                RegistryChanges changes;
+                do {
+                    changes = registry.changes(sequence, EVENTS_BATCH_SIZE, 0);
+                    if (!changes.isComplete()) {
+                        send(
+                                sse.newEventBuilder()
+                                        .name("reset")
+                                        .data(String.valueOf(changes.getSequence()))
+                                        .build());
+                        if (changes.getEvents().isEmpty()) {
+                            sequence = changes.getSequence();
+                        }
+                    }
+                    for (RegistryEvent event : changes.getEvents()) {
+                        send(
+                                sse.newEventBuilder()
+                                        .id(String.valueOf(event.getSequence()))
+                                        .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                                        .data(RegistryEvent.class, event)
+                                        .build());
+                        sequence = event.getSequence();
+                    }
+                } while (changes.getEvents().size() == EVENTS_BATCH_SIZE && !sink.isClosed());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /** Queue an event on the sink, a failed write closes the stream. */
+        void send(OutboundSseEvent event) {
+            if (sink.isClosed()) {
+                streams.remove(this);
+                return;
+            }
+            sink.send(event)
+                    .whenComplete(
+                            (result, error) -> {
+                                if (error != null) {
+                                    streams.remove(this);
+                                    sink.close();
+                                }
+                            });
+        }
+    }
+}
@@ -18,28 +18,70 @@ package org.apache.karaf.vineyard.registry.rest;
 
 import io.swagger.v3.oas.annotations.servers.Server;
 import io.swagger.v3.oas.annotations.tags.*;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.annotation.Annotation;
 import java.net.URI;
-import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.ws.rs.BadRequestException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Providers;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
 import org.apache.cxf.jaxrs.ext.multipart.Multipart;
 import org.apache.cxf.jaxrs.ext.multipart.MultipartBody;
 import org.apache.cxf.rs.security.cors.CrossOriginResourceSharing;
 import org.apache.karaf.vineyard.common.API;
+import org.apache.karaf.vineyard.common.AsyncRegistryService;
+import org.apache.karaf.vineyard.common.ChangeSet;
+import org.apache.karaf.vineyard.common.ChangeSetResult;
 import org.apache.karaf.vineyard.common.Policy;
+import org.apache.karaf.vineyard.common.RegistryChanges;
 import org.apache.karaf.vineyard.common.RegistryService;
 import org.apache.karaf.vineyard.common.RestResource;
+import org.apache.karaf.vineyard.common.RouteConflictException;
+import org.apache.karaf.vineyard.common.VersionConflictException;
+import org.apache.karaf.vineyard.registry.cache.RegistrySnapshotService;
+import org.apache.karaf.vineyard.registry.definition.DefinitionStore;
+import org.apache.karaf.vineyard.registry.metrics.RegistryMetricsMBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,24 +94,65 @@ public class RegistryServiceRest {
 
     private static Logger LOGGER = LoggerFactory.getLogger(RegistryServiceRest.class);
 
+    private static final String META_PARAMETER = "meta.";
+
+    private static final Pattern BYTE_RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    /** Media type of the Prometheus text exposition format. */
+    private static final String METRICS_TEXT = "text/plain; version=0.0.4";
+
+    /** Longest wait of a long polling request for the events, in milliseconds. */
+    private static final long MAX_EVENTS_TIMEOUT = 60000;
+
+    /** Delay suggested to the clients when the registry is saturated, in seconds. */
+    private static final int RETRY_AFTER_SECONDS = 1;
+
     private RegistryService registry;
 
+    private AsyncRegistryService asyncRegistry;
+
+    private DefinitionStore definitionStore;
+
+    private RegistryMetricsMBean metrics;
+
+    private RegistrySnapshotService snapshotService;
+
+    private EventStreams eventStreams;
+
     public void setRegistry(RegistryService registry) {
         this.registry = registry;
     }
 
+    public void setAsyncRegistry(AsyncRegistryService asyncRegistry) {
+        this.asyncRegistry = asyncRegistry;
+    }
+
+    public void setDefinitionStore(DefinitionStore definitionStore) {
+        this.definitionStore = definitionStore;
+    }
+
+    public void setMetrics(RegistryMetricsMBean metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setSnapshotService(RegistrySnapshotService snapshotService) {
+        this.snapshotService = snapshotService;
+    }
+
     @Path("/api")
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
     @Tag(name = "Api")
-    public Response addApi(API api) throws Exception {
+    public void addApi(API api, @Suspended AsyncResponse asyncResponse) {
 
-        API newApi = registry.add(api);
-        try {
-            return Response.created(new URI("/api/" + newApi.getId())).build();
-        } catch (URISyntaxException e) {
-            return Response.serverError().build();
-        }
+        resume(
+                asyncResponse,
+                asyncRegistry
+                        .add(api)
+                        .thenApply(
+                                newApi ->
+                                        Response.created(URI.create("/api/" + newApi.getId()))
+                                                .build()));
     }
 
     @Path("/api/{id}/upload-definition")
@@ -77,51 +160,224 @@ public class RegistryServiceRest {
     @Consumes(MediaType.MULTIPART_FORM_DATA)
     @Multipart(value = "root", type = MediaType.APPLICATION_OCTET_STREAM)
     @Tag(name = "Api")
-    public Response uploadDefinitionApi(@PathParam("id") String id, MultipartBody body) {
+    public void uploadDefinitionApi(
+            @PathParam("id") String id,
+            MultipartBody body,
+            @Suspended AsyncResponse asyncResponse) {
+
+        API api = registry.get(id);
+        if (api == null) {
+            asyncResponse.resume(Response.status(Response.Status.NOT_FOUND).build());
+            return;
+        }
+        resume(
+                asyncResponse,
+                asyncRegistry.call(
+                        registry -> {
+                            try (InputStream inputStream =
+                                    body.getRootAttachment().getDataHandler().getInputStream()) {
+                                registry.definition(api, inputStream);
+                            } catch (Exception exception) {
+                                return Response.status(
+                                                Response.Status.UNSUPPORTED_MEDIA_TYPE
+                                                        .getStatusCode(),
+                                                exception.getMessage())
+                                        .build();
+                            }
+                            return Response.ok().build();
+                        }));
+    }
+
+    @Path("/api/{id}/definition")
+    @PUT
+    @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+    @Tag(name = "Api")
+    public void putDefinitionApi(
+            @PathParam("id") String id,
+            InputStream inputStream,
+            @Suspended AsyncResponse asyncResponse) {
 
         API api = registry.get(id);
-        try (InputStream inputStream = body.getRootAttachment().getDataHandler().getInputStream()) {
-            registry.definition(api, inputStream);
-        } catch (Exception exception) {
-            return Response.status(
-                            Response.Status.UNSUPPORTED_MEDIA_TYPE.getStatusCode(),
-                            exception.getMessage())
+        if (api == null) {
+            asyncResponse.resume(Response.status(Response.Status.NOT_FOUND).build());
+            return;
+        }
+        // the request body is passed as is to the definition store, without being buffered
+        resume(
+                asyncResponse,
+                asyncRegistry.call(
+                        registry -> {
+                            try {
+                                registry.definition(api, inputStream);
+                            } catch (Exception exception) {
+                                LOGGER.warn("Can't store the definition of API {}", id, exception);
+                                return Response.serverError().build();
+                            }
+                            return Response.ok().build();
+                        }));
+    }
+
+    @Path("/api/{id}/definition")
+    @GET
+    @Produces(MediaType.WILDCARD)
+    @Tag(name = "Api")
+    public Response getDefinitionApi(
+            @PathParam("id") String id, @Context HttpHeaders headers, @Context Request request)
+            throws IOException {
+
+        API api = registry.get(id);
+        String digest = api != null ? registry.getDefinitionDigest(api) : null;
+        FileChannel channel = digest != null ? definitionStore.openCompressed(digest) : null;
+        if (channel == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+
+        boolean streaming = false;
+        try {
+            // the definitions are stored compressed: they are sent as is to the clients accepting
+            // gzip, and decompressed on the fly for the others
+            boolean gzip = acceptsGzip(headers.getHeaderString(HttpHeaders.ACCEPT_ENCODING));
+            // each encoding is a distinct representation, with its own strong entity tag
+            EntityTag entityTag = new EntityTag(gzip ? digest + "-gz" : digest);
+            long length = gzip ? channel.size() : definitionStore.size(digest);
+
+            Response.ResponseBuilder notModified = request.evaluatePreconditions(entityTag);
+            if (notModified != null) {
+                return notModified
+                        .tag(entityTag)
+                        .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                        .build();
+            }
+
+            long[] range = null;
+            String ifRange = headers.getHeaderString("If-Range");
+            if (ifRange == null || ifRange.equals(entityTag.toString())) {
+                range = parseRange(headers.getHeaderString("Range"), length);
+            }
+            if (range != null && range.length == 0) {
+                return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header("Content-Range", "bytes */" + length)
+                        .build();
+            }
+
+            long start = range != null ? range[0] : 0;
+            long count = range != null ? range[1] - range[0] + 1 : length;
+            Response.ResponseBuilder response;
+            if (range != null) {
+                response =
+                        Response.status(Response.Status.PARTIAL_CONTENT)
+                                .header(
+                                        "Content-Range",
+                                        "bytes " + range[0] + "-" + range[1] + "/" + length);
+            } else {
+                response = Response.ok();
+            }
+            StreamingOutput body;
+            if (gzip) {
+                body = transfer(channel, start, count);
+                streaming = true;
+                response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+            } else {
+                body = decompress(digest, start, count);
+            }
+            return response.entity(body)
+                    .type(MediaType.APPLICATION_OCTET_STREAM_TYPE)
+                    .tag(entityTag)
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                    .header("Accept-Ranges", "bytes")
+                    .header(HttpHeaders.CONTENT_LENGTH, count)
                     .build();
+        } finally {
+            if (!streaming) {
+                channel.close();
+            }
         }
-        return Response.ok().build();
     }
 
     @Path("/api")
     @PUT
     @Consumes(MediaType.APPLICATION_JSON)
     @Tag(name = "Api")
-    public Response updateApi(API api) {
+    public void updateApi(
+            API api,
+            @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch,
+            @Suspended AsyncResponse asyncResponse) {
 
-        registry.update(api);
-        return Response.ok().build();
+        if (ifMatch != null) {
+            try {
+                api.setRevision(parseRevision(ifMatch));
+            } catch (NumberFormatException e) {
+                asyncResponse.resume(Response.status(Response.Status.PRECONDITION_FAILED).build());
+                return;
+            }
+        }
+        resume(
+                asyncResponse,
+                asyncRegistry.call(
+                        registry -> {
+                            try {
+                                registry.update(api);
+                            } catch (VersionConflictException e) {
+                                return Response.status(
+                                                ifMatch != null
+                                                        ? Response.Status.PRECONDITION_FAILED
+                                                        : Response.Status.CONFLICT)
+                                        .build();
+                            } catch (RouteConflictException e) {
+                                return conflict(e);
+                            }
+                            return Response.ok().build();
+                        }));
+    }
+
+    @Path("/api")
+    @DELETE
+    @Tag(name = "Api")
+    public void deleteApis(
+            @QueryParam("id") List<String> ids, @Suspended AsyncResponse asyncResponse) {
+
+        if (ids == null || ids.isEmpty()) {
+            asyncResponse.resume(Response.status(Response.Status.BAD_REQUEST).build());
+            return;
+        }
+        resume(asyncResponse, asyncRegistry.delete(ids).thenApply(done -> Response.ok().build()));
     }
 
     @Path("/api/{id}")
     @DELETE
     @Tag(name = "Api")
-    public Response deleteApi(@PathParam("id") String id) {
+    public void deleteApi(@PathParam("id") String id, @Suspended AsyncResponse asyncResponse) {
+
+        if (registry.get(id) != null) {
+            resume(
+                    asyncResponse,
+                    asyncRegistry.delete(id).thenApply(done -> Response.ok().build()));
+        } else {
+            asyncResponse.resume(Response.status(Response.Status.NOT_FOUND).build());
+        }
+    }
+
+    @Path("/api/{id}")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Tag(name = "Api")
+    public Response getApi(@PathParam("id") String id, @Context Request request) {
 
         API api = registry.get(id);
         if (api != null) {
-            registry.delete(api.getId());
-            return Response.ok().build();
+            return tagged(api, api.getRevision(), request);
         } else {
             return Response.status(Response.Status.NOT_FOUND).build();
         }
     }
 
-    @Path("/api/{id}")
+    @Path("/api/{id}/full")
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @Tag(name = "Api")
-    public Response getApi(@PathParam("id") String id) {
+    public Response getFullApi(@PathParam("id") String id) {
 
-        API api = registry.get(id);
+        API api = registry.getFull(id);
         if (api != null) {
             return Response.ok(api).build();
         } else {
@@ -133,8 +389,27 @@ public class RegistryServiceRest {
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @Tag(name = "Api")
-    public Response getApis() {
+    public Response getApis(
+            @QueryParam("after") String after,
+            @QueryParam("limit") Integer limit,
+            @QueryParam("stream") boolean stream,
+            @Context UriInfo uriInfo,
+            @Context Providers providers) {
 
+        if (stream) {
+            return streamed(API.class, registry::scan, providers);
+        }
+        if (limit != null && limit < 1) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        Map<String, Collection<String>> meta = metaCriteria(uriInfo);
+        if (!meta.isEmpty()) {
+            int pageSize = limit != null ? limit : Integer.MAX_VALUE;
+            return paged(registry.search(meta, after, pageSize), pageSize, API::getId, uriInfo);
+        }
+        if (limit != null) {
+            return paged(registry.list(after, limit), limit, API::getId, uriInfo);
+        }
         Collection<API> apis = registry.list();
         if (apis != null) {
             return Response.ok(apis).build();
@@ -147,10 +422,24 @@ public class RegistryServiceRest {
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @Tag(name = "Api")
-    public Response getApiRestResources(@PathParam("id") String id) {
+    public Response getApiRestResources(
+            @PathParam("id") String id,
+            @QueryParam("after") String after,
+            @QueryParam("limit") Integer limit,
+            @Context UriInfo uriInfo) {
 
         API api = registry.get(id);
         if (api != null) {
+            if (limit != null) {
+                if (limit < 1) {
+                    return Response.status(Response.Status.BAD_REQUEST).build();
+                }
+                return paged(
+                        registry.listRestResources(api, after, limit),
+                        limit,
+                        RestResource::getId,
+                        uriInfo);
+            }
             Collection<RestResource> restResources = registry.listRestResources(api);
             if (restResources != null) {
                 return Response.ok(restResources).build();
@@ -166,16 +455,59 @@ public class RegistryServiceRest {
     @POST
     @Produces(MediaType.APPLICATION_JSON)
     @Tag(name = "Api")
-    public Response addApiRestResources(@PathParam("id") String id, RestResource restResource) {
+    public void addApiRestResources(
+            @PathParam("id") String id,
+            RestResource restResource,
+            @Suspended AsyncResponse asyncResponse) {
 
         API api = registry.get(id);
         if (api != null) {
-            RestResource result = registry.addRestResource(api, restResource);
-            if (result != null) {
-                return Response.ok().build();
-            } else {
-                return Response.notModified().build();
-            }
+            resume(
+                    asyncResponse,
+                    asyncRegistry.call(
+                            registry -> {
+                                RestResource result;
+                                try {
+                                    result = registry.addRestResource(api, restResource);
+                                } catch (RouteConflictException e) {
+                                    return conflict(e);
+                                }
+                                if (result != null) {
+                                    return Response.ok().build();
+                                } else {
+                                    return Response.notModified().build();
+                                }
+                            }));
+        } else {
+            asyncResponse.resume(Response.status(Response.Status.NOT_FOUND).build());
+        }
+    }
+
+    @Path("/search")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Tag(name = "Api")
+    public Response searchApis(
+            @QueryParam("q") String query, @QueryParam("limit") @DefaultValue("20") int limit) {
+
+        if (query == null || limit < 1) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        return Response.ok(registry.searchText(query, limit)).build();
+    }
+
+    @Path("/resolve")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Tag(name = "Api")
+    public Response resolveRestResource(
+            @QueryParam("context") String context,
+            @QueryParam("path") String path,
+            @QueryParam("method") String method) {
+
+        RestResource restResource = registry.resolve(context, path, method);
+        if (restResource != null) {
+            return Response.ok(restResource).build();
         } else {
             return Response.status(Response.Status.NOT_FOUND).build();
         }
@@ -188,17 +520,17 @@ public class RegistryServiceRest {
     public Response getApiRestResourcesPolicies(
             @PathParam("id") String id, @PathParam("idRestResource") String idRestResource) {
 
-        API api = registry.get(id);
+        API api = registry.getFull(id);
         if (api != null) {
             RestResource restResource =
-                    registry.listRestResources(api)
+                    api.getRestResources()
                             .stream()
                             .filter(restResource1 -> restResource1.getId().equals(idRestResource))
                             .findFirst()
-                            .get();
+                            .orElse(null);
 
             if (restResource != null) {
-                Map<Integer, Policy> appliedPolicies = registry.listAppliedPolicies(restResource);
+                Map<Integer, Policy> appliedPolicies = restResource.getPolicies();
                 if (appliedPolicies != null && !appliedPolicies.isEmpty()) {
                     return Response.ok(appliedPolicies).build();
                 } else {
@@ -216,36 +548,63 @@ public class RegistryServiceRest {
     @POST
     @Produces(MediaType.APPLICATION_JSON)
     @Tag(name = "Api")
-    public Response applyPolicy(
+    public void applyPolicy(
             @PathParam("id") String id,
             @PathParam("idRestResource") String idRestResource,
             @PathParam("order") int order,
-            Policy policy) {
+            @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch,
+            Policy policy,
+            @Suspended AsyncResponse asyncResponse) {
 
-        API api = registry.get(id);
-        if (api != null) {
-            registry.applyPolicy(idRestResource, policy.getId(), order, policy.getParam());
-            return Response.ok().build();
-        } else {
-            return Response.status(Response.Status.NOT_FOUND).build();
+        if (registry.get(id) == null) {
+            asyncResponse.resume(Response.status(Response.Status.NOT_FOUND).build());
+            return;
+        }
+        Long revision;
+        try {
+            revision = ifMatch != null ? parseRevision(ifMatch) : null;
+        } catch (NumberFormatException e) {
+            asyncResponse.resume(Response.status(Response.Status.PRECONDITION_FAILED).build());
+            return;
         }
+        resume(
+                asyncResponse,
+                asyncRegistry.call(
+                        registry -> {
+                            try {
+                                registry.applyPolicy(
+                                        idRestResource,
+                                        revision,
+                                        policy.getId(),
+                                        order,
+                                        policy.getParam());
+                            } catch (VersionConflictException e) {
+                                return Response.status(Response.Status.PRECONDITION_FAILED).build();
+                            }
+                            return Response.ok().build();
+                        }));
     }
 
     @Path("/api/{id}/rest-resources/{idRestResource}/policies/{idPolicy}")
     @DELETE
     @Produces(MediaType.APPLICATION_JSON)
     @Tag(name = "Api")
-    public Response unapplyPolicy(
+    public void unapplyPolicy(
             @PathParam("id") String id,
             @PathParam("idRestResource") String idRestResource,
-            @PathParam("idPolicy") String idPolicy) {
+            @PathParam("idPolicy") String idPolicy,
+            @Suspended AsyncResponse asyncResponse) {
 
-        API api = registry.get(id);
-        if (api != null) {
-            registry.unapplyPolicy(idRestResource, idPolicy);
-            return Response.ok().build();
+        if (registry.get(id) != null) {
+            resume(
+                    asyncResponse,
+                    asyncRegistry.call(
+                            registry -> {
+                                registry.unapplyPolicy(idRestResource, idPolicy);
+                                return Response.ok().build();
+                            }));
         } else {
-            return Response.status(Response.Status.NOT_FOUND).build();
+            asyncResponse.resume(Response.status(Response.Status.NOT_FOUND).build());
         }
     }
 
@@ -253,31 +612,57 @@ public class RegistryServiceRest {
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
     @Tag(name = "Policy")
-    public Response addPolicy(Policy policy) throws Exception {
+    public void addPolicy(Policy policy, @Suspended AsyncResponse asyncResponse) {
 
-        Policy newPolicy = registry.addPolicy(policy);
-        try {
-            return Response.created(new URI("/policy/" + newPolicy.getId())).build();
-        } catch (URISyntaxException e) {
-            return Response.serverError().build();
-        }
+        resume(
+                asyncResponse,
+                asyncRegistry
+                        .addPolicy(policy)
+                        .thenApply(
+                                newPolicy ->
+                                        Response.created(URI.create("/policy/" + newPolicy.getId()))
+                                                .build()));
     }
 
     @Path("/policy/{id}")
     @DELETE
     @Tag(name = "Policy")
-    public Response deletePolicy(@PathParam("id") String id) {
+    public void deletePolicy(@PathParam("id") String id, @Suspended AsyncResponse asyncResponse) {
 
-        registry.deletePolicy(id);
-        return Response.ok().build();
+        resume(
+                asyncResponse,
+                asyncRegistry.deletePolicy(id).thenApply(done -> Response.ok().build()));
     }
 
     @Path("/policy")
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @Tag(name = "Policy")
-    public Response getPolicies() {
+    public Response getPolicies(
+            @QueryParam("after") String after,
+            @QueryParam("limit") Integer limit,
+            @QueryParam("stream") boolean stream,
+            @Context UriInfo uriInfo,
+            @Context Providers providers) {
 
+        if (stream) {
+            return streamed(Policy.class, registry::scanPolicies, providers);
+        }
+        if (limit != null && limit < 1) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        Map<String, Collection<String>> meta = metaCriteria(uriInfo);
+        if (!meta.isEmpty()) {
+            int pageSize = limit != null ? limit : Integer.MAX_VALUE;
+            return paged(
+                    registry.searchPolicies(meta, after, pageSize),
+                    pageSize,
+                    Policy::getId,
+                    uriInfo);
+        }
+        if (limit != null) {
+            return paged(registry.listPolicies(after, limit), limit, Policy::getId, uriInfo);
+        }
         Collection<Policy> policies = registry.listPolicies();
         if (policies != null) {
             return Response.ok(policies).build();
@@ -290,11 +675,11 @@ public class RegistryServiceRest {
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @Tag(name = "Policy")
-    public Response getPolicy(@PathParam("id") String id) {
+    public Response getPolicy(@PathParam("id") String id, @Context Request request) {
 
         Policy policy = registry.getPolicy(id);
         if (policy != null) {
-            return Response.ok(policy).build();
+            return tagged(policy, policy.getRevision(), request);
         } else {
             return Response.noContent().build();
         }
@@ -314,4 +699,407 @@ public class RegistryServiceRest {
             return Response.noContent().build();
         }
     }
+
+    @Path("/policy/{id}/rest-resources")
+    @DELETE
+    @Tag(name = "Policy")
+    public void unapplyPolicyFromAll(
+            @PathParam("id") String id, @Suspended AsyncResponse asyncResponse) {
+
+        if (registry.getPolicy(id) != null) {
+            resume(
+                    asyncResponse,
+                    asyncRegistry.call(
+                            registry -> {
+                                registry.unapplyPolicyFromAll(id);
+                                return Response.ok().build();
+                            }));
+        } else {
+            asyncResponse.resume(Response.status(Response.Status.NOT_FOUND).build());
+        }
+    }
+
+    @Path("/metrics")
+    @GET
+    @Produces(METRICS_TEXT)
+    @Tag(name = "Metrics")
+    public Response getMetrics() {
+
+        StringBuilder text = new StringBuilder(metrics.scrape());
+        text.append(
+                        "# HELP vineyard_registry_async_queue_size Registry calls waiting for a thread.\n")
+                .append("# TYPE vineyard_registry_async_queue_size gauge\n")
+                .append("vineyard_registry_async_queue_size ")
+                .append(asyncRegistry.getQueueSize())
+                .append('\n');
+        text.append(
+                        "# HELP vineyard_registry_async_rejected_total Registry calls rejected by the saturated executor.\n")
+                .append("# TYPE vineyard_registry_async_rejected_total counter\n")
+                .append("vineyard_registry_async_rejected_total ")
+                .append(asyncRegistry.getRejectedCount())
+                .append('\n');
+        return Response.ok(text.toString(), METRICS_TEXT).build();
+    }
+
+    @Path("/snapshot")
+    @POST
+    @Tag(name = "Snapshot")
+    public Response writeSnapshot() {
+
+        try {
+            snapshotService.writeSnapshot();
+        } catch (IOException exception) {
+            LOGGER.warn("Can't write the registry snapshot", exception);
+            return Response.serverError().build();
+        }
+        return Response.noContent().build();
+    }
+
+    @Path("/changeset")
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    @Tag(name = "ChangeSet")
+    public void commitChangeSet(ChangeSet changeSet, @Suspended AsyncResponse asyncResponse) {
+
+        resume(
+                asyncResponse,
+                asyncRegistry.call(
+                        registry -> {
+                            try {
+                                ChangeSetResult result = registry.commit(changeSet);
+                                return Response.ok(result).build();
+                            } catch (RouteConflictException e) {
+                                return conflict(e);
+                            } catch (IllegalArgumentException e) {
+                                return Response.status(
+                                                Response.Status.BAD_REQUEST.getStatusCode(),
+                                                e.getMessage())
+                                        .build();
+                            }
+                        }));
+    }
+
+    @Path("/events")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Tag(name = "Event")
+    public Response getEvents(
+            @QueryParam("after") @DefaultValue("0") long after,
+            @QueryParam("limit") @DefaultValue("100") int limit,
+            @QueryParam("timeout") @DefaultValue("0") long timeout)
+            throws InterruptedException {
+
+        if (after < 0 || limit < 1 || timeout < 0) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        RegistryChanges changes =
+                registry.changes(after, limit, Math.min(timeout, MAX_EVENTS_TIMEOUT));
+        return Response.ok(changes).build();
+    }
+
+    /** Server-sent events stream of the registry changes, see {@link EventStreams}. */
+    @Path("/events")
+    @GET
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    @Tag(name = "Event")
+    public void streamEvents(
+            @QueryParam("after") @DefaultValue("0") long after,
+            @HeaderParam(HttpHeaders.LAST_EVENT_ID_HEADER) String lastEventId,
+            @Context SseEventSink sink,
+            @Context Sse sse) {
+
+        long start = after;
+        if (lastEventId != null) {
+            try {
+                start = Long.parseLong(lastEventId.trim());
+            } catch (NumberFormatException e) {
+                throw new BadRequestException(e);
+            }
+        }
+        if (start < 0) {
+            throw new BadRequestException();
+        }
+        eventStreams().open(sink, sse, start);
+    }
+
+    private synchronized EventStreams eventStreams() {
+        if (eventStreams == null) {
+            eventStreams = new EventStreams(registry);
+        }
+        return eventStreams;
+    }
+
+    /** Close the event streams, when the service is destroyed. */
+    public synchronized void close() {
+        if (eventStreams != null) {
+            eventStreams.close();
+            eventStreams = null;
+        }
+    }
+
+    /**
+     * Resume a suspended request with the response of a registry call. The request thread is
+     * released as soon as the call is queued, and a saturated executor answers 503 right away.
+     */
+    private static void resume(AsyncResponse asyncResponse, CompletableFuture<Response> future) {
+        future.whenComplete(
+                (response, error) -> {
+                    if (error == null) {
+                        asyncResponse.resume(response);
+                        return;
+                    }
+                    // the stages built with thenApply fail with the error wrapped
+                    Throwable cause =
+                            error instanceof CompletionException && error.getCause() != null
+                                    ? error.getCause()
+                                    : error;
+                    if (cause instanceof RejectedExecutionException) {
+                        asyncResponse.resume(
+                                Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                                        .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+                                        .build());
+                    } else if (cause instanceof RouteConflictException) {
+                        asyncResponse.resume(conflict((RouteConflictException) cause));
+                    } else {
+                        asyncResponse.resume(cause);
+                    }
+                });
+    }
+
+    /** Answer 409 to a write serving a route already served by another resource. */
+    private static Response conflict(RouteConflictException e) {
+        return Response.status(Response.Status.CONFLICT.getStatusCode(), e.getMessage()).build();
+    }
+
+    /**
+     * Return an entity with its revision as ETag, or 304 when the client already has this revision.
+     */
+    private static Response tagged(Object entity, Long revision, Request request) {
+        if (revision == null) {
+            return Response.ok(entity).build();
+        }
+        EntityTag tag = new EntityTag(revision.toString());
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+        if (notModified != null) {
+            return notModified.tag(tag).build();
+        }
+        return Response.ok(entity).tag(tag).build();
+    }
+
+    /**
+     * Parse the revision of an If-Match header, null for "*" which matches any revision.
+     *
+     * @throws NumberFormatException If the header isn't a single revision ETag.
+     */
+    private static Long parseRevision(String ifMatch) {
+        String tag = ifMatch.trim();
+        if ("*".equals(tag)) {
+            return null;
+        }
+        if (tag.startsWith("W/")) {
+            tag = tag.substring(2);
+        }
+        if (tag.length() < 2 || !tag.startsWith("\"") || !tag.endsWith("\"")) {
+            throw new NumberFormatException("Invalid ETag " + ifMatch);
+        }
+        return Long.parseLong(tag.substring(1, tag.length() - 1));
+    }
+
+    /**
+     * Send a part of a file with {@link FileChannel#transferTo}, without copying it in the heap.
+     */
+    private static StreamingOutput transfer(FileChannel channel, long start, long count) {
+        return outputStream -> {
+            try (FileChannel source = channel) {
+                WritableByteChannel target = Channels.newChannel(outputStream);
+                long position = start;
+                long remaining = count;
+                while (remaining > 0) {
+                    long transferred = source.transferTo(position, remaining, target);
+                    if (transferred <= 0) {
+                        throw new EOFException("Definition truncated");
+                    }
+                    position += transferred;
+                    remaining -= transferred;
+                }
+            }
+        };
+    }
+
+    /** Send a part of a definition, decompressing it on the fly. */
+    private StreamingOutput decompress(String digest, long start, long count) {
+        return outputStream -> {
+            try (InputStream inputStream = definitionStore.open(digest)) {
+                if (inputStream == null) {
+                    throw new NoSuchFileException(digest);
+                }
+                long skipped = 0;
+                while (skipped < start) {
+                    long n = inputStream.skip(start - skipped);
+                    if (n <= 0) {
+                        throw new EOFException("Definition truncated");
+                    }
+                    skipped += n;
+                }
+                byte[] buffer = new byte[8192];
+                long remaining = count;
+                while (remaining > 0) {
+                    int read =
+                            inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException("Definition truncated");
+                    }
+                    outputStream.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+        };
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            if (!parts[0].trim().equalsIgnoreCase("gzip")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parse a single byte range. Return null when the whole content has to be sent (no range,
+     * several ranges or an invalid one), an empty array when the range can't be satisfied, or the
+     * first and last positions of the range.
+     */
+    private static long[] parseRange(String header, long length) {
+        if (header == null) {
+            return null;
+        }
+        Matcher matcher = BYTE_RANGE.matcher(header.trim());
+        if (!matcher.matches()) {
+            return null;
+        }
+        try {
+            String first = matcher.group(1);
+            String last = matcher.group(2);
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                if (last.isEmpty()) {
+                    return null;
+                }
+                // suffix range, the last N bytes
+                long suffix = Long.parseLong(last);
+                if (suffix == 0) {
+                    return new long[0];
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+                if (end < start) {
+                    return null;
+                }
+                end = Math.min(end, length - 1);
+            }
+            if (start >= length) {
+                return new long[0];
+            }
+            return new long[] {start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Collect the meta criteria from the "meta.{key}" query parameters. Different keys must all
+     * match, a key repeated with several values matches any of them.
+     */
+    private static Map<String, Collection<String>> metaCriteria(UriInfo uriInfo) {
+        Map<String, Collection<String>> criteria = new HashMap<>();
+        uriInfo.getQueryParameters()
+                .forEach(
+                        (name, values) -> {
+                            if (name.startsWith(META_PARAMETER)
+                                    && name.length() > META_PARAMETER.length()) {
+                                criteria.put(name.substring(META_PARAMETER.length()), values);
+                            }
+                        });
+        return criteria;
+    }
+
+    /**
+     * Return a page of results. When the page is full, a "next" link gives the URI of the following
+     * page.
+     */
+    private <T> Response paged(
+            Collection<T> page, int limit, Function<T, String> id, UriInfo uriInfo) {
+        Response.ResponseBuilder response = Response.ok(page);
+        if (page.size() == limit) {
+            String last = null;
+            for (T item : page) {
+                last = id.apply(item);
+            }
+            response.link(
+                    uriInfo.getRequestUriBuilder().replaceQueryParam("after", last).build(),
+                    "next");
+        }
+        return response.build();
+    }
+
+    /**
+     * Write a JSON array item by item while the scan reads them from the registry, instead of
+     * serializing the whole collection at once.
+     */
+    private <T> Response streamed(Class<T> type, Consumer<Consumer<T>> scan, Providers providers) {
+        MessageBodyWriter<T> writer =
+                providers.getMessageBodyWriter(
+                        type, type, new Annotation[0], MediaType.APPLICATION_JSON_TYPE);
+        StreamingOutput output =
+                outputStream -> {
+                    outputStream.write('[');
+                    boolean[] first = {true};
+                    try {
+                        scan.accept(
+                                item -> {
+                                    try {
+                                        if (!first[0]) {
+                                            outputStream.write(',');
+                                        }
+                                        first[0] = false;
+                                        writer.writeTo(
+                                                item,
+                                                type,
+                                                type,
+                                                new Annotation[0],
+                                                MediaType.APPLICATION_JSON_TYPE,
+                                                new MultivaluedHashMap<>(),
+                                                outputStream);
+                                    } catch (IOException e) {
+                                        throw new UncheckedIOException(e);
+                                    }
+                                });
+                    } catch (UncheckedIOException e) {
+                        throw e.getCause();
+                    }
+                    outputStream.write(']');
+                };
+        return Response.ok(output, MediaType.APPLICATION_JSON_TYPE).build();
+    }
 }
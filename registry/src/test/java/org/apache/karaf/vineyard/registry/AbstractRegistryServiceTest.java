@@ -0,0 +1,689 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.apache.karaf.vineyard.common.API;
+import org.apache.karaf.vineyard.common.ChangeSet;
+import org.apache.karaf.vineyard.common.ChangeSetResult;
+import org.apache.karaf.vineyard.common.Policy;
+import org.apache.karaf.vineyard.common.RegistryChanges;
+import org.apache.karaf.vineyard.common.RegistryEvent;
+import org.apache.karaf.vineyard.common.RegistryService;
+import org.apache.karaf.vineyard.common.RestResource;
+import org.apache.karaf.vineyard.common.VersionConflictException;
+import org.apache.karaf.vineyard.registry.async.AsyncRegistryServiceImpl;
+import org.apache.karaf.vineyard.registry.definition.DefinitionStore;
+import org.apache.karaf.vineyard.registry.definition.FileDefinitionStore;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Behaviour shared by all the {@link RegistryService} implementations. */
+public abstract class AbstractRegistryServiceTest {
+
+    protected RegistryService registryService;
+
+    protected DefinitionStore definitionStore;
+
+    /** Create the registry to test, empty. */
+    protected abstract RegistryService createRegistryService(DefinitionStore definitionStore)
+            throws Exception;
+
+    @Before
+    public void setup() throws Exception {
+        definitionStore = new FileDefinitionStore(Paths.get("target", "definitions"));
+        registryService = createRegistryService(definitionStore);
+    }
+
+    @Test
+    public void testReadsSeeWrites() throws Exception {
+        API api = new API();
+        api.setContext("/cached");
+        api.setName("Cached");
+        api = registryService.add(api);
+        Assert.assertEquals("Cached", registryService.get(api.getId()).getName());
+
+        api.setName("Updated");
+        registryService.update(api);
+        Assert.assertEquals("Updated", registryService.get(api.getId()).getName());
+
+        registryService.addMeta(api, Collections.singletonMap("owner", "payments"));
+        Assert.assertEquals("payments", registryService.getMeta(api).get("owner"));
+
+        RestResource restResource = new RestResource();
+        restResource.setPath("/items");
+        restResource.setMethod("GET");
+        restResource = registryService.addRestResource(api, restResource);
+        Assert.assertEquals(1, registryService.listRestResources(api).size());
+
+        Policy policy = new Policy();
+        policy.setClassName("org.example.Policy");
+        policy.setMeta(new HashMap<>());
+        policy = registryService.addPolicy(policy);
+        registryService.applyPolicy(
+                restResource.getId(), policy.getId(), 1, Collections.singletonMap("rate", "10"));
+        Map<Integer, Policy> applied = registryService.listAppliedPolicies(restResource);
+        Assert.assertEquals(policy.getId(), applied.get(1).getId());
+        Assert.assertEquals("10", applied.get(1).getParam().get("rate"));
+        Assert.assertEquals(1, registryService.listRestResources(policy).size());
+
+        // what the caller gets back is a copy, not the cached instance
+        registryService.get(api.getId()).setName("Mutated");
+        Assert.assertEquals("Updated", registryService.get(api.getId()).getName());
+
+        registryService.delete(api.getId());
+        Assert.assertNull(registryService.get(api.getId()));
+        Assert.assertTrue(registryService.list().isEmpty());
+    }
+
+    @Test
+    public void testCommitChangeSet() throws Exception {
+        Policy policy = new Policy();
+        policy.setId("policy");
+        policy.setClassName("org.example.Policy");
+
+        Policy applied = new Policy();
+        applied.setId("policy");
+        applied.setParam(Collections.singletonMap("rate", "10"));
+        RestResource restResource = new RestResource();
+        restResource.setId("resource");
+        restResource.setPath("/items");
+        restResource.setMethod("GET");
+        restResource.setPolicies(Collections.singletonMap(1, applied));
+
+        API api = new API();
+        api.setId("api");
+        api.setName("Bulk");
+        api.setContext("/bulk");
+        api.getMeta().put("owner", "payments");
+        api.getRestResources().add(restResource);
+
+        ChangeSet changeSet = new ChangeSet();
+        changeSet.getPolicies().add(policy);
+        changeSet.getApis().add(api);
+        ChangeSetResult result = registryService.commit(changeSet);
+
+        String apiId = result.getApis().get("api");
+        String restResourceId = result.getRestResources().get("resource");
+        String policyId = result.getPolicies().get("policy");
+        Assert.assertEquals("Bulk", registryService.get(apiId).getName());
+        Assert.assertEquals("payments", registryService.get(apiId).getMeta().get("owner"));
+        Assert.assertEquals(
+                restResourceId,
+                registryService
+                        .listRestResources(registryService.get(apiId))
+                        .iterator()
+                        .next()
+                        .getId());
+        Policy appliedPolicy =
+                registryService
+                        .listAppliedPolicies(registryService.getRestResource(restResourceId))
+                        .get(1);
+        Assert.assertEquals(policyId, appliedPolicy.getId());
+        Assert.assertEquals("10", appliedPolicy.getParam().get("rate"));
+
+        // a change set is applied as a whole or not at all
+        API other = new API();
+        other.setName("Other");
+        RestResource broken = new RestResource();
+        broken.setPolicies(Collections.singletonMap(1, new Policy()));
+        other.getRestResources().add(broken);
+        ChangeSet failing = new ChangeSet();
+        failing.getApis().add(other);
+        failing.getDeletedApis().add(apiId);
+        try {
+            registryService.commit(failing);
+            Assert.fail("the change set references an unknown policy");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertEquals(1, registryService.list().size());
+
+        ChangeSet deletes = new ChangeSet();
+        deletes.getDeletedApis().add(apiId);
+        deletes.getDeletedPolicies().add(policyId);
+        registryService.commit(deletes);
+        Assert.assertTrue(registryService.list().isEmpty());
+        Assert.assertTrue(registryService.listPolicies().isEmpty());
+    }
+
+    @Test
+    public void testGetFull() throws Exception {
+        API api = new API();
+        api.setName("Full");
+        api = registryService.add(api);
+        registryService.addMeta(api, Collections.singletonMap("owner", "payments"));
+        Policy policy = new Policy();
+        policy.setClassName("org.example.Policy");
+        policy.setMeta(Collections.singletonMap("kind", "throttling"));
+        policy = registryService.addPolicy(policy);
+        for (String path : new String[] {"/a", "/b"}) {
+            RestResource restResource = new RestResource();
+            restResource.setPath(path);
+            restResource = registryService.addRestResource(api, restResource);
+            registryService.applyPolicy(
+                    restResource.getId(),
+                    policy.getId(),
+                    1,
+                    Collections.singletonMap("rate", path));
+        }
+
+        // read before and after the snapshot is loaded
+        API loaded = registryService.getFull(api.getId());
+        registryService.list();
+        API cached = registryService.getFull(api.getId());
+        for (API full : new API[] {loaded, cached}) {
+            Assert.assertEquals("payments", full.getMeta().get("owner"));
+            Assert.assertEquals(2, full.getRestResources().size());
+            for (RestResource restResource : full.getRestResources()) {
+                Policy applied = restResource.getPolicies().get(1);
+                Assert.assertEquals(policy.getId(), applied.getId());
+                Assert.assertEquals("throttling", applied.getMeta().get("kind"));
+                Assert.assertEquals(restResource.getPath(), applied.getParam().get("rate"));
+            }
+        }
+        Assert.assertNull(registryService.getFull("unknown"));
+
+        registryService.delete(api.getId());
+        registryService.deletePolicy(policy.getId());
+    }
+
+    @Test
+    public void testResolve() throws Exception {
+        API api = new API();
+        api.setName("Routed");
+        api.setContext("/routed");
+        api = registryService.add(api);
+        RestResource restResource = new RestResource();
+        restResource.setPath("/items");
+        restResource.setMethod("GET");
+        restResource = registryService.addRestResource(api, restResource);
+
+        // read before and after the snapshot is loaded
+        Assert.assertEquals(
+                restResource.getId(), registryService.resolve("/routed", "/items", "GET").getId());
+        registryService.list();
+        Assert.assertEquals(
+                restResource.getId(), registryService.resolve("/routed", "/items", "GET").getId());
+        Assert.assertNull(registryService.resolve("/routed", "/items", "POST"));
+
+        RestResource conflicting = new RestResource();
+        conflicting.setPath("/items");
+        conflicting.setMethod("GET");
+        try {
+            registryService.addRestResource(api, conflicting);
+            Assert.fail("the route is already served");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // the route follows the context of the API
+        api.setContext("/moved");
+        registryService.update(api);
+        Assert.assertNull(registryService.resolve("/routed", "/items", "GET"));
+        Assert.assertEquals(
+                restResource.getId(), registryService.resolve("/moved", "/items", "GET").getId());
+
+        // an API can't move to a context where its routes are already served
+        API other = new API();
+        other.setName("Other");
+        other.setContext("/other");
+        other = registryService.add(other);
+        RestResource same = new RestResource();
+        same.setPath("/items");
+        same.setMethod("GET");
+        registryService.addRestResource(other, same);
+        other.setContext("/moved");
+        try {
+            registryService.update(other);
+            Assert.fail("the route is already served");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        other = registryService.get(other.getId());
+        other.setContext("/moved");
+        try {
+            registryService.update(other);
+            Assert.fail("the route is already served");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertEquals("/other", registryService.get(other.getId()).getContext());
+        registryService.delete(other.getId());
+
+        registryService.delete(api.getId());
+        Assert.assertNull(registryService.resolve("/moved", "/items", "GET"));
+    }
+
+    @Test
+    public void testDefinition() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            builder.append("{\"openapi\": \"3.0.0\"}\n");
+        }
+        byte[] content = builder.toString().getBytes(StandardCharsets.UTF_8);
+
+        String digest = definitionStore.store(new ByteArrayInputStream(content));
+        Assert.assertEquals(64, digest.length());
+        Assert.assertEquals(digest, definitionStore.store(new ByteArrayInputStream(content)));
+        Path stored = Paths.get("target", "definitions", digest.substring(0, 2), digest + ".gz");
+        Assert.assertTrue(Files.size(stored) < content.length);
+        try (InputStream inputStream = definitionStore.open(digest)) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = inputStream.read(buffer)) > -1) {
+                output.write(buffer, 0, read);
+            }
+            Assert.assertArrayEquals(content, output.toByteArray());
+        }
+        Assert.assertNull(definitionStore.open(new String(new char[64]).replace('\0', '0')));
+        Assert.assertEquals(content.length, definitionStore.size(digest));
+        try (FileChannel channel = definitionStore.openCompressed(digest)) {
+            Assert.assertEquals(Files.size(stored), channel.size());
+        }
+
+        API api = new API();
+        api.setName("Definition");
+        api = registryService.add(api);
+        Assert.assertNull(registryService.getDefinitionDigest(api));
+        registryService.definition(api, new ByteArrayInputStream(content));
+        Assert.assertEquals(digest, registryService.getDefinitionDigest(api));
+        registryService.delete(api.getId());
+
+        // nothing is stored for an unknown API
+        definitionStore.delete(digest);
+        registryService.definition(api, new ByteArrayInputStream(content));
+        Assert.assertEquals(-1, definitionStore.size(digest));
+    }
+
+    @Test
+    public void testSearchByMeta() throws Exception {
+        String[][] meta = {
+            {"payments", "gold"},
+            {"payments", "silver"},
+            {"payments", "bronze"},
+            {"billing", "gold"}
+        };
+        List<API> apis = new ArrayList<>();
+        for (String[] values : meta) {
+            API api = new API();
+            api.setName("Searched");
+            api = registryService.add(api);
+            Map<String, String> apiMeta = new HashMap<>();
+            apiMeta.put("owner", values[0]);
+            apiMeta.put("tier", values[1]);
+            registryService.addMeta(api, apiMeta);
+            apis.add(api);
+        }
+
+        Map<String, Collection<String>> criteria = new HashMap<>();
+        criteria.put("owner", Collections.singletonList("payments"));
+        criteria.put("tier", Arrays.asList("gold", "silver"));
+        Set<String> found = new HashSet<>();
+        registryService.search(criteria, null, 10).forEach(api -> found.add(api.getId()));
+        Assert.assertEquals(
+                new HashSet<>(Arrays.asList(apis.get(0).getId(), apis.get(1).getId())), found);
+
+        Collection<API> page = registryService.search(criteria, null, 1);
+        Assert.assertEquals(1, page.size());
+        String first = page.iterator().next().getId();
+        Collection<API> next = registryService.search(criteria, first, 1);
+        Assert.assertEquals(1, next.size());
+        Assert.assertTrue(next.iterator().next().getId().compareTo(first) > 0);
+        Assert.assertTrue(
+                registryService.search(criteria, next.iterator().next().getId(), 1).isEmpty());
+
+        // the index follows the meta updates
+        registryService.updateMeta(apis.get(1), Collections.singletonMap("owner", "billing"));
+        registryService.deleteMeta(apis.get(0), "tier");
+        Assert.assertTrue(registryService.search(criteria, null, 10).isEmpty());
+        criteria.remove("tier");
+        criteria.put("owner", Collections.singletonList("billing"));
+        Assert.assertEquals(2, registryService.search(criteria, null, 10).size());
+        criteria.put("unknown", Collections.singletonList("value"));
+        Assert.assertTrue(registryService.search(criteria, null, 10).isEmpty());
+
+        for (API api : apis) {
+            registryService.delete(api.getId());
+        }
+    }
+
+    @Test
+    public void testSearchText() throws Exception {
+        API payments = new API();
+        payments.setName("Payments");
+        payments.setDescription("Card payments and refunds");
+        payments = registryService.add(payments);
+        RestResource refunds = new RestResource();
+        refunds.setPath("/refunds/{id}");
+        registryService.addRestResource(payments, refunds);
+
+        API billing = new API();
+        billing.setName("Billing");
+        billing.setDescription("Invoices, with the payments of each invoice");
+        billing = registryService.add(billing);
+
+        // the name weighs more than the description
+        List<API> results = registryService.searchText("payments", 10);
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals(payments.getId(), results.get(0).getId());
+        Assert.assertEquals(billing.getId(), results.get(1).getId());
+
+        // prefix match, and all the words must match
+        Assert.assertEquals(2, registryService.searchText("PAY", 10).size());
+        results = registryService.searchText("pay refund", 10);
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(payments.getId(), results.get(0).getId());
+        Assert.assertEquals(1, registryService.searchText("payments", 1).size());
+        Assert.assertTrue(registryService.searchText("shipping", 10).isEmpty());
+
+        // writes are visible to the next search
+        billing = registryService.get(billing.getId());
+        billing.setName("Invoicing");
+        registryService.update(billing);
+        RestResource shipping = new RestResource();
+        shipping.setPath("/shipping");
+        registryService.addRestResource(billing, shipping);
+        Assert.assertTrue(registryService.searchText("billing", 10).isEmpty());
+        Assert.assertEquals(billing.getId(), registryService.searchText("ship", 10).get(0).getId());
+        registryService.delete(payments.getId());
+        Assert.assertTrue(registryService.searchText("refunds", 10).isEmpty());
+        registryService.delete(billing.getId());
+    }
+
+    @Test
+    public void testPagingAndScan() throws Exception {
+        ChangeSet changeSet = new ChangeSet();
+        for (int i = 0; i < 5; i++) {
+            API api = new API();
+            api.setName("Paged " + i);
+            api.getMeta().put("index", String.valueOf(i));
+            changeSet.getApis().add(api);
+        }
+        registryService.commit(changeSet);
+
+        List<String> paged = new ArrayList<>();
+        Collection<API> page = registryService.list(null, 2);
+        while (!page.isEmpty()) {
+            Assert.assertTrue(page.size() <= 2);
+            page.forEach(api -> paged.add(api.getId()));
+            page = registryService.list(paged.get(paged.size() - 1), 2);
+        }
+        Assert.assertEquals(5, paged.size());
+        List<String> sorted = new ArrayList<>(paged);
+        Collections.sort(sorted);
+        Assert.assertEquals(sorted, paged);
+
+        List<API> scanned = new ArrayList<>();
+        registryService.scan(scanned::add);
+        Assert.assertEquals(5, scanned.size());
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(paged.get(i), scanned.get(i).getId());
+            // the IDs sort in creation order
+            Assert.assertEquals(String.valueOf(i), scanned.get(i).getMeta().get("index"));
+        }
+
+        ChangeSet deletes = new ChangeSet();
+        deletes.getDeletedApis().addAll(paged);
+        registryService.commit(deletes);
+        List<API> empty = new ArrayList<>();
+        registryService.scan(empty::add);
+        Assert.assertTrue(empty.isEmpty());
+    }
+
+    @Test
+    public void testChangeEvents() throws Exception {
+        API api = new API();
+        api.setName("Evented");
+        api.setContext("/evented");
+        api = registryService.add(api);
+        RestResource restResource = new RestResource();
+        restResource.setPath("/items");
+        restResource.setMethod("GET");
+        restResource = registryService.addRestResource(api, restResource);
+        registryService.delete(api.getId());
+
+        RegistryChanges changes = registryService.changes(0, 10, 0);
+        Assert.assertTrue(changes.isComplete());
+        Assert.assertEquals(4, changes.getSequence());
+        List<RegistryEvent> events = changes.getEvents();
+        Assert.assertEquals(4, events.size());
+        assertEvent(events.get(0), 1, api.getId(), RegistryEvent.Operation.CREATED);
+        assertEvent(events.get(1), 2, restResource.getId(), RegistryEvent.Operation.CREATED);
+        assertEvent(events.get(2), 3, restResource.getId(), RegistryEvent.Operation.DELETED);
+        assertEvent(events.get(3), 4, api.getId(), RegistryEvent.Operation.DELETED);
+        Assert.assertEquals(RegistryEvent.Type.REST_RESOURCE, events.get(1).getType());
+        // the events of a single write share the same registry version
+        Assert.assertEquals(events.get(2).getVersion(), events.get(3).getVersion());
+        Assert.assertTrue(events.get(0).getVersion() < events.get(1).getVersion());
+
+        // resume from the last event read
+        changes = registryService.changes(2, 1, 0);
+        Assert.assertEquals(1, changes.getEvents().size());
+        Assert.assertEquals(3, changes.getEvents().get(0).getSequence());
+        Assert.assertTrue(registryService.changes(4, 10, 0).getEvents().isEmpty());
+
+        // a sequence from before a restart can't be resumed
+        changes = registryService.changes(42, 10, 0);
+        Assert.assertFalse(changes.isComplete());
+        Assert.assertEquals(4, changes.getSequence());
+    }
+
+    @Test
+    public void testRevisions() throws Exception {
+        API api = new API();
+        api.setName("Revised");
+        api.setContext("/revised");
+        api = registryService.add(api);
+        Long revision = registryService.get(api.getId()).getRevision();
+        Assert.assertNotNull(revision);
+
+        API update = registryService.get(api.getId());
+        update.setDescription("first");
+        registryService.update(update);
+        Assert.assertEquals(revision + 1, (long) registryService.get(api.getId()).getRevision());
+
+        // the same revision can't be used twice
+        update.setDescription("second");
+        try {
+            registryService.update(update);
+            Assert.fail("the revision is no longer the current one");
+        } catch (VersionConflictException e) {
+            // expected
+        }
+        Assert.assertEquals("first", registryService.get(api.getId()).getDescription());
+
+        API meta = registryService.get(api.getId());
+        registryService.addMeta(meta, Collections.singletonMap("owner", "payments"));
+        Assert.assertEquals(revision + 2, (long) registryService.get(api.getId()).getRevision());
+        try {
+            registryService.addMeta(meta, Collections.singletonMap("owner", "billing"));
+            Assert.fail("the revision is no longer the current one");
+        } catch (VersionConflictException e) {
+            // expected
+        }
+
+        // applying a policy changes the revision of the resource
+        RestResource restResource = new RestResource();
+        restResource.setPath("/items");
+        restResource.setMethod("GET");
+        restResource = registryService.addRestResource(api, restResource);
+        Policy policy = new Policy();
+        policy.setClassName("org.example.Policy");
+        policy = registryService.addPolicy(policy);
+        Long resourceRevision = registryService.getRestResource(restResource.getId()).getRevision();
+        registryService.applyPolicy(
+                restResource.getId(), resourceRevision, policy.getId(), 1, null);
+        try {
+            registryService.applyPolicy(
+                    restResource.getId(), resourceRevision, policy.getId(), 2, null);
+            Assert.fail("the revision is no longer the current one");
+        } catch (VersionConflictException e) {
+            // expected
+        }
+        Assert.assertEquals(
+                1,
+                registryService
+                        .listAppliedPolicies(registryService.getRestResource(restResource.getId()))
+                        .size());
+    }
+
+    @Test
+    public void testBulkMutations() throws Exception {
+        Policy policy = new Policy();
+        policy.setClassName("org.example.Policy");
+        policy = registryService.addPolicy(policy);
+        registryService.addPolicyMeta(policy, Collections.singletonMap("scope", "global"));
+
+        List<String> apiIds = new ArrayList<>();
+        List<String> restResourceIds = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            API api = new API();
+            api.setName("Bulk " + i);
+            api.setContext("/bulk-" + i);
+            api = registryService.add(api);
+            registryService.addMeta(api, Collections.singletonMap("owner", "payments"));
+            apiIds.add(api.getId());
+            for (String method : Arrays.asList("GET", "POST")) {
+                RestResource restResource = new RestResource();
+                restResource.setPath("/items");
+                restResource.setMethod(method);
+                restResource = registryService.addRestResource(api, restResource);
+                registryService.applyPolicy(
+                        restResource.getId(),
+                        policy.getId(),
+                        1,
+                        Collections.singletonMap("rate", "10"));
+                restResourceIds.add(restResource.getId());
+            }
+        }
+
+        API first = registryService.get(apiIds.get(0));
+        registryService.updateMeta(first, Collections.singletonMap("tier", "gold"));
+        Assert.assertEquals(
+                Collections.singletonMap("tier", "gold"),
+                registryService.get(apiIds.get(0)).getMeta());
+        registryService.deleteMeta(registryService.get(apiIds.get(0)), "tier");
+        Assert.assertTrue(registryService.get(apiIds.get(0)).getMeta().isEmpty());
+
+        registryService.unapplyPolicy(restResourceIds.get(0), policy.getId());
+        Assert.assertTrue(
+                registryService
+                        .listAppliedPolicies(
+                                registryService.getRestResource(restResourceIds.get(0)))
+                        .isEmpty());
+        registryService.unapplyPolicyFromAll(policy.getId());
+        for (String restResourceId : restResourceIds) {
+            Assert.assertTrue(
+                    registryService
+                            .listAppliedPolicies(registryService.getRestResource(restResourceId))
+                            .isEmpty());
+        }
+
+        registryService.applyPolicy(restResourceIds.get(1), policy.getId(), 1, null);
+        registryService.deletePolicy(policy.getId());
+        Assert.assertNull(registryService.getPolicy(policy.getId()));
+        Assert.assertTrue(
+                registryService
+                        .listAppliedPolicies(
+                                registryService.getRestResource(restResourceIds.get(1)))
+                        .isEmpty());
+
+        long sequence = registryService.changes(0, Integer.MAX_VALUE, 0).getSequence();
+        registryService.delete(apiIds);
+        for (String apiId : apiIds) {
+            Assert.assertNull(registryService.get(apiId));
+        }
+        for (String restResourceId : restResourceIds) {
+            Assert.assertNull(registryService.getRestResource(restResourceId));
+        }
+        // each API and each of its resources is reported as deleted
+        Assert.assertEquals(6, registryService.changes(sequence, 10, 0).getEvents().size());
+    }
+
+    @Test
+    public void testAsyncRegistry() throws Exception {
+        AsyncRegistryServiceImpl asyncRegistry =
+                new AsyncRegistryServiceImpl(registryService, 1, 1);
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<Boolean> busy = asyncRegistry.call(registry -> await(release));
+            API api = new API();
+            api.setName("Async");
+            CompletableFuture<API> queued = asyncRegistry.add(api);
+
+            // the thread is busy and the queue is full
+            CompletableFuture<API> rejected = asyncRegistry.add(new API());
+            Assert.assertTrue(rejected.isCompletedExceptionally());
+            try {
+                rejected.get();
+                Assert.fail("the executor is saturated");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+            Assert.assertEquals(1, asyncRegistry.getRejectedCount());
+            Assert.assertEquals(1, asyncRegistry.getQueueSize());
+
+            release.countDown();
+            Assert.assertTrue(busy.get(10, TimeUnit.SECONDS));
+            String id = queued.get(10, TimeUnit.SECONDS).getId();
+            Assert.assertEquals("Async", registryService.get(id).getName());
+            asyncRegistry.delete(id).get(10, TimeUnit.SECONDS);
+            Assert.assertNull(registryService.get(id));
+        } finally {
+            asyncRegistry.deactivate();
+        }
+    }
+
+    private static boolean await(CountDownLatch latch) {
+        try {
+            return latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void assertEvent(
+            RegistryEvent event, long sequence, String id, RegistryEvent.Operation operation) {
+        Assert.assertEquals(sequence, event.getSequence());
+        Assert.assertEquals(id, event.getId());
+        Assert.assertEquals(operation, event.getOperation());
+    }
+}
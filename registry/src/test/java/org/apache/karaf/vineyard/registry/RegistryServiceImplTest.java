@@ -19,11 +19,16 @@ package org.apache.karaf.vineyard.registry;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.InetAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -31,18 +36,30 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
 import org.apache.aries.jpa.supplier.EmSupplier;
 import org.apache.aries.jpa.support.impl.ResourceLocalJpaTemplate;
+import org.apache.aries.jpa.template.EmConsumer;
+import org.apache.aries.jpa.template.EmFunction;
 import org.apache.aries.jpa.template.JpaTemplate;
+import org.apache.aries.jpa.template.TransactionType;
 import org.apache.derby.drda.NetworkServerControl;
 import org.apache.derby.jdbc.ClientDataSource;
 import org.apache.karaf.vineyard.common.API;
+import org.apache.karaf.vineyard.common.Policy;
+import org.apache.karaf.vineyard.common.RegistryService;
+import org.apache.karaf.vineyard.common.RestResource;
+import org.apache.karaf.vineyard.registry.cache.LocalInvalidationBus;
+import org.apache.karaf.vineyard.registry.definition.DefinitionStore;
+import org.apache.karaf.vineyard.registry.metrics.RegistryMetrics;
 import org.junit.AfterClass;
 import org.junit.Assert;
-import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.osgi.framework.Bundle;
@@ -52,13 +69,17 @@ import org.osgi.service.coordinator.Participant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class RegistryServiceImplTest {
+public class RegistryServiceImplTest extends AbstractRegistryServiceTest {
 
     private static final Logger LOG = LoggerFactory.getLogger(RegistryServiceImplTest.class);
 
     private static NetworkServerControl derbyServer;
 
-    private RegistryServiceImpl registryService;
+    private RegistryServiceImpl registryServiceImpl;
+
+    private RegistryMetrics metrics;
+
+    private JpaTemplate jpaTemplate;
 
     @BeforeClass
     public static void beforeClass() throws Exception {
@@ -95,14 +116,19 @@ public class RegistryServiceImplTest {
         }
     }
 
-    @Before
-    public void setup() {
-        registryService = new RegistryServiceImpl();
+    @Override
+    protected RegistryService createRegistryService(DefinitionStore definitionStore) {
+        registryServiceImpl = new RegistryServiceImpl();
         EntityManagerFactory emf = createTestEMF();
-        EmSupplier emSupplier = createEmSupplier(emf);
         Coordinator coordinator = new DummyCoordinator();
-        JpaTemplate jpaTemplate = new ResourceLocalJpaTemplate(emSupplier, coordinator);
-        registryService.setJpaTemplate(jpaTemplate);
+        EmSupplier emSupplier = createEmSupplier(emf, coordinator);
+        jpaTemplate =
+                new RequiredJpaTemplate(new ResourceLocalJpaTemplate(emSupplier, coordinator));
+        registryServiceImpl.setJpaTemplate(jpaTemplate);
+        registryServiceImpl.setDefinitionStore(definitionStore);
+        metrics = new RegistryMetrics();
+        registryServiceImpl.setMetrics(metrics);
+        return registryServiceImpl;
     }
 
     @Test
@@ -130,6 +156,275 @@ public class RegistryServiceImplTest {
         }
     }
 
+    @Test
+    public void testSchemaUpgrade() throws Exception {
+        API api = new API();
+        api.setName("Legacy");
+        api.setContext("/legacy");
+        api = registryService.add(api);
+        RestResource restResource = new RestResource();
+        restResource.setPath("/items");
+        restResource.setMethod("GET");
+        restResource = registryService.addRestResource(api, restResource);
+
+        // tables of the previous version, extended with the new columns only
+        try (Connection connection = getDataSource().getConnection();
+                Statement statement = connection.createStatement()) {
+            try {
+                statement.executeUpdate(
+                        "ALTER TABLE VINEYARD.REST_RESOURCE DROP CONSTRAINT REST_RESOURCE_ROUTE_UK");
+            } catch (SQLException e) {
+                // the test schema declares the key as a unique index
+                statement.executeUpdate("DROP INDEX VINEYARD.REST_RESOURCE_ROUTE_UK");
+            }
+            statement.executeUpdate("UPDATE VINEYARD.REST_RESOURCE SET CONTEXT = NULL");
+        }
+
+        SchemaUpgrade.run(jpaTemplate);
+        // a second run skips what's done
+        SchemaUpgrade.run(jpaTemplate);
+
+        try (Connection connection = getDataSource().getConnection();
+                Statement statement = connection.createStatement()) {
+            try (ResultSet resultSet =
+                    statement.executeQuery(
+                            "SELECT CONTEXT FROM VINEYARD.REST_RESOURCE WHERE ID = '"
+                                    + restResource.getId()
+                                    + "'")) {
+                Assert.assertTrue(resultSet.next());
+                Assert.assertEquals("/legacy", resultSet.getString(1));
+            }
+            try (ResultSet resultSet =
+                    statement.executeQuery(
+                            "SELECT COUNT(*) FROM SYS.SYSCONSTRAINTS "
+                                    + "WHERE CONSTRAINTNAME = 'REST_RESOURCE_ROUTE_UK'")) {
+                resultSet.next();
+                Assert.assertEquals(1, resultSet.getInt(1));
+            }
+        }
+        Assert.assertEquals(
+                restResource.getId(), registryService.resolve("/legacy", "/items", "GET").getId());
+    }
+
+    @Test
+    public void testRevisionUpgrade() throws Exception {
+        API api = new API();
+        api.setName("Unversioned");
+        api.setContext("/unversioned");
+        api = registryService.add(api);
+
+        // rows written before the revisions
+        try (Connection connection = getDataSource().getConnection();
+                Statement statement = connection.createStatement()) {
+            statement.executeUpdate("UPDATE VINEYARD.API SET REVISION = NULL");
+        }
+
+        SchemaUpgrade.run(jpaTemplate);
+
+        api.setRevision(0L);
+        api.setDescription("Versioned");
+        registryService.update(api);
+        Assert.assertEquals(Long.valueOf(1), registryService.get(api.getId()).getRevision());
+    }
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        registryService.list();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> writes = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                int writer = i;
+                writes.add(
+                        executor.submit(
+                                () -> {
+                                    for (int j = 0; j < 5; j++) {
+                                        API api = new API();
+                                        api.setName("Concurrent " + writer + "-" + j);
+                                        api.setContext("/concurrent-" + writer + "-" + j);
+                                        registryService.add(api);
+                                        api = registryService.get(api.getId());
+                                        api.setDescription("Updated " + writer + "-" + j);
+                                        registryService.update(api);
+                                    }
+                                    return null;
+                                }));
+            }
+            for (Future<?> write : writes) {
+                write.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // the patches of the concurrent transactions were applied in their commit order
+        Assert.assertEquals(1, metrics.getCount("loadSnapshot"));
+        Collection<API> apis = registryService.list();
+        Assert.assertEquals(20, apis.size());
+        for (API api : apis) {
+            Assert.assertEquals(
+                    api.getName().replace("Concurrent", "Updated"), api.getDescription());
+        }
+    }
+
+    @Test
+    public void testPatchedSnapshot() throws Exception {
+        registryService.list();
+        API api = new API();
+        api.setName("Patched");
+        api.setContext("/patched");
+        api = registryService.add(api);
+        registryService.addMeta(api, Collections.singletonMap("team", "core"));
+        RestResource kept = new RestResource();
+        kept.setPath("/kept");
+        kept.setMethod("GET");
+        kept = registryService.addRestResource(api, kept);
+        RestResource deleted = new RestResource();
+        deleted.setPath("/deleted");
+        deleted.setMethod("GET");
+        deleted = registryService.addRestResource(api, deleted);
+        Policy throttle = new Policy();
+        throttle.setClassName("org.example.Throttle");
+        throttle = registryService.addPolicy(throttle);
+        Policy audit = new Policy();
+        audit.setClassName("org.example.Audit");
+        audit = registryService.addPolicy(audit);
+        registryService.applyPolicy(
+                kept.getId(), throttle.getId(), 1, Collections.singletonMap("rate", "10"));
+        registryService.applyPolicy(kept.getId(), audit.getId(), 2, null);
+        registryService.applyPolicy(deleted.getId(), audit.getId(), 1, null);
+        registryService.addPolicyMeta(throttle, Collections.singletonMap("kind", "qos"));
+        api = registryService.get(api.getId());
+        api.setContext("/moved");
+        registryService.update(api);
+        registryService.deleteRestResource(api, deleted);
+        registryService.deletePolicy(audit.getId());
+
+        // the writes patched the snapshot loaded first, a fresh node loads the same graph
+        Assert.assertEquals(1, metrics.getCount("loadSnapshot"));
+        RegistryServiceImpl fresh = new RegistryServiceImpl();
+        fresh.setJpaTemplate(jpaTemplate);
+        fresh.setDefinitionStore(definitionStore);
+        fresh.setMetrics(new RegistryMetrics());
+        API loaded = fresh.getFull(api.getId());
+        API patched = registryService.getFull(api.getId());
+        Assert.assertEquals(loaded.getContext(), patched.getContext());
+        Assert.assertEquals(loaded.getMeta(), patched.getMeta());
+        Assert.assertEquals(1, patched.getRestResources().size());
+        RestResource restResource = patched.getRestResources().iterator().next();
+        Assert.assertEquals(
+                loaded.getRestResources().iterator().next().getId(), restResource.getId());
+        Assert.assertEquals(
+                loaded.getRestResources().iterator().next().getPolicies().keySet(),
+                restResource.getPolicies().keySet());
+        Assert.assertEquals("10", restResource.getPolicies().get(1).getParam().get("rate"));
+        Assert.assertEquals(
+                kept.getId(), registryService.resolve("/moved", "/kept", "GET").getId());
+        Assert.assertNull(registryService.resolve("/patched", "/kept", "GET"));
+        Assert.assertNull(registryService.getPolicy(audit.getId()));
+        Assert.assertEquals(
+                "qos", registryService.listAppliedPolicies(kept).get(1).getMeta().get("kind"));
+        Assert.assertEquals(1, registryService.listRestResources(throttle).size());
+        Assert.assertEquals(1, metrics.getCount("loadSnapshot"));
+    }
+
+    @Test
+    public void testPageWithoutSnapshot() throws Exception {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            API api = new API();
+            api.setName("Paged " + i);
+            ids.add(registryService.add(api).getId());
+        }
+        Collections.sort(ids);
+        Collection<API> page = registryService.list(ids.get(0), 1);
+        Assert.assertEquals(1, page.size());
+        Assert.assertEquals(ids.get(1), page.iterator().next().getId());
+
+        // the page is read with a keyset query, the registry isn't loaded for it
+        Assert.assertEquals(1, metrics.getCount("list"));
+        Assert.assertEquals(0, metrics.getCount("loadSnapshot"));
+    }
+
+    @Test
+    public void testPeerInvalidation() throws Exception {
+        RegistryServiceImpl peer = new RegistryServiceImpl();
+        peer.setJpaTemplate(jpaTemplate);
+        peer.setDefinitionStore(definitionStore);
+        peer.setMetrics(new RegistryMetrics());
+        LocalInvalidationBus bus = new LocalInvalidationBus();
+        registryServiceImpl.bindInvalidationBus(bus);
+        peer.bindInvalidationBus(bus);
+
+        API api = new API();
+        api.setName("Shared");
+        api = registryService.add(api);
+        Assert.assertEquals("Shared", peer.get(api.getId()).getName());
+
+        api.setName("Renamed");
+        registryService.update(api);
+        Assert.assertEquals("Renamed", peer.get(api.getId()).getName());
+
+        // without the bus, the peer keeps serving its cached copy
+        peer.unbindInvalidationBus(bus);
+        api.setName("Unseen");
+        registryService.update(api);
+        Assert.assertEquals("Renamed", peer.get(api.getId()).getName());
+        Assert.assertEquals("Unseen", registryService.get(api.getId()).getName());
+    }
+
+    @Test
+    public void testReadOnlyNode() throws Exception {
+        API api = new API();
+        api.setName("Saved");
+        api.setContext("/saved");
+        api = registryService.add(api);
+        registryService.addMeta(api, Collections.singletonMap("team", "core"));
+        RestResource restResource = new RestResource();
+        restResource.setPath("/items");
+        restResource.setMethod("GET");
+        restResource = registryService.addRestResource(api, restResource);
+        Policy policy = new Policy();
+        policy.setClassName("org.example.Throttle");
+        policy = registryService.addPolicy(policy);
+        registryService.applyPolicy(
+                restResource.getId(), policy.getId(), 1, Collections.singletonMap("rate", "10"));
+
+        Path file = Paths.get("target", "registry.snapshot");
+        registryServiceImpl.setSnapshotFile(file);
+        Assert.assertEquals(file, registryServiceImpl.writeSnapshot());
+
+        // a node without database serves the snapshot file
+        RegistryServiceImpl readOnly = new RegistryServiceImpl();
+        readOnly.setSnapshotFile(file);
+        readOnly.setMetrics(new RegistryMetrics());
+        Assert.assertEquals("Saved", readOnly.get(api.getId()).getName());
+        Assert.assertEquals("core", readOnly.get(api.getId()).getMeta().get("team"));
+        Assert.assertEquals(
+                restResource.getId(), readOnly.resolve("/saved", "/items", "GET").getId());
+        Assert.assertEquals(1, readOnly.getFull(api.getId()).getRestResources().size());
+        Map<Integer, Policy> applied = readOnly.listAppliedPolicies(restResource);
+        Assert.assertEquals("org.example.Throttle", applied.get(1).getClassName());
+        Assert.assertEquals("10", applied.get(1).getParam().get("rate"));
+        List<API> scanned = new ArrayList<>();
+        readOnly.scan(scanned::add);
+        Assert.assertEquals(1, scanned.size());
+        try {
+            readOnly.delete(api.getId());
+            Assert.fail("the node has no database");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // the invalidations of the writing nodes don't reach a database, the file is served
+        LocalInvalidationBus bus = new LocalInvalidationBus();
+        registryServiceImpl.bindInvalidationBus(bus);
+        readOnly.bindInvalidationBus(bus);
+        api.setName("Renamed");
+        registryService.update(api);
+        Assert.assertEquals("Saved", readOnly.get(api.getId()).getName());
+    }
+
     private ClientDataSource getDataSource() {
         ClientDataSource dataSource = new ClientDataSource();
         dataSource.setDatabaseName("target/vineyard");
@@ -138,8 +433,9 @@ public class RegistryServiceImplTest {
         return dataSource;
     }
 
-    private EmSupplier createEmSupplier(EntityManagerFactory emf) {
-        final EntityManager em = emf.createEntityManager();
+    private EmSupplier createEmSupplier(EntityManagerFactory emf, Coordinator coordinator) {
+        // as in the container, each outermost coordination gets its own persistence context,
+        // closed when the coordination ends
         EmSupplier emSupplier =
                 new EmSupplier() {
                     @Override
@@ -147,6 +443,29 @@ public class RegistryServiceImplTest {
 
                     @Override
                     public EntityManager get() {
+                        Coordination coordination = coordinator.peek();
+                        while (coordination.getEnclosingCoordination() != null) {
+                            coordination = coordination.getEnclosingCoordination();
+                        }
+                        Map<Class<?>, Object> variables = coordination.getVariables();
+                        EntityManager em = (EntityManager) variables.get(EntityManager.class);
+                        if (em == null) {
+                            EntityManager created = emf.createEntityManager();
+                            variables.put(EntityManager.class, created);
+                            coordination.addParticipant(
+                                    new Participant() {
+                                        @Override
+                                        public void ended(Coordination coordination) {
+                                            created.close();
+                                        }
+
+                                        @Override
+                                        public void failed(Coordination coordination) {
+                                            created.close();
+                                        }
+                                    });
+                            em = created;
+                        }
                         return em;
                     }
 
@@ -167,9 +486,40 @@ public class RegistryServiceImplTest {
         return emf;
     }
 
+    /** The resource local template only supports REQUIRED, run everything with it. */
+    class RequiredJpaTemplate implements JpaTemplate {
+
+        private final JpaTemplate delegate;
+
+        public RequiredJpaTemplate(JpaTemplate delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public <R> R txExpr(TransactionType type, EmFunction<R> code) {
+            return delegate.txExpr(TransactionType.Required, code);
+        }
+
+        @Override
+        public void tx(TransactionType type, EmConsumer code) {
+            delegate.tx(TransactionType.Required, code);
+        }
+
+        @Override
+        public <R> R txExpr(EmFunction<R> code) {
+            return delegate.txExpr(TransactionType.Required, code);
+        }
+
+        @Override
+        public void tx(EmConsumer code) {
+            delegate.tx(TransactionType.Required, code);
+        }
+    }
+
     class DummyCoordinator implements Coordinator {
 
-        private Deque<Coordination> coordinations = new ArrayDeque<>();
+        private final ThreadLocal<Deque<Coordination>> coordinations =
+                ThreadLocal.withInitial(ArrayDeque::new);
 
         @Override
         public Coordination create(String name, long timeMillis) {
@@ -178,20 +528,19 @@ public class RegistryServiceImplTest {
 
         @Override
         public Coordination begin(String name, long timeMillis) {
-            Coordination oldCoordination = coordinations.peekLast();
-            Coordination coordination = new DummyCoordination(oldCoordination);
-            this.coordinations.push(coordination);
+            Coordination coordination = new DummyCoordination(this, peek());
+            coordinations.get().push(coordination);
             return coordination;
         }
 
         @Override
         public Coordination peek() {
-            return coordinations.peek();
+            return coordinations.get().peek();
         }
 
         @Override
         public Coordination pop() {
-            return coordinations.pop();
+            return coordinations.get().pop();
         }
 
         @Override
@@ -219,9 +568,11 @@ public class RegistryServiceImplTest {
 
         private Set<Participant> participants = new HashSet<>();
         private Map<Class<?>, Object> vars = new HashMap<>();
+        private Coordinator coordinator;
         private Coordination enclosing;
 
-        public DummyCoordination(Coordination enclosing) {
+        public DummyCoordination(Coordinator coordinator, Coordination enclosing) {
+            this.coordinator = coordinator;
             this.enclosing = enclosing;
         }
 
@@ -237,6 +588,7 @@ public class RegistryServiceImplTest {
 
         @Override
         public void end() {
+            coordinator.pop();
             Iterator<Participant> it = participants.iterator();
             while (it.hasNext()) {
                 try {
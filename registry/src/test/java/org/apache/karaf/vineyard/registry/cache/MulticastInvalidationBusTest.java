@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.cache;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.karaf.vineyard.common.RegistryEvent;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+
+public class MulticastInvalidationBusTest {
+
+    private final MulticastInvalidationBus sender = new MulticastInvalidationBus();
+
+    private final MulticastInvalidationBus receiver = new MulticastInvalidationBus();
+
+    private final BlockingQueue<Invalidation> received = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        Dictionary<String, Object> properties = new Hashtable<>();
+        properties.put("group", "239.255.27.99");
+        properties.put("port", "45699");
+        properties.put("ttl", "0");
+        sender.activate(context(properties));
+        receiver.activate(context(properties));
+        receiver.subscribe(received::add);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sender.deactivate();
+        receiver.deactivate();
+    }
+
+    @Test
+    public void testPublish() throws Exception {
+        Set<String> ids = new HashSet<>();
+        ids.add("api-1");
+        ids.add("api-2");
+        sender.publish(
+                new Invalidation("node-1", Collections.singletonMap(RegistryEvent.Type.API, ids)));
+
+        Invalidation invalidation = received.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(invalidation);
+        Assert.assertEquals("node-1", invalidation.getOrigin());
+        Assert.assertEquals(ids, invalidation.getIds().get(RegistryEvent.Type.API));
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        // more IDs than a datagram holds are sent in several invalidations of the same origin
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            ids.add("01ARZ3NDEKTSV4RRFFQ69G5F" + i);
+        }
+        sender.publish(
+                new Invalidation(
+                        "node-1", Collections.singletonMap(RegistryEvent.Type.POLICY, ids)));
+
+        Set<String> all = new HashSet<>();
+        int datagrams = 0;
+        while (all.size() < ids.size()) {
+            Invalidation invalidation = received.poll(10, TimeUnit.SECONDS);
+            Assert.assertNotNull(invalidation);
+            Assert.assertEquals("node-1", invalidation.getOrigin());
+            all.addAll(invalidation.getIds().get(RegistryEvent.Type.POLICY));
+            datagrams++;
+        }
+        Assert.assertEquals(ids, all);
+        Assert.assertTrue(datagrams > 1);
+    }
+
+    @Test
+    public void testPeers() throws Exception {
+        Dictionary<String, Object> properties = new Hashtable<>();
+        properties.put("group", "239.255.27.99");
+        properties.put("port", "45699");
+        properties.put("peers", "203.0.113.1, 203.0.113.2");
+        MulticastInvalidationBus restricted = new MulticastInvalidationBus();
+        restricted.activate(context(properties));
+        BlockingQueue<Invalidation> accepted = new LinkedBlockingQueue<>();
+        restricted.subscribe(accepted::add);
+        try {
+            sender.publish(
+                    new Invalidation(
+                            "node-1",
+                            Collections.singletonMap(
+                                    RegistryEvent.Type.API, Collections.singleton("api-1"))));
+
+            // the other bus receives the datagram, the restricted one ignores it
+            Assert.assertNotNull(received.poll(10, TimeUnit.SECONDS));
+            Assert.assertNull(accepted.poll(500, TimeUnit.MILLISECONDS));
+        } finally {
+            restricted.deactivate();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotMulticast() throws Exception {
+        Dictionary<String, Object> properties = new Hashtable<>();
+        properties.put("group", "203.0.113.1");
+        new MulticastInvalidationBus().activate(context(properties));
+    }
+
+    private static ComponentContext context(Dictionary<String, Object> properties) {
+        return (ComponentContext)
+                Proxy.newProxyInstance(
+                        MulticastInvalidationBusTest.class.getClassLoader(),
+                        new Class<?>[] {ComponentContext.class},
+                        (proxy, method, args) -> {
+                            if (method.getName().equals("getProperties")) {
+                                return properties;
+                            }
+                            throw new UnsupportedOperationException(method.getName());
+                        });
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.cache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import org.apache.karaf.vineyard.common.API;
+import org.apache.karaf.vineyard.common.Policy;
+import org.apache.karaf.vineyard.common.RestResource;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SnapshotFileTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Path file = Paths.get("target", "snapshot-file-test.snapshot");
+        SnapshotFile.write(snapshot(), file);
+        RegistrySnapshot read = SnapshotFile.read(file, 7);
+
+        Assert.assertEquals(7, read.getVersion());
+        API api = read.getApi("api");
+        Assert.assertEquals("Saved", api.getName());
+        Assert.assertEquals(Long.valueOf(3), api.getRevision());
+        Assert.assertEquals("core", api.getMeta().get("team"));
+        Assert.assertEquals("digest", read.getDefinitionDigest("api"));
+        Assert.assertEquals("rr", read.resolve("/saved", "/items", "GET").getId());
+        Assert.assertEquals("api", read.getRestResourceApi("rr"));
+        Map<Integer, Policy> applied = read.listAppliedPolicies("rr");
+        Assert.assertEquals("org.example.Throttle", applied.get(1).getClassName());
+        Assert.assertEquals("10", applied.get(1).getParam().get("rate"));
+        Assert.assertEquals(1, read.listPolicyRestResources("policy").size());
+        Assert.assertEquals(
+                1,
+                read.searchApis(
+                                Collections.singletonMap("team", Collections.singletonList("core")),
+                                null,
+                                10)
+                        .size());
+        Assert.assertEquals("api", read.searchText("saved", 10).get(0).getId());
+    }
+
+    @Test
+    public void testDamaged() throws Exception {
+        Path file = Paths.get("target", "snapshot-file-test-damaged.snapshot");
+        SnapshotFile.write(snapshot(), file);
+        byte[] content = Files.readAllBytes(file);
+        content[content.length / 2] ^= 1;
+        Files.write(file, content);
+        try {
+            SnapshotFile.read(file, 0);
+            Assert.fail("the snapshot is corrupted");
+        } catch (IOException e) {
+            // expected
+        }
+
+        Files.write(file, Arrays.copyOf(content, content.length / 2));
+        try {
+            SnapshotFile.read(file, 0);
+            Assert.fail("the snapshot is truncated");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static RegistrySnapshot snapshot() {
+        API api = new API();
+        api.setId("api");
+        api.setRevision(3L);
+        api.setName("Saved");
+        api.setContext("/saved");
+        api.setMeta(Collections.singletonMap("team", "core"));
+        RestResource restResource = new RestResource();
+        restResource.setId("rr");
+        restResource.setPath("/items");
+        restResource.setMethod("GET");
+        Policy policy = new Policy();
+        policy.setId("policy");
+        policy.setClassName("org.example.Throttle");
+        return new RegistrySnapshot.Builder()
+                .api(api)
+                .definitionDigest("api", "digest")
+                .restResource("api", restResource)
+                .policy(policy)
+                .appliedPolicy("rr", "policy", 1, Collections.singletonMap("rate", "10"))
+                .build(0);
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Map;
+import org.apache.karaf.vineyard.common.API;
+import org.apache.karaf.vineyard.common.ChangeSet;
+import org.apache.karaf.vineyard.common.Policy;
+import org.apache.karaf.vineyard.common.RegistryService;
+import org.apache.karaf.vineyard.common.RestResource;
+import org.apache.karaf.vineyard.registry.AbstractRegistryServiceTest;
+import org.apache.karaf.vineyard.registry.cache.SnapshotFile;
+import org.apache.karaf.vineyard.registry.definition.DefinitionStore;
+import org.apache.karaf.vineyard.registry.metrics.RegistryMetrics;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LogRegistryServiceTest extends AbstractRegistryServiceTest {
+
+    private Path directory;
+
+    private LogRegistryService logRegistryService;
+
+    private RegistryMetrics metrics;
+
+    @Override
+    protected RegistryService createRegistryService(DefinitionStore definitionStore)
+            throws IOException {
+        directory =
+                Files.createTempDirectory(
+                        Files.createDirectories(Paths.get("target")), "registry-log");
+        logRegistryService = open();
+        return logRegistryService;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        logRegistryService.close();
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        API api = new API();
+        api.setName("Logged");
+        api.setContext("/logged");
+        api = registryService.add(api);
+        registryService.addMeta(api, Collections.singletonMap("team", "core"));
+        registryService.definition(
+                api, new ByteArrayInputStream("{}".getBytes(StandardCharsets.UTF_8)));
+        RestResource restResource = new RestResource();
+        restResource.setPath("/items");
+        restResource.setMethod("GET");
+        restResource = registryService.addRestResource(api, restResource);
+        Policy policy = new Policy();
+        policy.setClassName("org.example.Throttle");
+        policy = registryService.addPolicy(policy);
+        registryService.applyPolicy(
+                restResource.getId(), policy.getId(), 1, Collections.singletonMap("rate", "10"));
+
+        // a failed write leaves nothing in the log
+        ChangeSet broken = new ChangeSet();
+        broken.getApis().add(new API());
+        broken.getRestResources().put("unknown", Collections.singletonList(new RestResource()));
+        try {
+            registryService.commit(broken);
+            Assert.fail("the API doesn't exist");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        logRegistryService.close();
+        logRegistryService = open();
+        assertRestored(logRegistryService, api, restResource, policy);
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        API api = new API();
+        api.setName("Compacted");
+        api.setContext("/compacted");
+        api = registryService.add(api);
+        for (int i = 0; i < 100; i++) {
+            registryService.updateMeta(
+                    registryService.get(api.getId()),
+                    Collections.singletonMap("step", String.valueOf(i)));
+        }
+        RestResource restResource = new RestResource();
+        restResource.setPath("/items");
+        restResource.setMethod("GET");
+        restResource = registryService.addRestResource(api, restResource);
+        Policy policy = new Policy();
+        policy.setClassName("org.example.Throttle");
+        policy = registryService.addPolicy(policy);
+        registryService.applyPolicy(
+                restResource.getId(), policy.getId(), 1, Collections.singletonMap("rate", "10"));
+        registryService.addMeta(
+                registryService.get(api.getId()), Collections.singletonMap("team", "core"));
+
+        logRegistryService.compact();
+        Assert.assertTrue(Files.exists(directory.resolve("registry.snapshot")));
+
+        // written after the compaction, replayed over the base
+        API other = new API();
+        other.setName("Other");
+        other = registryService.add(other);
+
+        logRegistryService.close();
+        logRegistryService = open();
+        Assert.assertEquals("99", logRegistryService.get(api.getId()).getMeta().get("step"));
+        Assert.assertEquals(Long.valueOf(101), logRegistryService.get(api.getId()).getRevision());
+        Assert.assertEquals("Other", logRegistryService.get(other.getId()).getName());
+        Assert.assertEquals(
+                restResource.getId(),
+                logRegistryService.resolve("/compacted", "/items", "GET").getId());
+        Map<Integer, Policy> applied =
+                logRegistryService.listAppliedPolicies(
+                        logRegistryService.getRestResource(restResource.getId()));
+        Assert.assertEquals("10", applied.get(1).getParam().get("rate"));
+    }
+
+    @Test
+    public void testDamagedLog() throws Exception {
+        API kept = new API();
+        kept.setName("Kept");
+        kept = registryService.add(kept);
+        API lost = new API();
+        lost.setName("Lost");
+        lost = registryService.add(lost);
+        logRegistryService.close();
+
+        // damage the last record, as a write interrupted by a crash
+        Path file = directory.resolve("registry.log");
+        byte[] content = Files.readAllBytes(file);
+        int last = content.length - 1;
+        while (content[last] == 0) {
+            last--;
+        }
+        content[last] ^= 1;
+        Files.write(file, content);
+
+        logRegistryService = open();
+        Assert.assertEquals("Kept", logRegistryService.get(kept.getId()).getName());
+        Assert.assertNull(logRegistryService.get(lost.getId()));
+
+        // the next records replace the damaged one
+        API added = new API();
+        added.setName("Added");
+        added = logRegistryService.add(added);
+        logRegistryService.close();
+        logRegistryService = open();
+        Assert.assertEquals("Added", logRegistryService.get(added.getId()).getName());
+        Assert.assertEquals(2, logRegistryService.list().size());
+    }
+
+    @Test
+    public void testPatchedSnapshot() throws Exception {
+        registryService.list();
+        API api = new API();
+        api.setName("Patched");
+        api.setContext("/patched");
+        api = registryService.add(api);
+        registryService.addMeta(api, Collections.singletonMap("team", "core"));
+        RestResource kept = new RestResource();
+        kept.setPath("/kept");
+        kept.setMethod("GET");
+        kept = registryService.addRestResource(api, kept);
+        RestResource deleted = new RestResource();
+        deleted.setPath("/deleted");
+        deleted.setMethod("GET");
+        deleted = registryService.addRestResource(api, deleted);
+        Policy throttle = new Policy();
+        throttle.setClassName("org.example.Throttle");
+        throttle = registryService.addPolicy(throttle);
+        registryService.applyPolicy(
+                kept.getId(), throttle.getId(), 1, Collections.singletonMap("rate", "10"));
+        registryService.applyPolicy(deleted.getId(), throttle.getId(), 1, null);
+        api = registryService.get(api.getId());
+        api.setContext("/moved");
+        registryService.update(api);
+        registryService.deleteRestResource(api, deleted);
+
+        // the writes patched the snapshot loaded first, the reopened log gives the same graph
+        Assert.assertEquals(1, metrics.getCount("loadSnapshot"));
+        Assert.assertEquals(
+                9,
+                metrics.getCount("add")
+                        + metrics.getCount("addMeta")
+                        + metrics.getCount("addRestResource")
+                        + metrics.getCount("addPolicy")
+                        + metrics.getCount("applyPolicy")
+                        + metrics.getCount("update")
+                        + metrics.getCount("deleteRestResource"));
+        API patched = logRegistryService.getFull(api.getId());
+        logRegistryService.close();
+        logRegistryService = open();
+        API loaded = logRegistryService.getFull(api.getId());
+        Assert.assertEquals(loaded.getContext(), patched.getContext());
+        Assert.assertEquals(loaded.getMeta(), patched.getMeta());
+        Assert.assertEquals(loaded.getRevision(), patched.getRevision());
+        Assert.assertEquals(1, patched.getRestResources().size());
+        RestResource restResource = patched.getRestResources().iterator().next();
+        Assert.assertEquals(
+                loaded.getRestResources().iterator().next().getRevision(),
+                restResource.getRevision());
+        Assert.assertEquals("10", restResource.getPolicies().get(1).getParam().get("rate"));
+        Assert.assertEquals(
+                kept.getId(), logRegistryService.resolve("/moved", "/kept", "GET").getId());
+        Assert.assertEquals(1, logRegistryService.listRestResources(throttle).size());
+    }
+
+    @Test
+    public void testWriteSnapshot() throws Exception {
+        API api = new API();
+        api.setName("Snapshot");
+        api = registryService.add(api);
+
+        Path base = logRegistryService.writeSnapshot();
+        Assert.assertEquals(directory.resolve("registry.snapshot"), base);
+        Assert.assertEquals("Snapshot", SnapshotFile.read(base, 0).getApi(api.getId()).getName());
+    }
+
+    private LogRegistryService open() throws IOException {
+        metrics = new RegistryMetrics();
+        LogRegistryService registry = new LogRegistryService(definitionStore, metrics);
+        registry.open(directory, true);
+        return registry;
+    }
+
+    private static void assertRestored(
+            RegistryService registry, API api, RestResource restResource, Policy policy) {
+        API restored = registry.get(api.getId());
+        Assert.assertEquals("Logged", restored.getName());
+        Assert.assertEquals("core", restored.getMeta().get("team"));
+        Assert.assertEquals(Long.valueOf(2), restored.getRevision());
+        Assert.assertNotNull(registry.getDefinitionDigest(api));
+        Assert.assertEquals(1, registry.list().size());
+        Assert.assertEquals(
+                restResource.getId(), registry.resolve("/logged", "/items", "GET").getId());
+        Map<Integer, Policy> applied =
+                registry.listAppliedPolicies(registry.getRestResource(restResource.getId()));
+        Assert.assertEquals(policy.getId(), applied.get(1).getId());
+        Assert.assertEquals("10", applied.get(1).getParam().get("rate"));
+        Assert.assertEquals(
+                Long.valueOf(1), registry.getRestResource(restResource.getId()).getRevision());
+    }
+}
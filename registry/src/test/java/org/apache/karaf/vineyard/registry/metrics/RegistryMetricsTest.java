@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.metrics;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.PersistenceException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RegistryMetricsTest {
+
+    @Test
+    public void testRecord() throws Exception {
+        RegistryMetrics metrics = new RegistryMetrics();
+        metrics.record("add", TimeUnit.MILLISECONDS.toNanos(3), 1, null);
+        metrics.record("add", TimeUnit.MILLISECONDS.toNanos(7), 1, new IllegalStateException());
+
+        Assert.assertEquals(2, metrics.getCount("add"));
+        Assert.assertEquals(1, metrics.getErrors("add"));
+        Assert.assertEquals(2, metrics.getRows("add"));
+        Assert.assertEquals(5, metrics.getMeanLatencyMillis("add"), 0.001);
+        Assert.assertEquals(7, metrics.getMaxLatencyMillis("add"), 0.001);
+        Assert.assertEquals(0, metrics.getCount("get"));
+        Assert.assertEquals(0, metrics.getLockTimeouts());
+    }
+
+    @Test
+    public void testLockTimeouts() throws Exception {
+        RegistryMetrics metrics = new RegistryMetrics();
+        SQLException lock = new SQLException("A lock could not be obtained", "40XL1");
+        metrics.record("update", 0, 0, new PersistenceException(lock));
+        metrics.record(
+                "update", 0, 0, new PersistenceException(new SQLException("other", "23505")));
+
+        Assert.assertEquals(1, metrics.getLockTimeouts());
+    }
+
+    @Test
+    public void testScrape() throws Exception {
+        RegistryMetrics metrics = new RegistryMetrics();
+        metrics.record("add", TimeUnit.MILLISECONDS.toNanos(3), 1, null);
+
+        String text = metrics.scrape();
+        Assert.assertTrue(
+                text.contains("vineyard_registry_operation_seconds_count{operation=\"add\"} 1\n"));
+        Assert.assertTrue(
+                text.contains(
+                        "vineyard_registry_operation_seconds_bucket{operation=\"add\",le=\"0.002\"} 0\n"));
+        Assert.assertTrue(
+                text.contains(
+                        "vineyard_registry_operation_seconds_bucket{operation=\"add\",le=\"0.005\"} 1\n"));
+        Assert.assertTrue(
+                text.contains(
+                        "vineyard_registry_operation_seconds_bucket{operation=\"add\",le=\"+Inf\"} 1\n"));
+        Assert.assertTrue(text.contains("vineyard_registry_lock_timeouts_total 0\n"));
+    }
+}
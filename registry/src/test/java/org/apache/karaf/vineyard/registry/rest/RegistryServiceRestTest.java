@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.vineyard.registry.rest;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import org.apache.karaf.vineyard.common.API;
+import org.apache.karaf.vineyard.common.RegistryService;
+import org.apache.karaf.vineyard.common.RestResource;
+import org.apache.karaf.vineyard.registry.async.AsyncRegistryServiceImpl;
+import org.apache.karaf.vineyard.registry.log.LogRegistryService;
+import org.apache.karaf.vineyard.registry.metrics.RegistryMetrics;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RegistryServiceRestTest {
+
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    private AsyncRegistryServiceImpl asyncRegistry;
+
+    private RegistryServiceRest rest;
+
+    @Before
+    public void setUp() {
+        // registry blocking the writes until released
+        RegistryService registry =
+                (RegistryService)
+                        Proxy.newProxyInstance(
+                                getClass().getClassLoader(),
+                                new Class<?>[] {RegistryService.class},
+                                (proxy, method, args) -> {
+                                    released.await();
+                                    return method.getName().equals("add") ? args[0] : null;
+                                });
+        asyncRegistry = new AsyncRegistryServiceImpl(registry, 1, 1);
+        rest = new RegistryServiceRest();
+        rest.setRegistry(registry);
+        rest.setAsyncRegistry(asyncRegistry);
+    }
+
+    @After
+    public void tearDown() {
+        released.countDown();
+        asyncRegistry.deactivate();
+    }
+
+    @Test
+    public void testSaturated() throws Exception {
+        CompletableFuture<Object> running = addApi("running");
+        CompletableFuture<Object> queued = addApi("queued");
+
+        // the endpoints mapping the registry result with thenApply
+        assertUnavailable(addApi("rejected"));
+        CompletableFuture<Object> deleted = new CompletableFuture<>();
+        rest.deleteApis(Collections.singletonList("rejected"), asyncResponse(deleted));
+        assertUnavailable(deleted);
+
+        released.countDown();
+        Assert.assertEquals(201, ((Response) running.get(10, TimeUnit.SECONDS)).getStatus());
+        Assert.assertEquals(201, ((Response) queued.get(10, TimeUnit.SECONDS)).getStatus());
+    }
+
+    @Test
+    public void testRouteConflict() throws Exception {
+        LogRegistryService registry = new LogRegistryService(null, new RegistryMetrics());
+        registry.open(
+                Files.createTempDirectory(
+                        Files.createDirectories(Paths.get("target")), "registry-rest"),
+                true);
+        AsyncRegistryServiceImpl routed = new AsyncRegistryServiceImpl(registry, 1, 16);
+        try {
+            rest.setRegistry(registry);
+            rest.setAsyncRegistry(routed);
+            API first = registry.add(api("/first"));
+            API second = registry.add(api("/second"));
+            registry.addRestResource(first, restResource());
+            registry.addRestResource(second, restResource());
+
+            // moving the second API onto the routes of the first
+            CompletableFuture<Object> updated = new CompletableFuture<>();
+            second.setContext("/first");
+            rest.updateApi(second, null, asyncResponse(updated));
+            assertConflict(updated);
+
+            CompletableFuture<Object> added = new CompletableFuture<>();
+            rest.addApiRestResources(second.getId(), restResource(), asyncResponse(added));
+            assertConflict(added);
+        } finally {
+            routed.deactivate();
+            registry.close();
+        }
+    }
+
+    private static API api(String context) {
+        API api = new API();
+        api.setName(context.substring(1));
+        api.setContext(context);
+        return api;
+    }
+
+    private static RestResource restResource() {
+        RestResource restResource = new RestResource();
+        restResource.setPath("/items");
+        restResource.setMethod("GET");
+        return restResource;
+    }
+
+    private static void assertConflict(CompletableFuture<Object> resumed) throws Exception {
+        Object resumedWith = resumed.get(10, TimeUnit.SECONDS);
+        Assert.assertTrue(String.valueOf(resumedWith), resumedWith instanceof Response);
+        Assert.assertEquals(409, ((Response) resumedWith).getStatus());
+    }
+
+    private CompletableFuture<Object> addApi(String id) {
+        API api = new API();
+        api.setId(id);
+        CompletableFuture<Object> resumed = new CompletableFuture<>();
+        rest.addApi(api, asyncResponse(resumed));
+        return resumed;
+    }
+
+    private static void assertUnavailable(CompletableFuture<Object> resumed) throws Exception {
+        Object resumedWith = resumed.get(10, TimeUnit.SECONDS);
+        Assert.assertTrue(String.valueOf(resumedWith), resumedWith instanceof Response);
+        Response response = (Response) resumedWith;
+        Assert.assertEquals(503, response.getStatus());
+        Assert.assertEquals("1", response.getHeaderString(HttpHeaders.RETRY_AFTER));
+    }
+
+    /** Suspended request completing a future with what it's resumed with. */
+    private static AsyncResponse asyncResponse(CompletableFuture<Object> resumed) {
+        return (AsyncResponse)
+                Proxy.newProxyInstance(
+                        RegistryServiceRestTest.class.getClassLoader(),
+                        new Class<?>[] {AsyncResponse.class},
+                        (proxy, method, args) -> {
+                            if (method.getName().equals("resume")) {
+                                return resumed.complete(args[0]);
+                            }
+                            return method.getReturnType() == boolean.class ? false : null;
+                        });
+    }
+}